@@ -0,0 +1,73 @@
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.KVSUtils;
+import ProcessKvs.synthetic.SyntheticCall;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Demux of one minute of a two track call, with and without the call analytics. Run with ./gradlew jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationAnalyzerBenchmark {
+
+    private static final String CONTACT_ID = "00000000-0000-0000-0000-000000000042";
+    private static final Set<String> TRACKS = Set.of(KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER);
+
+    @Param({"off", "on"})
+    public String analytics;
+
+    private byte[] media;
+
+    @Setup
+    public void setUp() {
+        media = new SyntheticCall(CONTACT_ID, "benchmark", 60_000, 512, 31, 0.002, 42).media();
+    }
+
+    @Benchmark
+    public long demux() throws Exception {
+        ConversationAnalyzer analyzer = "on".equals(analytics) ? new ConversationAnalyzer(TRACKS, -40) : null;
+        StreamingMkvReader reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(media)));
+        FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+        FragmentMetadataVisitor visitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+        Map<String, ByteBuffer> bufferMap = new HashMap<>();
+
+        long bytes = 0;
+        Map<String, ByteBuffer> frame = KVSUtils.getByteBufferFromStream(reader, visitor, tagProcessor, CONTACT_ID, bufferMap, TRACKS);
+        while (!frame.isEmpty()) {
+            for (Map.Entry<String, ByteBuffer> trackFrame : frame.entrySet()) {
+                if (analyzer != null) {
+                    analyzer.accept(trackFrame.getKey(), trackFrame.getValue());
+                }
+                bytes += trackFrame.getValue().remaining();
+            }
+            frame = KVSUtils.getByteBufferFromStream(reader, visitor, tagProcessor, CONTACT_ID, bufferMap, TRACKS);
+        }
+        return analyzer != null ? bytes + analyzer.finish().getCrossTalkMillis() : bytes;
+    }
+}
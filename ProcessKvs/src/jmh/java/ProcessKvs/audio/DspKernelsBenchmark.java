@@ -0,0 +1,111 @@
+package ProcessKvs.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar against vector kernels on one arena chunk of samples. Run with ./gradlew jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DspKernelsBenchmark {
+
+    private static final int SAMPLES = FrameBufferArena.CHUNK_SIZE / 2;
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private DspKernels dsp;
+    private ByteBuffer left;
+    private ByteBuffer right;
+    private ByteBuffer stereo;
+    private ByteBuffer mono;
+    private ByteBuffer other;
+    private ByteBuffer ulaw;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        dsp = "scalar".equals(kernels)
+                ? new ScalarDspKernels()
+                : (DspKernels) Class.forName("ProcessKvs.audio.VectorDspKernels").getDeclaredConstructor().newInstance();
+
+        byte[] samples = new byte[2 * SAMPLES];
+        Random random = new Random(42);
+        random.nextBytes(samples);
+        left = ByteBuffer.allocateDirect(2 * SAMPLES).put(samples).flip();
+        random.nextBytes(samples);
+        right = ByteBuffer.allocateDirect(2 * SAMPLES).put(samples).flip();
+        stereo = ByteBuffer.allocateDirect(4 * SAMPLES);
+        mono = ByteBuffer.allocateDirect(2 * SAMPLES);
+        other = ByteBuffer.allocateDirect(2 * SAMPLES);
+        ulaw = ByteBuffer.allocateDirect(SAMPLES);
+        dsp.interleave(left.duplicate(), right.duplicate(), stereo.duplicate(), SAMPLES);
+        dsp.ulawEncode(left.duplicate(), ulaw.duplicate(), SAMPLES);
+    }
+
+    @Benchmark
+    public ByteBuffer interleave() {
+        ByteBuffer out = stereo.clear();
+        dsp.interleave(left.duplicate(), right.duplicate(), out, SAMPLES);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer deinterleave() {
+        ByteBuffer l = mono.clear();
+        dsp.deinterleave(stereo.duplicate().clear(), l, other.clear(), SAMPLES);
+        return l;
+    }
+
+    @Benchmark
+    public ByteBuffer byteSwap() {
+        ByteBuffer out = mono.clear();
+        dsp.byteSwap(left.duplicate(), out, SAMPLES);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer sumToMono() {
+        ByteBuffer out = mono.clear();
+        dsp.sumToMono(left.duplicate(), right.duplicate(), out, SAMPLES);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer gain() {
+        ByteBuffer out = mono.clear();
+        dsp.gain(left.duplicate(), out, SAMPLES, 1.5f);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer ulawEncode() {
+        ByteBuffer out = ulaw.clear();
+        dsp.ulawEncode(left.duplicate(), out, SAMPLES);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer ulawDecode() {
+        ByteBuffer out = mono.clear();
+        dsp.ulawDecode(ulaw.duplicate().clear(), out, SAMPLES);
+        return out;
+    }
+}
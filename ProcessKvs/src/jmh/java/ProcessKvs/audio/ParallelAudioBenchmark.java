@@ -0,0 +1,80 @@
+package ProcessKvs.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mix and ASR resampling time of a 10 minute call with 1 to 6 threads, the vCPUs Lambda gives with its memory
+ * sizes. Run with ./gradlew jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelAudioBenchmark {
+
+    private static final int SAMPLES = 10 * 60 * AudioUtils.SAMPLE_RATE;
+
+    @Param({"1", "2", "4", "6"})
+    public int threads;
+
+    private final FrameBufferArena arena = new FrameBufferArena(16L * SAMPLES);
+    private ParallelAudio parallel;
+    private TrackBuffer left;
+    private TrackBuffer right;
+
+    @Setup
+    public void setUp() throws IOException {
+        parallel = new ParallelAudio(threads, 0);
+        left = track(1);
+        right = track(2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        left.close();
+        right.close();
+    }
+
+    @Benchmark
+    public long mix() throws IOException {
+        try (TrackBuffer mixed = arena.newTrack(Paths.get("/tmp/benchmark_mixed.pcm"), false)) {
+            parallel.mix(left, right, mixed);
+            return mixed.size();
+        }
+    }
+
+    @Benchmark
+    public long resample() throws IOException {
+        try (TrackBuffer resampled = arena.newTrack(Paths.get("/tmp/benchmark_resampled.pcm"), false)) {
+            parallel.resample(left, AudioUtils.SAMPLE_RATE, 16000, resampled);
+            return resampled.size();
+        }
+    }
+
+    private TrackBuffer track(long seed) throws IOException {
+        byte[] samples = new byte[2 * SAMPLES];
+        new Random(seed).nextBytes(samples);
+        TrackBuffer track = arena.newTrack(Paths.get("/tmp/benchmark_" + seed + ".pcm"), false);
+        track.write(ByteBuffer.wrap(samples));
+        return track;
+    }
+}
@@ -0,0 +1,58 @@
+package ProcessKvs.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resampling throughput on one arena chunk of 8 kHz samples, about 16 seconds of audio. Run with ./gradlew jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PolyphaseResamplerBenchmark {
+
+    private static final int SAMPLES = FrameBufferArena.CHUNK_SIZE / 2;
+
+    @Param({"16000", "11025", "44100"})
+    public int outputRate;
+
+    private PolyphaseResampler resampler;
+    private ByteBuffer input;
+    private ByteBuffer output;
+
+    @Setup
+    public void setUp() {
+        resampler = new PolyphaseResampler(AudioUtils.SAMPLE_RATE, outputRate);
+        byte[] samples = new byte[2 * SAMPLES];
+        new Random(42).nextBytes(samples);
+        input = ByteBuffer.allocateDirect(2 * SAMPLES).put(samples).flip();
+        output = ByteBuffer.allocateDirect(2 * (int) resampler.outputLength(SAMPLES));
+    }
+
+    @Benchmark
+    public ByteBuffer resample() {
+        resampler.reset();
+        ByteBuffer out = output.clear();
+        resampler.process(input.duplicate(), out);
+        while (resampler.flush(out) > 0) {
+            // the output buffer holds the whole track
+        }
+        return out;
+    }
+}
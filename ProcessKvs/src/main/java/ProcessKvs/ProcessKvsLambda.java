@@ -2,77 +2,309 @@ package ProcessKvs;
 
 import ProcessKvs.audio.AudioStreamService;
 import ProcessKvs.audio.AudioUtils;
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.Jitter;
+import ProcessKvs.connect.ContactAttributesWriter;
+import ProcessKvs.consolidation.RecordingConsolidator;
+import ProcessKvs.jfr.ContinuousRecording;
+import ProcessKvs.jfr.RecordingEvent;
+import ProcessKvs.kinesis.CtrBatch;
+import ProcessKvs.kinesis.KplDeaggregator;
+import ProcessKvs.kvstream.KVSUtils;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.manifest.RecordingManifestWriter;
 import ProcessKvs.model.*;
-import com.amazonaws.regions.Regions;
+import ProcessKvs.retry.RecordingRetrier;
+import ProcessKvs.scratch.ScratchSpace;
+import ProcessKvs.scratch.Workspace;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import org.crac.Core;
+import org.crac.Resource;
 import org.joda.time.DateTime;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.connect.ConnectClient;
-import software.amazon.awssdk.services.connect.model.UpdateContactAttributesRequest;
-import software.amazon.awssdk.services.connect.model.UpdateContactAttributesResponse;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
 
 /**
- * Handler for requests to Lambda function.
+ * Handler for requests to Lambda function. Needs the event source mapping to report batch item failures, so a record
+ * that failed and could not be handed to the retry queue is delivered again.
  */
-public class ProcessKvsLambda implements RequestHandler<KinesisEvent, String> {
-    private static final Regions REGION = Regions.fromName(System.getenv("REGION"));
+public class ProcessKvsLambda implements RequestHandler<KinesisEvent, StreamsEventResponse>, Resource {
+    private static final Region REGION = Region.of(System.getenv("REGION"));
+    private static final boolean ANALYTICS_CONTACT_ATTRIBUTES = Boolean.parseBoolean(System.getenv("ANALYTICS_CONTACT_ATTRIBUTES"));
+    private static final boolean CONSOLIDATE_RECORDINGS = Boolean.parseBoolean(System.getenv("CONSOLIDATE_RECORDINGS"));
+    private static final String CLOUDFRONT_DOMAIN = System.getenv("CLOUDFRONT_DOMAIN");
+    private static final String RECORDINGS_BUCKET_NAME = System.getenv("RECORDINGS_BUCKET_NAME");
+    private static final String JFR_KEY_PREFIX = System.getenv("RECORDINGS_KEY_PREFIX") + "jfr/";
     private static final Logger logger = LoggerFactory.getLogger(ProcessKvsLambda.class);
 
+    // reused across warm invocations, and shared by the workers of the backfill command
+    private final AudioStreamService streamingService;
+    private final ContactAttributesWriter attributesWriter;
+    private final RecordingManifestWriter manifestWriter;
+    private final RecordingRetrier retrier;
+    // null if CONSOLIDATE_RECORDINGS is not set
+    private final RecordingConsolidator consolidator;
+    // not running unless JFR_CONTINUOUS is set
+    private final ContinuousRecording flightRecording;
+
+    public ProcessKvsLambda() {
+        this(new AudioStreamService(), new ContactAttributesWriter(AwsClients.connect()), new RecordingManifestWriter(AwsClients.s3()),
+                RecordingRetrier.fromEnvironment(), CONSOLIDATE_RECORDINGS ? new RecordingConsolidator(AwsClients.s3()) : null);
+        // the handler instance is kept by the runtime, the global context only holds a weak reference to it
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Creates a handler on other clients, used for the SnapStart priming and the load test with in-process stand-ins
+     */
+    public ProcessKvsLambda(AudioStreamService streamingService, ContactAttributesWriter attributesWriter, RecordingManifestWriter manifestWriter,
+                            RecordingRetrier retrier) {
+        this(streamingService, attributesWriter, manifestWriter, retrier, null);
+    }
+
+    /**
+     * Creates a handler on other clients that joins the recordings of a contact, if consolidator is not null
+     */
+    public ProcessKvsLambda(AudioStreamService streamingService, ContactAttributesWriter attributesWriter, RecordingManifestWriter manifestWriter,
+                            RecordingRetrier retrier, RecordingConsolidator consolidator) {
+        this(streamingService, attributesWriter, manifestWriter, retrier, consolidator, ContinuousRecording.shared());
+    }
+
+    /**
+     * Creates a handler with its own flight recording, the SnapStart priming uses one that is never started
+     */
+    ProcessKvsLambda(AudioStreamService streamingService, ContactAttributesWriter attributesWriter, RecordingManifestWriter manifestWriter,
+                     RecordingRetrier retrier, RecordingConsolidator consolidator, ContinuousRecording flightRecording) {
+        this.streamingService = streamingService;
+        this.attributesWriter = attributesWriter;
+        this.manifestWriter = manifestWriter;
+        this.retrier = retrier;
+        this.consolidator = consolidator;
+        this.flightRecording = flightRecording;
+    }
+
+    /**
+     * Called by SnapStart before the snapshot of the initialized function is taken
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        SnapStartPriming.prime();
+    }
+
+    /**
+     * Called by SnapStart in every environment restored from the snapshot
+     */
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // rate limits and retry jitter were set up with the clock and the random seeds of the snapshot
+        attributesWriter.resetRateLimit();
+        Jitter.reseed();
+    }
+
     @Override
-    public String handleRequest(KinesisEvent kinesisEvent, Context context) {
+    public StreamsEventResponse handleRequest(KinesisEvent kinesisEvent, Context context) {
         System.out.println("Processing CTR Event");
+        flightRecording.start();
+        // files left by an invocation that timed out or ran out of memory
+        ScratchSpace.shared().reclaim();
+
+        // without a retry queue url, records that failed in earlier invocations are retried here once their delay passed
+        if (retrier.isLocal()) {
+            retrier.processDue(this::processCTR);
+        }
 
+        int processed = 0;
+        List<String> failed = new ArrayList<>();
+        // sequence numbers of the records Kinesis has to deliver again
+        Set<String> redeliver = new LinkedHashSet<>();
+        // Connect writes a new CTR version on every update of a contact, only the latest one of the event is processed
+        CtrBatch batch = new CtrBatch();
         for (KinesisEvent.KinesisEventRecord record : kinesisEvent.getRecords()) {
+            String sequenceNumber = record.getKinesis().getSequenceNumber();
+            // a record written by the KPL with aggregation holds several CTRs
+            List<ByteBuffer> userRecords;
             try {
-                String recordData = new String(record.getKinesis().getData().array());
-                System.out.println("Record Data: " + recordData);
-                processCTR(recordData);
-            } catch (Exception e) {
-                // if json does not contain required data, will exit early
-                System.out.println(e.toString());
+                userRecords = KplDeaggregator.deaggregate(record.getKinesis().getData());
+            } catch (IllegalArgumentException e) {
+                logger.error(String.format("Record %s could not be de-aggregated: %s", sequenceNumber, e));
+                failed.add(sequenceNumber);
+                continue;
+            }
+
+            for (int i = 0; i < userRecords.size(); i++) {
+                processed++;
+                String recordId = userRecords.size() > 1 ? sequenceNumber + "#" + i : sequenceNumber;
+                JSONObject ctr = readUserRecord(userRecords.get(i));
+                if (ctr == null) {
+                    failed.add(recordId);
+                } else {
+                    batch.add(recordId, ctr);
+                }
             }
         }
 
-        return "{ \"result\": \"Success\" }";
+        for (CtrBatch.Latest latest : batch.latest()) {
+            if (!latest.getSupersededRecordIds().isEmpty()) {
+                logger.info(String.format("Record %s supersedes the CTRs of records %s", latest.getRecordId(), latest.getSupersededRecordIds()));
+            }
+            if (!processLatestCtr(latest.getCtr(), latest.getRecordId(), failed)) {
+                redeliver.add(sequenceNumber(latest.getRecordId()));
+            }
+        }
+
+        // attribute updates run in the background while records are processed, wait for them before returning
+        flush();
+        retrier.getMetrics().publish();
+        if (batch.getSuperseded() > 0) {
+            logger.info(String.format("%d of %d CTRs superseded by a later version of their contact", batch.getSuperseded(), processed));
+        }
+        if (!failed.isEmpty()) {
+            logger.warn(String.format("%d of %d CTRs failed, records: %s", failed.size(), processed, failed));
+        }
+        if (!redeliver.isEmpty()) {
+            logger.error(String.format("CTRs could not be queued for retry, records delivered again: %s", redeliver));
+        }
+
+        List<StreamsEventResponse.BatchItemFailure> failures = new ArrayList<>();
+        for (String sequenceNumber : redeliver) {
+            failures.add(new StreamsEventResponse.BatchItemFailure(sequenceNumber));
+        }
+        return new StreamsEventResponse(failures);
+    }
+
+    /**
+     * @return sequence number of the Kinesis record of a CTR, without the index of an aggregated user record
+     */
+    private static String sequenceNumber(String recordId) {
+        int index = recordId.indexOf('#');
+        return index < 0 ? recordId : recordId.substring(0, index);
     }
 
-    private void processCTR(String ctrStr) {
-        JSONObject json = new JSONObject(ctrStr);
+    /**
+     * @param data UTF-8 encoded CTR of a Kinesis record
+     * @return the CTR, null if it could not be read
+     */
+    private static JSONObject readUserRecord(ByteBuffer data) {
+        try {
+            String recordData = KplDeaggregator.decodeUtf8(data);
+            System.out.println("Record Data: " + recordData);
+            return new JSONObject(recordData);
+        } catch (Exception e) {
+            System.out.println(e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Processes the latest CTR of a contact in a Kinesis event. A CTR whose recordings fail is handed to the retry
+     * queue, so the shard moves on to the next records.
+     *
+     * @param ctr contact trace record
+     * @param recordId id of the Kinesis record in the logs
+     * @param failed the record id is added if the CTR could not be read or failed
+     * @return false if the CTR failed and could not be handed to the retry queue either
+     */
+    private boolean processLatestCtr(JSONObject ctr, String recordId, List<String> failed) {
+        try {
+            if (processCTR(ctr)) {
+                retrier.succeeded();
+                return true;
+            }
+            failed.add(recordId);
+            return retrier.failed(ctr, 1);
+        } catch (Exception e) {
+            // if json does not contain required data, will exit early
+            System.out.println(e.toString());
+            failed.add(recordId);
+            return true;
+        }
+    }
+
+    /**
+     * Waits for the attribute updates and manifest records queued by processCTR
+     */
+    public void flush() {
+        attributesWriter.flush();
+        manifestWriter.flush();
+    }
+
+    /**
+     * Sends the contact attributes queued by processCTR for the contact of a record without waiting for the linger,
+     * and waits until they are written, so the caller can record the contact as done
+     *
+     * @param json contact trace record
+     * @return false if the attributes of the contact could not be written
+     */
+    public boolean awaitContactAttributes(JSONObject json) {
+        ContactTraceRecord traceRecord = new ContactTraceRecord(json);
+        try {
+            attributesWriter.send(instanceId(traceRecord), initialContactId(traceRecord)).join();
+            return true;
+        } catch (CompletionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Uploads the KVS recordings of a contact trace record and sets their urls as contact attributes. Can be called
+     * concurrently for different records.
+     *
+     * @param json contact trace record
+     * @return false if the audio of a recording could not be processed, true otherwise, also for skipped records
+     */
+    public boolean processCTR(JSONObject json) {
         ContactTraceRecord traceRecord = new ContactTraceRecord(json);
         List<KVStreamRecordingData> recordings = traceRecord.getRecordings();
 
         if(!traceRecord.getChannel().equals("VOICE"))
         {
             logger.info("Not Voice channel, skipped");
-            return;
+            return true;
         }
 
         if (recordings.isEmpty()) {
             logger.info("No Voice recording, skipped");
-            return;
+            return true;
         }
 
         int recordingAuth = traceRecord.getAttributes().getRecordingAuth();
         if ((recordingAuth <= AudioUtils.AUTH_AUDIO_NONE || recordingAuth > AudioUtils.AUTH_AUDIO_MIXED)) {
             logger.info("Recording is not authorized, skipped. recordingAuth:" + recordingAuth);
-            return;
+            return true;
         }
 
         if (traceRecord.getAttributes().hasRecordingAttributes()) {
             logger.info("Recording Attributes existed, skipped.");
-            return;
+            return true;
         }
 
         ConnectAttributesData connectAttributes = new ConnectAttributesData();
+        Map<String, String> analyticsAttributes = new LinkedHashMap<>();
+        List<RecordingData> processedRecordings = new ArrayList<>();
+        boolean processed = true;
+
+        // the files of a contact with several recordings are numbered, so they do not overwrite each other
+        long streamRecordings = recordings.stream().filter(recording -> recording.getStorageType().equals("KINESIS_VIDEO_STREAM")).count();
+        int recordingNumber = 0;
 
         //A CTR may include multi recordings, event multi types of recordings, we only process the type of KINESIS_VIDEO_STREAM
         for (KVStreamRecordingData recording : recordings) {
@@ -84,52 +316,127 @@ public class ProcessKvsLambda implements RequestHandler<KinesisEvent, String> {
             logger.info("Recording StorageType is KINESIS_VIDEO_STREAM, recording processing started");
 
             //System.out.println(event);
-            RecordingData recordingData = extractRecordingData(traceRecord, recording);
+            RecordingData recordingData = extractRecordingData(traceRecord, recording, streamRecordings > 1 ? ++recordingNumber : 0);
+
+            RecordingEvent event = new RecordingEvent();
+            event.begin();
+            long start = System.nanoTime();
 
             // Begin processing audio stream
-            AudioStreamService streamingService = new AudioStreamService();
             try {
                 streamingService.processAudioStream(recordingData);
+                event.succeeded = true;
+                manifestWriter.add(recordingData);
+                processedRecordings.add(recordingData);
 
                 logger.info(String.format("fromCustomer: %s, toCustomer: %s, mixed: %s", recordingData.getAudioFromCustomer(), recordingData.getAudioToCustomer(), recordingData.getAudioMixed()));
                 //append audio file path to connect attributes
-                if (recordingData.getAudioFromCustomer() != null && (!recordingData.getAudioFromCustomer().isEmpty())) {
-                    if (connectAttributes.getAudioFromCustomer() == null || connectAttributes.getAudioFromCustomer().isEmpty()) {
-                        connectAttributes.setAudioFromCustomer(recordingData.getAudioFromCustomer());
-                    } else {
-                        connectAttributes.setAudioFromCustomer(connectAttributes.getAudioFromCustomer() + ", " + recordingData.getAudioFromCustomer());
-                    }
-                }
-
-                if (recordingData.getAudioToCustomer() != null && (!recordingData.getAudioToCustomer().isEmpty())) {
-                    if (connectAttributes.getAudioToCustomer() == null || connectAttributes.getAudioToCustomer().isEmpty()) {
-                        connectAttributes.setAudioToCustomer(recordingData.getAudioToCustomer());
-                    } else {
-                        connectAttributes.setAudioToCustomer(connectAttributes.getAudioToCustomer() + ", " + recordingData.getAudioToCustomer());
-                    }
-                }
-
-                if (recordingData.getAudioMixed() != null && (!recordingData.getAudioMixed().isEmpty())) {
-                    if (connectAttributes.getAudioMixed() == null || connectAttributes.getAudioMixed().isEmpty()) {
-                        connectAttributes.setAudioMixed(recordingData.getAudioMixed());
-                    } else {
-                        connectAttributes.setAudioMixed(connectAttributes.getAudioMixed() + ", " + recordingData.getAudioMixed());
-                    }
+                connectAttributes.setAudioFromCustomer(joinUrls(connectAttributes.getAudioFromCustomer(), recordingData.getAudioFromCustomer()));
+                connectAttributes.setAudioToCustomer(joinUrls(connectAttributes.getAudioToCustomer(), recordingData.getAudioToCustomer()));
+                connectAttributes.setAudioMixed(joinUrls(connectAttributes.getAudioMixed(), recordingData.getAudioMixed()));
+                connectAttributes.setAudioFromCustomerPlaylist(joinUrls(connectAttributes.getAudioFromCustomerPlaylist(), recordingData.getAudioFromCustomerPlaylist()));
+                connectAttributes.setAudioToCustomerPlaylist(joinUrls(connectAttributes.getAudioToCustomerPlaylist(), recordingData.getAudioToCustomerPlaylist()));
+                connectAttributes.setAudioMixedPlaylist(joinUrls(connectAttributes.getAudioMixedPlaylist(), recordingData.getAudioMixedPlaylist()));
+                if (ANALYTICS_CONTACT_ATTRIBUTES && recordingData.getAnalytics() != null) {
+                    // one value per recording, in the order of the urls
+                    recordingData.getAnalytics().toAttributes().forEach((name, value) -> analyticsAttributes.merge(name, value, ProcessKvsLambda::joinUrls));
                 }
             } catch (Exception e) {
                 logger.error("KVS processing failed with: ", e);
+                processed = false;
             }
+            commitRecordingEvent(event, recordingData);
+            dumpIfSlow(recordingData, Duration.ofNanos(System.nanoTime() - start));
 
             logger.info("recording processing finished");
 
         }
-        updateConnectContactAttributes(traceRecord, connectAttributes);
+
+        if (consolidator != null && processed && processedRecordings.size() > 1) {
+            consolidate(traceRecord, processedRecordings, connectAttributes);
+        }
+        updateConnectContactAttributes(traceRecord, connectAttributes, analyticsAttributes);
+        return processed;
     }
 
-    private RecordingData extractRecordingData(ContactTraceRecord traceRecord, KVStreamRecordingData recording) {
+    private static void commitRecordingEvent(RecordingEvent event, RecordingData recordingData) {
+        if (event.shouldCommit()) {
+            event.contactId = recordingData.getContactId();
+            event.streamArn = recordingData.getStreamARN();
+            event.audioMillis = recordingData.getDurationMillis();
+            if (recordingData.getObjects() != null) {
+                event.objects = recordingData.getObjects().size();
+                event.bytes = recordingData.getObjects().stream().mapToLong(RecordedObject::getBytes).sum();
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Uploads the continuous flight recording next to the recording files if the recording took longer than
+     * JFR_DUMP_SECONDS, so the slow invocation can be looked at in JDK Mission Control. The dump is reserved in the
+     * scratch space at the max size of the flight recording.
+     */
+    private void dumpIfSlow(RecordingData recordingData, Duration elapsed) {
+        if (!flightRecording.isDumpDue(elapsed)) {
+            return;
+        }
+        try (Workspace workspace = ScratchSpace.shared().open(recordingData.getContactId() + "_jfr")) {
+            workspace.reserve(flightRecording.getMaxSize());
+            Path dump = workspace.file(recordingData.getContactId() + ".jfr");
+            if (!flightRecording.dumpIfSlow(elapsed, dump)) {
+                return;
+            }
+            S3UploadInfo uploadInfo = AudioUtils.uploadObjectAsync(REGION, RECORDINGS_BUCKET_NAME, JFR_KEY_PREFIX,
+                    recordingData.getInitiationTimestamp(), dump.getFileName().toString(), AsyncRequestBody.fromFile(dump),
+                    "application/octet-stream", recordingData.getContactId(), false).join();
+            logger.info(String.format("Recording of contactId: %s took %d ms, flight recording uploaded to %s/%s", recordingData.getContactId(),
+                    elapsed.toMillis(), uploadInfo.getBucketName(), uploadInfo.getObjectKey()));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Flight recording could not be uploaded: " + e);
+        }
+    }
+
+    /**
+     * Joins the recordings of the contact per track and replaces the urls of their files by the url of the joined file.
+     * The urls of the recordings move to the Recordings attribute of the track, where they stay in the order of the
+     * analytics values. The urls of a track that could not be joined are kept.
+     */
+    private void consolidate(ContactTraceRecord traceRecord, List<RecordingData> recordings, ConnectAttributesData connectAttributes) {
+        Map<String, S3UploadInfo> consolidated = consolidator.consolidate(traceRecord.getContactId(), recordings).join();
+        consolidated.forEach((track, uploadInfo) -> {
+            String url = uploadInfo.getCloudfrontUrl(CLOUDFRONT_DOMAIN);
+            switch (track) {
+                case KVSUtils.AUDIO_FROM_CUSTOMER:
+                    connectAttributes.setAudioFromCustomerRecordings(connectAttributes.getAudioFromCustomer());
+                    connectAttributes.setAudioFromCustomer(url);
+                    break;
+                case KVSUtils.AUDIO_TO_CUSTOMER:
+                    connectAttributes.setAudioToCustomerRecordings(connectAttributes.getAudioToCustomer());
+                    connectAttributes.setAudioToCustomer(url);
+                    break;
+                default:
+                    connectAttributes.setAudioMixedRecordings(connectAttributes.getAudioMixed());
+                    connectAttributes.setAudioMixed(url);
+                    break;
+            }
+        });
+    }
+
+    /**
+     * Appends the url of one recording to the comma separated urls of the earlier recordings of the contact
+     */
+    private static String joinUrls(String urls, String url) {
+        if (url == null || url.isEmpty()) {
+            return urls;
+        }
+        return urls == null || urls.isEmpty() ? url : urls + ", " + url;
+    }
+
+    private RecordingData extractRecordingData(ContactTraceRecord traceRecord, KVStreamRecordingData recording, int recordingNumber) {
 
         return RecordingData.builder()
-                .withAwsRegion(REGION.getName())
+                .withAwsRegion(REGION.id())
                 .withRecordingAuth(traceRecord.getAttributes().getRecordingAuth())
                 .withContactId(traceRecord.getContactId())
                 .withInitialContactId(traceRecord.getInitialContactId())
@@ -137,39 +444,59 @@ public class ProcessKvsLambda implements RequestHandler<KinesisEvent, String> {
                 .withInstanceARN(traceRecord.getInstanceARN())
                 .withCustomerNumber(traceRecord.getCustomerEndpoint().getAddress())
                 .withLanguageCode(traceRecord.getAttributes().getLanguageCode())
+                .withAgentName(traceRecord.getAgentUsername())
+                .withQueueName(traceRecord.getQueueName())
                 .withStreamARN(recording.getLocation())
                 .withStartFragmentNum(recording.getFragmentStartNumber())
                 .withStartTimestamp(recording.getStartTimestamp())
                 .withStopFragmentNumber(recording.getFragmentStopNumber())
                 .withStopTimestamp(recording.getStopTimestamp())
+                .withRecordingNumber(recordingNumber)
                 .withDateTime(new DateTime())
                 .build();
     }
 
-    private void updateConnectContactAttributes(ContactTraceRecord traceRecord, ConnectAttributesData connectAttributes) {
-        ConnectClient connectClient = ConnectClient.builder()
-                .region(Region.of(REGION.getName()))
-                .build();
-
+    private void updateConnectContactAttributes(ContactTraceRecord traceRecord, ConnectAttributesData connectAttributes,
+                                                Map<String, String> analyticsAttributes) {
         Map<String, String> attributes = new HashMap<>();
         attributes.put("audioFromCustomer", connectAttributes.getAudioFromCustomer() == null ? "" : connectAttributes.getAudioFromCustomer());
         attributes.put("audioToCustomer", connectAttributes.getAudioToCustomer() == null ? "" : connectAttributes.getAudioToCustomer());
         attributes.put("audioMixed", connectAttributes.getAudioMixed() == null ? "" : connectAttributes.getAudioMixed());
+        // playlists only exist when SEGMENT_SECONDS is set
+        if (connectAttributes.getAudioFromCustomerPlaylist() != null) {
+            attributes.put("audioFromCustomerPlaylist", connectAttributes.getAudioFromCustomerPlaylist());
+        }
+        if (connectAttributes.getAudioToCustomerPlaylist() != null) {
+            attributes.put("audioToCustomerPlaylist", connectAttributes.getAudioToCustomerPlaylist());
+        }
+        if (connectAttributes.getAudioMixedPlaylist() != null) {
+            attributes.put("audioMixedPlaylist", connectAttributes.getAudioMixedPlaylist());
+        }
+        // only set for tracks joined by CONSOLIDATE_RECORDINGS
+        if (connectAttributes.getAudioFromCustomerRecordings() != null) {
+            attributes.put("audioFromCustomerRecordings", connectAttributes.getAudioFromCustomerRecordings());
+        }
+        if (connectAttributes.getAudioToCustomerRecordings() != null) {
+            attributes.put("audioToCustomerRecordings", connectAttributes.getAudioToCustomerRecordings());
+        }
+        if (connectAttributes.getAudioMixedRecordings() != null) {
+            attributes.put("audioMixedRecordings", connectAttributes.getAudioMixedRecordings());
+        }
 
-        String initialContactId = traceRecord.getInitialContactId() != null ? traceRecord.getInitialContactId() : traceRecord.getContactId();
-        String instanceId = traceRecord.getInstanceARN().split("/")[1];
+        String initialContactId = initialContactId(traceRecord);
+        String instanceId = instanceId(traceRecord);
 
         logger.info(String.format("Instance ID: %s, Contact ID: %s, Initial Contact ID: %s", instanceId, traceRecord.getContactId(), traceRecord.getInitialContactId()));
 
-        UpdateContactAttributesRequest request = UpdateContactAttributesRequest.builder()
-                .attributes(attributes)
-                .initialContactId(initialContactId)
-                .instanceId(instanceId)
-                .build();
+        // only set when ANALYTICS_CONTACT_ATTRIBUTES is true, one value per recording even if two recordings share a value
+        attributesWriter.submit(instanceId, initialContactId, attributes, analyticsAttributes);
+    }
 
-        UpdateContactAttributesResponse response = connectClient.updateContactAttributes(request);
-        if (response.sdkHttpResponse().statusCode() >= 300) {
-            logger.error("Error updating contact attributes, status code: " + response.sdkHttpResponse().statusCode());
-        }
+    private static String initialContactId(ContactTraceRecord traceRecord) {
+        return traceRecord.getInitialContactId() != null ? traceRecord.getInitialContactId() : traceRecord.getContactId();
+    }
+
+    private static String instanceId(ContactTraceRecord traceRecord) {
+        return traceRecord.getInstanceARN().split("/")[1];
     }
 }
@@ -0,0 +1,61 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs;
+
+import ProcessKvs.retry.RecordingRetrier;
+import ProcessKvs.scratch.ScratchSpace;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handler for the SQS retry queue of RecordingRetrier. Needs the event source mapping to report batch item failures,
+ * so only the messages that could not be queued again are delivered again.
+ */
+public class RetryQueueLambda implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    private final ProcessKvsLambda pipeline;
+    private final RecordingRetrier retrier;
+
+    public RetryQueueLambda() {
+        this(new ProcessKvsLambda(), RecordingRetrier.fromEnvironment());
+    }
+
+    RetryQueueLambda(ProcessKvsLambda pipeline, RecordingRetrier retrier) {
+        this.pipeline = pipeline;
+        this.retrier = retrier;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
+        // files left by an invocation that timed out or ran out of memory
+        ScratchSpace.shared().reclaim();
+        List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<>();
+
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            if (!retrier.process(message.getBody(), pipeline::processCTR)) {
+                failures.add(new SQSBatchResponse.BatchItemFailure(message.getMessageId()));
+            }
+        }
+
+        pipeline.flush();
+        retrier.getMetrics().publish();
+        return new SQSBatchResponse(failures);
+    }
+}
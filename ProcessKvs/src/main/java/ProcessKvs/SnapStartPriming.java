@@ -0,0 +1,108 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs;
+
+import ProcessKvs.audio.AudioStreamService;
+import ProcessKvs.audio.FrameBufferArena;
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.TokenBucket;
+import ProcessKvs.connect.ContactAttributesWriter;
+import ProcessKvs.jfr.ContinuousRecording;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.manifest.RecordingManifestWriter;
+import ProcessKvs.model.RecordingData;
+import ProcessKvs.retry.InMemoryRetryQueue;
+import ProcessKvs.retry.RecordingRetrier;
+import ProcessKvs.retry.RetryMetrics;
+import ProcessKvs.synthetic.StubConnectAsyncClient;
+import ProcessKvs.synthetic.StubS3AsyncClient;
+import ProcessKvs.synthetic.SyntheticCall;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs synthetic contact trace records through the whole pipeline before the SnapStart snapshot is taken, so the
+ * classes of the handler, the MKV parser, org.json, the DSP code and the SDK request builders are loaded and compiled
+ * in the snapshot instead of on the first invocation.
+ *
+ * The records read the media of a SyntheticCall built in memory. Uploads and Connect updates go to stubs that
+ * consume the request bodies, and the flight recording is left off, so nothing leaves the environment.
+ */
+final class SnapStartPriming {
+
+    private static final int ITERATIONS = 10;
+    // six seconds of audio, so the track buffers stay in memory
+    private static final SyntheticCall CALL = new SyntheticCall("00000000-0000-0000-0000-00000000snap", "snapstart-priming",
+            6144, 512, 32, 0, 0);
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapStartPriming.class);
+
+    private SnapStartPriming() {
+    }
+
+    /**
+     * Processes the synthetic records. Failures are logged and never fail the snapshot, the function then only
+     * starts slower.
+     */
+    static void prime() {
+        long start = System.nanoTime();
+        try {
+            byte[] media = CALL.media();
+            AudioStreamService streamingService = new AudioStreamService(FrameBufferArena.shared(),
+                    (streamName, startFragmentNum, startSelectorType) -> new ByteArrayInputStream(media),
+                    SnapStartPriming::consume);
+            // the continuous recording starts on the first invocation after the restore, and is never dumped to S3 here
+            ContinuousRecording flightRecording = new ContinuousRecording(false, Duration.ZERO, 0, Duration.ZERO);
+            ProcessKvsLambda pipeline = new ProcessKvsLambda(streamingService,
+                    new ContactAttributesWriter(new StubConnectAsyncClient(), new TokenBucket(1000, 1000), 0),
+                    new RecordingManifestWriter(new StubS3AsyncClient(), "snapstart-priming", "manifest/", 1),
+                    new RecordingRetrier(new InMemoryRetryQueue(), null, 1, 0, new RetryMetrics(line -> { })), null,
+                    flightRecording);
+
+            KinesisEvent event = kinesisEvent(CALL.ctr(3).toString());
+            for (int i = 0; i < ITERATIONS; i++) {
+                pipeline.handleRequest(event, null);
+            }
+            logger.info(String.format("SnapStart priming finished in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        } catch (Exception | LinkageError e) {
+            logger.warn("SnapStart priming failed, the first invocation loads the pipeline instead", e);
+        }
+    }
+
+    private static CompletableFuture<S3UploadInfo> consume(RecordingData recording, String fileName, AsyncRequestBody body, String contentType,
+                                                           Map<String, String> metadata) {
+        return StubS3AsyncClient.drain(body).thenApply(bytes -> new S3UploadInfo("snapstart-priming", fileName, AwsClients.region()));
+    }
+
+    private static KinesisEvent kinesisEvent(String ctr) {
+        KinesisEvent.Record kinesis = new KinesisEvent.Record();
+        kinesis.setData(ByteBuffer.wrap(ctr.getBytes(StandardCharsets.UTF_8)));
+        KinesisEvent.KinesisEventRecord record = new KinesisEvent.KinesisEventRecord();
+        record.setKinesis(kinesis);
+        KinesisEvent event = new KinesisEvent();
+        event.setRecords(Collections.singletonList(record));
+        return event;
+    }
+}
@@ -13,42 +13,145 @@
 
 package ProcessKvs.audio;
 
+import ProcessKvs.aws.ByteBuffersRequestBody;
+import ProcessKvs.jfr.DemuxEvent;
+import ProcessKvs.jfr.FragmentEvent;
+import ProcessKvs.jfr.MixEvent;
+import ProcessKvs.jfr.TrackWriteEvent;
+import ProcessKvs.kvstream.FragmentCache;
 import ProcessKvs.kvstream.KVSUtils;
 import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.model.RecordedObject;
 import ProcessKvs.model.RecordingData;
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import ProcessKvs.pipeline.PipelineStats;
+import ProcessKvs.pipeline.ReadAheadInputStream;
+import ProcessKvs.pipeline.StageQueue;
+import ProcessKvs.scratch.ScratchSpace;
+import ProcessKvs.scratch.Workspace;
 import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
-import com.amazonaws.regions.Regions;
-
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.regions.Region;
 
-import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the audio of one recording from KVS, and uploads the per-track and mixed wav files to S3.
+ *
+ * The parser state lives in each call, so one instance can process several recordings at the same time.
+ *
+ * A recording runs through three stages connected by bounded queues: fetch reads the GetMedia response ahead, demux
+ * parses the MKV frames on the calling thread, and write fills the track buffers and, in segmented mode, uploads the
+ * segments and builds the mix. The wav uploads start as soon as the tracks are complete. The utilisation of each stage
+ * is logged per recording.
+ *
+ * The write stage also computes the CallAnalytics of the recording, which are stored as user metadata of its wav
+ * objects.
+ *
+ * Fragments read by an earlier recording of the same stream, such as the recordings of a transferred contact, are
+ * taken from the FragmentCache, and GetMedia starts after the last cached one.
+ */
 public class AudioStreamService {
 
-    private static final Regions REGION = Regions.fromName(System.getenv("REGION"));
+    private static final Region REGION = Region.of(System.getenv("REGION"));
     private static final String RECORDINGS_BUCKET_NAME = System.getenv("RECORDINGS_BUCKET_NAME");
     private static final String RECORDINGS_KEY_PREFIX = System.getenv("RECORDINGS_KEY_PREFIX");
     private static final boolean RECORDINGS_PUBLIC_READ_ACL = Boolean.parseBoolean(System.getenv("RECORDINGS_PUBLIC_READ_ACL"));
     private static final String START_SELECTOR_TYPE = System.getenv("START_SELECTOR_TYPE");
     private static final String CLOUDFRONT_DOMAIN = System.getenv("CLOUDFRONT_DOMAIN");
+    private static final int ASR_SAMPLE_RATE = NumberUtils.toInt(System.getenv("ASR_SAMPLE_RATE"), 0);
+    private static final int SEGMENT_SECONDS = NumberUtils.toInt(System.getenv("SEGMENT_SECONDS"), 0);
+    private static final String PLAYLIST = "_PLAYLIST";
+    private static final String AUDIO_MIXED = "AUDIO_MIXED";
+    private static final String WAVEFORM = "WAVEFORM";
+    private static final boolean WAVEFORM_PEAKS = Boolean.parseBoolean(System.getenv("WAVEFORM_PEAKS"));
+    private static final int WAVEFORM_SAMPLES_PER_PIXEL = NumberUtils.toInt(System.getenv("WAVEFORM_SAMPLES_PER_PIXEL"), 256);
+    private static final int READ_AHEAD_CHUNK_BYTES = NumberUtils.toInt(System.getenv("READ_AHEAD_CHUNK_KB"), 64) * 1024;
+    private static final int READ_AHEAD_CHUNKS = NumberUtils.toInt(System.getenv("READ_AHEAD_CHUNKS"), 16);
+    private static final int FRAME_QUEUE_DEPTH = NumberUtils.toInt(System.getenv("FRAME_QUEUE_DEPTH"), 256);
+    private static final String[] STAGES = {"fetch", "demux", "write"};
+    private static final String[] CACHED_STAGES = {"cache", "write"};
+    private static final double ANALYTICS_SPEECH_DBFS = NumberUtils.toDouble(System.getenv("ANALYTICS_SPEECH_DBFS"), -40);
     private static final Logger logger = LoggerFactory.getLogger(AudioStreamService.class);
 
+    // runs the fetch and write stages of every recording, the demux stage runs on the calling thread
+    private static final ExecutorService stageExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "audio-pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Opens the MKV media of a KVS stream, see KVSUtils.getInputStreamFromKVS
+     */
+    public interface MediaSource {
+        InputStream open(String streamName, String startFragmentNum, String startSelectorType);
+    }
+
+    /**
+     * Stores one object of a recording next to its recording files, with the given user metadata
+     */
+    public interface ObjectSink {
+        CompletableFuture<S3UploadInfo> put(RecordingData recording, String fileName, AsyncRequestBody body, String contentType,
+                                            Map<String, String> metadata);
+    }
+
+    private final FrameBufferArena arena;
+    private final MediaSource mediaSource;
+    private final ObjectSink objectSink;
+    private final FragmentCache fragmentCache;
+    private final ScratchSpace scratchSpace = ScratchSpace.shared();
 
     public AudioStreamService() {
+        this(FrameBufferArena.shared());
+    }
+
+    public AudioStreamService(FrameBufferArena arena) {
+        this(arena, KVSUtils::getInputStreamFromKVS, AudioStreamService::uploadToS3, FragmentCache.shared());
+    }
+
+    /**
+     * Creates a service without a fragment cache, the media source may ignore the start fragment number
+     */
+    public AudioStreamService(FrameBufferArena arena, MediaSource mediaSource, ObjectSink objectSink) {
+        this(arena, mediaSource, objectSink, new FragmentCache(0));
     }
 
+    public AudioStreamService(FrameBufferArena arena, MediaSource mediaSource, ObjectSink objectSink, FragmentCache fragmentCache) {
+        this.arena = arena;
+        this.mediaSource = mediaSource;
+        this.objectSink = objectSink;
+        this.fragmentCache = fragmentCache;
+    }
+
+    /**
+     * Reads the recording from KVS and uploads its files, setting their urls and objects on the recording
+     *
+     * @param recording
+     * @throws IOException if an upload failed, once every other upload completed
+     */
     public void processAudioStream(RecordingData recording) throws Exception {
         String streamARN = recording.getStreamARN();
         String startFragmentNum = recording.getStartFragmentNum();
@@ -57,171 +160,628 @@ public class AudioStreamService {
 
         logger.info(String.format("StreamARN=%s, startFragmentNum=%s, contactId=%s", streamARN, startFragmentNum, contactId));
 
-        long unixTime = System.currentTimeMillis() / 1000L;
-        Path saveAudioFilePathFromCustomer = Paths.get("/tmp", contactId + "_" + KVSUtils.AUDIO_FROM_CUSTOMER.toLowerCase()/* + "_" + unixTime*/ + ".raw");
-        Path saveAudioFilePathToCustomer = Paths.get("/tmp", contactId + "_" + KVSUtils.AUDIO_TO_CUSTOMER.toLowerCase()/* + "_" + +unixTime*/ + ".raw");
-        logger.info(String.format("Save Path From Customer: %s, Save Path To Customer: %s Start Selector Type: %s", saveAudioFilePathFromCustomer, saveAudioFilePathToCustomer, START_SELECTOR_TYPE));
-        FileOutputStream outStreamFromCustomer = new FileOutputStream(saveAudioFilePathFromCustomer.toString());
-        FileOutputStream outStreamToCustomer = new FileOutputStream(saveAudioFilePathToCustomer.toString());
+        // frames of tracks that are not authorized are skipped by the demuxer, their buffers stay empty
+        Set<String> tracks = authorizedTracks(recording);
+
+        // the authorized tracks, and the stereo mix which is twice as large
+        long estimatedBytes = estimatePcmBytes(recording);
+        int estimatedTracks = tracks.size() + (isAuthorized(recording, AUDIO_MIXED) ? 2 : 0);
+        boolean spill = estimatedBytes >= 0 && !arena.canHold(estimatedBytes * estimatedTracks);
+        logger.info(String.format("Tracks: %s, estimated track size: %d, arena in use: %d of %d, spill: %s Start Selector Type: %s",
+                tracks, estimatedBytes, arena.getInUse(), arena.getBudget(), spill, START_SELECTOR_TYPE));
+
+        // the scratch files of the recording, in a directory of its own
+        Workspace workspace = scratchSpace.open(recordingName(recording));
+        TrackBuffer fromCustomer = arena.newTrack(workspace, KVSUtils.AUDIO_FROM_CUSTOMER, spill);
+        TrackBuffer toCustomer = arena.newTrack(workspace, KVSUtils.AUDIO_TO_CUSTOMER, spill);
+        TrackBuffer mixed = null;
         String streamName = streamARN.substring(streamARN.indexOf("/") + 1, streamARN.lastIndexOf("/"));
 
-        InputStream kvsInputStream = KVSUtils.getInputStreamFromKVS(streamName, REGION, startFragmentNum, getAWSCredentials(), START_SELECTOR_TYPE);
-        StreamingMkvReader streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(kvsInputStream));
-
-        FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
-        FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
-
-        boolean bAudioFromCustomer = false;
-        boolean bAudioToCustomer = false;
+        Map<String, CompletableFuture<Void>> uploads = new LinkedHashMap<>();
+        List<RecordedObject> objects = Collections.synchronizedList(new ArrayList<>());
+
+        // in segmented mode tracks are uploaded in segments while they are read, the mix is built along with them
+        Map<String, TrackSegmenter> segmenters = new LinkedHashMap<>();
+        StereoMixer mixer = null;
+        if (SEGMENT_SECONDS > 0) {
+            for (String track : new String[]{KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER}) {
+                if (isAuthorized(recording, track)) {
+                    segmenters.put(track, newSegmenter(recording, track,
+                            track.equals(KVSUtils.AUDIO_FROM_CUSTOMER) ? fromCustomer : toCustomer, AudioUtils.CHANNEL_MONO));
+                }
+            }
+            if (isAuthorized(recording, AUDIO_MIXED)) {
+                mixed = arena.newTrack(workspace, AUDIO_MIXED, spill);
+                mixer = new StereoMixer(fromCustomer, toCustomer, mixed);
+                segmenters.put(AUDIO_MIXED, newSegmenter(recording, AUDIO_MIXED, mixed, AudioUtils.CHANNEL_STEREO));
+            }
+        }
 
-        int toCustomerCount = 0;
-        int fromCustomerCount = 0;
         try {
-            logger.info("Saving audio bytes to location");
+            // fetch -> demux -> write, each on its own thread and connected by bounded queues, so the download, the
+            // parsing and the track writes, segment uploads and mix overlap
+            long pipelineStart = System.nanoTime();
+            StageQueue<TrackFrame> frames = new StageQueue<>("write", FRAME_QUEUE_DEPTH);
+            StereoMixer segmentMixer = mixer;
+            ConversationAnalyzer analyzer = new ConversationAnalyzer(tracks, ANALYTICS_SPEECH_DBFS);
+            WaveformPeaks peaks = WAVEFORM_PEAKS ? new WaveformPeaks(tracks, WAVEFORM_SAMPLES_PER_PIXEL) : null;
+            TrackWriteEvent writeEvent = new TrackWriteEvent();
+            writeEvent.contactId = contactId;
+            writeEvent.streamArn = streamARN;
+            Future<?> writer = stageExecutor.submit(() -> {
+                writeFrames(frames, fromCustomer, toCustomer, segmentMixer, segmenters, analyzer, peaks, writeEvent);
+                return null;
+            });
+            // fragments can only be looked up by number when GetMedia starts at a fragment number too
+            boolean cacheable = fragmentCache.isEnabled() && "FRAGMENT_NUMBER".equals(START_SELECTOR_TYPE) && startFragmentNum != null;
+            ReadAheadInputStream kvsInputStream = null;
+            DemuxEvent demuxEvent = new DemuxEvent();
+            demuxEvent.contactId = contactId;
+            demuxEvent.streamArn = streamARN;
+            try {
+                String fetchFragmentNum = cacheable
+                        ? queueCachedFragments(streamName, startFragmentNum, stopFragmentNum, contactId, tracks, frames)
+                        : startFragmentNum;
+                if (fetchFragmentNum != null) {
+                    kvsInputStream = new ReadAheadInputStream(mediaSource.open(streamName, fetchFragmentNum, START_SELECTOR_TYPE),
+                            READ_AHEAD_CHUNK_BYTES, READ_AHEAD_CHUNKS, stageExecutor);
+                    demuxEvent.begin();
+                    demux(kvsInputStream, streamName, stopFragmentNum, contactId, tracks, cacheable, frames, demuxEvent);
+                    demuxEvent.networkWait = kvsInputStream.getQueue().getConsumerWaitNanos();
+                    demuxEvent.commit();
+                }
+                frames.close();
+            } catch (CancellationException e) {
+                // the write stage stopped, its error is thrown below
+            } catch (Exception e) {
+                // the frames read so far are written before the track buffers can be released
+                frames.fail(e);
+                try {
+                    awaitStage(writer);
+                } catch (Exception ignored) {
+                    // the write stage ends with e
+                }
+                throw e;
+            } finally {
+                if (kvsInputStream != null) {
+                    kvsInputStream.close();
+                }
+            }
+            awaitStage(writer);
+
+            logger.info(String.format("KVS raw data: audio from customer size: %d, audio to customer size: %d, spilled: %s, %s",
+                    fromCustomer.size(), toCustomer.size(), fromCustomer.isSpilled(), toCustomer.isSpilled()));
+            logger.info(String.format("Pipeline stages for contactId: %s: %s", contactId, kvsInputStream != null
+                    ? PipelineStats.of(System.nanoTime() - pipelineStart, STAGES, kvsInputStream.getQueue(), frames)
+                    : PipelineStats.of(System.nanoTime() - pipelineStart, CACHED_STAGES, frames)));
 
-            Map<String, ByteBuffer> bufferMap = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId);
-            while (!bufferMap.isEmpty()) {
-                if (bufferMap.containsKey(KVSUtils.AUDIO_FROM_CUSTOMER)) {
-                    // Write audio bytes from the KVS stream to the temporary file
-                    ByteBuffer audioBuffer = bufferMap.get(KVSUtils.AUDIO_FROM_CUSTOMER);
+            // complete before the uploads start, they carry the metrics as metadata
+            recording.setAnalytics(analyzer.finish());
+            logger.info(String.format("Call analytics for contactId: %s: %s", contactId, recording.getAnalytics().toAttributes()));
 
-                    fromCustomerCount += audioBuffer.remaining();
-                    byte[] audioBytes = new byte[audioBuffer.remaining()];
-                    audioBuffer.get(audioBytes);
-                    outStreamFromCustomer.write(audioBytes);
+            logger.info(String.format("Upload audio for contactId: %s", contactId));
 
-                    bAudioFromCustomer = true;
-                } else if (bufferMap.containsKey(KVSUtils.AUDIO_TO_CUSTOMER)) {
-                    // Write audio bytes from the KVS stream to the temporary file
-                    ByteBuffer audioBuffer = bufferMap.get(KVSUtils.AUDIO_TO_CUSTOMER);
+            if (peaks != null) {
+                uploads.put(WAVEFORM, uploadPeaksToS3(recording, peaks, objects));
+            }
 
-                    toCustomerCount += audioBuffer.remaining();
+            // each track is uploaded as soon as it is complete, overlapping with the other track and the mix
+            if (fromCustomer.size() > 0) {
+                uploads.put(KVSUtils.AUDIO_FROM_CUSTOMER, uploadAudioToS3(recording, KVSUtils.AUDIO_FROM_CUSTOMER, fromCustomer, AudioUtils.CHANNEL_MONO, objects));
+            }
 
-                    byte[] audioBytes = new byte[audioBuffer.remaining()];
-                    audioBuffer.get(audioBytes);
-                    outStreamToCustomer.write(audioBytes);
+            if (toCustomer.size() > 0) {
+                uploads.put(KVSUtils.AUDIO_TO_CUSTOMER, uploadAudioToS3(recording, KVSUtils.AUDIO_TO_CUSTOMER, toCustomer, AudioUtils.CHANNEL_MONO, objects));
+            }
 
-                    bAudioToCustomer = true;
+            if (ASR_SAMPLE_RATE > 0 && ASR_SAMPLE_RATE != AudioUtils.SAMPLE_RATE) {
+                if (fromCustomer.size() > 0) {
+                    uploads.put(KVSUtils.AUDIO_FROM_CUSTOMER + "_" + ASR_SAMPLE_RATE, uploadAsrAudioToS3(recording, KVSUtils.AUDIO_FROM_CUSTOMER, fromCustomer, workspace, objects));
                 }
+                if (toCustomer.size() > 0) {
+                    uploads.put(KVSUtils.AUDIO_TO_CUSTOMER + "_" + ASR_SAMPLE_RATE, uploadAsrAudioToS3(recording, KVSUtils.AUDIO_TO_CUSTOMER, toCustomer, workspace, objects));
+                }
+            }
 
-                //if previousFragmentNum equals stopFragmentNum, break while loop
-                String previousFragmentNum = null;
-                if(fragmentVisitor.getPreviousFragmentMetadata().isPresent()) {
-                    previousFragmentNum = fragmentVisitor.getPreviousFragmentMetadata().get().getFragmentNumberString();
+            if (fromCustomer.size() > 0 && toCustomer.size() > 0
+                    && recording.getRecordingAuth() == AudioUtils.AUTH_AUDIO_MIXED) {
+                MixEvent mixEvent = new MixEvent();
+                mixEvent.begin();
+                if (mixer != null) {
+                    // the rest of the mix, the shorter track is padded with silence
+                    mixer.mixTo(Math.max(fromCustomer.size(), toCustomer.size()) / 2);
+                } else {
+                    mixed = arena.newTrack(workspace, AUDIO_MIXED, spill);
+                    AudioUtils.mixMonoAudios(fromCustomer, toCustomer, mixed);
                 }
-                if(previousFragmentNum != null && stopFragmentNum != null && stopFragmentNum.equals(previousFragmentNum)) {
-                    logger.info(String.format("previousFragmentNum=%s, stop getByteBufferFromStream while loop", previousFragmentNum));
-                    break;
+                if (mixEvent.shouldCommit()) {
+                    mixEvent.contactId = contactId;
+                    mixEvent.streamArn = streamARN;
+                    mixEvent.bytes = mixed.size();
+                    mixEvent.frames = mixed.size() / (AudioUtils.CHANNEL_STEREO * AudioUtils.BITS_PER_SAMPLE / 8);
+                    mixEvent.spilled = mixed.isSpilled();
+                    mixEvent.commit();
                 }
-                bufferMap = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId);
+                uploads.put(AUDIO_MIXED, uploadAudioToS3(recording, AUDIO_MIXED, mixed, AudioUtils.CHANNEL_STEREO, objects));
             }
+
+            segmenters.forEach((track, segmenter) -> uploads.put(track + PLAYLIST, finishSegments(recording, track, segmenter)));
         } finally {
-            logger.info(String.format("KVS raw data: audio from customer size: %d, audio to customer size: %d,", fromCustomerCount, toCustomerCount));
-            logger.info(String.format("Closing file and upload raw audio for contactId: %s ... %s ... %s", contactId, saveAudioFilePathFromCustomer, saveAudioFilePathToCustomer));
+            // segments already started have to complete before their track buffers are released
+            segmenters.forEach((track, segmenter) -> uploads.putIfAbsent(track + PLAYLIST, segmenter.abort()));
+
+            // the uploads read directly from the track buffers, so they are released only once every upload is done
+            awaitUploads(recording, uploads);
+            recording.setObjects(new ArrayList<>(objects));
+            recording.setDurationMillis(Math.max(fromCustomer.size(), toCustomer.size())
+                    / (AudioUtils.BITS_PER_SAMPLE / 8) * 1000 / AudioUtils.SAMPLE_RATE);
+
+            fromCustomer.close();
+            toCustomer.close();
+            if (mixed != null) {
+                mixed.close();
+            }
+            workspace.close();
+        }
 
-            kvsInputStream.close();
-            outStreamFromCustomer.close();
-            outStreamToCustomer.close();
+        // the objects uploaded so far stay, the recording is processed again as a whole
+        if (!recording.getFailedObjects().isEmpty()) {
+            throw new IOException(String.format("Uploads failed for contactId: %s: %s", contactId, recording.getFailedObjects()));
+        }
+    }
 
-            Map<String, String> mapAudio = new HashMap<>();
-            if (bAudioFromCustomer) {
-                File wavFile;
-                // Convert audio from raw to wav format, then delete raw file
-                try {
-                    wavFile = AudioUtils.convertToWav(saveAudioFilePathFromCustomer.toString(), AudioUtils.CHANNEL_MONO);
-                } catch (IOException | UnsupportedAudioFileException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    KVSUtils.deleteFile(saveAudioFilePathFromCustomer.toString());
-                }
-                mapAudio.put(KVSUtils.AUDIO_FROM_CUSTOMER, wavFile.toString());
+    /**
+     * Starts the upload of one track to S3 as a wav file if the track is authorized, and sets its url on the
+     * recording once done
+     *
+     * @param recording
+     * @param track AUDIO_FROM_CUSTOMER, AUDIO_TO_CUSTOMER or AUDIO_MIXED
+     * @param pcm track data
+     * @param channels number of interleaved channels in pcm
+     * @param objects uploaded objects of the recording, the object is added once uploaded
+     * @return future completed when the object is uploaded or skipped
+     */
+    private CompletableFuture<Void> uploadAudioToS3(RecordingData recording, String track, TrackBuffer pcm, int channels,
+                                                    List<RecordedObject> objects) {
+        String fileName = fileName(recording, track) + ".wav";
+        logger.info(String.format("File: %s, size: %d", fileName, pcm.size()));
+
+        if (!isAuthorized(recording, track)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<S3UploadInfo> upload;
+        try {
+            upload = objectSink.put(recording, fileName, AudioUtils.wavBody(pcm, channels), "audio/wav", analyticsMetadata(recording));
+        } catch (RuntimeException e) {
+            upload = CompletableFuture.failedFuture(e);
+        }
+
+        return upload.thenAccept(uploadInfo -> {
+            objects.add(new RecordedObject(track, uploadInfo.getBucketName(), uploadInfo.getObjectKey(),
+                    AudioUtils.WAV_HEADER_SIZE + pcm.size(), channels, AudioUtils.SAMPLE_RATE));
+            String url = uploadInfo.getCloudfrontUrl(CLOUDFRONT_DOMAIN);
+            switch (track) {
+                case KVSUtils.AUDIO_FROM_CUSTOMER:
+                    recording.setAudioFromCustomer(url);
+                    break;
+                case KVSUtils.AUDIO_TO_CUSTOMER:
+                    recording.setAudioToCustomer(url);
+                    break;
+                default:
+                    recording.setAudioMixed(url);
+                    break;
             }
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error(String.format("Upload of %s failed for contactId: %s, file: %s", track, recording.getContactId(), fileName), e);
+            }
+        });
+    }
 
-            if (bAudioToCustomer) {
-                File wavFile;
-                // Convert audio from raw to wav format
+    /**
+     * Starts the upload of one mono track resampled to ASR_SAMPLE_RATE for speech recognition, if the track is
+     * authorized. The object sits next to the track recording, with the sample rate in its name.
+     *
+     * @param recording
+     * @param track AUDIO_FROM_CUSTOMER or AUDIO_TO_CUSTOMER
+     * @param pcm track data
+     * @param workspace scratch workspace of the recording
+     * @param objects uploaded objects of the recording, the object is added once uploaded
+     * @return future completed when the object is uploaded or skipped
+     */
+    private CompletableFuture<Void> uploadAsrAudioToS3(RecordingData recording, String track, TrackBuffer pcm, Workspace workspace,
+                                                       List<RecordedObject> objects) {
+        String fileName = fileName(recording, track) + "_" + ASR_SAMPLE_RATE + ".wav";
+
+        if (!isAuthorized(recording, track)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long bytes = AudioUtils.WAV_HEADER_SIZE + 2 * new PolyphaseResampler(AudioUtils.SAMPLE_RATE, ASR_SAMPLE_RATE).outputLength(pcm.size() / 2);
+        CompletableFuture<S3UploadInfo> upload;
+        try {
+            ParallelAudio parallel = ParallelAudio.shared();
+            if (parallel.isParallel(pcm.size() / 2)) {
+                // a long track is converted on all cores up front, instead of on the upload thread as it is sent
+                TrackBuffer resampled = arena.newTrack(workspace, track + "_" + ASR_SAMPLE_RATE, !arena.canHold(bytes));
                 try {
-                    wavFile = AudioUtils.convertToWav(saveAudioFilePathToCustomer.toString(), AudioUtils.CHANNEL_MONO);
-                } catch (IOException | UnsupportedAudioFileException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    KVSUtils.deleteFile(saveAudioFilePathToCustomer.toString());
+                    long start = System.nanoTime();
+                    parallel.resample(pcm, AudioUtils.SAMPLE_RATE, ASR_SAMPLE_RATE, resampled);
+                    logger.info(String.format("Resampled %s to %d Hz on %d threads in %d ms", track, ASR_SAMPLE_RATE,
+                            parallel.getParallelism(), (System.nanoTime() - start) / 1_000_000));
+                    upload = objectSink.put(recording, fileName, AudioUtils.wavBody(resampled, AudioUtils.CHANNEL_MONO, ASR_SAMPLE_RATE),
+                            "audio/wav", analyticsMetadata(recording));
+                } catch (IOException | RuntimeException e) {
+                    resampled.close();
+                    throw e;
                 }
-                mapAudio.put(KVSUtils.AUDIO_TO_CUSTOMER, wavFile.toString());
+                upload = upload.whenComplete((uploadInfo, e) -> resampled.close());
+            } else {
+                upload = objectSink.put(recording, fileName, new ResampledWavRequestBody(pcm.slices(), AudioUtils.SAMPLE_RATE, ASR_SAMPLE_RATE), "audio/wav",
+                        analyticsMetadata(recording));
+            }
+        } catch (IOException | RuntimeException e) {
+            upload = CompletableFuture.failedFuture(e);
+        }
+
+        return upload.thenAccept(uploadInfo -> {
+            objects.add(new RecordedObject(track + "_" + ASR_SAMPLE_RATE, uploadInfo.getBucketName(), uploadInfo.getObjectKey(),
+                    bytes, AudioUtils.CHANNEL_MONO, ASR_SAMPLE_RATE));
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error(String.format("Upload of %s at %d Hz failed for contactId: %s, file: %s", track, ASR_SAMPLE_RATE, recording.getContactId(), fileName), e);
             }
+        });
+    }
+
+    /**
+     * Starts the upload of the waveform peaks of the recorded tracks, next to the wav files of the recording
+     *
+     * @param recording
+     * @param peaks peaks of the complete tracks
+     * @param objects uploaded objects of the recording, the object is added once uploaded
+     * @return future completed when the object is uploaded
+     */
+    private CompletableFuture<Void> uploadPeaksToS3(RecordingData recording, WaveformPeaks peaks, List<RecordedObject> objects) {
+        String fileName = fileName(recording, WAVEFORM) + ".dat";
+        ByteBuffer sidecar = peaks.finish();
+        long bytes = sidecar.remaining();
 
-            uploadAudioToS3(recording, mapAudio, unixTime);
+        CompletableFuture<S3UploadInfo> upload;
+        try {
+            upload = objectSink.put(recording, fileName, new ByteBuffersRequestBody(Collections.singletonList(sidecar)),
+                    WaveformPeaks.CONTENT_TYPE, Collections.emptyMap());
+        } catch (RuntimeException e) {
+            upload = CompletableFuture.failedFuture(e);
         }
 
+        return upload.thenAccept(uploadInfo -> {
+            objects.add(new RecordedObject(WAVEFORM, uploadInfo.getBucketName(), uploadInfo.getObjectKey(), bytes,
+                    peaks.getChannels(), AudioUtils.SAMPLE_RATE));
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error(String.format("Upload of the waveform peaks failed for contactId: %s, file: %s", recording.getContactId(), fileName), e);
+            }
+        });
+    }
+
+    private TrackSegmenter newSegmenter(RecordingData recording, String track, TrackBuffer pcm, int channels) {
+        String folder = fileName(recording, track);
+        return new TrackSegmenter(folder, pcm, channels, SEGMENT_SECONDS, (fileName, body, contentType) ->
+                objectSink.put(recording, fileName, body, contentType, Collections.emptyMap()));
     }
 
+    private static CompletableFuture<S3UploadInfo> uploadToS3(RecordingData recording, String fileName, AsyncRequestBody body, String contentType,
+                                                              Map<String, String> metadata) {
+        return AudioUtils.uploadObjectAsync(REGION, RECORDINGS_BUCKET_NAME, RECORDINGS_KEY_PREFIX, recording.getInitiationTimestamp(),
+                fileName, body, contentType, recording.getContactId(), RECORDINGS_PUBLIC_READ_ACL, metadata);
+    }
+
+    private static Map<String, String> analyticsMetadata(RecordingData recording) {
+        return recording.getAnalytics() == null ? Collections.emptyMap() : recording.getAnalytics().toMetadata();
+    }
 
     /**
-     * Closes the FileOutputStream and uploads the Raw audio file to S3
+     * Queues the frames of the fragments that earlier recordings of the stream left in the fragment cache, from the
+     * start fragment on, as far as they are cached
      *
-     * @param recording
-     * @param mapAudio
-     * @param unixTime
-     * @throws IOException
-     */
-    private void uploadAudioToS3(RecordingData recording, Map<String, String> mapAudio,
-                                 long unixTime) throws IOException {
-        mapAudio.forEach((k, v) -> {
-            File wavFile = new File(v);
-            boolean bAuth = false;
-            logger.info(String.format("File: %s, size: %d", k, new File(v).length()));
-
-            if (k.equals(KVSUtils.AUDIO_FROM_CUSTOMER) && (recording.getRecordingAuth() & AudioUtils.AUTH_AUDIO_FROM_CUSTOMER) == AudioUtils.AUTH_AUDIO_FROM_CUSTOMER) {
-                bAuth = true;
-            } else if (k.equals(KVSUtils.AUDIO_TO_CUSTOMER) && (recording.getRecordingAuth() & AudioUtils.AUTH_AUDIO_TO_CUSTOMER) == AudioUtils.AUTH_AUDIO_TO_CUSTOMER) {
-                bAuth = true;
-            }
-
-            if (bAuth) {
-                // Upload the Raw Audio file to S3
-                if (wavFile.length() > 0) {
-                    S3UploadInfo uploadInfo = AudioUtils.uploadAudio(REGION, RECORDINGS_BUCKET_NAME, RECORDINGS_KEY_PREFIX, recording.getInitiationTimestamp(),
-                            wavFile.toString(), recording.getContactId(), RECORDINGS_PUBLIC_READ_ACL, getAWSCredentials());
-                    if (k.equals(KVSUtils.AUDIO_FROM_CUSTOMER)) {
-                        recording.setAudioFromCustomer(uploadInfo.getCloudfrontUrl(CLOUDFRONT_DOMAIN));
+     * @return fragment number to continue from with GetMedia, or null if the recording was complete in the cache
+     */
+    private String queueCachedFragments(String streamName, String startFragmentNum, String stopFragmentNum, String contactId,
+                                        Set<String> tracks, StageQueue<TrackFrame> frames) throws InterruptedException {
+        String fragmentNumber = startFragmentNum;
+        int fragments = 0;
+        long bytes = 0;
+        FragmentCache.Fragment cached;
+        while ((cached = fragmentCache.get(streamName, fragmentNumber, tracks)) != null) {
+            // GetMedia stops at the fragments of another contact, leave them to it
+            if (cached.getContactId() != null && !cached.getContactId().equals(contactId)) {
+                break;
+            }
+            FragmentEvent event = new FragmentEvent();
+            event.begin();
+            for (int i = 0; i < cached.getFrameCount(); i++) {
+                if (tracks.contains(cached.getTrack(i))) {
+                    frames.put(new TrackFrame(cached.getTrack(i), cached.getData(i)));
+                }
+            }
+            commitFragmentEvent(event, streamName, contactId, cached, true);
+            fragments++;
+            bytes += cached.getBytes();
+            if (fragmentNumber.equals(stopFragmentNum)) {
+                fragmentNumber = null;
+                break;
+            }
+            fragmentNumber = cached.getNextFragmentNumber();
+        }
+
+        if (fragments > 0) {
+            logger.info(String.format("Fragment cache for contactId: %s: %d fragments, %d bytes, %s", contactId, fragments, bytes,
+                    fragmentNumber == null ? "recording complete" : "GetMedia from " + fragmentNumber));
+        }
+        return fragmentNumber;
+    }
+
+    /**
+     * Demux stage: parses the MKV frames of the tracks up to the end of the stop fragment and queues them for the write
+     * stage. Every fragment read completely is added to the fragment cache if cacheable.
+     *
+     * @param event the fragments, frames and bytes demuxed are added to it
+     */
+    private void demux(InputStream kvsInputStream, String streamName, String stopFragmentNum, String contactId, Set<String> tracks,
+                       boolean cacheable, StageQueue<TrackFrame> frames, DemuxEvent event) throws Exception {
+        StreamingMkvReader streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(kvsInputStream));
+        // per call, so recordings can be processed concurrently
+        FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+        Map<String, ByteBuffer> bufferMap = new HashMap<>();
+        FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+
+        logger.info("Saving audio bytes to track buffers");
+
+        FragmentCache.Fragment fragment = null;
+        FragmentEvent fragmentEvent = null;
+        Map<String, ByteBuffer> frame = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId, bufferMap, tracks);
+        while (!frame.isEmpty()) {
+            String fragmentNum = fragmentVisitor.getCurrentFragmentMetadata().map(FragmentMetadata::getFragmentNumberString).orElse(null);
+            if (fragment == null || !fragment.getFragmentNumber().equals(fragmentNum)) {
+                // the first frame of a fragment completes the one before
+                if (fragment != null) {
+                    commitFragmentEvent(fragmentEvent, streamName, contactId, fragment, false);
+                    if (cacheable && fragmentNum != null) {
+                        fragmentCache.put(fragment, fragmentNum);
                     }
-                    if (k.equals(KVSUtils.AUDIO_TO_CUSTOMER)) {
-                        recording.setAudioToCustomer(uploadInfo.getCloudfrontUrl(CLOUDFRONT_DOMAIN));
+                    if (fragment.getFragmentNumber().equals(stopFragmentNum)) {
+                        logger.info(String.format("previousFragmentNum=%s, stop getByteBufferFromStream while loop", stopFragmentNum));
+                        fragment = null;
+                        break;
                     }
+                }
+                fragment = fragmentNum == null ? null
+                        : new FragmentCache.Fragment(streamName, fragmentNum, KVSUtils.getContactIdFromStreamTag(tagProcessor), tracks);
+                if (fragment != null) {
+                    event.fragments++;
+                    fragmentEvent = new FragmentEvent();
+                    fragmentEvent.begin();
+                }
+            }
+
+            for (Map.Entry<String, ByteBuffer> trackFrame : frame.entrySet()) {
+                if (fragment != null) {
+                    fragment.add(trackFrame.getKey(), trackFrame.getValue());
+                }
+                event.frames++;
+                event.bytes += trackFrame.getValue().remaining();
+                frames.put(new TrackFrame(trackFrame.getKey(), trackFrame.getValue()));
+            }
+            frame = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId, bufferMap, tracks);
+        }
+        // the stream ended within the last fragment
+        if (fragment != null) {
+            commitFragmentEvent(fragmentEvent, streamName, contactId, fragment, false);
+        }
+    }
+
+    private static void commitFragmentEvent(FragmentEvent event, String streamName, String contactId, FragmentCache.Fragment fragment,
+                                            boolean cached) {
+        if (event.shouldCommit()) {
+            event.contactId = contactId;
+            event.streamName = streamName;
+            event.fragmentNumber = fragment.getFragmentNumber();
+            event.frames = fragment.getFrameCount();
+            event.bytes = fragment.getBytes();
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
+    /**
+     * Write stage: appends the demuxed frames to their track buffers, the analyzer and the waveform peaks, and in
+     * segmented mode uploads the segments and extends the mix as the tracks grow
+     *
+     * @param peaks null if WAVEFORM_PEAKS is not set
+     * @param event committed with the frames and bytes written once the stage ends
+     */
+    private static void writeFrames(StageQueue<TrackFrame> frames, TrackBuffer fromCustomer, TrackBuffer toCustomer, StereoMixer mixer,
+                                    Map<String, TrackSegmenter> segmenters, ConversationAnalyzer analyzer, WaveformPeaks peaks,
+                                    TrackWriteEvent event) throws Exception {
+        event.begin();
+        try {
+            TrackFrame frame;
+            while ((frame = frames.take()) != null) {
+                event.frames++;
+                event.bytes += frame.data.remaining();
+                analyzer.accept(frame.track, frame.data);
+                if (peaks != null) {
+                    peaks.accept(frame.track, frame.data);
+                }
+                if (KVSUtils.AUDIO_FROM_CUSTOMER.equals(frame.track)) {
+                    fromCustomer.write(frame.data);
                 } else {
-                    logger.info("Skipping upload to S3.  saveCallRecording was disabled or audio file has 0 bytes: " + wavFile);
+                    toCustomer.write(frame.data);
                 }
+                if (!segmenters.isEmpty()) {
+                    advanceSegments(fromCustomer, toCustomer, mixer, segmenters);
+                }
+            }
+        } catch (Exception e) {
+            // releases the demux stage if it is waiting for room in the queue
+            frames.cancel();
+            throw e;
+        } finally {
+            event.spilled = fromCustomer.isSpilled() || toCustomer.isSpilled();
+            event.commit();
+        }
+    }
+
+    /**
+     * Waits for a stage running on stageExecutor and throws its error
+     */
+    private static void awaitStage(Future<?> stage) throws Exception {
+        try {
+            stage.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            stage.cancel(true);
+            throw e;
+        }
+    }
+
+    private static final class TrackFrame {
+        private final String track;
+        private final ByteBuffer data;
+
+        private TrackFrame(String track, ByteBuffer data) {
+            this.track = track;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Uploads the segments completed by the last frame, and extends the mix by the segments both tracks now hold
+     */
+    private static void advanceSegments(TrackBuffer fromCustomer, TrackBuffer toCustomer, StereoMixer mixer,
+                                        Map<String, TrackSegmenter> segmenters) throws IOException {
+        if (mixer != null) {
+            long segmentSamples = (long) SEGMENT_SECONDS * AudioUtils.SAMPLE_RATE;
+            long ready = Math.min(fromCustomer.size(), toCustomer.size()) / 2;
+            mixer.mixTo(ready - ready % segmentSamples);
+        }
+        for (TrackSegmenter segmenter : segmenters.values()) {
+            segmenter.onData();
+        }
+    }
+
+    /**
+     * Uploads the last segment of a track and its final playlist, and sets the playlist url on the recording
+     *
+     * @param recording
+     * @param track AUDIO_FROM_CUSTOMER, AUDIO_TO_CUSTOMER or AUDIO_MIXED
+     * @param segmenter
+     * @return future completed when the playlist is uploaded
+     */
+    private CompletableFuture<Void> finishSegments(RecordingData recording, String track, TrackSegmenter segmenter) {
+        return segmenter.finish().thenAccept(uploadInfo -> {
+            if (uploadInfo == null) {
+                return;
+            }
+            String url = uploadInfo.getCloudfrontUrl(CLOUDFRONT_DOMAIN);
+            switch (track) {
+                case KVSUtils.AUDIO_FROM_CUSTOMER:
+                    recording.setAudioFromCustomerPlaylist(url);
+                    break;
+                case KVSUtils.AUDIO_TO_CUSTOMER:
+                    recording.setAudioToCustomerPlaylist(url);
+                    break;
+                default:
+                    recording.setAudioMixedPlaylist(url);
+                    break;
+            }
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error(String.format("Segmented upload of %s failed for contactId: %s", track, recording.getContactId()), e);
+            }
+        });
+    }
+
+    /**
+     * Waits for every started upload, so the recording urls are complete before the contact attributes are updated.
+     * A failed upload does not discard the objects that were uploaded successfully, the failed ones are set on the
+     * recording.
+     *
+     * @param recording
+     * @param uploads upload future per track
+     */
+    private void awaitUploads(RecordingData recording, Map<String, CompletableFuture<Void>> uploads) {
+        List<String> failed = new ArrayList<>();
+        uploads.forEach((track, upload) -> {
+            try {
+                upload.join();
+            } catch (CompletionException | CancellationException e) {
+                failed.add(track);
             }
         });
+        recording.setFailedObjects(failed);
 
-        if (mapAudio.containsKey(KVSUtils.AUDIO_FROM_CUSTOMER)
-                && mapAudio.containsKey(KVSUtils.AUDIO_TO_CUSTOMER)
-                && recording.getRecordingAuth() == AudioUtils.AUTH_AUDIO_MIXED) {
-            File mixed = AudioUtils.mixMonoAudios(mapAudio.get(KVSUtils.AUDIO_FROM_CUSTOMER), mapAudio.get(KVSUtils.AUDIO_TO_CUSTOMER), recording.getContactId());
-            // Upload the Raw Audio file to S3
-            if (mixed.length() > 0) {
-                S3UploadInfo uploadInfo = AudioUtils.uploadAudio(REGION, RECORDINGS_BUCKET_NAME, RECORDINGS_KEY_PREFIX, recording.getInitiationTimestamp(),
-                        mixed.toString(), recording.getContactId(), RECORDINGS_PUBLIC_READ_ACL, getAWSCredentials());
+        if (!failed.isEmpty()) {
+            logger.error(String.format("%d of %d uploads failed for contactId: %s, failed: %s", failed.size(), uploads.size(), recording.getContactId(), failed));
+        }
+    }
 
-                recording.setAudioMixed(uploadInfo.getCloudfrontUrl(CLOUDFRONT_DOMAIN));
-            } else {
-                logger.info("Skipping upload to S3.  saveCallRecording was disabled or audio file has 0 bytes: " + mixed);
+    /**
+     * @return names of the mono tracks to read from the stream, both of them if the mix is authorized
+     */
+    static Set<String> authorizedTracks(RecordingData recording) {
+        Set<String> tracks = new LinkedHashSet<>();
+        for (String track : new String[]{KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER}) {
+            if (isAuthorized(recording, track)) {
+                tracks.add(track);
             }
+        }
+        return tracks;
+    }
 
-            KVSUtils.deleteFile(mixed.toString());
+    private static boolean isAuthorized(RecordingData recording, String track) {
+        switch (track) {
+            case KVSUtils.AUDIO_FROM_CUSTOMER:
+                return (recording.getRecordingAuth() & AudioUtils.AUTH_AUDIO_FROM_CUSTOMER) == AudioUtils.AUTH_AUDIO_FROM_CUSTOMER;
+            case KVSUtils.AUDIO_TO_CUSTOMER:
+                return (recording.getRecordingAuth() & AudioUtils.AUTH_AUDIO_TO_CUSTOMER) == AudioUtils.AUTH_AUDIO_TO_CUSTOMER;
+            default:
+                return recording.getRecordingAuth() == AudioUtils.AUTH_AUDIO_MIXED;
         }
+    }
 
-        //delete audio files
-        mapAudio.forEach((k, v) -> {
-            KVSUtils.deleteFile(v);
-        });
+    /**
+     * @return name of the files of a track without extension, numbered if the contact has several recordings
+     */
+    static String fileName(RecordingData recording, String track) {
+        return recordingName(recording) + "_" + track.toLowerCase();
     }
 
     /**
-     * @return AWS credentials to be used to connect to s3 (for fetching and uploading audio) and KVS
+     * @return the contact id, numbered if the contact has several recordings
      */
-    private static AWSCredentialsProvider getAWSCredentials() {
-        return DefaultAWSCredentialsProviderChain.getInstance();
+    private static String recordingName(RecordingData recording) {
+        return recording.getRecordingNumber() > 0 ? recording.getContactId() + "_" + recording.getRecordingNumber() : recording.getContactId();
     }
 
+    /**
+     * Estimates the PCM size of one mono track from the recording start and stop timestamps
+     *
+     * @param recording
+     * @return estimated bytes, or -1 if the recording has no stop timestamp yet
+     */
+    static long estimatePcmBytes(RecordingData recording) {
+        long start = RecordingData.toEpochMillis(recording.getStartTimestamp());
+        long stop = RecordingData.toEpochMillis(recording.getStopTimestamp());
+        if (start < 0 || stop < start) {
+            return -1;
+        }
+        return (stop - start) * AudioUtils.SAMPLE_RATE / 1000 * (AudioUtils.BITS_PER_SAMPLE / 8);
+    }
 }
@@ -13,31 +13,29 @@
 
 package ProcessKvs.audio;
 
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.ByteBuffersRequestBody;
+import ProcessKvs.jfr.UploadEvent;
 import ProcessKvs.kvstream.S3UploadInfo;
-import com.amazonaws.SdkClientException;
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.CannedAccessControlList;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.PutObjectResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Utility class to download/upload audio files from/to S3
@@ -62,6 +60,10 @@ public final class AudioUtils {
     public static final int CHANNEL_MONO = 1;
     public static final int CHANNEL_STEREO = 2;
 
+    public static final int SAMPLE_RATE = 8000;
+    public static final int BITS_PER_SAMPLE = 16;
+    public static final int WAV_HEADER_SIZE = 44;
+
     public static final int AUTH_AUDIO_NONE = 0;
     public static final int AUTH_AUDIO_FROM_CUSTOMER = 1;
     public static final int AUTH_AUDIO_TO_CUSTOMER = 2;
@@ -70,156 +72,171 @@ public final class AudioUtils {
     private static final Logger logger = LoggerFactory.getLogger(AudioUtils.class);
 
     /**
-     * Converts the given raw audio data into a wav file. Returns the wav file back.
+     * Builds the canonical 44 byte header of a PCM wav file, 8KHz, 16 bit, signed, little-endian
+     *
+     * @param dataLength size of the PCM data in bytes
+     * @param channels number of interleaved channels
+     * @return header buffer ready to be read
      */
-    public static File convertToWav(String audioFilePath, int channels) throws IOException, UnsupportedAudioFileException {
-        File outputFile = new File(audioFilePath.replace(".raw", ".wav"));
-        AudioInputStream source = new AudioInputStream(Files.newInputStream(Paths.get(audioFilePath)),
-                new AudioFormat(8000, 16, channels, true, false), -1); // 8KHz, 16 bit, 1 channel, signed, little-endian
-        AudioSystem.write(source, AudioFileFormat.Type.WAVE, outputFile);
-        return outputFile;
+    public static ByteBuffer wavHeader(long dataLength, int channels) {
+        return wavHeader(dataLength, channels, SAMPLE_RATE);
     }
 
     /**
-     * Saves the raw audio file as an S3 object
+     * Builds the canonical 44 byte header of a PCM wav file, 16 bit, signed, little-endian
      *
-     * @param region
-     * @param bucketName
-     * @param keyPrefix
-     * @param audioFilePath
-     * @param awsCredentials
+     * @param dataLength size of the PCM data in bytes
+     * @param channels number of interleaved channels
+     * @param sampleRate samples per second and channel
+     * @return header buffer ready to be read
      */
-    public static S3UploadInfo uploadAudio(Regions region, String bucketName, String keyPrefix, String initiationTimestamp, String audioFilePath,
-                                           String contactId, boolean publicReadAcl,
-                                           AWSCredentialsProvider awsCredentials) {
-        File wavFile = new File(audioFilePath);
-        S3UploadInfo uploadInfo = null;
-
-        try {
-
-            AmazonS3Client s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
-                    .withRegion(region)
-                    .withCredentials(awsCredentials)
-                    .build();
-
-            ZonedDateTime zdt = parseTimestamp(initiationTimestamp);
-            // upload the raw audio file to the designated S3 location
-            String objectKey = keyPrefix + zdt.getYear() + '/' + zdt.getMonthValue() + '/' + zdt.getDayOfMonth() + '/' + wavFile.getName();
-
-            logger.info(String.format("Uploading Audio: to %s/%s from %s", bucketName, objectKey, wavFile));
-            PutObjectRequest request = new PutObjectRequest(bucketName, objectKey, wavFile);
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentType("audio/wav");
-            metadata.addUserMetadata("contact-id", contactId);
-            request.setMetadata(metadata);
-
-            if (publicReadAcl) {
-                request.setCannedAcl(CannedAccessControlList.PublicRead);
-            }
-
-            PutObjectResult s3result = s3Client.putObject(request);
-
-            logger.info("putObject completed successfully " + s3result.getETag());
-            uploadInfo = new S3UploadInfo(bucketName, objectKey, region);
-
-        } catch (SdkClientException e) {
-            logger.error("Audio upload to S3 failed: ", e);
-            throw e;
-        } finally {
-            if (wavFile != null) {
-                //wavFile.delete();
-            }
-        }
-
-        return uploadInfo;
+    public static ByteBuffer wavHeader(long dataLength, int channels, int sampleRate) {
+        int blockAlign = channels * BITS_PER_SAMPLE / 8;
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII))
+                .putInt((int) (WAV_HEADER_SIZE - 8 + dataLength))
+                .put("WAVE".getBytes(StandardCharsets.US_ASCII))
+                .put("fmt ".getBytes(StandardCharsets.US_ASCII))
+                .putInt(16)
+                .putShort((short) 1) // PCM
+                .putShort((short) channels)
+                .putInt(sampleRate)
+                .putInt(sampleRate * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) BITS_PER_SAMPLE)
+                .put("data".getBytes(StandardCharsets.US_ASCII))
+                .putInt((int) dataLength);
+        header.flip();
+        return header;
     }
 
+    /**
+     * @param pcm track data
+     * @param channels number of interleaved channels in pcm
+     * @return request body of a wav file reading the header and the track chunks without copying them
+     */
+    public static AsyncRequestBody wavBody(TrackBuffer pcm, int channels) {
+        return wavBody(pcm, channels, SAMPLE_RATE);
+    }
 
-    public static File mixMonoAudios(String fromCustomer, String toCustomer, String contactId) {
-        //long unixTime = System.currentTimeMillis() / 1000L;
-        File output = new File(String.format("/tmp/%s_audio_mixed.wav", contactId/*, unixTime*/));
-        try {
-
-            File fromCustomerFile = new File(fromCustomer);
-            File toCustomerFile = new File(toCustomer);
-
-            logger.info(String.format("file size: %s --- %s", fromCustomerFile.length(), toCustomerFile.length()));
-
-            AudioInputStream fromCustomerStream = AudioSystem.getAudioInputStream(fromCustomerFile);
-            AudioInputStream toCustomerStream = AudioSystem.getAudioInputStream(toCustomerFile);
-
-            mixAudioStreams(fromCustomerStream, toCustomerStream, output);
+    /**
+     * @param pcm track data
+     * @param channels number of interleaved channels in pcm
+     * @param sampleRate sample rate of pcm
+     * @return request body of a wav file reading the header and the track chunks without copying them
+     */
+    public static AsyncRequestBody wavBody(TrackBuffer pcm, int channels, int sampleRate) {
+        List<ByteBuffer> content = new ArrayList<>();
+        content.add(wavHeader(pcm.size(), channels, sampleRate));
+        content.addAll(pcm.slices());
+        return new ByteBuffersRequestBody(content);
+    }
 
-            // Close streams
-            fromCustomerStream.close();
-            toCustomerStream.close();
+    /**
+     * Starts the upload of an object next to the recording files of a contact
+     *
+     * @param region
+     * @param bucketName
+     * @param keyPrefix
+     * @param fileName name of the object under the dated prefix
+     * @param body object content
+     * @param contentType
+     * @return future completed with the uploaded object location
+     */
+    public static CompletableFuture<S3UploadInfo> uploadObjectAsync(Region region, String bucketName, String keyPrefix, String initiationTimestamp,
+                                                                    String fileName, AsyncRequestBody body, String contentType, String contactId,
+                                                                    boolean publicReadAcl) {
+        return uploadObjectAsync(region, bucketName, keyPrefix, initiationTimestamp, fileName, body, contentType, contactId, publicReadAcl,
+                Collections.emptyMap());
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Starts the upload of an object next to the recording files of a contact, with user metadata besides the
+     * contact id
+     *
+     * @param region
+     * @param bucketName
+     * @param keyPrefix
+     * @param fileName name of the object under the dated prefix
+     * @param body object content
+     * @param contentType
+     * @param metadata user metadata, without the x-amz-meta- prefix
+     * @return future completed with the uploaded object location
+     */
+    public static CompletableFuture<S3UploadInfo> uploadObjectAsync(Region region, String bucketName, String keyPrefix, String initiationTimestamp,
+                                                                    String fileName, AsyncRequestBody body, String contentType, String contactId,
+                                                                    boolean publicReadAcl, Map<String, String> metadata) {
+        ZonedDateTime zdt = parseTimestamp(initiationTimestamp);
+        // upload the raw audio file to the designated S3 location
+        String objectKey = keyPrefix + zdt.getYear() + '/' + zdt.getMonthValue() + '/' + zdt.getDayOfMonth() + '/' + fileName;
+
+        // the wav bodies encode while they are sent, so the event covers the conversion too
+        UploadEvent event = new UploadEvent();
+        event.begin();
+        event.contactId = contactId;
+        event.objectKey = objectKey;
+        event.contentType = contentType;
+        event.bytes = body.contentLength().orElse(-1L);
+
+        logger.info(String.format("Uploading Audio: to %s/%s from %s", bucketName, objectKey, fileName));
+        PutObjectRequest.Builder request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .contentType(contentType)
+                .metadata(objectMetadata(contactId, metadata));
+
+        if (publicReadAcl) {
+            request.acl(ObjectCannedACL.PUBLIC_READ);
         }
 
-        return output;
+        return AwsClients.s3().putObject(request.build(), body)
+                .thenApply(s3result -> {
+                    logger.info("putObject completed successfully " + s3result.eTag());
+                    return new S3UploadInfo(bucketName, objectKey, region);
+                })
+                .whenComplete((uploadInfo, e) -> {
+                    if (e != null) {
+                        logger.error("Audio upload to S3 failed: ", e);
+                    }
+                    event.succeeded = e == null;
+                    event.commit();
+                });
     }
 
-
     /*
-     * Mix two 16-bit signed samples into one
+     * Mix two mono 16-bit tracks into one stereo track
      * The audio to customer is stored in the right channel.
      * The audio from customer is stored in the left channel.
+     * The shorter track is padded with silence.
+     * Long tracks are mixed in blocks on the threads of ParallelAudio, with the same output.
      */
-    public static void mixAudioStreams(AudioInputStream left, AudioInputStream right, File output) throws IOException {
-        AudioFormat format = left.getFormat();
-        int frameSize = format.getFrameSize();
-        int size = left.available();
-
-        byte[] result = new byte[size * 2];
-
-        // Mix frame sample-by-sample
-        for (int i = 0; i < size; i += frameSize) {
-            //16-bit samples
-            short sample1, sample2;
-
-            byte[] data1 = new byte[frameSize];
-            byte[] data2 = new byte[frameSize];
-
-            int data1Len = left.read(data1);
-            int data2Len = right.read(data2);
-
-            if (data1Len <= 0 || data2Len <= 0) {
-                break;
-            }
-
-            // Convert bytes to 16-bit sample
-            sample1 = get16BitSample(data1[0], data1[1]);
-
-            sample2 = get16BitSample(data2[0], data2[1]);
-
-            // Convert back to bytes in bigEndian model, and mix data to stereo
-            result[i * 2] = (byte) (sample1 >> 8);
-            result[i * 2 + 1] = (byte) (sample1 & 0xFF);
-            result[i * 2 + 2] = (byte) (sample2 >> 8);
-            result[i * 2 + 3] = (byte) (sample2 & 0xFF);
+    public static void mixMonoAudios(TrackBuffer left, TrackBuffer right, TrackBuffer output) throws IOException {
+        logger.info(String.format("track size: %s --- %s", left.size(), right.size()));
+
+        long samples = Math.max(left.size(), right.size()) / 2;
+        ParallelAudio parallel = ParallelAudio.shared();
+        if (parallel.isParallel(samples)) {
+            long start = System.nanoTime();
+            parallel.mix(left, right, output);
+            logger.info(String.format("Mixed %d samples on %d threads in %d ms", samples, parallel.getParallelism(),
+                    (System.nanoTime() - start) / 1_000_000));
+        } else {
+            new StereoMixer(left, right, output).mixTo(samples);
         }
 
-        AudioFormat audioFormat = new AudioFormat(8000, 16, CHANNEL_STEREO, true, false);
-        AudioInputStream mixedStream = new AudioInputStream(new ByteArrayInputStream(result), audioFormat, result.length);
-
-        logger.info(String.format("mixedStream size: %s", mixedStream.available()));
-
-        // Write mixed audio data to output file
-        AudioSystem.write(mixedStream, AudioFileFormat.Type.WAVE, output);
-
-        logger.info(String.format("output file size: %s", output.length()));
-
-        mixedStream.close();
+        logger.info(String.format("mixed track size: %s", output.size()));
     }
 
-    // Convert two bytes to a 16-bit signed sample in bigEndian model
-    public static short get16BitSample(byte lower, byte upper) {
-        return (short) ((lower << 8) | (upper & 0xFF));
+    private static Map<String, String> objectMetadata(String contactId, Map<String, String> metadata) {
+        if (metadata.isEmpty()) {
+            return Collections.singletonMap("contact-id", contactId);
+        }
+        Map<String, String> objectMetadata = new LinkedHashMap<>();
+        objectMetadata.put("contact-id", contactId);
+        objectMetadata.putAll(metadata);
+        return objectMetadata;
     }
 
-
     private static ZonedDateTime parseTimestamp(String initiationTimestamp) {
         // Use DateTimeFormatter instead of SimpleDateFormat
         DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
@@ -0,0 +1,110 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.KVSUtils;
+import ProcessKvs.model.CallAnalytics;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Computes the CallAnalytics of a recording from the frames of its customer and agent tracks as they are read, so
+ * the quality metrics need no second pass over the uploaded wav files.
+ *
+ * The windows of both tracks are matched by position for the cross-talk and silence figures. Only the windows one
+ * track is ahead of the other are kept, a few bits per second of skew.
+ */
+final class ConversationAnalyzer {
+
+    private final TrackAnalyzer fromCustomer;
+    private final TrackAnalyzer toCustomer;
+
+    private long pairedWindows;
+    private long crossTalkWindows;
+    private long silentWindows;
+
+    /**
+     * @param tracks tracks read from the stream, AUDIO_FROM_CUSTOMER and/or AUDIO_TO_CUSTOMER
+     * @param speechDbfs RMS level of a 20 ms window from which it counts as talk
+     */
+    ConversationAnalyzer(Set<String> tracks, double speechDbfs) {
+        boolean paired = tracks.contains(KVSUtils.AUDIO_FROM_CUSTOMER) && tracks.contains(KVSUtils.AUDIO_TO_CUSTOMER);
+        this.fromCustomer = tracks.contains(KVSUtils.AUDIO_FROM_CUSTOMER) ? new TrackAnalyzer(speechDbfs, paired) : null;
+        this.toCustomer = tracks.contains(KVSUtils.AUDIO_TO_CUSTOMER) ? new TrackAnalyzer(speechDbfs, paired) : null;
+    }
+
+    /**
+     * Adds a frame of one track, without moving its position
+     *
+     * @param track AUDIO_FROM_CUSTOMER or AUDIO_TO_CUSTOMER
+     * @param pcm 16 bit little-endian mono samples
+     */
+    void accept(String track, ByteBuffer pcm) {
+        TrackAnalyzer analyzer = KVSUtils.AUDIO_FROM_CUSTOMER.equals(track) ? fromCustomer : toCustomer;
+        if (analyzer == null) {
+            return;
+        }
+        analyzer.accept(pcm);
+        if (fromCustomer != null && toCustomer != null) {
+            matchWindows();
+        }
+    }
+
+    /**
+     * @return metrics of the frames added so far, the analyzer cannot be used afterwards
+     */
+    CallAnalytics finish() {
+        if (fromCustomer == null || toCustomer == null) {
+            TrackAnalyzer track = fromCustomer != null ? fromCustomer : toCustomer;
+            if (track == null) {
+                return new CallAnalytics(null, null, 0, 0);
+            }
+            track.finish();
+            double silenceRatio = track.getWindows() == 0 ? 0 : 1 - (double) track.getSpeechWindows() / track.getWindows();
+            return new CallAnalytics(fromCustomer != null ? fromCustomer.toAnalytics() : null,
+                    toCustomer != null ? toCustomer.toAnalytics() : null, 0, silenceRatio);
+        }
+
+        fromCustomer.finish();
+        toCustomer.finish();
+        matchWindows();
+        // the longer track is matched with silence
+        for (TrackAnalyzer track : new TrackAnalyzer[]{fromCustomer, toCustomer}) {
+            while (track.pendingWindows() > 0) {
+                pairedWindows++;
+                if (!track.takeWindow()) {
+                    silentWindows++;
+                }
+            }
+        }
+
+        long windowMillis = 1000L * TrackAnalyzer.WINDOW_SAMPLES / AudioUtils.SAMPLE_RATE;
+        return new CallAnalytics(fromCustomer.toAnalytics(), toCustomer.toAnalytics(), crossTalkWindows * windowMillis,
+                pairedWindows == 0 ? 0 : (double) silentWindows / pairedWindows);
+    }
+
+    private void matchWindows() {
+        while (fromCustomer.pendingWindows() > 0 && toCustomer.pendingWindows() > 0) {
+            boolean customer = fromCustomer.takeWindow();
+            boolean agent = toCustomer.takeWindow();
+            pairedWindows++;
+            if (customer && agent) {
+                crossTalkWindows++;
+            } else if (!customer && !agent) {
+                silentWindows++;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Picks the DspKernels implementation once per JVM. The vector kernels need the JVM to be started with
+ * --add-modules jdk.incubator.vector and the C2 compiler, since vector operations are only intrinsified by C2 and
+ * are much slower than scalar code under -XX:TieredStopAtLevel=1. The native image always uses the scalar kernels, it
+ * has no C2 to intrinsify them. DSP_KERNELS=scalar forces the scalar kernels.
+ */
+final class DspKernelSelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(DspKernelSelector.class);
+
+    static final DspKernels KERNELS = select();
+
+    private DspKernelSelector() {
+    }
+
+    private static DspKernels select() {
+        DspKernels kernels = new ScalarDspKernels();
+        if (!"scalar".equalsIgnoreCase(System.getenv("DSP_KERNELS"))
+                && System.getProperty("org.graalvm.nativeimage.imagecode") == null
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+                && isC2Enabled()) {
+            try {
+                kernels = (DspKernels) Class.forName("ProcessKvs.audio.VectorDspKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                logger.warn("Vector kernels unavailable, using scalar kernels: " + e);
+            }
+        }
+        logger.info("Using DSP kernels: " + kernels.name());
+        return kernels;
+    }
+
+    private static boolean isC2Enabled() {
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return hotSpot == null || Integer.parseInt(hotSpot.getVMOption("TieredStopAtLevel").getValue()) >= 4;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+}
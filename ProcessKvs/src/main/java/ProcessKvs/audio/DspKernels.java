@@ -0,0 +1,71 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sample kernels used by the audio pipeline.
+ *
+ * PCM is 16 bit signed little-endian. Every kernel reads the given number of samples from the position of its input
+ * buffers, writes them at the position of its output buffers, and advances all positions past what it read and wrote.
+ */
+public interface DspKernels {
+
+    /**
+     * @return the vectorized kernels if the jdk.incubator.vector module is available, the scalar kernels otherwise
+     */
+    static DspKernels get() {
+        return DspKernelSelector.KERNELS;
+    }
+
+    String name();
+
+    /**
+     * Interleaves two mono tracks into a stereo track, left channel first
+     */
+    void interleave(ByteBuffer left, ByteBuffer right, ByteBuffer stereo, int samples);
+
+    /**
+     * Splits a stereo track into two mono tracks
+     *
+     * @param samples number of samples per channel
+     */
+    void deinterleave(ByteBuffer stereo, ByteBuffer left, ByteBuffer right, int samples);
+
+    /**
+     * Converts 16 bit samples between little-endian and big-endian
+     */
+    void byteSwap(ByteBuffer src, ByteBuffer dst, int samples);
+
+    /**
+     * Sums two mono tracks into one, saturating at the 16 bit range
+     */
+    void sumToMono(ByteBuffer left, ByteBuffer right, ByteBuffer mono, int samples);
+
+    /**
+     * Multiplies every sample by gain, clipping at the 16 bit range
+     */
+    void gain(ByteBuffer src, ByteBuffer dst, int samples, float gain);
+
+    /**
+     * Compresses PCM samples to G.711 mu-law bytes
+     */
+    void ulawEncode(ByteBuffer pcm, ByteBuffer ulaw, int samples);
+
+    /**
+     * Expands G.711 mu-law bytes to PCM samples
+     */
+    void ulawDecode(ByteBuffer ulaw, ByteBuffer pcm, int samples);
+}
@@ -0,0 +1,116 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import ProcessKvs.scratch.Workspace;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size direct ByteBuffer chunks shared by the demux, the mixer and the wav output.
+ *
+ * Chunks are allocated off-heap on first use and returned to the pool when their TrackBuffer is closed, so warm
+ * invocations reuse them instead of allocating. The bytes handed out at the same time are bounded by
+ * AUDIO_MEMORY_BUDGET_MB; past that, TrackBuffers continue in a memory-mapped scratch file.
+ */
+public final class FrameBufferArena {
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final long DEFAULT_BUDGET_MB = 64;
+    private static final FrameBufferArena shared = new FrameBufferArena(
+            NumberUtils.toLong(System.getenv("AUDIO_MEMORY_BUDGET_MB"), DEFAULT_BUDGET_MB) * 1024 * 1024);
+
+    private final long budget;
+    private final AtomicLong inUse = new AtomicLong();
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    FrameBufferArena(long budget) {
+        this.budget = budget;
+    }
+
+    public static FrameBufferArena shared() {
+        return shared;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @param bytes estimated bytes
+     * @return true if the given number of bytes currently fits into the remaining budget
+     */
+    public boolean canHold(long bytes) {
+        return bytes >= 0 && inUse.get() + bytes <= budget;
+    }
+
+    /**
+     * Creates an empty track buffer
+     *
+     * @param scratchFile file used once the track spills out of memory, only created if needed
+     * @param spill true to write to the scratch file from the start
+     * @return TrackBuffer
+     */
+    public TrackBuffer newTrack(Path scratchFile, boolean spill) {
+        return new TrackBuffer(this, scratchFile, null, spill);
+    }
+
+    /**
+     * Creates an empty track buffer whose scratch file is reserved in a workspace
+     *
+     * @param workspace workspace of the recording
+     * @param track name of the track, the scratch file is named after it
+     * @param spill true to write to the scratch file from the start
+     * @return TrackBuffer
+     */
+    public TrackBuffer newTrack(Workspace workspace, String track, boolean spill) {
+        return new TrackBuffer(this, workspace.file(track.toLowerCase() + ".pcm"), workspace, spill);
+    }
+
+    /**
+     * @return a cleared chunk, or null if the budget is exhausted
+     */
+    ByteBuffer tryAcquire() {
+        long used;
+        do {
+            used = inUse.get();
+            if (used + CHUNK_SIZE > budget) {
+                return null;
+            }
+        } while (!inUse.compareAndSet(used, used + CHUNK_SIZE));
+
+        ByteBuffer chunk = free.poll();
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+        chunk.clear();
+        return chunk;
+    }
+
+    void release(ByteBuffer chunk) {
+        chunk.clear();
+        free.offer(chunk);
+        inUse.addAndGet(-CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,56 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Renders HLS media playlists
+ */
+final class HlsPlaylist {
+
+    static final String CONTENT_TYPE = "application/vnd.apple.mpegurl";
+
+    private HlsPlaylist() {
+    }
+
+    /**
+     * @param uris segment uris, relative to the playlist
+     * @param durations segment durations in seconds
+     * @param complete true once no segment will be added, which turns the event playlist into a video on demand one
+     * @return playlist text
+     */
+    static String render(List<String> uris, List<Double> durations, boolean complete) {
+        double longest = 0;
+        for (double duration : durations) {
+            longest = Math.max(longest, duration);
+        }
+
+        StringBuilder playlist = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:").append((long) Math.ceil(longest)).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:0\n")
+                .append("#EXT-X-PLAYLIST-TYPE:").append(complete ? "VOD" : "EVENT").append('\n');
+        for (int i = 0; i < uris.size(); i++) {
+            playlist.append(String.format(Locale.ROOT, "#EXTINF:%.3f,", durations.get(i))).append('\n')
+                    .append(uris.get(i)).append('\n');
+        }
+        if (complete) {
+            playlist.append("#EXT-X-ENDLIST\n");
+        }
+        return playlist.toString();
+    }
+}
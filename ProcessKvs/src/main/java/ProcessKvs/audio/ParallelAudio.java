@@ -0,0 +1,173 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Mixes and resamples complete tracks on a ForkJoinPool, for the work left once the whole call audio is read.
+ *
+ * The output track is extended to its final length first, and every chunk of it is a block computed from the input
+ * independently of the other blocks, at an offset known in advance. StereoMixer and PolyphaseResampler write the same
+ * samples for a block as for the whole track, so the output is byte-identical to the sequential one.
+ *
+ * Lambda gives a function up to 6 vCPUs with its memory size. Tracks shorter than PARALLEL_AUDIO_MIN_SECONDS are
+ * processed on the calling thread, where splitting them costs more than it saves.
+ */
+final class ParallelAudio {
+
+    private static final int PARALLEL_AUDIO_THREADS = NumberUtils.toInt(System.getenv("PARALLEL_AUDIO_THREADS"),
+            Runtime.getRuntime().availableProcessors());
+    private static final int PARALLEL_AUDIO_MIN_SECONDS = NumberUtils.toInt(System.getenv("PARALLEL_AUDIO_MIN_SECONDS"), 60);
+
+    private static final ParallelAudio shared = new ParallelAudio(PARALLEL_AUDIO_THREADS,
+            (long) PARALLEL_AUDIO_MIN_SECONDS * AudioUtils.SAMPLE_RATE);
+
+    // null with a single thread
+    private final ForkJoinPool pool;
+    private final long minSamples;
+
+    /**
+     * @param threads parallelism of the pool, 1 to process every track on the calling thread
+     * @param minSamples samples per channel from which a track is processed in parallel
+     */
+    ParallelAudio(int threads, long minSamples) {
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        this.minSamples = minSamples;
+    }
+
+    static ParallelAudio shared() {
+        return shared;
+    }
+
+    int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * @param samples samples per channel of a track
+     * @return true if the track is processed in parallel
+     */
+    boolean isParallel(long samples) {
+        return pool != null && samples >= minSamples;
+    }
+
+    /**
+     * Interleaves two complete mono tracks into an empty stereo track, as StereoMixer.mixTo does for the length of
+     * the longer one
+     *
+     * @throws IOException if an output chunk cannot be mapped
+     */
+    void mix(TrackBuffer left, TrackBuffer right, TrackBuffer output) throws IOException {
+        long samples = Math.max(left.size(), right.size()) / 2;
+        StereoMixer mixer = new StereoMixer(left, right, output);
+        List<ByteBuffer> blocks = output.extend(4 * samples);
+        long[] offsets = offsets(blocks, 4);
+        run(blocks.size(), block -> mixer.mixRange(offsets[block], offsets[block + 1], blocks.get(block)));
+    }
+
+    /**
+     * Converts a complete mono track to another sample rate into an empty track, as PolyphaseResampler does from the
+     * first sample to the last
+     *
+     * @throws IOException if an output chunk cannot be mapped
+     */
+    void resample(TrackBuffer pcm, int inputRate, int outputRate, TrackBuffer output) throws IOException {
+        PolyphaseResampler filter = new PolyphaseResampler(inputRate, outputRate);
+        long inputBytes = pcm.size() & ~1L;
+        List<ByteBuffer> blocks = output.extend(2 * filter.outputLength(inputBytes / 2));
+        long[] offsets = offsets(blocks, 2);
+        run(blocks.size(), block -> {
+            PolyphaseResampler resampler = filter.startingAt(offsets[block]);
+            ByteBuffer out = blocks.get(block);
+            long position = 2 * resampler.nextInputSample();
+            for (ByteBuffer in : pcm.slices(position, inputBytes - position)) {
+                resampler.process(in, out);
+                if (!out.hasRemaining()) {
+                    return;
+                }
+            }
+            // the block ends within the filter delay of the end of the track
+            while (out.hasRemaining() && resampler.flush(out) > 0) {
+                // flush writes as much as out can hold
+            }
+        });
+    }
+
+    /**
+     * @return the first sample of every block, followed by the end of the last block
+     */
+    private static long[] offsets(List<ByteBuffer> blocks, int bytesPerSample) {
+        long[] offsets = new long[blocks.size() + 1];
+        for (int i = 0; i < blocks.size(); i++) {
+            offsets[i + 1] = offsets[i] + blocks.get(i).remaining() / bytesPerSample;
+        }
+        return offsets;
+    }
+
+    private void run(int blocks, BlockTask task) throws IOException {
+        if (pool == null) {
+            for (int block = 0; block < blocks; block++) {
+                task.run(block);
+            }
+            return;
+        }
+        try {
+            pool.invoke(new Blocks(task, 0, blocks));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface BlockTask {
+        void run(int block) throws IOException;
+    }
+
+    /**
+     * Splits a range of blocks in halves down to single blocks
+     */
+    private static final class Blocks extends RecursiveAction {
+
+        private final BlockTask task;
+        private final int from;
+        private final int to;
+
+        Blocks(BlockTask task, int from, int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Blocks(task, from, middle), new Blocks(task, middle, to));
+            } else if (to > from) {
+                try {
+                    task.run(from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for mono 16 bit little-endian PCM, by any rational ratio.
+ *
+ * The rate ratio is reduced to L/M, and a Kaiser windowed sinc low-pass filter is split into L phases, so every
+ * output sample costs one dot product of the taps of its phase with the latest input samples. The filter keeps about
+ * 80 dB of stopband attenuation, its passband ends a little below the lower of the two Nyquist frequencies. Memory
+ * use is the filter table and a ring of recent input samples, independent of the track length.
+ *
+ * The output is aligned with the input, without the filter delay: a track of n samples converts to exactly
+ * ceil(n * L / M) samples once flush has returned 0. Instances are not thread-safe.
+ *
+ * The filter has no feedback, so every output sample depends on taps input samples only. startingAt gives a
+ * resampler that converts a track from any output sample on, with the same samples as a resampler started at the
+ * beginning, which lets blocks of a track be converted in parallel.
+ */
+public final class PolyphaseResampler {
+
+    // filter length in samples of the lower of the two rates
+    static final int DEFAULT_TAPS = 64;
+    private static final int MAX_TAPS = 1024;
+    private static final double STOPBAND_DB = 80;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final float[][] phases;
+    private final float[] ring;
+    private final int mask;
+
+    private long consumed;
+    private long produced;
+    private long inputLength = -1;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        this(inputRate, outputRate, DEFAULT_TAPS);
+    }
+
+    public PolyphaseResampler(int inputRate, int outputRate, int taps) {
+        if (inputRate <= 0 || outputRate <= 0 || taps <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid resampler %d Hz to %d Hz with %d taps", inputRate, outputRate, taps));
+        }
+        int gcd = gcd(inputRate, outputRate);
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+
+        // the filter spans the same duration whichever rate is lower, measured in input samples
+        double ratio = Math.min(1.0, (double) up / down);
+        int inputTaps = (int) Math.ceil(taps / ratio);
+        this.taps = Math.min(MAX_TAPS, inputTaps + (inputTaps & 1));
+        this.phases = designFilter(up, this.taps, ratio);
+        this.ring = new float[Integer.highestOneBit(this.taps) << 1];
+        this.mask = ring.length - 1;
+    }
+
+    private PolyphaseResampler(PolyphaseResampler filter) {
+        this.inputRate = filter.inputRate;
+        this.outputRate = filter.outputRate;
+        this.up = filter.up;
+        this.down = filter.down;
+        this.taps = filter.taps;
+        this.phases = filter.phases;
+        this.ring = new float[filter.ring.length];
+        this.mask = filter.mask;
+    }
+
+    /**
+     * Creates a resampler of the same filter, without designing it again, that writes the output of a track from
+     * the given output sample on. Feed it the input from nextInputSample() on, and flush it at the end of the track.
+     *
+     * @param outputSample first output sample to write
+     * @return new resampler, independent of this one
+     */
+    public PolyphaseResampler startingAt(long outputSample) {
+        PolyphaseResampler resampler = new PolyphaseResampler(this);
+        resampler.produced = outputSample;
+        // the first input sample within the taps of the output sample, the samples before the track are silence
+        resampler.consumed = Math.max(0, Math.floorDiv(outputSample * down, up) - taps / 2 + 1);
+        return resampler;
+    }
+
+    /**
+     * @return index in the track of the next input sample process expects
+     */
+    public long nextInputSample() {
+        return consumed;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * @param inputSamples number of input samples
+     * @return number of output samples the input converts to
+     */
+    public long outputLength(long inputSamples) {
+        return (inputSamples * up + down - 1) / down;
+    }
+
+    /**
+     * Converts input samples while the output has room. Samples are consumed one at a time, so a trailing odd byte
+     * of the input is left in place.
+     *
+     * @param in input PCM, its position is advanced past the consumed samples
+     * @param out output PCM, its position is advanced past the written samples
+     * @return number of output samples written
+     */
+    public int process(ByteBuffer in, ByteBuffer out) {
+        if (inputLength >= 0) {
+            throw new IllegalStateException("Resampler already flushed");
+        }
+        ByteBuffer src = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer dst = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int written = 0;
+        while (true) {
+            written += emitReady(dst);
+            if (dst.remaining() < 2 || src.remaining() < 2) {
+                break;
+            }
+            ring[(int) (consumed++ & mask)] = src.getShort();
+        }
+        in.position(src.position());
+        out.position(dst.position());
+        return written;
+    }
+
+    /**
+     * Writes the output samples still held back by the filter, once the whole input has been processed. Call until
+     * it returns 0.
+     *
+     * @param out output PCM, its position is advanced past the written samples
+     * @return number of output samples written, 0 once the output is complete
+     */
+    public int flush(ByteBuffer out) {
+        if (inputLength < 0) {
+            inputLength = consumed;
+        }
+        long length = outputLength(inputLength);
+        ByteBuffer dst = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int written = 0;
+        while (produced < length && dst.remaining() >= 2) {
+            written += emitReady(dst);
+            if (produced < length && !isReady()) {
+                // the input is over, the filter sees silence after it
+                ring[(int) (consumed++ & mask)] = 0;
+            }
+        }
+        out.position(dst.position());
+        return written;
+    }
+
+    /**
+     * Starts a new track with the same rates
+     */
+    public void reset() {
+        Arrays.fill(ring, 0);
+        consumed = 0;
+        produced = 0;
+        inputLength = -1;
+    }
+
+    private boolean isReady() {
+        // output k is centered on input k * M / L and needs taps / 2 samples after it
+        return consumed > Math.floorDiv(produced * down, up) + taps / 2;
+    }
+
+    private int emitReady(ByteBuffer dst) {
+        int written = 0;
+        while (dst.remaining() >= 2 && isReady() && (inputLength < 0 || produced < outputLength(inputLength))) {
+            long position = produced * down;
+            long first = position / up - taps / 2 + 1;
+            float[] phase = phases[(int) (position % up)];
+            float sum = 0;
+            for (int j = 0; j < taps; j++) {
+                sum += phase[j] * ring[(int) ((first + j) & mask)];
+            }
+            dst.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sum))));
+            produced++;
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Designs the filter table. Phase p holds the taps of the output samples that fall p / L input samples after an
+     * input sample, each phase is normalized to unity gain at DC.
+     */
+    private static float[][] designFilter(int up, int taps, double ratio) {
+        double beta = 0.1102 * (STOPBAND_DB - 8.7);
+        double transition = (STOPBAND_DB - 8) / (2.285 * 2 * Math.PI * taps);
+        double cutoff = 0.5 * ratio - transition / 2;
+        double half = taps / 2.0;
+
+        float[][] phases = new float[up][taps];
+        for (int p = 0; p < up; p++) {
+            double[] h = new double[taps];
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                double t = (double) p / up + half - 1 - j;
+                h[j] = 2 * cutoff * sinc(2 * cutoff * t) * kaiser(t / half, beta);
+                sum += h[j];
+            }
+            for (int j = 0; j < taps; j++) {
+                phases[p][j] = (float) (h[j] / sum);
+            }
+        }
+        return phases;
+    }
+
+    // StrictMath, so the JVM and the native image design the same filter and write the same samples
+    private static double sinc(double x) {
+        return x == 0 ? 1 : StrictMath.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double kaiser(double x, double beta) {
+        return Math.abs(x) >= 1 ? 0 : besselI0(beta * Math.sqrt(1 - x * x)) / besselI0(beta);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1, term = 1;
+        for (int k = 1; term > 1e-12 * sum; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,117 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Request body publishing a mono wav file resampled from PCM buffers. The converted audio is produced chunk by chunk
+ * as the SDK asks for it, and each subscription starts a new resampler from the first buffer, which lets the SDK
+ * retry the request.
+ */
+final class ResampledWavRequestBody implements AsyncRequestBody {
+
+    static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+
+    private final List<ByteBuffer> pcm;
+    private final int inputRate;
+    private final int outputRate;
+    private final long dataLength;
+
+    ResampledWavRequestBody(List<ByteBuffer> pcm, int inputRate, int outputRate) {
+        this.pcm = new ArrayList<>(pcm);
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        long samples = 0;
+        for (ByteBuffer buffer : pcm) {
+            samples += buffer.remaining() / 2;
+        }
+        this.dataLength = 2 * new PolyphaseResampler(inputRate, outputRate).outputLength(samples);
+    }
+
+    @Override
+    public Optional<Long> contentLength() {
+        return Optional.of(AudioUtils.WAV_HEADER_SIZE + dataLength);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Subscription() {
+            private final PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate);
+            private ByteBuffer input;
+            private int index;
+            private boolean headerSent;
+            private boolean converted;
+            private boolean done;
+
+            @Override
+            public synchronized void request(long n) {
+                if (done) {
+                    return;
+                }
+                if (n <= 0) {
+                    done = true;
+                    subscriber.onError(new IllegalArgumentException("Demand must be positive, requested " + n));
+                    return;
+                }
+                try {
+                    while (n-- > 0 && !done) {
+                        ByteBuffer next = next();
+                        if (next.hasRemaining()) {
+                            subscriber.onNext(next);
+                        }
+                        if (converted && !done) {
+                            done = true;
+                            subscriber.onComplete();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    done = true;
+                    subscriber.onError(e);
+                }
+            }
+
+            @Override
+            public synchronized void cancel() {
+                done = true;
+            }
+
+            private ByteBuffer next() {
+                if (!headerSent) {
+                    headerSent = true;
+                    return AudioUtils.wavHeader(dataLength, AudioUtils.CHANNEL_MONO, outputRate);
+                }
+
+                ByteBuffer out = ByteBuffer.allocate(OUTPUT_CHUNK_SIZE);
+                while (out.hasRemaining() && !converted) {
+                    if (input != null && input.remaining() >= 2) {
+                        resampler.process(input, out);
+                    } else if (index < pcm.size()) {
+                        input = pcm.get(index++).duplicate();
+                    } else if (resampler.flush(out) == 0) {
+                        converted = true;
+                    }
+                }
+                return out.flip();
+            }
+        });
+    }
+}
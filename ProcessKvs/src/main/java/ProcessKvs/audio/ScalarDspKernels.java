@@ -0,0 +1,135 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sample by sample DspKernels, used when the Vector API is not available and for the tails of the vector kernels
+ */
+public class ScalarDspKernels implements DspKernels {
+
+    static final int ULAW_BIAS = 0x84;
+    static final int ULAW_CLIP = 32635;
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void interleave(ByteBuffer left, ByteBuffer right, ByteBuffer stereo, int samples) {
+        ByteBuffer l = le(left), r = le(right), out = le(stereo);
+        for (int i = 0; i < samples; i++) {
+            out.putShort(l.getShort());
+            out.putShort(r.getShort());
+        }
+        advance(left, right, stereo, l, r, out);
+    }
+
+    @Override
+    public void deinterleave(ByteBuffer stereo, ByteBuffer left, ByteBuffer right, int samples) {
+        ByteBuffer in = le(stereo), l = le(left), r = le(right);
+        for (int i = 0; i < samples; i++) {
+            l.putShort(in.getShort());
+            r.putShort(in.getShort());
+        }
+        advance(stereo, left, right, in, l, r);
+    }
+
+    @Override
+    public void byteSwap(ByteBuffer src, ByteBuffer dst, int samples) {
+        ByteBuffer in = le(src), out = le(dst);
+        for (int i = 0; i < samples; i++) {
+            out.putShort(Short.reverseBytes(in.getShort()));
+        }
+        advance(src, dst, in, out);
+    }
+
+    @Override
+    public void sumToMono(ByteBuffer left, ByteBuffer right, ByteBuffer mono, int samples) {
+        ByteBuffer l = le(left), r = le(right), out = le(mono);
+        for (int i = 0; i < samples; i++) {
+            out.putShort(clip(l.getShort() + r.getShort()));
+        }
+        advance(left, right, mono, l, r, out);
+    }
+
+    @Override
+    public void gain(ByteBuffer src, ByteBuffer dst, int samples, float gain) {
+        ByteBuffer in = le(src), out = le(dst);
+        for (int i = 0; i < samples; i++) {
+            out.putShort(clip(in.getShort() * gain));
+        }
+        advance(src, dst, in, out);
+    }
+
+    @Override
+    public void ulawEncode(ByteBuffer pcm, ByteBuffer ulaw, int samples) {
+        ByteBuffer in = le(pcm);
+        for (int i = 0; i < samples; i++) {
+            ulaw.put(ulawEncode(in.getShort()));
+        }
+        pcm.position(in.position());
+    }
+
+    @Override
+    public void ulawDecode(ByteBuffer ulaw, ByteBuffer pcm, int samples) {
+        ByteBuffer out = le(pcm);
+        for (int i = 0; i < samples; i++) {
+            out.putShort(ulawDecode(ulaw.get()));
+        }
+        pcm.position(out.position());
+    }
+
+    static byte ulawEncode(short sample) {
+        int sign = (sample >> 8) & 0x80;
+        int magnitude = Math.min(Math.abs((int) sample), ULAW_CLIP) + ULAW_BIAS;
+        int exponent = 31 - Integer.numberOfLeadingZeros(magnitude) - 7;
+        int mantissa = (magnitude >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    static short ulawDecode(byte ulaw) {
+        int u = ~ulaw & 0xFF;
+        int exponent = (u >> 4) & 0x07;
+        int magnitude = ((((u & 0x0F) << 3) + ULAW_BIAS) << exponent) - ULAW_BIAS;
+        return (short) ((u & 0x80) != 0 ? -magnitude : magnitude);
+    }
+
+    // clips, then truncates towards zero like a float to short lane conversion
+    static short clip(float value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    static short clip(int value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    // little-endian view sharing position with the given buffer
+    private static ByteBuffer le(ByteBuffer buffer) {
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void advance(ByteBuffer a, ByteBuffer b, ByteBuffer viewA, ByteBuffer viewB) {
+        a.position(viewA.position());
+        b.position(viewB.position());
+    }
+
+    private static void advance(ByteBuffer a, ByteBuffer b, ByteBuffer c, ByteBuffer viewA, ByteBuffer viewB, ByteBuffer viewC) {
+        advance(a, b, viewA, viewB);
+        c.position(viewC.position());
+    }
+}
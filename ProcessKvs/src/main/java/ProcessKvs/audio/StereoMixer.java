@@ -0,0 +1,98 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interleaves two mono tracks into a stereo track, left channel first, as the tracks grow. The mix can be advanced
+ * while the tracks are still being written, up to the samples both of them already hold.
+ */
+final class StereoMixer {
+
+    private final TrackBuffer left;
+    private final TrackBuffer right;
+    private final TrackBuffer output;
+    private final DspKernels kernels = DspKernels.get();
+    private final ByteBuffer silence = ByteBuffer.allocate(FrameBufferArena.CHUNK_SIZE);
+    private long mixedSamples;
+
+    StereoMixer(TrackBuffer left, TrackBuffer right, TrackBuffer output) {
+        this.left = left;
+        this.right = right;
+        this.output = output;
+    }
+
+    long getMixedSamples() {
+        return mixedSamples;
+    }
+
+    /**
+     * Mixes the samples from the end of the previous mix up to the given sample. A track holding fewer samples is
+     * padded with silence.
+     *
+     * @param samples number of samples per channel the output holds afterwards
+     * @throws IOException if an output chunk cannot be mapped
+     */
+    void mixTo(long samples) throws IOException {
+        mix(mixedSamples, samples, null);
+        mixedSamples = Math.max(mixedSamples, samples);
+    }
+
+    /**
+     * Mixes a range of samples into a buffer instead of the output track. The mixer state is not changed, so ranges
+     * can be mixed concurrently, for example into the views returned by TrackBuffer.extend.
+     *
+     * @param from first sample per channel
+     * @param to end of the range, exclusive
+     * @param out buffer with room for 4 bytes per sample, its position is advanced past the mixed samples
+     */
+    void mixRange(long from, long to, ByteBuffer out) throws IOException {
+        mix(from, to, out);
+    }
+
+    private void mix(long from, long to, ByteBuffer target) throws IOException {
+        long position = 2 * from;
+        long end = 2 * to;
+        long leftEnd = left.size() & ~1L;
+        long rightEnd = right.size() & ~1L;
+
+        // both tracks use the same chunk size, so a range within one chunk is a single view of each track
+        while (position < end) {
+            long count = Math.min(FrameBufferArena.CHUNK_SIZE - position % FrameBufferArena.CHUNK_SIZE, end - position);
+            interleave(view(left, position, Math.min(count, leftEnd - position)),
+                    view(right, position, Math.min(count, rightEnd - position)), count / 2, target);
+            position += count;
+        }
+    }
+
+    /**
+     * @param target buffer to fill, null to append to the output track
+     */
+    private void interleave(ByteBuffer l, ByteBuffer r, long samples, ByteBuffer target) throws IOException {
+        while (samples > 0) {
+            ByteBuffer out = target != null ? target : output.writable();
+            ByteBuffer a = l.remaining() >= 2 ? l : silence.duplicate();
+            ByteBuffer b = r.remaining() >= 2 ? r : silence.duplicate();
+            int count = (int) Math.min(Math.min(samples, out.remaining() / 4), Math.min(a.remaining(), b.remaining()) / 2);
+            kernels.interleave(a, b, out, count);
+            samples -= count;
+        }
+    }
+
+    private ByteBuffer view(TrackBuffer track, long offset, long length) {
+        return length <= 0 ? silence.duplicate().limit(0) : track.slices(offset, length).get(0);
+    }
+}
@@ -0,0 +1,178 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import ProcessKvs.model.TrackAnalytics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Level, clipping and speech activity of one mono track, updated frame by frame in constant memory.
+ *
+ * The track is cut into 20 ms windows. A window whose RMS level reaches the speech threshold counts as talk; this
+ * simple energy detector is enough for talk time and cross-talk on telephone audio, where the noise floor is far
+ * below speech.
+ */
+final class TrackAnalyzer {
+
+    static final int WINDOW_SAMPLES = AudioUtils.SAMPLE_RATE / 50;
+    static final double SILENCE_DBFS = -96.0;
+    private static final int FULL_SCALE = 32767;
+
+    private final long speechWindowSquares;
+    // activity of the windows not yet matched with the other track, null if the track is analyzed alone
+    private final WindowQueue activity;
+
+    private long samples;
+    private long sumSquares;
+    private int peak;
+    private long clipped;
+    private long windows;
+    private long speechWindows;
+
+    private long windowSquares;
+    private int windowFill;
+
+    /**
+     * @param speechDbfs RMS level of a window from which it counts as talk
+     * @param paired true to keep the activity of each window for takeWindow
+     */
+    TrackAnalyzer(double speechDbfs, boolean paired) {
+        double rms = 32768 * Math.pow(10, speechDbfs / 20);
+        this.speechWindowSquares = (long) (rms * rms * WINDOW_SAMPLES);
+        this.activity = paired ? new WindowQueue() : null;
+    }
+
+    /**
+     * Adds the samples between position and limit of a PCM frame, without moving its position
+     */
+    void accept(ByteBuffer pcm) {
+        ByteBuffer le = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = pcm.position() + (pcm.remaining() & ~1);
+        for (int i = pcm.position(); i < end; i += 2) {
+            int sample = le.getShort(i);
+            windowSquares += sample * sample;
+            int level = Math.abs(sample);
+            if (level > peak) {
+                peak = level;
+            }
+            if (level >= FULL_SCALE) {
+                clipped++;
+            }
+            if (++windowFill == WINDOW_SAMPLES) {
+                endWindow(windowSquares >= speechWindowSquares);
+            }
+        }
+    }
+
+    /**
+     * Closes the last, partial window, its level is taken over the samples it holds
+     */
+    void finish() {
+        if (windowFill > 0) {
+            endWindow(windowSquares * WINDOW_SAMPLES / windowFill >= speechWindowSquares);
+        }
+    }
+
+    private void endWindow(boolean speech) {
+        windows++;
+        if (speech) {
+            speechWindows++;
+        }
+        if (activity != null) {
+            activity.add(speech);
+        }
+        samples += windowFill;
+        sumSquares += windowSquares;
+        windowSquares = 0;
+        windowFill = 0;
+    }
+
+    /**
+     * @return windows closed but not taken yet
+     */
+    int pendingWindows() {
+        return activity.size();
+    }
+
+    /**
+     * @return whether the oldest window not taken yet is talk
+     */
+    boolean takeWindow() {
+        return activity.remove();
+    }
+
+    long getWindows() {
+        return windows;
+    }
+
+    long getSpeechWindows() {
+        return speechWindows;
+    }
+
+    TrackAnalytics toAnalytics() {
+        double rms = samples == 0 ? 0 : Math.sqrt((double) sumSquares / samples);
+        return new TrackAnalytics(samples * 1000 / AudioUtils.SAMPLE_RATE, speechWindows * 1000 * WINDOW_SAMPLES / AudioUtils.SAMPLE_RATE,
+                dbfs(rms), dbfs(peak), samples == 0 ? 0 : (double) clipped / samples);
+    }
+
+    static double dbfs(double level) {
+        return level <= 0 ? SILENCE_DBFS : Math.max(SILENCE_DBFS, 20 * Math.log10(level / 32768));
+    }
+
+    /**
+     * FIFO of window activity bits, grows only as far as one track runs ahead of the other
+     */
+    private static final class WindowQueue {
+        private long[] bits = new long[4];
+        private long head;
+        private long tail;
+
+        void add(boolean speech) {
+            if (tail - head == (long) bits.length * 64) {
+                long[] grown = new long[bits.length * 2];
+                for (long i = head; i < tail; i++) {
+                    if (get(bits, i)) {
+                        grown[(int) ((i - head) >>> 6)] |= 1L << (i - head);
+                    }
+                }
+                tail -= head;
+                head = 0;
+                bits = grown;
+            }
+            int word = (int) ((tail >>> 6) % bits.length);
+            if (speech) {
+                bits[word] |= 1L << tail;
+            } else {
+                bits[word] &= ~(1L << tail);
+            }
+            tail++;
+        }
+
+        boolean remove() {
+            boolean speech = get(bits, head);
+            head++;
+            return speech;
+        }
+
+        int size() {
+            return (int) (tail - head);
+        }
+
+        private static boolean get(long[] bits, long index) {
+            return (bits[(int) ((index >>> 6) % bits.length)] & (1L << index)) != 0;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import ProcessKvs.scratch.Workspace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only PCM buffer of one audio track, made of FrameBufferArena.CHUNK_SIZE chunks.
+ *
+ * Chunks come from the arena while its budget allows it, and are mapped from a scratch file afterwards. Every chunk
+ * has the same size, so byte offset n of the track is at chunk n / CHUNK_SIZE. The scratch chunks are reserved in
+ * the workspace of the scratch file before they are mapped, and released once they are unmapped, as a deleted file
+ * keeps its blocks while a mapping of it is alive. Closing the workspace does not release them earlier.
+ */
+public final class TrackBuffer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackBuffer.class);
+
+    // releases the reservation of a scratch chunk when the garbage collector unmaps it
+    private static final Cleaner unmapped = Cleaner.create();
+
+    private final FrameBufferArena arena;
+    private final Path scratchPath;
+    // null if the scratch file is outside of the scratch space
+    private final Workspace workspace;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int pooledChunks;
+    private boolean spilled;
+    private FileChannel scratch;
+    private ByteBuffer current;
+
+    TrackBuffer(FrameBufferArena arena, Path scratchPath, Workspace workspace, boolean spill) {
+        this.arena = arena;
+        this.scratchPath = scratchPath;
+        this.workspace = workspace;
+        this.spilled = spill;
+    }
+
+    /**
+     * Copies the remaining bytes of src to the end of the track and advances the position of src
+     *
+     * @param src
+     * @throws IOException if a scratch chunk cannot be mapped
+     */
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            ByteBuffer dst = writable();
+            int length = Math.min(src.remaining(), dst.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            dst.put(part);
+            src.position(src.position() + length);
+        }
+    }
+
+    /**
+     * Gives direct access to the tail chunk, so producers can put bytes without an intermediate copy. The returned
+     * buffer always has remaining space, and its position is the end of the track.
+     *
+     * @return tail chunk
+     * @throws IOException if a scratch chunk cannot be mapped
+     */
+    public ByteBuffer writable() throws IOException {
+        if (current == null || !current.hasRemaining()) {
+            current = nextChunk();
+        }
+        return current;
+    }
+
+    /**
+     * Appends length bytes to the track without writing them, so several threads can fill ranges of the track at
+     * offsets known in advance. The content of the views is undefined until they are filled.
+     *
+     * @param length number of bytes to append
+     * @return writable views of the appended bytes, in track order, each within one chunk
+     * @throws IOException if a scratch chunk cannot be mapped
+     */
+    public List<ByteBuffer> extend(long length) throws IOException {
+        List<ByteBuffer> views = new ArrayList<>();
+        while (length > 0) {
+            ByteBuffer dst = writable();
+            int count = (int) Math.min(dst.remaining(), length);
+            ByteBuffer view = dst.duplicate();
+            view.limit(view.position() + count);
+            views.add(view.slice());
+            dst.position(dst.position() + count);
+            length -= count;
+        }
+        return views;
+    }
+
+    public long size() {
+        return current == null ? 0 : (long) (chunks.size() - 1) * FrameBufferArena.CHUNK_SIZE + current.position();
+    }
+
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    public int chunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * @param index chunk index
+     * @return read-only view of the bytes written to the chunk
+     */
+    public ByteBuffer chunk(int index) {
+        ByteBuffer view = chunks.get(index).duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return read-only views of all chunks, in track order
+     */
+    public List<ByteBuffer> slices() {
+        List<ByteBuffer> slices = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            slices.add(chunk(i));
+        }
+        return slices;
+    }
+
+    /**
+     * @param offset byte offset in the track
+     * @param length number of bytes
+     * @return read-only views of the byte range, in track order
+     * @throws IndexOutOfBoundsException if the range is not within the written bytes
+     */
+    public List<ByteBuffer> slices(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > size()) {
+            throw new IndexOutOfBoundsException(String.format("Range %d+%d outside of track of %d bytes", offset, length, size()));
+        }
+        List<ByteBuffer> slices = new ArrayList<>();
+        long end = offset + length;
+        while (offset < end) {
+            int start = (int) (offset % FrameBufferArena.CHUNK_SIZE);
+            int count = (int) Math.min(FrameBufferArena.CHUNK_SIZE - start, end - offset);
+            ByteBuffer view = chunks.get((int) (offset / FrameBufferArena.CHUNK_SIZE)).duplicate();
+            view.clear().limit(start + count).position(start);
+            slices.add(view.slice().asReadOnlyBuffer());
+            offset += count;
+        }
+        return slices;
+    }
+
+    /**
+     * Returns the pooled chunks to the arena and removes the scratch file. Mapped chunks are unmapped by the garbage
+     * collector once no view references them, and their bytes stay reserved in the workspace until then.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < pooledChunks; i++) {
+            arena.release(chunks.get(i));
+        }
+        chunks.clear();
+        pooledChunks = 0;
+        current = null;
+
+        if (scratch != null) {
+            try {
+                scratch.close();
+                Files.deleteIfExists(scratchPath);
+            } catch (IOException e) {
+                logger.error("Failed to delete scratch file " + scratchPath, e);
+            }
+            scratch = null;
+        }
+    }
+
+    private ByteBuffer nextChunk() throws IOException {
+        ByteBuffer chunk = spilled ? null : arena.tryAcquire();
+        if (chunk != null) {
+            pooledChunks++;
+        } else {
+            if (!spilled) {
+                logger.info(String.format("Audio memory budget of %d bytes exhausted, spilling to %s", arena.getBudget(), scratchPath));
+                spilled = true;
+            }
+            chunk = mapScratchChunk();
+        }
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    private ByteBuffer mapScratchChunk() throws IOException {
+        if (scratch == null) {
+            scratch = FileChannel.open(scratchPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        long offset = (long) (chunks.size() - pooledChunks) * FrameBufferArena.CHUNK_SIZE;
+        if (workspace == null) {
+            return scratch.map(FileChannel.MapMode.READ_WRITE, offset, FrameBufferArena.CHUNK_SIZE);
+        }
+        workspace.reserveMapped(FrameBufferArena.CHUNK_SIZE);
+        ByteBuffer chunk;
+        try {
+            chunk = scratch.map(FileChannel.MapMode.READ_WRITE, offset, FrameBufferArena.CHUNK_SIZE);
+        } catch (IOException | RuntimeException e) {
+            workspace.releaseMapped(FrameBufferArena.CHUNK_SIZE);
+            throw e;
+        }
+        // views of the chunk reference it, so it is only unreachable once the mapping can be unmapped
+        Workspace reservation = workspace;
+        unmapped.register(chunk, () -> reservation.releaseMapped(FrameBufferArena.CHUNK_SIZE));
+        return chunk;
+    }
+}
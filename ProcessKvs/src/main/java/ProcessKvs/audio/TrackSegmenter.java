@@ -0,0 +1,189 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import ProcessKvs.aws.ByteBuffersRequestBody;
+import ProcessKvs.kvstream.S3UploadInfo;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Uploads a growing track as fixed length wav segments with an HLS playlist, so playback can start before the whole
+ * recording is processed.
+ *
+ * A segment is uploaded as soon as the track holds its samples. The playlist lists the segments uploaded so far as
+ * an event playlist, it is rewritten as segments complete, at most one write at a time, and is turned into a video on
+ * demand playlist once the track is finished. Segments and playlist are written to one folder per track, the
+ * playlist references the segments by relative uri. Methods other than the upload callbacks must be called from the
+ * thread writing the track.
+ */
+final class TrackSegmenter {
+
+    static final String PLAYLIST_NAME = "playlist.m3u8";
+
+    /**
+     * Uploads one object next to the recording files
+     */
+    interface ObjectUploader {
+        CompletableFuture<S3UploadInfo> upload(String fileName, AsyncRequestBody body, String contentType);
+    }
+
+    private final String folder;
+    private final TrackBuffer pcm;
+    private final int channels;
+    private final long segmentBytes;
+    private final ObjectUploader uploader;
+    private final List<CompletableFuture<S3UploadInfo>> segmentUploads = new ArrayList<>();
+    private long segmentedBytes;
+
+    // guarded by this
+    private final List<String> uris = new ArrayList<>();
+    private final List<Double> durations = new ArrayList<>();
+    private final BitSet uploaded = new BitSet();
+    private CompletableFuture<S3UploadInfo> playlistWrites = CompletableFuture.completedFuture(null);
+    private boolean updateQueued;
+    private boolean finalScheduled;
+
+    /**
+     * @param folder folder of the segments and the playlist, relative to the recording files
+     * @param pcm track data
+     * @param channels number of interleaved channels in pcm
+     * @param segmentSeconds segment length
+     * @param uploader
+     */
+    TrackSegmenter(String folder, TrackBuffer pcm, int channels, int segmentSeconds, ObjectUploader uploader) {
+        this.folder = folder;
+        this.pcm = pcm;
+        this.channels = channels;
+        this.segmentBytes = (long) segmentSeconds * AudioUtils.SAMPLE_RATE * frameBytes();
+        this.uploader = uploader;
+    }
+
+    /**
+     * Starts the upload of every segment the track has completed since the last call
+     */
+    void onData() {
+        while (pcm.size() - segmentedBytes >= segmentBytes) {
+            startSegment(segmentBytes);
+        }
+    }
+
+    /**
+     * Uploads the last, shorter segment and writes the final playlist once every segment is uploaded
+     *
+     * @return future completed with the playlist location, or with null if the track is empty
+     */
+    CompletableFuture<S3UploadInfo> finish() {
+        onData();
+        long rest = pcm.size() - segmentedBytes;
+        rest -= rest % frameBytes();
+        if (rest > 0) {
+            startSegment(rest);
+        }
+        if (segmentUploads.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.allOf(segmentUploads.toArray(new CompletableFuture[0])).thenCompose(v -> {
+            synchronized (this) {
+                finalScheduled = true;
+                playlistWrites = playlistWrites.handle((result, e) -> null).thenCompose(ignored -> writePlaylist(true));
+                return playlistWrites;
+            }
+        });
+    }
+
+    /**
+     * @return future completed once every started upload has completed, successfully or not
+     */
+    CompletableFuture<Void> abort() {
+        CompletableFuture<S3UploadInfo> playlist;
+        synchronized (this) {
+            finalScheduled = true;
+            playlist = playlistWrites;
+        }
+        List<CompletableFuture<?>> started = new ArrayList<>(segmentUploads);
+        started.add(playlist);
+        return CompletableFuture.allOf(started.stream()
+                .map(upload -> upload.handle((result, e) -> null))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    private void startSegment(long bytes) {
+        int index;
+        String uri;
+        synchronized (this) {
+            index = uris.size();
+            uri = String.format(Locale.ROOT, "segment_%05d.wav", index);
+            uris.add(uri);
+            durations.add((double) bytes / frameBytes() / AudioUtils.SAMPLE_RATE);
+        }
+
+        List<ByteBuffer> content = new ArrayList<>();
+        content.add(AudioUtils.wavHeader(bytes, channels));
+        content.addAll(pcm.slices(segmentedBytes, bytes));
+        segmentedBytes += bytes;
+
+        // dependents run in reverse order of registration, finish waits for this stage so the final playlist lists
+        // the segment
+        segmentUploads.add(upload(folder + "/" + uri, new ByteBuffersRequestBody(content), "audio/wav").thenApply(info -> {
+            synchronized (this) {
+                uploaded.set(index);
+            }
+            updatePlaylist();
+            return info;
+        }));
+    }
+
+    // coalesces the updates of segments completing while a playlist write is in flight into one write
+    private synchronized void updatePlaylist() {
+        if (updateQueued || finalScheduled) {
+            return;
+        }
+        updateQueued = true;
+        playlistWrites = playlistWrites.handle((result, e) -> null).thenCompose(ignored -> writePlaylist(false));
+    }
+
+    private CompletableFuture<S3UploadInfo> writePlaylist(boolean complete) {
+        String playlist;
+        synchronized (this) {
+            if (!complete) {
+                updateQueued = false;
+            }
+            // segments complete out of order, only the uploaded segments at the start of the track are listed
+            int ready = uploaded.nextClearBit(0);
+            playlist = HlsPlaylist.render(uris.subList(0, ready), durations.subList(0, ready), complete);
+        }
+        return upload(folder + "/" + PLAYLIST_NAME, AsyncRequestBody.fromBytes(playlist.getBytes(StandardCharsets.UTF_8)), HlsPlaylist.CONTENT_TYPE);
+    }
+
+    private CompletableFuture<S3UploadInfo> upload(String fileName, AsyncRequestBody body, String contentType) {
+        try {
+            return uploader.upload(fileName, body, contentType);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private int frameBytes() {
+        return channels * AudioUtils.BITS_PER_SAMPLE / 8;
+    }
+}
@@ -0,0 +1,189 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * DspKernels on the incubating Vector API, producing the same output as ScalarDspKernels.
+ *
+ * Widening kernels load shorts at half the preferred vector size and work on ints or floats of the preferred size,
+ * the mu-law kernels stay in shorts. Samples that do not fill a whole vector are handed to the scalar kernels.
+ * Only loaded by DspKernelSelector once the jdk.incubator.vector module is known to be present.
+ */
+final class VectorDspKernels implements DspKernels {
+
+    private static final ByteOrder LE = ByteOrder.LITTLE_ENDIAN;
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> HALF_SHORTS = VectorSpecies.of(short.class, VectorShape.forBitSize(INTS.vectorBitSize() / 2));
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> HALF_BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(SHORTS.vectorBitSize() / 2));
+
+    private final ScalarDspKernels tail = new ScalarDspKernels();
+
+    @Override
+    public String name() {
+        return "vector-" + INTS.vectorBitSize();
+    }
+
+    @Override
+    public void interleave(ByteBuffer left, ByteBuffer right, ByteBuffer stereo, int samples) {
+        int lanes = INTS.length();
+        int bound = samples - samples % lanes;
+        int l = left.position(), r = right.position(), out = stereo.position();
+        for (int i = 0; i < bound; i += lanes) {
+            IntVector lo = widen(left, l + 2 * i).lanewise(VectorOperators.AND, 0xFFFF);
+            IntVector hi = widen(right, r + 2 * i).lanewise(VectorOperators.LSHL, 16);
+            lo.or(hi).intoByteBuffer(stereo, out + 4 * i, LE);
+        }
+        left.position(l + 2 * bound);
+        right.position(r + 2 * bound);
+        stereo.position(out + 4 * bound);
+        tail.interleave(left, right, stereo, samples - bound);
+    }
+
+    @Override
+    public void deinterleave(ByteBuffer stereo, ByteBuffer left, ByteBuffer right, int samples) {
+        int lanes = INTS.length();
+        int bound = samples - samples % lanes;
+        int in = stereo.position(), l = left.position(), r = right.position();
+        for (int i = 0; i < bound; i += lanes) {
+            IntVector frames = IntVector.fromByteBuffer(INTS, stereo, in + 4 * i, LE);
+            narrow(frames).intoByteBuffer(left, l + 2 * i, LE);
+            narrow(frames.lanewise(VectorOperators.ASHR, 16)).intoByteBuffer(right, r + 2 * i, LE);
+        }
+        stereo.position(in + 4 * bound);
+        left.position(l + 2 * bound);
+        right.position(r + 2 * bound);
+        tail.deinterleave(stereo, left, right, samples - bound);
+    }
+
+    @Override
+    public void byteSwap(ByteBuffer src, ByteBuffer dst, int samples) {
+        int lanes = SHORTS.length();
+        int bound = samples - samples % lanes;
+        int in = src.position(), out = dst.position();
+        for (int i = 0; i < bound; i += lanes) {
+            ShortVector.fromByteBuffer(SHORTS, src, in + 2 * i, LE).intoByteBuffer(dst, out + 2 * i, ByteOrder.BIG_ENDIAN);
+        }
+        src.position(in + 2 * bound);
+        dst.position(out + 2 * bound);
+        tail.byteSwap(src, dst, samples - bound);
+    }
+
+    @Override
+    public void sumToMono(ByteBuffer left, ByteBuffer right, ByteBuffer mono, int samples) {
+        int lanes = INTS.length();
+        int bound = samples - samples % lanes;
+        int l = left.position(), r = right.position(), out = mono.position();
+        for (int i = 0; i < bound; i += lanes) {
+            IntVector sum = widen(left, l + 2 * i).add(widen(right, r + 2 * i))
+                    .max(Short.MIN_VALUE)
+                    .min(Short.MAX_VALUE);
+            narrow(sum).intoByteBuffer(mono, out + 2 * i, LE);
+        }
+        left.position(l + 2 * bound);
+        right.position(r + 2 * bound);
+        mono.position(out + 2 * bound);
+        tail.sumToMono(left, right, mono, samples - bound);
+    }
+
+    @Override
+    public void gain(ByteBuffer src, ByteBuffer dst, int samples, float gain) {
+        int lanes = FLOATS.length();
+        int bound = samples - samples % lanes;
+        int in = src.position(), out = dst.position();
+        for (int i = 0; i < bound; i += lanes) {
+            FloatVector scaled = ((FloatVector) ShortVector.fromByteBuffer(HALF_SHORTS, src, in + 2 * i, LE)
+                    .convertShape(VectorOperators.S2F, FLOATS, 0))
+                    .mul(gain)
+                    .max(Short.MIN_VALUE)
+                    .min(Short.MAX_VALUE);
+            scaled.convertShape(VectorOperators.F2S, HALF_SHORTS, 0).intoByteBuffer(dst, out + 2 * i, LE);
+        }
+        src.position(in + 2 * bound);
+        dst.position(out + 2 * bound);
+        tail.gain(src, dst, samples - bound, gain);
+    }
+
+    @Override
+    public void ulawEncode(ByteBuffer pcm, ByteBuffer ulaw, int samples) {
+        int lanes = SHORTS.length();
+        int bound = samples - samples % lanes;
+        int in = pcm.position(), out = ulaw.position();
+        for (int i = 0; i < bound; i += lanes) {
+            ShortVector sample = ShortVector.fromByteBuffer(SHORTS, pcm, in + 2 * i, LE);
+            ShortVector sign = sample.lanewise(VectorOperators.ASHR, 8).and((short) 0x80);
+            // -32768 is raised to -32767 first so its magnitude fits in a short, both clip to ULAW_CLIP anyway
+            ShortVector magnitude = sample.max((short) -Short.MAX_VALUE).abs()
+                    .min((short) ScalarDspKernels.ULAW_CLIP)
+                    .add((short) ScalarDspKernels.ULAW_BIAS);
+            ShortVector exponent = ShortVector.zero(SHORTS);
+            for (int e = 1; e < 8; e++) {
+                VectorMask<Short> above = magnitude.compare(VectorOperators.GE, (short) (1 << (e + 7)));
+                exponent = exponent.add((short) 1, above);
+            }
+            ShortVector mantissa = magnitude.lanewise(VectorOperators.ASHR, exponent.add((short) 3)).and((short) 0x0F);
+            sign.or(exponent.lanewise(VectorOperators.LSHL, 4)).or(mantissa).not()
+                    .convertShape(VectorOperators.S2B, HALF_BYTES, 0)
+                    .intoByteBuffer(ulaw, out + i, LE);
+        }
+        pcm.position(in + 2 * bound);
+        ulaw.position(out + bound);
+        tail.ulawEncode(pcm, ulaw, samples - bound);
+    }
+
+    @Override
+    public void ulawDecode(ByteBuffer ulaw, ByteBuffer pcm, int samples) {
+        int lanes = SHORTS.length();
+        int bound = samples - samples % lanes;
+        int in = ulaw.position(), out = pcm.position();
+        for (int i = 0; i < bound; i += lanes) {
+            ShortVector u = ((ShortVector) ByteVector.fromByteBuffer(HALF_BYTES, ulaw, in + i, LE)
+                    .convertShape(VectorOperators.B2S, SHORTS, 0))
+                    .not()
+                    .and((short) 0xFF);
+            ShortVector exponent = u.lanewise(VectorOperators.LSHR, 4).and((short) 0x07);
+            ShortVector magnitude = u.and((short) 0x0F).lanewise(VectorOperators.LSHL, 3)
+                    .add((short) ScalarDspKernels.ULAW_BIAS)
+                    .lanewise(VectorOperators.LSHL, exponent)
+                    .sub((short) ScalarDspKernels.ULAW_BIAS);
+            VectorMask<Short> negative = u.and((short) 0x80).compare(VectorOperators.NE, (short) 0);
+            magnitude.lanewise(VectorOperators.NEG, negative).intoByteBuffer(pcm, out + 2 * i, LE);
+        }
+        ulaw.position(in + bound);
+        pcm.position(out + 2 * bound);
+        tail.ulawDecode(ulaw, pcm, samples - bound);
+    }
+
+    private static IntVector widen(ByteBuffer buffer, int offset) {
+        return (IntVector) ShortVector.fromByteBuffer(HALF_SHORTS, buffer, offset, LE).convertShape(VectorOperators.S2I, INTS, 0);
+    }
+
+    private static ShortVector narrow(IntVector vector) {
+        return (ShortVector) vector.convertShape(VectorOperators.I2S, HALF_SHORTS, 0);
+    }
+}
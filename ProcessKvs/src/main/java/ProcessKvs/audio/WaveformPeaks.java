@@ -0,0 +1,200 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.KVSUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Min and max peaks of the tracks of a recording at several zoom levels, collected frame by frame in the write stage,
+ * so the recording player draws the waveform without downloading the wav files and fetches audio only to play it.
+ *
+ * The finest level has one pixel per samplesPerPixel samples, every other level half the pixels of the one before,
+ * down to the first level of at most OVERVIEW_PIXELS pixels. The sidecar holds the levels finest first, each in the
+ * binary format version 2 of audiowaveform, which waveform-data.js and peaks.js read: six 32 bit little-endian
+ * integers (version 2, flags 1 for 8 bit values, sample rate, samples per pixel, length in pixels, channels), then for
+ * every pixel the min and max of each channel as signed bytes. The channels are the customer and the agent, in the
+ * order of the stereo mix, or the one track recorded. A shorter track is padded with silence.
+ */
+final class WaveformPeaks {
+
+    static final String CONTENT_TYPE = "application/octet-stream";
+    static final int HEADER_SIZE = 24;
+    static final int OVERVIEW_PIXELS = 1024;
+    private static final int VERSION = 2;
+    private static final int FLAG_8_BIT = 1;
+
+    private final int samplesPerPixel;
+    private final List<String> tracks = new ArrayList<>();
+    private final List<Channel> channels = new ArrayList<>();
+
+    /**
+     * @param tracks tracks read from the stream, AUDIO_FROM_CUSTOMER and/or AUDIO_TO_CUSTOMER
+     * @param samplesPerPixel samples per pixel of the finest level
+     */
+    WaveformPeaks(Set<String> tracks, int samplesPerPixel) {
+        if (samplesPerPixel <= 0) {
+            throw new IllegalArgumentException("Invalid samples per pixel " + samplesPerPixel);
+        }
+        this.samplesPerPixel = samplesPerPixel;
+        for (String track : new String[]{KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER}) {
+            if (tracks.contains(track)) {
+                this.tracks.add(track);
+                this.channels.add(new Channel());
+            }
+        }
+    }
+
+    int getChannels() {
+        return channels.size();
+    }
+
+    /**
+     * Adds a frame of one track, without moving its position
+     *
+     * @param track AUDIO_FROM_CUSTOMER or AUDIO_TO_CUSTOMER
+     * @param pcm 16 bit little-endian mono samples
+     */
+    void accept(String track, ByteBuffer pcm) {
+        int index = tracks.indexOf(track);
+        if (index >= 0) {
+            channels.get(index).accept(pcm);
+        }
+    }
+
+    /**
+     * @return the sidecar of the frames added so far, the peaks cannot be used afterwards
+     */
+    ByteBuffer finish() {
+        int length = 0;
+        for (Channel channel : channels) {
+            channel.finish();
+            length = Math.max(length, channel.pixels);
+        }
+
+        // pixel i of a level, channel c: min at 2 * (i * channels + c), max right after it
+        byte[] level = new byte[2 * length * channels.size()];
+        for (int c = 0; c < channels.size(); c++) {
+            Channel channel = channels.get(c);
+            for (int i = 0; i < channel.pixels; i++) {
+                level[2 * (i * channels.size() + c)] = channel.peaks[2 * i];
+                level[2 * (i * channels.size() + c) + 1] = channel.peaks[2 * i + 1];
+            }
+        }
+
+        List<byte[]> levels = new ArrayList<>();
+        levels.add(level);
+        while (length > OVERVIEW_PIXELS) {
+            level = halve(level, length);
+            length = (length + 1) / 2;
+            levels.add(level);
+        }
+
+        int size = 0;
+        for (byte[] peaks : levels) {
+            size += HEADER_SIZE + peaks.length;
+        }
+        ByteBuffer sidecar = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        int pixelSamples = samplesPerPixel;
+        for (byte[] peaks : levels) {
+            sidecar.putInt(VERSION)
+                    .putInt(FLAG_8_BIT)
+                    .putInt(AudioUtils.SAMPLE_RATE)
+                    .putInt(pixelSamples)
+                    .putInt(channels.isEmpty() ? 0 : peaks.length / (2 * channels.size()))
+                    .putInt(channels.size())
+                    .put(peaks);
+            pixelSamples *= 2;
+        }
+        return sidecar.flip();
+    }
+
+    /**
+     * Merges every two pixels of a level, an odd last pixel is kept alone
+     */
+    private byte[] halve(byte[] level, int length) {
+        int width = 2 * channels.size();
+        byte[] half = new byte[(length + 1) / 2 * width];
+        for (int i = 0; i < length; i += 2) {
+            for (int j = 0; j < width; j += 2) {
+                byte min = level[i * width + j];
+                byte max = level[i * width + j + 1];
+                if (i + 1 < length) {
+                    min = (byte) Math.min(min, level[(i + 1) * width + j]);
+                    max = (byte) Math.max(max, level[(i + 1) * width + j + 1]);
+                }
+                half[i / 2 * width + j] = min;
+                half[i / 2 * width + j + 1] = max;
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Peaks of one track, as 8 bit min and max pairs per pixel
+     */
+    private final class Channel {
+
+        private byte[] peaks = new byte[1024];
+        private int pixels;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+        private int fill;
+
+        void accept(ByteBuffer pcm) {
+            ByteBuffer le = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int end = pcm.position() + (pcm.remaining() & ~1);
+            for (int i = pcm.position(); i < end; i += 2) {
+                int sample = le.getShort(i);
+                if (sample < min) {
+                    min = sample;
+                }
+                if (sample > max) {
+                    max = sample;
+                }
+                if (++fill == samplesPerPixel) {
+                    endPixel();
+                }
+            }
+        }
+
+        /**
+         * Closes the last, partial pixel
+         */
+        void finish() {
+            if (fill > 0) {
+                endPixel();
+            }
+        }
+
+        private void endPixel() {
+            if (2 * pixels + 2 > peaks.length) {
+                peaks = Arrays.copyOf(peaks, 2 * peaks.length);
+            }
+            // the high byte, so the 8 bit values keep the order of the samples
+            peaks[2 * pixels] = (byte) (min >> 8);
+            peaks[2 * pixels + 1] = (byte) (max >> 8);
+            pixels++;
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            fill = 0;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.aws;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.connect.ConnectAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.kinesisvideo.KinesisVideoAsyncClient;
+import software.amazon.awssdk.services.kinesisvideomedia.KinesisVideoMediaAsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.multipart.MultipartConfiguration;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared AWS SDK v2 clients.
+ *
+ * All clients are asynchronous and run on one Netty event loop, so the function only loads a single HTTP stack and
+ * does not need a thread per in-flight request. Clients are created on first use and reused across warm invocations.
+ */
+public final class AwsClients {
+
+    private static final int HTTP_MAX_CONCURRENCY = NumberUtils.toInt(System.getenv("HTTP_MAX_CONCURRENCY"), 64);
+    private static final long S3_MULTIPART_THRESHOLD = 8L * 1024 * 1024;
+    private static final long S3_MULTIPART_PART_SIZE = 8L * 1024 * 1024;
+
+    private static final Map<String, KinesisVideoMediaAsyncClient> mediaClients = new ConcurrentHashMap<>();
+
+    private AwsClients() {
+    }
+
+    public static Region region() {
+        return Holder.REGION;
+    }
+
+    public static SdkAsyncHttpClient httpClient() {
+        return Holder.HTTP_CLIENT;
+    }
+
+    public static S3AsyncClient s3() {
+        return S3Holder.S3;
+    }
+
+    public static KinesisVideoAsyncClient kinesisVideo() {
+        return KinesisVideoHolder.KINESIS_VIDEO;
+    }
+
+    /**
+     * GetMedia has to be sent to the data endpoint of the stream, so one media client is kept per endpoint
+     *
+     * @param dataEndpoint endpoint returned by GetDataEndpoint
+     * @return KinesisVideoMediaAsyncClient
+     */
+    public static KinesisVideoMediaAsyncClient kinesisVideoMedia(String dataEndpoint) {
+        return mediaClients.computeIfAbsent(dataEndpoint, endpoint -> KinesisVideoMediaAsyncClient.builder()
+                .region(region())
+                .endpointOverride(URI.create(endpoint))
+                .httpClient(httpClient())
+                .build());
+    }
+
+    public static ConnectAsyncClient connect() {
+        return ConnectHolder.CONNECT;
+    }
+
+    public static DynamoDbAsyncClient dynamoDb() {
+        return DynamoDbHolder.DYNAMO_DB;
+    }
+
+    public static SqsAsyncClient sqs() {
+        return SqsHolder.SQS;
+    }
+
+    private static final class Holder {
+        private static final Region REGION = Region.of(System.getenv("REGION"));
+        private static final SdkAsyncHttpClient HTTP_CLIENT = NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(HTTP_MAX_CONCURRENCY)
+                .connectionAcquisitionTimeout(Duration.ofSeconds(60))
+                .build();
+    }
+
+    private static final class S3Holder {
+        private static final S3AsyncClient S3 = S3AsyncClient.builder()
+                .region(region())
+                .httpClient(httpClient())
+                .multipartEnabled(true)
+                .multipartConfiguration(MultipartConfiguration.builder()
+                        .thresholdInBytes(S3_MULTIPART_THRESHOLD)
+                        .minimumPartSizeInBytes(S3_MULTIPART_PART_SIZE)
+                        .build())
+                .build();
+    }
+
+    private static final class KinesisVideoHolder {
+        private static final KinesisVideoAsyncClient KINESIS_VIDEO = KinesisVideoAsyncClient.builder()
+                .region(region())
+                .httpClient(httpClient())
+                .build();
+    }
+
+    private static final class ConnectHolder {
+        // retries are handled by ContactAttributesWriter, which also paces them against the API quota
+        private static final ConnectAsyncClient CONNECT = ConnectAsyncClient.builder()
+                .region(region())
+                .httpClient(httpClient())
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .retryPolicy(RetryPolicy.none())
+                        .build())
+                .build();
+    }
+
+    private static final class DynamoDbHolder {
+        private static final DynamoDbAsyncClient DYNAMO_DB = DynamoDbAsyncClient.builder()
+                .region(region())
+                .httpClient(httpClient())
+                .build();
+    }
+
+    private static final class SqsHolder {
+        private static final SqsAsyncClient SQS = SqsAsyncClient.builder()
+                .region(region())
+                .httpClient(httpClient())
+                .build();
+    }
+}
@@ -0,0 +1,52 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.aws;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Random delays for retry backoff.
+ *
+ * The generator is reseeded after a SnapStart restore. ThreadLocalRandom keeps the seeds it had when the snapshot was
+ * taken, so every environment restored from the same snapshot would retry after the same delays.
+ */
+public final class Jitter {
+
+    private static final Random random = new Random(new SecureRandom().nextLong());
+
+    private Jitter() {
+    }
+
+    /**
+     * @param bound upper bound, exclusive
+     * @return random delay between 0 and bound
+     */
+    public static long nextLong(long bound) {
+        return random.nextLong(bound);
+    }
+
+    /**
+     * @param bound upper bound, exclusive
+     * @return random value between 0 and bound
+     */
+    public static int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+
+    public static void reseed() {
+        random.setSeed(new SecureRandom().nextLong());
+    }
+}
@@ -0,0 +1,88 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.aws;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Client-side token bucket used to stay under AWS API rate quotas.
+ *
+ * Callers reserve a permit and are told how long to wait before using it, instead of blocking, so the wait can be
+ * scheduled without holding a thread. Reservations beyond the burst queue up behind each other.
+ */
+public final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final LongSupplier clock;
+    private final double burst;
+    private double permitsPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double permitsPerSecond, double burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double permitsPerSecond, double burst, LongSupplier clock) {
+        this.clock = clock;
+        this.burst = burst;
+        this.permitsPerNano = permitsPerSecond / NANOS_PER_SECOND;
+        this.tokens = burst;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Takes one permit
+     *
+     * @return nanoseconds to wait before the permit may be used, 0 if it is available now
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / permitsPerNano);
+    }
+
+    /**
+     * Drops the accumulated burst, used when the service reports throttling although the bucket allowed the call
+     */
+    public synchronized void drain() {
+        refill();
+        tokens = Math.min(tokens, 0);
+    }
+
+    /**
+     * Refills the bucket and restarts its clock, used when the JVM is restored from a snapshot and the time of the
+     * last refill was measured before the snapshot
+     */
+    public synchronized void reset() {
+        tokens = burst;
+        lastRefill = clock.getAsLong();
+    }
+
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerNano * NANOS_PER_SECOND;
+    }
+
+    public synchronized void setPermitsPerSecond(double permitsPerSecond) {
+        refill();
+        this.permitsPerNano = permitsPerSecond / NANOS_PER_SECOND;
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+}
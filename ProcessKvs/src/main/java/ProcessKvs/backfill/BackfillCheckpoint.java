@@ -0,0 +1,97 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.backfill;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Progress of a backfill, kept in a local file so an interrupted run can be restarted where it stopped.
+ *
+ * Every finished contact is appended as one line, "DONE contactId" or "FAILED contactId reason", tab separated, and
+ * the line is flushed before the next one. On restart the contacts with a DONE line are skipped and failed contacts
+ * are tried again. A line cut short by a crash never matches a contact id, so that contact is processed again.
+ */
+public final class BackfillCheckpoint implements Closeable {
+
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+
+    private final Set<String> completed = new HashSet<>();
+    private final BufferedWriter writer;
+
+    private BackfillCheckpoint(Set<String> completed, BufferedWriter writer) {
+        this.completed.addAll(completed);
+        this.writer = writer;
+    }
+
+    /**
+     * Loads the contacts completed by earlier runs and opens the file for appending
+     *
+     * @param file checkpoint file, created if it does not exist
+     * @return checkpoint
+     * @throws IOException if the file cannot be read or opened
+     */
+    public static BackfillCheckpoint open(Path file) throws IOException {
+        Set<String> completed = new HashSet<>();
+        if (Files.exists(file)) {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 2 && fields[0].equals(DONE)) {
+                    completed.add(fields[1]);
+                }
+            }
+        }
+        return new BackfillCheckpoint(completed, Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    public synchronized boolean isCompleted(String contactId) {
+        return completed.contains(contactId);
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    public synchronized void markCompleted(String contactId) throws IOException {
+        append(DONE + "\t" + contactId);
+        completed.add(contactId);
+    }
+
+    public synchronized void markFailed(String contactId, String reason) throws IOException {
+        append(FAILED + "\t" + contactId + "\t" + reason.replaceAll("[\t\r\n]+", " "));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private void append(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+    }
+}
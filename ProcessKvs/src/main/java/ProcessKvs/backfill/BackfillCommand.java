@@ -0,0 +1,111 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.backfill;
+
+import ProcessKvs.ProcessKvsLambda;
+import ProcessKvs.kinesis.CtrBatch;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reprocesses historical contact trace records through the same pipeline as the Lambda function.
+ *
+ * <pre>
+ * BackfillCommand [--concurrency N] [--per-stream N] [--checkpoint FILE] LOCATION...
+ * </pre>
+ *
+ * A location is a local file or directory, or an s3://bucket/prefix of a CTR export. The function environment
+ * variables (REGION, RECORDINGS_BUCKET_NAME, ...) have to be set as for the function. Run it again with the same
+ * checkpoint file to resume an interrupted run. The exit status is 1 if a record failed.
+ */
+public final class BackfillCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackfillCommand.class);
+
+    private BackfillCommand() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = 8;
+        int perStreamConcurrency = 2;
+        String checkpointFile = "backfill.checkpoint";
+        List<String> locations = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--per-stream":
+                    perStreamConcurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--checkpoint":
+                    checkpointFile = args[++i];
+                    break;
+                default:
+                    locations.add(args[i]);
+                    break;
+            }
+        }
+        if (locations.isEmpty() || concurrency < 1 || perStreamConcurrency < 1) {
+            System.err.println("Usage: BackfillCommand [--concurrency N] [--per-stream N] [--checkpoint FILE] <file|directory|s3://bucket/prefix>...");
+            System.exit(2);
+        }
+
+        System.exit(run(locations, concurrency, perStreamConcurrency, checkpointFile));
+    }
+
+    private static int run(List<String> locations, int concurrency, int perStreamConcurrency, String checkpointFile) throws Exception {
+        ProcessKvsLambda pipeline = new ProcessKvsLambda();
+        int unreadable = 0;
+
+        try (BackfillCheckpoint checkpoint = BackfillCheckpoint.open(Paths.get(checkpointFile))) {
+            logger.info(String.format("Backfill with concurrency %d, %d per stream, %d contacts completed earlier",
+                    concurrency, perStreamConcurrency, checkpoint.getCompletedCount()));
+            // a contact is checkpointed once its attributes are written, not only queued
+            BackfillRunner runner = new BackfillRunner(ctr -> pipeline.processCTR(ctr) && pipeline.awaitContactAttributes(ctr),
+                    concurrency, perStreamConcurrency, checkpoint);
+
+            for (String location : locations) {
+                for (String file : CtrSource.expand(location)) {
+                    logger.info("Reading " + file);
+                    CtrBatch batch = new CtrBatch();
+                    AtomicInteger records = new AtomicInteger();
+                    try {
+                        CtrSource.read(file, ctr -> batch.add(file + "#" + records.incrementAndGet(), ctr));
+                    } catch (IOException | JSONException e) {
+                        // the records read before the error are still processed
+                        logger.error("Failed to read " + file, e);
+                        unreadable++;
+                    }
+                    runner.submitLatest(batch);
+                }
+            }
+
+            BackfillStats stats = runner.finish();
+            pipeline.flush();
+
+            System.out.println("Backfill finished: " + stats.summary() + (unreadable > 0 ? ", " + unreadable + " unreadable files" : ""));
+            return stats.getFailed() > 0 || unreadable > 0 ? 1 : 0;
+        }
+    }
+}
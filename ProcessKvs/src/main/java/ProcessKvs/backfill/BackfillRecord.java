@@ -0,0 +1,64 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.backfill;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * One contact trace record to reprocess, with the keys the backfill schedules and checkpoints it by
+ */
+public final class BackfillRecord {
+
+    private final String contactId;
+    private final String streamARN;
+    private final JSONObject ctr;
+
+    BackfillRecord(String contactId, String streamARN, JSONObject ctr) {
+        this.contactId = contactId;
+        this.streamARN = streamARN;
+        this.ctr = ctr;
+    }
+
+    /**
+     * @param ctr contact trace record
+     * @return record keyed by its contact id and the KVS stream of its first KVS recording, or by an empty stream if
+     *         it has none
+     */
+    public static BackfillRecord of(JSONObject ctr) {
+        String streamARN = "";
+        JSONArray recordings = ctr.isNull("Recordings") ? null : ctr.getJSONArray("Recordings");
+        for (int i = 0; recordings != null && i < recordings.length(); i++) {
+            JSONObject recording = recordings.getJSONObject(i);
+            if ("KINESIS_VIDEO_STREAM".equals(recording.optString("StorageType")) && !recording.isNull("Location")) {
+                streamARN = recording.getString("Location");
+                break;
+            }
+        }
+        return new BackfillRecord(ctr.getString("ContactId"), streamARN, ctr);
+    }
+
+    public String getContactId() {
+        return contactId;
+    }
+
+    public String getStreamARN() {
+        return streamARN;
+    }
+
+    public JSONObject getCtr() {
+        return ctr;
+    }
+}
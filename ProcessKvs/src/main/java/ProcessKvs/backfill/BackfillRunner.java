@@ -0,0 +1,245 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.backfill;
+
+import ProcessKvs.kinesis.CtrBatch;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs contact trace records through the recording pipeline with a global and a per KVS stream concurrency limit.
+ *
+ * Records wait in one queue per stream, a worker takes the next record of any stream below its limit, so a stream at
+ * its limit does not hold back the records of other streams. Submitting blocks while the queues are full. Contacts
+ * completed in an earlier run are skipped. Of the versions of a contact, only the one with the latest
+ * LastUpdateTimestamp is processed: within a file, see CtrBatch, and across files a newer version replaces a queued
+ * one, waits for a running one to finish, or processes a completed contact again. Older versions are skipped.
+ */
+public final class BackfillRunner {
+
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(BackfillRunner.class);
+
+    /**
+     * Processes one record, see ProcessKvsLambda.processCTR
+     */
+    public interface Processor {
+        boolean process(JSONObject ctr) throws Exception;
+    }
+
+    private final Processor processor;
+    private final int concurrency;
+    private final int perStreamConcurrency;
+    private final int queueCapacity;
+    private final BackfillCheckpoint checkpoint;
+    private final ExecutorService workers;
+    private final BackfillStats stats = new BackfillStats();
+
+    // guarded by this
+    private final Map<String, StreamQueue> streams = new LinkedHashMap<>();
+    // LastUpdateTimestamp of the latest version submitted per contact, null if it has none
+    private final Map<String, Instant> submitted = new HashMap<>();
+    private final Map<String, BackfillRecord> queuedVersions = new HashMap<>();
+    private final Set<String> runningContacts = new HashSet<>();
+    // newer versions of running contacts, queued once the older version finished
+    private final Map<String, BackfillRecord> deferred = new HashMap<>();
+    private int queued;
+    private int running;
+
+    /**
+     * @param processor
+     * @param concurrency records processed at the same time
+     * @param perStreamConcurrency records of one KVS stream processed at the same time
+     * @param checkpoint progress of this and earlier runs
+     */
+    public BackfillRunner(Processor processor, int concurrency, int perStreamConcurrency, BackfillCheckpoint checkpoint) {
+        this.processor = processor;
+        this.concurrency = concurrency;
+        this.perStreamConcurrency = perStreamConcurrency;
+        this.queueCapacity = 4 * concurrency;
+        this.checkpoint = checkpoint;
+        this.workers = Executors.newFixedThreadPool(concurrency);
+    }
+
+    /**
+     * Queues the latest version of each contact of one file. The superseded versions, and records without a
+     * ContactId, count as skipped.
+     *
+     * @param batch records of the file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submitLatest(CtrBatch batch) throws InterruptedException {
+        for (CtrBatch.Latest latest : batch.latest()) {
+            if (latest.getCtr().optString("ContactId", null) == null) {
+                logger.warn("Record without ContactId skipped");
+                stats.skip();
+                continue;
+            }
+            submit(BackfillRecord.of(latest.getCtr()));
+        }
+        for (int i = 0; i < batch.getSuperseded(); i++) {
+            stats.skip();
+        }
+    }
+
+    /**
+     * Queues a record, waiting while the queues are full
+     *
+     * @param record
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void submit(BackfillRecord record) throws InterruptedException {
+        String contactId = record.getContactId();
+        Instant lastUpdate = CtrBatch.lastUpdate(record.getCtr());
+        boolean known = submitted.containsKey(contactId);
+        if ((!known && checkpoint.isCompleted(contactId)) || (known && !isNewer(lastUpdate, submitted.get(contactId)))) {
+            stats.skip();
+            return;
+        }
+        submitted.put(contactId, lastUpdate);
+
+        BackfillRecord older = queuedVersions.remove(contactId);
+        if (older != null) {
+            streams.get(older.getStreamARN()).pending.remove(older);
+            queued--;
+            stats.skip();
+        }
+        if (runningContacts.contains(contactId)) {
+            if (deferred.put(contactId, record) != null) {
+                stats.skip();
+            }
+            return;
+        }
+        while (queued >= queueCapacity) {
+            wait();
+        }
+        enqueue(record);
+        dispatch();
+    }
+
+    /**
+     * Waits for every submitted record and stops the workers
+     *
+     * @return statistics of the run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public BackfillStats finish() throws InterruptedException {
+        synchronized (this) {
+            while (queued > 0 || running > 0) {
+                wait();
+            }
+        }
+        workers.shutdown();
+        stats.finish();
+        return stats;
+    }
+
+    public BackfillStats getStats() {
+        return stats;
+    }
+
+    // guarded by this
+    private void enqueue(BackfillRecord record) {
+        streams.computeIfAbsent(record.getStreamARN(), stream -> new StreamQueue()).pending.add(record);
+        queuedVersions.put(record.getContactId(), record);
+        queued++;
+    }
+
+    private void dispatch() {
+        Iterator<StreamQueue> iterator = streams.values().iterator();
+        while (running < concurrency && iterator.hasNext()) {
+            StreamQueue stream = iterator.next();
+            while (running < concurrency && stream.running < perStreamConcurrency && !stream.pending.isEmpty()) {
+                BackfillRecord record = stream.pending.poll();
+                queuedVersions.remove(record.getContactId());
+                runningContacts.add(record.getContactId());
+                queued--;
+                running++;
+                stream.running++;
+                workers.execute(() -> process(record, stream));
+            }
+            if (stream.running == 0 && stream.pending.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    private void process(BackfillRecord record, StreamQueue stream) {
+        long start = System.nanoTime();
+        boolean success;
+        String reason = "processing failed, see the log";
+        try {
+            success = processor.process(record.getCtr());
+        } catch (Exception e) {
+            logger.error(String.format("Backfill of contactId: %s failed", record.getContactId()), e);
+            success = false;
+            reason = e.toString();
+        }
+        stats.record(System.nanoTime() - start, success);
+
+        try {
+            if (success) {
+                checkpoint.markCompleted(record.getContactId());
+            } else {
+                checkpoint.markFailed(record.getContactId(), reason);
+            }
+        } catch (IOException e) {
+            logger.error(String.format("Checkpoint of contactId: %s failed, it is processed again on restart", record.getContactId()), e);
+        }
+
+        if ((stats.getSucceeded() + stats.getFailed()) % PROGRESS_INTERVAL == 0) {
+            logger.info("Backfill progress: " + stats.summary());
+        }
+
+        synchronized (this) {
+            running--;
+            stream.running--;
+            if (stream.running == 0 && stream.pending.isEmpty()) {
+                streams.remove(record.getStreamARN());
+            }
+            runningContacts.remove(record.getContactId());
+            BackfillRecord newer = deferred.remove(record.getContactId());
+            if (newer != null) {
+                enqueue(newer);
+            }
+            dispatch();
+        }
+    }
+
+    private static boolean isNewer(Instant lastUpdate, Instant submittedUpdate) {
+        return lastUpdate != null && (submittedUpdate == null || lastUpdate.isAfter(submittedUpdate));
+    }
+
+    private static final class StreamQueue {
+        private final Queue<BackfillRecord> pending = new ArrayDeque<>();
+        private int running;
+    }
+}
@@ -0,0 +1,94 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.backfill;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of a backfill run
+ */
+public final class BackfillStats {
+
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private int succeeded;
+    private int failed;
+    private int skipped;
+    private long[] latencyMillis = new long[1024];
+
+    synchronized void record(long latencyNanos, boolean success) {
+        if (success) {
+            succeeded++;
+        } else {
+            failed++;
+        }
+        int processed = succeeded + failed;
+        if (processed > latencyMillis.length) {
+            latencyMillis = Arrays.copyOf(latencyMillis, latencyMillis.length * 2);
+        }
+        latencyMillis[processed - 1] = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+    }
+
+    synchronized void skip() {
+        skipped++;
+    }
+
+    synchronized void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    public synchronized int getSucceeded() {
+        return succeeded;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return records processed per second since the start of the run
+     */
+    public synchronized double getThroughput() {
+        long elapsedNanos = (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+        return elapsedNanos <= 0 ? 0 : (succeeded + failed) * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return processing latency of the given percentile in milliseconds, nearest rank, or 0 if nothing was processed
+     */
+    public synchronized long getLatencyMillis(double percentile) {
+        int processed = succeeded + failed;
+        if (processed == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencyMillis, processed);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * processed);
+        return sorted[Math.max(0, Math.min(processed, rank) - 1)];
+    }
+
+    public synchronized String summary() {
+        long elapsedNanos = (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+        return String.format("%d succeeded, %d failed, %d skipped in %d s, %.2f records/s, latency p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+                succeeded, failed, skipped, TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), getThroughput(),
+                getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(100));
+    }
+}
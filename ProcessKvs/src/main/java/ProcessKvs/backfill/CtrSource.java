@@ -0,0 +1,141 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.backfill;
+
+import ProcessKvs.aws.AwsClients;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads contact trace records from local files or from an S3 export, such as the objects a Kinesis Data Firehose
+ * delivery stream writes from the CTR stream.
+ *
+ * A file holds JSON objects one after the other, separated by newlines or not separated at all as Firehose writes
+ * them. Files ending in .gz are decompressed.
+ */
+public final class CtrSource {
+
+    static final String S3_SCHEME = "s3://";
+
+    /**
+     * Receives the records of a file in file order
+     */
+    public interface CtrConsumer {
+        void accept(JSONObject ctr) throws InterruptedException;
+    }
+
+    private CtrSource() {
+    }
+
+    /**
+     * Expands an input location to the files to read, in name order
+     *
+     * @param location local file, local directory, or s3://bucket/prefix
+     * @return the file itself, the regular files below the directory, or the objects under the prefix
+     * @throws IOException if the directory cannot be listed
+     */
+    public static List<String> expand(String location) throws IOException {
+        if (location.startsWith(S3_SCHEME)) {
+            return listObjects(location);
+        }
+        Path path = Paths.get(location);
+        if (!Files.isDirectory(path)) {
+            return List.of(location);
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).map(Path::toString).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reads every record of one file
+     *
+     * @param location local file or s3://bucket/key
+     * @param consumer
+     * @throws IOException if the file cannot be read
+     * @throws org.json.JSONException if the file holds something other than JSON objects, the records before it
+     *                                have been passed to the consumer
+     */
+    public static void read(String location, CtrConsumer consumer) throws IOException, InterruptedException {
+        try (InputStream in = open(location)) {
+            InputStream content = location.endsWith(".gz") ? new GZIPInputStream(in) : new BufferedInputStream(in);
+            readRecords(new InputStreamReader(content, StandardCharsets.UTF_8), consumer);
+        }
+    }
+
+    static void readRecords(Reader reader, CtrConsumer consumer) throws InterruptedException {
+        JSONTokener tokener = new JSONTokener(reader);
+        while (tokener.nextClean() != 0) {
+            tokener.back();
+            consumer.accept(new JSONObject(tokener));
+        }
+    }
+
+    private static InputStream open(String location) throws IOException {
+        if (!location.startsWith(S3_SCHEME)) {
+            return Files.newInputStream(Paths.get(location));
+        }
+        String[] bucketAndKey = splitS3Location(location);
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucketAndKey[0]).key(bucketAndKey[1]).build();
+        return AwsClients.s3().getObject(request, AsyncResponseTransformer.toBlockingInputStream()).join();
+    }
+
+    private static List<String> listObjects(String location) {
+        String[] bucketAndPrefix = splitS3Location(location);
+        List<String> keys = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            ListObjectsV2Response response = AwsClients.s3().listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(bucketAndPrefix[0])
+                    .prefix(bucketAndPrefix[1])
+                    .continuationToken(continuationToken)
+                    .build()).join();
+            for (S3Object object : response.contents()) {
+                if (!object.key().endsWith("/")) {
+                    keys.add(S3_SCHEME + bucketAndPrefix[0] + "/" + object.key());
+                }
+            }
+            continuationToken = response.nextContinuationToken();
+        } while (continuationToken != null);
+        // listed in key order, which is delivery time order for Firehose exports
+        return keys;
+    }
+
+    static String[] splitS3Location(String location) {
+        String path = location.substring(S3_SCHEME.length());
+        int slash = path.indexOf('/');
+        return slash < 0 ? new String[]{path, ""} : new String[]{path.substring(0, slash), path.substring(slash + 1)};
+    }
+}
@@ -0,0 +1,363 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.connect;
+
+import ProcessKvs.aws.Jitter;
+import ProcessKvs.aws.TokenBucket;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.connect.ConnectAsyncClient;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes contact attributes to Amazon Connect in the background while recordings are being processed.
+ *
+ * Updates for the same instance and initial contact are merged within an invocation, so a contact is updated once
+ * even if several CTRs of the batch reference it, and a later update always carries everything written before it.
+ * Between two flushes, as in a backfill that flushes once at the end, the merged attributes are kept for the last
+ * MAX_WRITTEN_CONTACTS contacts.
+ * Calls go through a token bucket sized to the UpdateContactAttributes quota, and throttled or failed calls are
+ * retried with jittered exponential backoff.
+ */
+public class ContactAttributesWriter {
+
+    private static final double CONNECT_UPDATE_TPS = NumberUtils.toDouble(System.getenv("CONNECT_UPDATE_TPS"), 10);
+    private static final long CONNECT_UPDATE_LINGER_MS = NumberUtils.toLong(System.getenv("CONNECT_UPDATE_LINGER_MS"), 500);
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long BASE_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final String SEPARATOR = ", ";
+    // contacts whose merged attributes are kept until the next flush, the least recently updated are dropped first
+    static final int MAX_WRITTEN_CONTACTS = 10_000;
+
+    private static final Logger logger = LoggerFactory.getLogger(ContactAttributesWriter.class);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "connect-attributes-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConnectAsyncClient connect;
+    private final TokenBucket tokenBucket;
+    private final long lingerMillis;
+
+    // guarded by this
+    private final Map<String, PendingUpdate> pending = new HashMap<>();
+    private final Map<String, Map<String, String>> written = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+            return size() > MAX_WRITTEN_CONTACTS && forget(eldest.getKey());
+        }
+    };
+    private final Map<String, CompletableFuture<Void>> lastUpdate = new HashMap<>();
+    private final List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+    // updates that completed before the next flush, counted when they are removed from inFlight
+    private int completedUpdates;
+    private int failedUpdates;
+
+    public ContactAttributesWriter(ConnectAsyncClient connect) {
+        this(connect, new TokenBucket(CONNECT_UPDATE_TPS, CONNECT_UPDATE_TPS), CONNECT_UPDATE_LINGER_MS);
+    }
+
+    public ContactAttributesWriter(ConnectAsyncClient connect, TokenBucket tokenBucket, long lingerMillis) {
+        this.connect = connect;
+        this.tokenBucket = tokenBucket;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Queues an attribute update. The update is sent after a short linger, during which further updates for the same
+     * contact are merged into it.
+     *
+     * @param instanceId Connect instance id
+     * @param initialContactId initial contact id
+     * @param attributes attributes to set, empty values do not overwrite values written earlier in this invocation
+     * @return future completed once the merged update containing these attributes has been written
+     */
+    public CompletableFuture<Void> submit(String instanceId, String initialContactId, Map<String, String> attributes) {
+        return submit(instanceId, initialContactId, attributes, Collections.emptyMap());
+    }
+
+    /**
+     * Queues an attribute update with values that are kept once per recording, such as the call analytics.
+     *
+     * @param instanceId Connect instance id
+     * @param initialContactId initial contact id
+     * @param attributes attributes to set, empty values do not overwrite values written earlier in this invocation
+     * @param recordingValues comma-joined values with one entry per recording, appended to the values written earlier
+     *                        in this invocation even if an entry repeats an earlier one
+     * @return future completed once the merged update containing these attributes has been written
+     */
+    public synchronized CompletableFuture<Void> submit(String instanceId, String initialContactId, Map<String, String> attributes,
+                                                       Map<String, String> recordingValues) {
+        String key = instanceId + "/" + initialContactId;
+        Map<String, String> merged = written.computeIfAbsent(key, k -> new HashMap<>());
+        mergeAttributes(merged, attributes, recordingValues);
+
+        PendingUpdate update = pending.get(key);
+        if (update != null) {
+            update.attributes = new HashMap<>(merged);
+            return update.future;
+        }
+
+        update = new PendingUpdate(key, instanceId, initialContactId, new HashMap<>(merged));
+        pending.put(key, update);
+        // a backfill flushes once at the end, so completed updates are not kept until then
+        inFlight.removeIf(this::countCompleted);
+        inFlight.add(update.future);
+
+        PendingUpdate scheduled = update;
+        scheduler.schedule(() -> dispatch(scheduled), lingerMillis, TimeUnit.MILLISECONDS);
+        return update.future;
+    }
+
+    /**
+     * Sends the queued update of a contact without waiting for the linger
+     *
+     * @param instanceId Connect instance id
+     * @param initialContactId initial contact id
+     * @return future completed once everything submitted for the contact so far has been written, failed if the last
+     *         update of the contact failed
+     */
+    public CompletableFuture<Void> send(String instanceId, String initialContactId) {
+        String key = instanceId + "/" + initialContactId;
+        PendingUpdate queued;
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            queued = pending.get(key);
+            last = lastUpdate.getOrDefault(key, CompletableFuture.completedFuture(null));
+        }
+        if (queued == null) {
+            // every update carries the attributes of the updates before it
+            return last;
+        }
+        dispatch(queued);
+        return queued.future;
+    }
+
+    /**
+     * Sends every queued update without waiting for the linger, and waits until all updates of this invocation are
+     * written or have failed. Must be called before the handler returns, as the environment is frozen afterwards.
+     *
+     * @return number of updates that failed
+     */
+    public int flush() {
+        List<PendingUpdate> queued;
+        List<CompletableFuture<Void>> waiting;
+        synchronized (this) {
+            queued = new ArrayList<>(pending.values());
+            waiting = new ArrayList<>(inFlight);
+        }
+
+        queued.forEach(this::dispatch);
+
+        for (CompletableFuture<Void> update : waiting) {
+            try {
+                update.join();
+            } catch (CompletionException e) {
+                // counted below
+            }
+        }
+
+        int failed;
+        int completed;
+        synchronized (this) {
+            inFlight.removeIf(this::countCompleted);
+            failed = failedUpdates;
+            completed = completedUpdates;
+            failedUpdates = 0;
+            completedUpdates = 0;
+            if (inFlight.isEmpty()) {
+                written.clear();
+                lastUpdate.clear();
+            }
+        }
+
+        if (failed > 0) {
+            logger.error(String.format("%d of %d contact attribute updates failed", failed, completed));
+        }
+        return failed;
+    }
+
+    /**
+     * @return number of contacts whose merged attributes are kept
+     */
+    synchronized int getWrittenContacts() {
+        return written.size();
+    }
+
+    // guarded by this
+    private boolean countCompleted(CompletableFuture<Void> update) {
+        if (!update.isDone()) {
+            return false;
+        }
+        completedUpdates++;
+        if (update.isCompletedExceptionally()) {
+            failedUpdates++;
+        }
+        return true;
+    }
+
+    // guarded by this, a contact with an update still queued or being sent is kept
+    private boolean forget(String key) {
+        CompletableFuture<Void> last = lastUpdate.get(key);
+        if (pending.containsKey(key) || (last != null && !last.isDone())) {
+            return false;
+        }
+        lastUpdate.remove(key);
+        return true;
+    }
+
+    /**
+     * Refills the rate limit, after a SnapStart restore the time measured before the snapshot no longer applies
+     */
+    public void resetRateLimit() {
+        tokenBucket.reset();
+    }
+
+    private void dispatch(PendingUpdate update) {
+        CompletableFuture<Void> previous;
+        synchronized (this) {
+            if (!pending.remove(update.key, update)) {
+                // already dispatched by flush or by the linger timer
+                return;
+            }
+            previous = lastUpdate.getOrDefault(update.key, CompletableFuture.completedFuture(null));
+            lastUpdate.put(update.key, update.future);
+        }
+
+        // updates of the same contact are applied in order, so an older update cannot overwrite a newer one
+        previous.handle((result, e) -> null).thenRun(() -> send(update, 1));
+    }
+
+    private void send(PendingUpdate update, int attempt) {
+        long waitNanos = tokenBucket.reserve();
+        if (waitNanos > 0) {
+            scheduler.schedule(() -> call(update, attempt), waitNanos, TimeUnit.NANOSECONDS);
+        } else {
+            call(update, attempt);
+        }
+    }
+
+    private void call(PendingUpdate update, int attempt) {
+        logger.info(String.format("Instance ID: %s, Initial Contact ID: %s, attempt: %d", update.instanceId, update.initialContactId, attempt));
+
+        UpdateContactAttributesRequest request = UpdateContactAttributesRequest.builder()
+                .attributes(update.attributes)
+                .initialContactId(update.initialContactId)
+                .instanceId(update.instanceId)
+                .build();
+
+        CompletableFuture<?> response;
+        try {
+            response = connect.updateContactAttributes(request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+
+        response.whenComplete((result, e) -> {
+            if (e == null) {
+                update.future.complete(null);
+                return;
+            }
+
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (isThrottling(cause)) {
+                tokenBucket.drain();
+            }
+            if (attempt < MAX_ATTEMPTS && isRetryable(cause)) {
+                long backoff = Jitter.nextLong(Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << (attempt - 1)) + 1);
+                logger.warn(String.format("Updating contact attributes of %s failed with %s, retrying in %d ms", update.initialContactId, cause, backoff));
+                scheduler.schedule(() -> send(update, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+            } else {
+                logger.error(String.format("Error updating contact attributes of %s after %d attempts", update.initialContactId, attempt), cause);
+                update.future.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private static boolean isThrottling(Throwable e) {
+        return e instanceof AwsServiceException
+                && (((AwsServiceException) e).isThrottlingException() || ((AwsServiceException) e).statusCode() == 429);
+    }
+
+    private static boolean isRetryable(Throwable e) {
+        if (e instanceof SdkClientException) {
+            return true;
+        }
+        return isThrottling(e) || (e instanceof AwsServiceException && ((AwsServiceException) e).statusCode() >= 500);
+    }
+
+    /**
+     * Merges attributes into target. Comma-joined url lists are combined without repeating a url, values of recordings
+     * are appended in order so they stay aligned with the urls, and empty values only fill missing keys.
+     *
+     * @param target attributes written so far
+     * @param attributes new attributes
+     * @param recordingValues new values with one entry per recording
+     */
+    static void mergeAttributes(Map<String, String> target, Map<String, String> attributes, Map<String, String> recordingValues) {
+        attributes.forEach((name, value) -> merge(target, name, value, true));
+        recordingValues.forEach((name, value) -> merge(target, name, value, false));
+    }
+
+    private static void merge(Map<String, String> target, String name, String value, boolean distinct) {
+        String existing = target.get(name);
+        if (value == null || value.isEmpty()) {
+            target.putIfAbsent(name, "");
+        } else if (existing == null || existing.isEmpty()) {
+            target.put(name, value);
+        } else {
+            List<String> values = new ArrayList<>(Arrays.asList(existing.split(SEPARATOR)));
+            for (String item : value.split(SEPARATOR)) {
+                if (!distinct || !values.contains(item)) {
+                    values.add(item);
+                }
+            }
+            target.put(name, String.join(SEPARATOR, values));
+        }
+    }
+
+    private static final class PendingUpdate {
+        private final String key;
+        private final String instanceId;
+        private final String initialContactId;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private volatile Map<String, String> attributes;
+
+        private PendingUpdate(String key, String instanceId, String initialContactId, Map<String, String> attributes) {
+            this.key = key;
+            this.instanceId = instanceId;
+            this.initialContactId = initialContactId;
+            this.attributes = attributes;
+        }
+    }
+}
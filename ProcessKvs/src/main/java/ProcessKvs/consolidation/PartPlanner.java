@@ -0,0 +1,224 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.consolidation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the content of a consolidated object into the parts of a multipart upload.
+ *
+ * Ranges of existing objects become UploadPartCopy parts, so their bytes stay in S3. S3 requires every part but the
+ * last to be at least 5 MiB, and a copied part cannot be combined with other bytes. Generated bytes, such as the wav
+ * header and silence, and ranges too short to be a part of their own, are therefore collected into uploaded parts,
+ * topped up from the start of the next range where it is long enough to stay a copied part.
+ */
+final class PartPlanner {
+
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    private PartPlanner() {
+    }
+
+    /**
+     * @param pieces content of the object in order
+     * @param minPartSize smallest size of a part that is not the last one
+     * @return parts in order, their lengths add up to the lengths of the pieces
+     */
+    static List<Part> plan(List<Piece> pieces, long minPartSize) {
+        List<Part> parts = new ArrayList<>();
+        List<Piece> pending = new ArrayList<>();
+        long pendingBytes = 0;
+
+        for (int i = 0; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            boolean last = i == pieces.size() - 1;
+            if (piece.getLength() == 0) {
+                continue;
+            }
+            if (!piece.isCopy()) {
+                pending.add(piece);
+                pendingBytes += piece.getLength();
+                continue;
+            }
+
+            Piece rest = piece;
+            if (pendingBytes > 0 && pendingBytes < minPartSize) {
+                long take = minPartSize - pendingBytes;
+                if (rest.getLength() - take >= minPartSize || (last && rest.getLength() > take)) {
+                    pending.add(rest.slice(0, take));
+                    rest = rest.slice(take, rest.getLength() - take);
+                } else {
+                    // too short to split, read all of it
+                    pending.add(rest);
+                    pendingBytes += rest.getLength();
+                    continue;
+                }
+            }
+            if (!pending.isEmpty()) {
+                parts.add(Part.upload(pending));
+                pending = new ArrayList<>();
+                pendingBytes = 0;
+            }
+
+            if (rest.getLength() >= minPartSize || last) {
+                parts.add(Part.copy(rest));
+            } else {
+                pending.add(rest);
+                pendingBytes = rest.getLength();
+            }
+        }
+        if (!pending.isEmpty()) {
+            parts.add(Part.upload(pending));
+        }
+        return parts;
+    }
+
+    /**
+     * Bytes of the consolidated object: generated bytes, silence or a range of an existing object
+     */
+    static final class Piece {
+        private final ByteBuffer bytes;
+        private final String bucketName;
+        private final String objectKey;
+        private final long offset;
+        private final long length;
+
+        private Piece(ByteBuffer bytes, String bucketName, String objectKey, long offset, long length) {
+            this.bytes = bytes;
+            this.bucketName = bucketName;
+            this.objectKey = objectKey;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Piece bytes(ByteBuffer bytes) {
+            return new Piece(bytes.asReadOnlyBuffer(), null, null, 0, bytes.remaining());
+        }
+
+        static Piece silence(long length) {
+            return new Piece(null, null, null, 0, length);
+        }
+
+        static Piece copy(String bucketName, String objectKey, long offset, long length) {
+            return new Piece(null, bucketName, objectKey, offset, length);
+        }
+
+        boolean isCopy() {
+            return objectKey != null;
+        }
+
+        boolean isSilence() {
+            return bytes == null && objectKey == null;
+        }
+
+        /**
+         * @return generated bytes, null for silence and copied ranges
+         */
+        ByteBuffer getBytes() {
+            return bytes == null ? null : bytes.duplicate();
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        String getObjectKey() {
+            return objectKey;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * @return HTTP range of a copied piece, as used by GetObject and UploadPartCopy
+         */
+        String range() {
+            return "bytes=" + offset + "-" + (offset + length - 1);
+        }
+
+        Piece slice(long from, long sliceLength) {
+            if (bytes != null) {
+                ByteBuffer slice = bytes.duplicate();
+                slice.position(slice.position() + (int) from).limit(slice.position() + (int) sliceLength);
+                return bytes(slice);
+            }
+            return new Piece(null, bucketName, objectKey, offset + from, sliceLength);
+        }
+
+        @Override
+        public String toString() {
+            return isCopy() ? objectKey + "[" + range() + "]" : (isSilence() ? "silence" : "bytes") + "[" + length + "]";
+        }
+    }
+
+    /**
+     * One part of the multipart upload, either a copied range or uploaded pieces
+     */
+    static final class Part {
+        private final Piece copy;
+        private final List<Piece> pieces;
+
+        private Part(Piece copy, List<Piece> pieces) {
+            this.copy = copy;
+            this.pieces = pieces;
+        }
+
+        static Part copy(Piece piece) {
+            return new Part(piece, Collections.singletonList(piece));
+        }
+
+        static Part upload(List<Piece> pieces) {
+            return new Part(null, Collections.unmodifiableList(new ArrayList<>(pieces)));
+        }
+
+        boolean isCopy() {
+            return copy != null;
+        }
+
+        /**
+         * @return the copied range of a copy part
+         */
+        Piece getCopy() {
+            return copy;
+        }
+
+        /**
+         * @return content of the part in order, a single piece for a copy part
+         */
+        List<Piece> getPieces() {
+            return pieces;
+        }
+
+        long getLength() {
+            long length = 0;
+            for (Piece piece : pieces) {
+                length += piece.getLength();
+            }
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return (isCopy() ? "copy" : "upload") + pieces;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.consolidation;
+
+import ProcessKvs.audio.AudioUtils;
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.ByteBuffersRequestBody;
+import ProcessKvs.kvstream.KVSUtils;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.model.RecordedObject;
+import ProcessKvs.model.RecordingData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Joins the wav files of the recordings of one contact into one wav file per track, in S3.
+ *
+ * The audio of the recordings is copied with UploadPartCopy, so it is not downloaded again. The header is written for
+ * the joined length, and the time between two recordings is filled with silence, so the tracks stay aligned with the
+ * contact timeline. Only the bytes needed to fill parts up to the 5 MiB minimum are read, see PartPlanner.
+ */
+public class RecordingConsolidator {
+
+    private static final boolean RECORDINGS_PUBLIC_READ_ACL = Boolean.parseBoolean(System.getenv("RECORDINGS_PUBLIC_READ_ACL"));
+    private static final String AUDIO_MIXED = "AUDIO_MIXED";
+    private static final String[] TRACKS = {KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER, AUDIO_MIXED};
+    // a longer gap is most likely a clock difference, not a pause of the contact
+    private static final long MAX_GAP_MILLIS = 5 * 60 * 1000;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(64 * 1024).asReadOnlyBuffer();
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingConsolidator.class);
+
+    private final S3AsyncClient s3;
+    private final boolean publicReadAcl;
+    private final long minPartSize;
+
+    public RecordingConsolidator(S3AsyncClient s3) {
+        this(s3, RECORDINGS_PUBLIC_READ_ACL, PartPlanner.MIN_PART_SIZE);
+    }
+
+    RecordingConsolidator(S3AsyncClient s3, boolean publicReadAcl, long minPartSize) {
+        this.s3 = s3;
+        this.publicReadAcl = publicReadAcl;
+        this.minPartSize = minPartSize;
+    }
+
+    /**
+     * Starts joining the tracks of the recordings of a contact. A track is joined if at least two recordings have it,
+     * next to their files as contactId_track.wav.
+     *
+     * @param contactId
+     * @param recordings processed recordings of the contact, with their uploaded objects
+     * @return future completed with the joined object per track, without the tracks that were not joined or failed
+     */
+    public CompletableFuture<Map<String, S3UploadInfo>> consolidate(String contactId, List<RecordingData> recordings) {
+        Map<String, CompletableFuture<S3UploadInfo>> uploads = new LinkedHashMap<>();
+        for (String track : TRACKS) {
+            List<Segment> segments = segments(recordings, track);
+            if (segments.size() < 2) {
+                continue;
+            }
+            RecordedObject first = segments.get(0).object;
+            String objectKey = first.getObjectKey().substring(0, first.getObjectKey().lastIndexOf('/') + 1)
+                    + contactId + "_" + track.toLowerCase() + ".wav";
+            uploads.put(track, upload(first.getBucketName(), objectKey, contactId, pieces(segments))
+                    .whenComplete((uploadInfo, e) -> {
+                        if (e != null) {
+                            logger.error(String.format("Consolidation of %s failed for contactId: %s", track, contactId), e);
+                        }
+                    }));
+        }
+
+        return CompletableFuture.allOf(uploads.values().stream()
+                        .map(upload -> upload.handle((uploadInfo, e) -> null))
+                        .toArray(CompletableFuture[]::new))
+                .thenApply(done -> {
+                    Map<String, S3UploadInfo> consolidated = new LinkedHashMap<>();
+                    uploads.forEach((track, upload) -> {
+                        if (!upload.isCompletedExceptionally()) {
+                            consolidated.put(track, upload.join());
+                        }
+                    });
+                    return consolidated;
+                });
+    }
+
+    /**
+     * @return wav objects of the track in the order of the recording start, empty if their formats differ
+     */
+    static List<Segment> segments(List<RecordingData> recordings, String track) {
+        List<Segment> segments = new ArrayList<>();
+        for (RecordingData recording : recordings) {
+            if (recording.getObjects() == null) {
+                continue;
+            }
+            for (RecordedObject object : recording.getObjects()) {
+                if (object.getTrack().equals(track)) {
+                    segments.add(new Segment(object, RecordingData.toEpochMillis(recording.getStartTimestamp())));
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment.startMillis));
+
+        for (Segment segment : segments) {
+            if (segment.object.getChannels() != segments.get(0).object.getChannels()
+                    || segment.object.getSampleRate() != segments.get(0).object.getSampleRate()) {
+                logger.warn(String.format("Recordings of %s have different formats, not consolidated", track));
+                return Collections.emptyList();
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @return header, audio of each segment without its header, and the silence between them
+     */
+    static List<PartPlanner.Piece> pieces(List<Segment> segments) {
+        RecordedObject format = segments.get(0).object;
+        int blockAlign = format.getChannels() * AudioUtils.BITS_PER_SAMPLE / 8;
+
+        List<PartPlanner.Piece> audio = new ArrayList<>();
+        long dataLength = 0;
+        long endMillis = -1;
+        for (Segment segment : segments) {
+            long pcmBytes = segment.object.getBytes() - AudioUtils.WAV_HEADER_SIZE;
+            if (endMillis >= 0 && segment.startMillis >= 0) {
+                long gapMillis = Math.min(MAX_GAP_MILLIS, segment.startMillis - endMillis);
+                if (gapMillis > 0) {
+                    long silence = gapMillis * format.getSampleRate() / 1000 * blockAlign;
+                    audio.add(PartPlanner.Piece.silence(silence));
+                    dataLength += silence;
+                }
+            }
+            audio.add(PartPlanner.Piece.copy(segment.object.getBucketName(), segment.object.getObjectKey(), AudioUtils.WAV_HEADER_SIZE, pcmBytes));
+            dataLength += pcmBytes;
+            endMillis = segment.startMillis < 0 ? -1 : segment.startMillis + pcmBytes / blockAlign * 1000 / format.getSampleRate();
+        }
+
+        List<PartPlanner.Piece> pieces = new ArrayList<>();
+        pieces.add(PartPlanner.Piece.bytes(AudioUtils.wavHeader(dataLength, format.getChannels(), format.getSampleRate())));
+        pieces.addAll(audio);
+        return pieces;
+    }
+
+    private CompletableFuture<S3UploadInfo> upload(String bucketName, String objectKey, String contactId, List<PartPlanner.Piece> pieces) {
+        List<PartPlanner.Part> parts = PartPlanner.plan(pieces, minPartSize);
+        logger.info(String.format("Consolidating %s/%s from %d pieces in %d parts", bucketName, objectKey, pieces.size(), parts.size()));
+
+        CreateMultipartUploadRequest.Builder request = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .contentType("audio/wav")
+                .metadata(Collections.singletonMap("contact-id", contactId));
+        if (publicReadAcl) {
+            request.acl(ObjectCannedACL.PUBLIC_READ);
+        }
+
+        return s3.createMultipartUpload(request.build()).thenCompose(created -> {
+            String uploadId = created.uploadId();
+            List<CompletableFuture<CompletedPart>> completedParts = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                completedParts.add(uploadPart(bucketName, objectKey, uploadId, i + 1, parts.get(i)));
+            }
+
+            return CompletableFuture.allOf(completedParts.toArray(new CompletableFuture[0]))
+                    .thenCompose(done -> {
+                        List<CompletedPart> completed = new ArrayList<>();
+                        completedParts.forEach(part -> completed.add(part.join()));
+                        return s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                                .bucket(bucketName)
+                                .key(objectKey)
+                                .uploadId(uploadId)
+                                .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                                .build());
+                    })
+                    .whenComplete((response, e) -> {
+                        if (e != null) {
+                            // otherwise the parts are stored, and billed, until a lifecycle rule removes them
+                            s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                                    .bucket(bucketName)
+                                    .key(objectKey)
+                                    .uploadId(uploadId)
+                                    .build());
+                        }
+                    });
+        }).thenApply(response -> new S3UploadInfo(bucketName, objectKey, AwsClients.region()));
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(String bucketName, String objectKey, String uploadId, int partNumber,
+                                                        PartPlanner.Part part) {
+        if (part.isCopy()) {
+            PartPlanner.Piece copy = part.getCopy();
+            return s3.uploadPartCopy(UploadPartCopyRequest.builder()
+                            .sourceBucket(copy.getBucketName())
+                            .sourceKey(copy.getObjectKey())
+                            .copySourceRange(copy.range())
+                            .destinationBucket(bucketName)
+                            .destinationKey(objectKey)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .build())
+                    .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.copyPartResult().eTag()).build());
+        }
+
+        return read(part.getPieces())
+                .thenCompose(buffers -> s3.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucketName)
+                                .key(objectKey)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength(part.getLength())
+                                .build(),
+                        new ByteBuffersRequestBody(buffers)))
+                .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build());
+    }
+
+    /**
+     * Reads the content of an uploaded part, the copied ranges in it are downloaded
+     */
+    private CompletableFuture<List<ByteBuffer>> read(List<PartPlanner.Piece> pieces) {
+        List<CompletableFuture<List<ByteBuffer>>> reads = new ArrayList<>();
+        for (PartPlanner.Piece piece : pieces) {
+            if (piece.isCopy()) {
+                reads.add(s3.getObject(GetObjectRequest.builder()
+                                        .bucket(piece.getBucketName())
+                                        .key(piece.getObjectKey())
+                                        .range(piece.range())
+                                        .build(),
+                                AsyncResponseTransformer.toBytes())
+                        .thenApply(bytes -> Collections.singletonList(bytes.asByteBuffer())));
+            } else if (piece.isSilence()) {
+                reads.add(CompletableFuture.completedFuture(silence(piece.getLength())));
+            } else {
+                reads.add(CompletableFuture.completedFuture(Collections.singletonList(piece.getBytes())));
+            }
+        }
+
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenApply(done -> {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            reads.forEach(read -> buffers.addAll(read.join()));
+            return buffers;
+        });
+    }
+
+    // views of one shared buffer of zeros, so silence takes no memory of its own
+    static List<ByteBuffer> silence(long length) {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (long remaining = length; remaining > 0; remaining -= ZEROS.capacity()) {
+            buffers.add(ZEROS.duplicate().limit((int) Math.min(ZEROS.capacity(), remaining)));
+        }
+        return buffers;
+    }
+
+    /**
+     * The wav object of one track of a recording
+     */
+    static final class Segment {
+        private final RecordedObject object;
+        private final long startMillis;
+
+        Segment(RecordedObject object, long startMillis) {
+            this.object = object;
+            this.startMillis = startMillis;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * A JDK Flight Recorder recording that runs for the life of the function environment with the low-overhead
+ * "default" settings of the JDK, keeping the last JFR_MAX_AGE_MINUTES of data. The ProcessKvs events are enabled
+ * by default, so the recording includes them.
+ *
+ * The recording is dumped when a recording of a contact took longer than JFR_DUMP_SECONDS, at most once per
+ * JFR_MAX_AGE_MINUTES since a dump already holds everything recorded within that time. The repository of the
+ * recording takes up to JFR_MAX_SIZE_MB of java.io.tmpdir outside of the scratch space budget, a dump up to the same
+ * size is reserved in the scratch space by the caller.
+ */
+public class ContinuousRecording {
+
+    private static final boolean JFR_CONTINUOUS = Boolean.parseBoolean(System.getenv("JFR_CONTINUOUS"));
+    private static final long JFR_MAX_AGE_MINUTES = NumberUtils.toLong(System.getenv("JFR_MAX_AGE_MINUTES"), 10);
+    private static final long JFR_MAX_SIZE_MB = NumberUtils.toLong(System.getenv("JFR_MAX_SIZE_MB"), 64);
+    private static final long JFR_DUMP_SECONDS = NumberUtils.toLong(System.getenv("JFR_DUMP_SECONDS"), 0);
+
+    private static final Logger logger = LoggerFactory.getLogger(ContinuousRecording.class);
+
+    private static final ContinuousRecording SHARED = new ContinuousRecording(JFR_CONTINUOUS, Duration.ofMinutes(JFR_MAX_AGE_MINUTES),
+            JFR_MAX_SIZE_MB * 1024 * 1024, Duration.ofSeconds(JFR_DUMP_SECONDS));
+
+    private final boolean enabled;
+    private final Duration maxAge;
+    private final long maxSize;
+    private final Duration dumpThreshold;
+
+    private Recording recording;
+    private long lastDumpNanos;
+    private boolean dumped;
+
+    /**
+     * @param enabled false for a recording that is never started
+     * @param maxAge age of the oldest data kept
+     * @param maxSize bytes kept on disk
+     * @param dumpThreshold processing time of a recording from which the recording is dumped, zero for never
+     */
+    public ContinuousRecording(boolean enabled, Duration maxAge, long maxSize, Duration dumpThreshold) {
+        this.enabled = enabled;
+        this.maxAge = maxAge;
+        this.maxSize = maxSize;
+        this.dumpThreshold = dumpThreshold;
+    }
+
+    /**
+     * @return the recording of the function environment, configured by JFR_CONTINUOUS
+     */
+    public static ContinuousRecording shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts the recording if it is enabled and not started yet. Called on the first invocation of the handler, the
+     * SnapStart priming runs on a handler with a disabled recording, so the recording does not cover the snapshot.
+     */
+    public synchronized void start() {
+        if (!enabled || recording != null) {
+            return;
+        }
+        try {
+            Recording started = new Recording(Configuration.getConfiguration("default"));
+            started.setName("ProcessKvs");
+            started.setToDisk(true);
+            started.setMaxAge(maxAge);
+            started.setMaxSize(maxSize);
+            started.start();
+            recording = started;
+            logger.info(String.format("Continuous flight recording started, max age %s, max size %d bytes", maxAge, maxSize));
+        } catch (IOException | ParseException | RuntimeException e) {
+            // a runtime without JFR
+            logger.warn("Continuous flight recording could not be started: " + e);
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return recording != null;
+    }
+
+    /**
+     * @return bytes kept on disk, the size a dump can reach
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param elapsed processing time of a recording
+     * @return true if dumpIfSlow would write the recording
+     */
+    public synchronized boolean isDumpDue(Duration elapsed) {
+        return recording != null && !dumpThreshold.isZero() && elapsed.compareTo(dumpThreshold) >= 0
+                && !(dumped && System.nanoTime() - lastDumpNanos < maxAge.toNanos());
+    }
+
+    /**
+     * Writes the data recorded so far to a file if the processing time of a recording reaches the dump threshold and
+     * no dump was taken within the max age. The recording continues.
+     *
+     * @param elapsed processing time of a recording
+     * @param destination file to write
+     * @return true if the file was written
+     */
+    public synchronized boolean dumpIfSlow(Duration elapsed, Path destination) throws IOException {
+        if (!isDumpDue(elapsed)) {
+            return false;
+        }
+        recording.dump(destination);
+        lastDumpNanos = System.nanoTime();
+        dumped = true;
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("ProcessKvs.Demux")
+@Label("Demux")
+@Category("ProcessKvs")
+@Description("MKV parsing of the GetMedia payload of a recording, the frames are handed to the write stage")
+public final class DemuxEvent extends Event {
+
+    @Label("Contact ID")
+    public String contactId;
+
+    @Label("Stream ARN")
+    public String streamArn;
+
+    @Label("Fragments")
+    public int fragments;
+
+    @Label("Frames")
+    public long frames;
+
+    @Label("Frame Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Network Wait")
+    @Timespan
+    public long networkWait;
+}
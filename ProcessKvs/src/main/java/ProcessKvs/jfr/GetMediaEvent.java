@@ -0,0 +1,40 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("ProcessKvs.GetMedia")
+@Label("GetMedia")
+@Category("ProcessKvs")
+@Description("GetMedia call until the response headers arrived, including the wait for admission and the retries "
+        + "of rejected calls. Runs on the thread of the Recording event of the contact")
+public final class GetMediaEvent extends Event {
+
+    @Label("Stream Name")
+    public String streamName;
+
+    @Label("Start Fragment Number")
+    public String startFragmentNumber;
+
+    @Label("Attempts")
+    public int attempts;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,44 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("ProcessKvs.Mix")
+@Label("Mix")
+@Category("ProcessKvs")
+@Description("Stereo mix of the two tracks of a recording, in segmented mode the part not mixed while the tracks were read")
+public final class MixEvent extends Event {
+
+    @Label("Contact ID")
+    public String contactId;
+
+    @Label("Stream ARN")
+    public String streamArn;
+
+    @Label("Sample Frames")
+    public long frames;
+
+    @Label("Mixed Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Spilled to /tmp")
+    public boolean spilled;
+}
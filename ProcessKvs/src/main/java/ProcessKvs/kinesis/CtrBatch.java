@@ -0,0 +1,170 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.kinesis;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The contact trace records of one Kinesis event, reduced to the latest version of each contact.
+ *
+ * Amazon Connect writes a new version of the CTR of a contact whenever the contact is updated, so one event often
+ * holds several versions of it. The version with the latest LastUpdateTimestamp is kept, and of versions with the same
+ * or without a timestamp the one later in the event. The recordings of the superseded versions that the kept version
+ * does not list are added to it, after its own, so no recording of the contact is lost. Records without a ContactId
+ * are kept as they are.
+ */
+public final class CtrBatch {
+
+    private final Map<String, Latest> contacts = new LinkedHashMap<>();
+    private int superseded;
+
+    /**
+     * @param recordId id of the Kinesis record in the logs
+     * @param ctr contact trace record, the kept version is changed in place
+     */
+    public void add(String recordId, JSONObject ctr) {
+        String contactId = ctr.optString("ContactId", null);
+        Latest latest = contactId == null ? null : contacts.get(contactId);
+        if (latest == null) {
+            contacts.put(contactId == null ? "#" + recordId : contactId, new Latest(recordId, ctr));
+            return;
+        }
+        latest.supersede(recordId, ctr);
+        superseded++;
+    }
+
+    /**
+     * @return the latest version of each contact, in the order the contacts first appear in the event
+     */
+    public List<Latest> latest() {
+        return new ArrayList<>(contacts.values());
+    }
+
+    /**
+     * @return number of records dropped for a later version of their contact
+     */
+    public int getSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * The latest version of the CTR of a contact
+     */
+    public static final class Latest {
+        private String recordId;
+        private JSONObject ctr;
+        private Instant lastUpdate;
+        private final List<String> supersededRecordIds = new ArrayList<>();
+        // recordings of the superseded versions, by location and first fragment
+        private final Map<String, JSONObject> supersededRecordings = new LinkedHashMap<>();
+
+        private Latest(String recordId, JSONObject ctr) {
+            this.recordId = recordId;
+            this.ctr = ctr;
+            this.lastUpdate = lastUpdate(ctr);
+        }
+
+        private void supersede(String otherRecordId, JSONObject other) {
+            Instant otherUpdate = lastUpdate(other);
+            if (lastUpdate != null && (otherUpdate == null || otherUpdate.isBefore(lastUpdate))) {
+                supersededRecordIds.add(otherRecordId);
+                addRecordings(other);
+                return;
+            }
+            supersededRecordIds.add(recordId);
+            addRecordings(ctr);
+            recordId = otherRecordId;
+            ctr = other;
+            lastUpdate = otherUpdate;
+        }
+
+        private void addRecordings(JSONObject version) {
+            JSONArray recordings = version.optJSONArray("Recordings");
+            for (int i = 0; i < (recordings != null ? recordings.length() : 0); i++) {
+                JSONObject recording = recordings.optJSONObject(i);
+                if (recording != null) {
+                    supersededRecordings.putIfAbsent(recordingKey(recording), recording);
+                }
+            }
+        }
+
+        /**
+         * @return id of the Kinesis record of this version
+         */
+        public String getRecordId() {
+            return recordId;
+        }
+
+        /**
+         * @return ids of the records of the same contact that were dropped for this version
+         */
+        public List<String> getSupersededRecordIds() {
+            return supersededRecordIds;
+        }
+
+        /**
+         * @return the CTR of this version, listing the recordings of the superseded versions as well
+         */
+        public JSONObject getCtr() {
+            if (supersededRecordings.isEmpty()) {
+                return ctr;
+            }
+            JSONArray own = ctr.optJSONArray("Recordings");
+            JSONArray recordings = new JSONArray();
+            Set<String> keys = new LinkedHashSet<>();
+            for (int i = 0; i < (own != null ? own.length() : 0); i++) {
+                JSONObject recording = own.optJSONObject(i);
+                if (recording != null && keys.add(recordingKey(recording))) {
+                    recordings.put(recording);
+                }
+            }
+            supersededRecordings.forEach((key, recording) -> {
+                if (keys.add(key)) {
+                    recordings.put(recording);
+                }
+            });
+            return ctr.put("Recordings", recordings);
+        }
+    }
+
+    /**
+     * @param ctr contact trace record
+     * @return LastUpdateTimestamp of the record, null if it has none or it is not an ISO timestamp
+     */
+    public static Instant lastUpdate(JSONObject ctr) {
+        String timestamp = ctr.optString("LastUpdateTimestamp", null);
+        if (timestamp == null) {
+            return null;
+        }
+        try {
+            return Instant.parse(timestamp);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String recordingKey(JSONObject recording) {
+        return recording.optString("Location") + "|" + recording.optString("FragmentStartNumber");
+    }
+}
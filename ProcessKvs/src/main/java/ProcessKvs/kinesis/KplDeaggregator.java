@@ -0,0 +1,198 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits Kinesis records written by the Kinesis Producer Library with aggregation into their user records.
+ *
+ * An aggregated record is the magic number F3 89 9A C2, an AggregatedRecord protobuf message and the MD5 of that
+ * message. The message is read directly, field 3 holds the records and field 3 of each record holds its data:
+ *
+ * <pre>
+ * message AggregatedRecord {
+ *   repeated string partition_key_table = 1;
+ *   repeated string explicit_hash_key_table = 2;
+ *   repeated Record records = 3;
+ * }
+ * message Record {
+ *   required uint64 partition_key_index = 1;
+ *   optional uint64 explicit_hash_key_index = 2;
+ *   required bytes data = 3;
+ *   repeated Tag tags = 4;
+ * }
+ * </pre>
+ *
+ * Like the KCL, a record without the magic number or with a wrong checksum is returned as a single user record.
+ */
+public final class KplDeaggregator {
+
+    private static final byte[] MAGIC = {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+    private static final int MD5_LENGTH = 16;
+
+    private static final int AGGREGATED_RECORDS_FIELD = 3;
+    private static final int RECORD_DATA_FIELD = 3;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private KplDeaggregator() {
+    }
+
+    /**
+     * @param data Kinesis record data, its position is not changed
+     * @return data of the user records, slices sharing the content of data
+     * @throws IllegalArgumentException if the checksum matches but the message cannot be read
+     */
+    public static List<ByteBuffer> deaggregate(ByteBuffer data) {
+        ByteBuffer record = data.slice();
+        if (!isAggregated(record)) {
+            return Collections.singletonList(record);
+        }
+
+        ByteBuffer message = record.slice(MAGIC.length, record.remaining() - MAGIC.length - MD5_LENGTH);
+        ByteBuffer checksum = record.slice(record.remaining() - MD5_LENGTH, MD5_LENGTH);
+        if (!md5(message.duplicate()).equals(checksum)) {
+            return Collections.singletonList(record);
+        }
+
+        List<ByteBuffer> records = new ArrayList<>();
+        while (message.hasRemaining()) {
+            long key = readVarint(message);
+            if (fieldNumber(key) == AGGREGATED_RECORDS_FIELD && wireType(key) == WIRE_LENGTH_DELIMITED) {
+                records.add(recordData(readLengthDelimited(message)));
+            } else {
+                skipField(message, wireType(key));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Decodes a user record as UTF-8, reading the buffer in place instead of copying its backing array first
+     *
+     * @param data user record data, its position is not changed
+     * @return decoded text, malformed input is replaced
+     */
+    public static String decodeUtf8(ByteBuffer data) {
+        return StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+    }
+
+    private static boolean isAggregated(ByteBuffer record) {
+        if (record.remaining() < MAGIC.length + MD5_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (record.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer recordData(ByteBuffer record) {
+        ByteBuffer data = null;
+        while (record.hasRemaining()) {
+            long key = readVarint(record);
+            if (fieldNumber(key) == RECORD_DATA_FIELD && wireType(key) == WIRE_LENGTH_DELIMITED) {
+                data = readLengthDelimited(record);
+            } else {
+                skipField(record, wireType(key));
+            }
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("Aggregated record without data");
+        }
+        return data;
+    }
+
+    private static int fieldNumber(long key) {
+        return (int) (key >>> 3);
+    }
+
+    private static int wireType(long key) {
+        return (int) (key & 0x7);
+    }
+
+    private static void skipField(ByteBuffer buffer, int wireType) {
+        switch (wireType) {
+            case WIRE_VARINT:
+                readVarint(buffer);
+                break;
+            case WIRE_FIXED64:
+                skip(buffer, 8);
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                readLengthDelimited(buffer);
+                break;
+            case WIRE_FIXED32:
+                skip(buffer, 4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported protobuf wire type " + wireType);
+        }
+    }
+
+    private static ByteBuffer readLengthDelimited(ByteBuffer buffer) {
+        long length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated aggregated record");
+        }
+        ByteBuffer field = buffer.slice(buffer.position(), (int) length);
+        buffer.position(buffer.position() + (int) length);
+        return field;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated aggregated record");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in aggregated record");
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated aggregated record");
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static ByteBuffer md5(ByteBuffer message) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(message);
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
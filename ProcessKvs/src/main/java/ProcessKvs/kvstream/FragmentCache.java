@@ -0,0 +1,197 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.kvstream;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Demuxed PCM frames of recently read KVS fragments, so recordings that overlap an earlier one, as the recordings of
+ * a transferred contact do, read the shared fragments once.
+ *
+ * Fragments are keyed by stream name and fragment number, and only cached once the fragment that follows them in the
+ * stream is known, so a recording can follow the cached fragments from its start fragment and continue with GetMedia
+ * after the last one. The frames are kept as read from the parser; the cache holds at most FRAGMENT_CACHE_MB of them
+ * and evicts the least recently used fragments first.
+ */
+public final class FragmentCache {
+
+    private static final FragmentCache shared = new FragmentCache(
+            NumberUtils.toLong(System.getenv("FRAGMENT_CACHE_MB"), 32) * 1024 * 1024);
+
+    private final long budget;
+    private final Map<String, Fragment> fragments = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param budget bytes of frame data held at most, 0 to cache nothing
+     */
+    public FragmentCache(long budget) {
+        this.budget = budget;
+    }
+
+    public static FragmentCache shared() {
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Looks up a fragment read before with at least the given tracks
+     *
+     * @param streamName KVS stream name
+     * @param fragmentNumber
+     * @param tracks tracks the caller reads
+     * @return the fragment, or null if it is not cached or was read without one of the tracks
+     */
+    public Fragment get(String streamName, String fragmentNumber, Set<String> tracks) {
+        Fragment fragment;
+        synchronized (this) {
+            fragment = fragments.get(key(streamName, fragmentNumber));
+        }
+        if (fragment == null || !fragment.tracks.containsAll(tracks)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return fragment;
+    }
+
+    /**
+     * Adds a completely read fragment, evicting the least recently used fragments to stay within the budget
+     *
+     * @param fragment fragment with all its frames
+     * @param nextFragmentNumber fragment that followed it in the stream
+     */
+    public void put(Fragment fragment, String nextFragmentNumber) {
+        if (fragment.bytes > budget) {
+            return;
+        }
+        fragment.nextFragmentNumber = nextFragmentNumber;
+        synchronized (this) {
+            Fragment previous = fragments.put(key(fragment.streamName, fragment.fragmentNumber), fragment);
+            bytes += fragment.bytes - (previous != null ? previous.bytes : 0);
+            Iterator<Fragment> eldest = fragments.values().iterator();
+            while (bytes > budget) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return lookups that found a fragment
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return lookups that found no fragment
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String key(String streamName, String fragmentNumber) {
+        return streamName + "#" + fragmentNumber;
+    }
+
+    /**
+     * The frames of one fragment, in stream order
+     */
+    public static final class Fragment {
+        private final String streamName;
+        private final String fragmentNumber;
+        private final String contactId;
+        private final Set<String> tracks;
+        private final List<String> frameTracks = new ArrayList<>();
+        private final List<ByteBuffer> frameData = new ArrayList<>();
+        private long bytes;
+        private volatile String nextFragmentNumber;
+
+        /**
+         * @param streamName KVS stream name
+         * @param fragmentNumber
+         * @param contactId value of the ContactId tag of the fragment, may be null
+         * @param tracks tracks read from the fragment, frames of other tracks are not in it
+         */
+        public Fragment(String streamName, String fragmentNumber, String contactId, Set<String> tracks) {
+            this.streamName = streamName;
+            this.fragmentNumber = fragmentNumber;
+            this.contactId = contactId;
+            this.tracks = tracks;
+        }
+
+        /**
+         * Adds the next frame. The frame content must not change afterwards, its position and limit may.
+         */
+        public void add(String track, ByteBuffer data) {
+            ByteBuffer frame = data.asReadOnlyBuffer();
+            frameTracks.add(track);
+            frameData.add(frame);
+            bytes += frame.remaining();
+        }
+
+        public String getFragmentNumber() {
+            return fragmentNumber;
+        }
+
+        public String getContactId() {
+            return contactId;
+        }
+
+        /**
+         * @return fragment that followed this one in the stream, set once the fragment is cached
+         */
+        public String getNextFragmentNumber() {
+            return nextFragmentNumber;
+        }
+
+        public int getFrameCount() {
+            return frameTracks.size();
+        }
+
+        public String getTrack(int frame) {
+            return frameTracks.get(frame);
+        }
+
+        /**
+         * @return a buffer of its own over the data of the frame
+         */
+        public ByteBuffer getData(int frame) {
+            return frameData.get(frame).duplicate();
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.kvstream;
+
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.TokenBucket;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits GetMedia sessions per KVS stream, so concurrent recordings on a shared stream do not exceed the KVS
+ * connection limits.
+ *
+ * Within the JVM every stream has a concurrency limit and a connection rate. The limit is halved when KVS reports
+ * ConnectionLimitExceeded and grows back by one per successful GetMedia. When GETMEDIA_LEASE_TABLE is set, a session
+ * additionally needs a lease slot in that DynamoDB table, which coordinates concurrent function instances. Requests
+ * over the limit wait until a session is released or GETMEDIA_ADMISSION_TIMEOUT_MS has passed.
+ */
+public final class GetMediaAdmissionController {
+
+    private static final int SESSIONS_PER_STREAM = NumberUtils.toInt(System.getenv("GETMEDIA_SESSIONS_PER_STREAM"), 3);
+    private static final double CONNECTIONS_PER_SECOND = NumberUtils.toDouble(System.getenv("GETMEDIA_CONNECTIONS_PER_SECOND"), 5);
+    private static final long ADMISSION_TIMEOUT_MS = NumberUtils.toLong(System.getenv("GETMEDIA_ADMISSION_TIMEOUT_MS"), 120_000);
+    private static final String LEASE_TABLE = System.getenv("GETMEDIA_LEASE_TABLE");
+    private static final long LEASE_POLL_MS = 500;
+
+    private static final Logger logger = LoggerFactory.getLogger(GetMediaAdmissionController.class);
+
+    private static final GetMediaAdmissionController shared = new GetMediaAdmissionController(SESSIONS_PER_STREAM,
+            CONNECTIONS_PER_SECOND, ADMISSION_TIMEOUT_MS,
+            LEASE_TABLE == null || LEASE_TABLE.isEmpty() ? null : new GetMediaLeaseTable(AwsClients.dynamoDb(), LEASE_TABLE));
+
+    private final int maxSessions;
+    private final double connectionsPerSecond;
+    private final long admissionTimeoutMillis;
+    private final GetMediaLeaseTable leaseTable;
+    private final Map<String, StreamState> streams = new ConcurrentHashMap<>();
+
+    GetMediaAdmissionController(int maxSessions, double connectionsPerSecond, long admissionTimeoutMillis, GetMediaLeaseTable leaseTable) {
+        this.maxSessions = maxSessions;
+        this.connectionsPerSecond = connectionsPerSecond;
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        this.leaseTable = leaseTable;
+    }
+
+    public static GetMediaAdmissionController shared() {
+        return shared;
+    }
+
+    /**
+     * Waits until a GetMedia session may be opened on the stream
+     *
+     * @param streamName KVS stream name
+     * @return admission to close once the session has ended
+     * @throws IllegalStateException if the stream did not admit a session within the admission timeout
+     */
+    public Admission acquire(String streamName) {
+        StreamState state = streams.computeIfAbsent(streamName, name -> new StreamState(maxSessions, connectionsPerSecond));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(admissionTimeoutMillis);
+
+        try {
+            if (!state.acquire(deadline)) {
+                throw new IllegalStateException(String.format("GetMedia admission for stream %s timed out after %d ms, %d sessions active",
+                        streamName, admissionTimeoutMillis, state.getActive()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for GetMedia admission on stream " + streamName, e);
+        }
+
+        String lease = null;
+        try {
+            if (leaseTable != null) {
+                lease = acquireLease(streamName, deadline);
+                if (lease == null) {
+                    throw new IllegalStateException(String.format("No GetMedia lease for stream %s within %d ms", streamName, admissionTimeoutMillis));
+                }
+            }
+
+            // pace new connections to the GetMedia connection rate of the stream
+            long waitNanos = state.connectionRate.reserve();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            return new Admission(streamName, state, lease);
+        } catch (InterruptedException | RuntimeException e) {
+            if (lease != null) {
+                leaseTable.release(streamName, lease);
+            }
+            state.release();
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for GetMedia admission on stream " + streamName, e);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Reports that KVS rejected a GetMedia on the stream because of its connection limits
+     *
+     * @param streamName KVS stream name
+     */
+    public void onThrottled(String streamName) {
+        StreamState state = streams.get(streamName);
+        if (state != null) {
+            state.decrease();
+            state.connectionRate.drain();
+            logger.warn(String.format("GetMedia throttled on stream %s, session limit lowered to %d", streamName, state.getLimit()));
+        }
+    }
+
+    /**
+     * Reports that a GetMedia on the stream was accepted
+     *
+     * @param streamName KVS stream name
+     */
+    public void onSuccess(String streamName) {
+        StreamState state = streams.get(streamName);
+        if (state != null) {
+            state.increase();
+        }
+    }
+
+    private String acquireLease(String streamName, long deadline) throws InterruptedException {
+        while (true) {
+            String lease = leaseTable.tryAcquire(streamName, maxSessions);
+            if (lease != null) {
+                return lease;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(remaining, LEASE_POLL_MS));
+        }
+    }
+
+    /**
+     * One admitted GetMedia session. Closing it frees the session for the next waiting request.
+     */
+    public final class Admission implements Closeable {
+        private final String streamName;
+        private final StreamState state;
+        private final String lease;
+        private boolean closed;
+
+        private Admission(String streamName, StreamState state, String lease) {
+            this.streamName = streamName;
+            this.state = state;
+            this.lease = lease;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (lease != null) {
+                leaseTable.release(streamName, lease);
+            }
+            state.release();
+        }
+    }
+
+    private static final class StreamState {
+        private final int maxSessions;
+        private final TokenBucket connectionRate;
+        private int limit;
+        private int active;
+
+        private StreamState(int maxSessions, double connectionsPerSecond) {
+            this.maxSessions = maxSessions;
+            this.limit = maxSessions;
+            this.connectionRate = new TokenBucket(connectionsPerSecond, connectionsPerSecond);
+        }
+
+        private synchronized boolean acquire(long deadline) throws InterruptedException {
+            while (active >= limit) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            active++;
+            return true;
+        }
+
+        private synchronized void release() {
+            active--;
+            notifyAll();
+        }
+
+        private synchronized void decrease() {
+            limit = Math.max(1, limit / 2);
+        }
+
+        private synchronized void increase() {
+            if (limit < maxSessions) {
+                limit++;
+                notifyAll();
+            }
+        }
+
+        private synchronized int getLimit() {
+            return limit;
+        }
+
+        private synchronized int getActive() {
+            return active;
+        }
+    }
+}
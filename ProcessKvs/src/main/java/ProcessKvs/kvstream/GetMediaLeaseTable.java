@@ -0,0 +1,192 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.kvstream;
+
+import ProcessKvs.aws.Jitter;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GetMedia session slots of a KVS stream, shared by all function instances through a DynamoDB table.
+ *
+ * The table has a string partition key LeaseKey holding "streamName#slot". A slot is taken with a conditional put
+ * that only succeeds if the slot is free or its lease has expired, so a crashed invocation cannot hold a slot for
+ * longer than GETMEDIA_LEASE_SECONDS. ExpiresAt can be used as the table TTL attribute.
+ *
+ * A held lease is renewed every third of GETMEDIA_LEASE_SECONDS with an update conditional on its owner, so a
+ * GetMedia session may outlive the lease period, as it does in the backfill and load test runners. Releasing a
+ * lease waits for the delete, as a frozen function environment would not send it before the lease expires.
+ */
+public class GetMediaLeaseTable {
+
+    private static final long LEASE_SECONDS = NumberUtils.toLong(System.getenv("GETMEDIA_LEASE_SECONDS"), 300);
+
+    private static final Logger logger = LoggerFactory.getLogger(GetMediaLeaseTable.class);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "getmedia-lease-renewal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DynamoDbAsyncClient dynamoDb;
+    private final String tableName;
+    private final long leaseSeconds;
+    // renewal of every lease held, by lease token
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+
+    public GetMediaLeaseTable(DynamoDbAsyncClient dynamoDb, String tableName) {
+        this(dynamoDb, tableName, LEASE_SECONDS);
+    }
+
+    GetMediaLeaseTable(DynamoDbAsyncClient dynamoDb, String tableName, long leaseSeconds) {
+        this.dynamoDb = dynamoDb;
+        this.tableName = tableName;
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    /**
+     * Tries to take one of the session slots of the stream, starting at a random slot so waiting instances do not
+     * all compete for slot 0
+     *
+     * @param streamName KVS stream name
+     * @param slots number of sessions allowed on the stream
+     * @return lease owner token to release the slot with, or null if all slots are taken. The lease is renewed until
+     * it is released.
+     */
+    public String tryAcquire(String streamName, int slots) {
+        String owner = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis() / 1000L;
+        int first = Jitter.nextInt(slots);
+
+        for (int i = 0; i < slots; i++) {
+            int slot = (first + i) % slots;
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("LeaseKey", AttributeValue.builder().s(leaseKey(streamName, slot)).build());
+            item.put("Owner", AttributeValue.builder().s(owner).build());
+            item.put("ExpiresAt", AttributeValue.builder().n(Long.toString(now + leaseSeconds)).build());
+
+            PutItemRequest request = PutItemRequest.builder()
+                    .tableName(tableName)
+                    .item(item)
+                    .conditionExpression("attribute_not_exists(LeaseKey) OR ExpiresAt < :now")
+                    .expressionAttributeValues(Map.of(":now", AttributeValue.builder().n(Long.toString(now)).build()))
+                    .build();
+            try {
+                dynamoDb.putItem(request).join();
+                String lease = leaseKey(streamName, slot) + "|" + owner;
+                long periodMillis = Math.max(1, TimeUnit.SECONDS.toMillis(leaseSeconds) / 3);
+                renewals.put(lease, scheduler.scheduleAtFixedRate(() -> renew(streamName, lease), periodMillis, periodMillis, TimeUnit.MILLISECONDS));
+                return lease;
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof ConditionalCheckFailedException)) {
+                    throw e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Frees a slot taken by tryAcquire, unless its lease has expired and was taken over by another instance. Stops
+     * the renewal of the lease and waits until the delete has completed.
+     *
+     * @param streamName KVS stream name
+     * @param lease token returned by tryAcquire
+     */
+    public void release(String streamName, String lease) {
+        ScheduledFuture<?> renewal = renewals.remove(lease);
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+        String leaseKey = lease.substring(0, lease.lastIndexOf('|'));
+        String owner = lease.substring(lease.lastIndexOf('|') + 1);
+
+        DeleteItemRequest request = DeleteItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of("LeaseKey", AttributeValue.builder().s(leaseKey).build()))
+                .conditionExpression("#owner = :owner")
+                .expressionAttributeNames(Map.of("#owner", "Owner"))
+                .expressionAttributeValues(Map.of(":owner", AttributeValue.builder().s(owner).build()))
+                .build();
+
+        try {
+            dynamoDb.deleteItem(request).join();
+        } catch (CompletionException e) {
+            logger.warn(String.format("Failed to release GetMedia lease %s of stream %s: %s", leaseKey, streamName, e.getCause()));
+        }
+    }
+
+    /**
+     * @return number of leases taken and not yet released
+     */
+    int getHeldLeases() {
+        return renewals.size();
+    }
+
+    // extends a held lease, a lease taken over by another instance after it expired is no longer renewed
+    private void renew(String streamName, String lease) {
+        String leaseKey = lease.substring(0, lease.lastIndexOf('|'));
+        String owner = lease.substring(lease.lastIndexOf('|') + 1);
+        long now = System.currentTimeMillis() / 1000L;
+
+        UpdateItemRequest request = UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of("LeaseKey", AttributeValue.builder().s(leaseKey).build()))
+                .updateExpression("SET ExpiresAt = :expiresAt")
+                .conditionExpression("#owner = :owner")
+                .expressionAttributeNames(Map.of("#owner", "Owner"))
+                .expressionAttributeValues(Map.of(
+                        ":owner", AttributeValue.builder().s(owner).build(),
+                        ":expiresAt", AttributeValue.builder().n(Long.toString(now + leaseSeconds)).build()))
+                .build();
+
+        dynamoDb.updateItem(request).whenComplete((response, e) -> {
+            if (e == null) {
+                return;
+            }
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof ConditionalCheckFailedException) {
+                logger.warn(String.format("GetMedia lease %s of stream %s was taken over, no longer renewing it", leaseKey, streamName));
+                ScheduledFuture<?> renewal = renewals.remove(lease);
+                if (renewal != null) {
+                    renewal.cancel(false);
+                }
+            } else {
+                logger.warn(String.format("Failed to renew GetMedia lease %s of stream %s: %s", leaseKey, streamName, cause));
+            }
+        });
+    }
+
+    private static String leaseKey(String streamName, int slot) {
+        return streamName + "#" + slot;
+    }
+}
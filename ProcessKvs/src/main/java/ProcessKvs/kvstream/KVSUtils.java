@@ -1,7 +1,8 @@
 package ProcessKvs.kvstream;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.Jitter;
+import ProcessKvs.jfr.GetMediaEvent;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
@@ -13,30 +14,32 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.MkvTag;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
-import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
-import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
-import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
-import com.amazonaws.services.kinesisvideo.model.StartSelector;
-import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.kinesisvideo.model.APIName;
+import software.amazon.awssdk.services.kinesisvideo.model.GetDataEndpointRequest;
+import software.amazon.awssdk.services.kinesisvideomedia.model.ClientLimitExceededException;
+import software.amazon.awssdk.services.kinesisvideomedia.model.ConnectionLimitExceededException;
+import software.amazon.awssdk.services.kinesisvideomedia.model.GetMediaRequest;
+import software.amazon.awssdk.services.kinesisvideomedia.model.GetMediaResponse;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelector;
+import software.amazon.awssdk.services.kinesisvideomedia.model.StartSelectorType;
 
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
 
-import static com.amazonaws.util.StringUtils.isNullOrEmpty;
+import static org.apache.commons.lang3.StringUtils.isEmpty;
 
 /**
  * Utility class to interact with KVS streams
@@ -60,6 +63,15 @@ public final class KVSUtils {
     public static final String AUDIO_FROM_CUSTOMER = "AUDIO_FROM_CUSTOMER";
     public static final String AUDIO_TO_CUSTOMER = "AUDIO_TO_CUSTOMER";
 
+    private static final Set<String> ALL_TRACKS = Set.of(AUDIO_FROM_CUSTOMER, AUDIO_TO_CUSTOMER);
+
+    private static final int GETMEDIA_MAX_ATTEMPTS = 5;
+    private static final long GETMEDIA_BASE_BACKOFF_MS = 200;
+    private static final long GETMEDIA_MAX_BACKOFF_MS = 5000;
+
+    // lacing bits of the SimpleBlock flags
+    private static final int LACING_FLAGS = 0x06;
+
     private static final Logger logger = LoggerFactory.getLogger(KVSUtils.class);
 
     /**
@@ -68,7 +80,7 @@ public final class KVSUtils {
      * @param tagProcessor
      * @return
      */
-    private static String getContactIdFromStreamTag(FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor) {
+    public static String getContactIdFromStreamTag(FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor) {
         Iterator<MkvTag> iter = tagProcessor.getTags().iterator();
         while (iter.hasNext()) {
             MkvTag tag = iter.next();
@@ -87,16 +99,40 @@ public final class KVSUtils {
      * @param fragmentVisitor
      * @param tagProcessor
      * @param contactId
-     * @return
+     * @param bufferMap map reused across calls, cleared before the next frame is put into it
+     * @return bufferMap
+     * @throws MkvElementVisitException
+     */
+    public static Map<String,ByteBuffer> getByteBufferFromStream(StreamingMkvReader streamingMkvReader,
+                                                     FragmentMetadataVisitor fragmentVisitor,
+                                                     FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor,
+                                                     String contactId,
+                                                     Map<String,ByteBuffer> bufferMap) throws MkvElementVisitException {
+        return getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, contactId, bufferMap, ALL_TRACKS);
+    }
+
+    /**
+     * Fetches the next frame of one of the given tracks from the KVS stream. Blocks of the other tracks are skipped
+     * by their track number, before the frame is parsed or copied.
+     *
+     * @param streamingMkvReader
+     * @param fragmentVisitor
+     * @param tagProcessor
+     * @param contactId
+     * @param bufferMap map reused across calls, cleared before the next frame is put into it
+     * @param tracks names of the tracks to read, AUDIO_FROM_CUSTOMER and/or AUDIO_TO_CUSTOMER
+     * @return bufferMap
      * @throws MkvElementVisitException
      */
     @SuppressWarnings("unchecked")
     public static Map<String,ByteBuffer> getByteBufferFromStream(StreamingMkvReader streamingMkvReader,
                                                      FragmentMetadataVisitor fragmentVisitor,
                                                      FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor,
-                                                     String contactId) throws MkvElementVisitException {
+                                                     String contactId,
+                                                     Map<String,ByteBuffer> bufferMap,
+                                                     Set<String> tracks) throws MkvElementVisitException {
 
-        Map<String,ByteBuffer> bufferMap = new HashMap<>();
+        bufferMap.clear();
 
         while (streamingMkvReader.mightHaveNext()) {
             Optional<MkvElement> mkvElementOptional = streamingMkvReader.nextIfAvailable();
@@ -121,10 +157,12 @@ public final class KVSUtils {
                     }
                 } else if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
                     MkvDataElement dataElement = (MkvDataElement) mkvElement;
-                    Frame frame = ((MkvValue<Frame>) dataElement.getValueCopy()).getVal();
-                    ByteBuffer audioBuffer = frame.getFrameData();
-                    long trackNumber = frame.getTrackNumber();
+                    long trackNumber = blockTrackNumber(dataElement.getDataBuffer());
                     MkvTrackMetadata metadata = fragmentVisitor.getMkvTrackMetadata(trackNumber);
+                    if (metadata == null || !tracks.contains(metadata.getTrackName())) {
+                        continue;
+                    }
+                    ByteBuffer audioBuffer = copyBlockFrame(dataElement);
                     if (AUDIO_FROM_CUSTOMER.equals(metadata.getTrackName())) {
                         //logger.info("AUDIO_FROM_CUSTOMER audioBuffer size: " + audioBuffer.remaining());
                         bufferMap.put(AUDIO_FROM_CUSTOMER, audioBuffer);
@@ -141,63 +179,155 @@ public final class KVSUtils {
         return bufferMap;
     }
 
+    /**
+     * Copies the frame of a SimpleBlock out of the parser buffer, which the parser reuses for the next element. This is
+     * the one heap copy of a frame: it is queued for the write stage of the recording and kept by the fragment cache,
+     * so it cannot be written to the track buffer straight from the parser buffer. Unlike getValueCopy, no Frame is
+     * built for it.
+     *
+     * @param dataElement SimpleBlock element
+     * @return heap buffer holding the frame data without the block header
+     */
+    @SuppressWarnings("unchecked")
+    static ByteBuffer copyBlockFrame(MkvDataElement dataElement) {
+        ByteBuffer block = dataElement.getDataBuffer().duplicate();
+        int start = block.position();
+        // track number, 16 bit timecode and flags
+        int headerLength = Integer.numberOfLeadingZeros(block.get(start) & 0xFF) - 23 + 3;
+        if ((block.get(start + headerLength - 1) & LACING_FLAGS) != 0) {
+            // several frames in one block, Connect does not write them
+            return ((MkvValue<Frame>) dataElement.getValueCopy()).getVal().getFrameData();
+        }
+        block.position(start + headerLength);
+        ByteBuffer frame = ByteBuffer.allocate(block.remaining());
+        frame.put(block).flip();
+        return frame;
+    }
+
+    /**
+     * Reads the track number at the start of a SimpleBlock, an EBML variable size integer, without moving the
+     * position of the block data
+     *
+     * @param blockData SimpleBlock data, positioned at the start of the block
+     * @return track number of the block
+     */
+    static long blockTrackNumber(ByteBuffer blockData) {
+        int position = blockData.position();
+        int first = blockData.get(position) & 0xFF;
+        int length = Integer.numberOfLeadingZeros(first) - 23;
+        Validate.isTrue(length >= 1 && length <= 8, "Invalid SimpleBlock track number");
+
+        long value = first & (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (blockData.get(position + i) & 0xFF);
+        }
+        return value;
+    }
+
     /**
      * Makes a GetMedia call to KVS and retrieves the InputStream corresponding to the given streamName and startFragmentNum
+     * The call waits for admission by GetMediaAdmissionController, and is retried with backoff if KVS rejects it because
+     * of its connection limits. The session is released when the returned InputStream is closed. The call is recorded
+     * as a GetMediaEvent.
      *
      * @param streamName Stream Name
-     * @param region Stream Region
      * @param startFragmentNum Starting Fragment Number when recording started
-     * @param awsCredentialsProvider Credential
      * @param startSelectorType Where the stream should start at. See StartSelectorType.
      * @return InputStream
      */
     public static InputStream getInputStreamFromKVS(String streamName,
-                                                    Regions region,
                                                     String startFragmentNum,
-                                                    AWSCredentialsProvider awsCredentialsProvider,
                                                     String startSelectorType) {
         Validate.notNull(streamName);
-        Validate.notNull(region);
         Validate.notNull(startFragmentNum);
-        Validate.notNull(awsCredentialsProvider);
 
-        AmazonKinesisVideo amazonKinesisVideo = AmazonKinesisVideoClientBuilder.standard().build();
-
-        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
-                .withAPIName(APIName.GET_MEDIA)
-                .withStreamName(streamName)).getDataEndpoint();
+        GetMediaEvent event = new GetMediaEvent();
+        event.begin();
+        event.streamName = streamName;
+        event.startFragmentNumber = startFragmentNum;
+        try {
+            return getMedia(streamName, startFragmentNum, startSelectorType, event);
+        } finally {
+            event.commit();
+        }
+    }
 
-        AmazonKinesisVideoMediaClientBuilder amazonKinesisVideoMediaClientBuilder = AmazonKinesisVideoMediaClientBuilder.standard()
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
-                .withCredentials(awsCredentialsProvider);
-        AmazonKinesisVideoMedia amazonKinesisVideoMedia = amazonKinesisVideoMediaClientBuilder.build();
+    private static InputStream getMedia(String streamName, String startFragmentNum, String startSelectorType, GetMediaEvent event) {
+        String endPoint = AwsClients.kinesisVideo().getDataEndpoint(GetDataEndpointRequest.builder()
+                .apiName(APIName.GET_MEDIA)
+                .streamName(streamName)
+                .build()).join().dataEndpoint();
 
         StartSelector startSelector;
-        startSelectorType = isNullOrEmpty(startSelectorType) ? "NOW" : startSelectorType;
+        startSelectorType = isEmpty(startSelectorType) ? "NOW" : startSelectorType;
         switch (startSelectorType) {
             case "FRAGMENT_NUMBER":
-                startSelector = new StartSelector()
-                        .withStartSelectorType(StartSelectorType.FRAGMENT_NUMBER)
-                        .withAfterFragmentNumber(startFragmentNum);
+                startSelector = StartSelector.builder()
+                        .startSelectorType(StartSelectorType.FRAGMENT_NUMBER)
+                        .afterFragmentNumber(startFragmentNum)
+                        .build();
                 logger.info("StartSelector set to FRAGMENT_NUMBER");
                 break;
             case "NOW":
             default:
-                startSelector = new StartSelector()
-                        .withStartSelectorType(StartSelectorType.NOW);
+                startSelector = StartSelector.builder()
+                        .startSelectorType(StartSelectorType.NOW)
+                        .build();
                 logger.info("StartSelector set to NOW");
                 break;
         }
 
-        GetMediaResult getMediaResult = amazonKinesisVideoMedia.getMedia(new GetMediaRequest()
-                .withStreamName(streamName)
-                .withStartSelector(startSelector));
+        GetMediaRequest request = GetMediaRequest.builder()
+                .streamName(streamName)
+                .startSelector(startSelector)
+                .build();
 
-        logger.info("GetMedia called on stream {} response {} requestId {}", streamName,
-                getMediaResult.getSdkHttpMetadata().getHttpStatusCode(),
-                getMediaResult.getSdkResponseMetadata().getRequestId());
+        // the session slot is held until the caller closes the returned stream
+        GetMediaAdmissionController admissionController = GetMediaAdmissionController.shared();
+        for (int attempt = 1; ; attempt++) {
+            event.attempts = attempt;
+            GetMediaAdmissionController.Admission admission = admissionController.acquire(streamName);
+            try {
+                // the future completes once the response headers arrive, the payload is then read as it streams in
+                ResponseInputStream<GetMediaResponse> payload = AwsClients.kinesisVideoMedia(endPoint)
+                        .getMedia(request, AsyncResponseTransformer.toBlockingInputStream()).join();
+                admissionController.onSuccess(streamName);
+                event.succeeded = true;
 
-        return getMediaResult.getPayload();
+                logger.info("GetMedia called on stream {} response {} requestId {}", streamName,
+                        payload.response().sdkHttpResponse().statusCode(),
+                        payload.response().responseMetadata().requestId());
+
+                return new FilterInputStream(payload) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            admission.close();
+                        }
+                    }
+                };
+            } catch (CompletionException e) {
+                admission.close();
+                if (!(e.getCause() instanceof ConnectionLimitExceededException || e.getCause() instanceof ClientLimitExceededException)
+                        || attempt >= GETMEDIA_MAX_ATTEMPTS) {
+                    throw e;
+                }
+                admissionController.onThrottled(streamName);
+                long backoff = Jitter.nextLong(Math.min(GETMEDIA_MAX_BACKOFF_MS, GETMEDIA_BASE_BACKOFF_MS << (attempt - 1)) + 1);
+                logger.warn(String.format("GetMedia on stream %s rejected with %s, retrying in %d ms", streamName, e.getCause(), backoff));
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                admission.close();
+                throw e;
+            }
+        }
     }
 
     public static void deleteFile(String filePath)
@@ -13,37 +13,37 @@
 
 package ProcessKvs.kvstream;
 
-import com.amazonaws.regions.Regions;
+import software.amazon.awssdk.regions.Region;
 
 public class S3UploadInfo {
 
     private String bucketName;
     private String objectKey;
-    private Regions region;
+    private Region region;
 
-    public S3UploadInfo(String bucketName, String objectKey, Regions region) {
+    public S3UploadInfo(String bucketName, String objectKey, Region region) {
         this.bucketName = bucketName;
         this.objectKey = objectKey;
         this.region = region;
     }
 
     public String getResourceUrl() {
-        return String.format("https://s3-%s.amazonaws.com/%s/%s", region.getName(), bucketName, objectKey);
+        return String.format("https://s3-%s.amazonaws.com/%s/%s", region.id(), bucketName, objectKey);
     }
 
     public String getCloudfrontUrl(String cloudftont) {
         return String.format("%s/%s", cloudftont, objectKey);
     }
 
-    String getBucketName() {
+    public String getBucketName() {
         return bucketName;
     }
 
-    String getObjectKey() {
+    public String getObjectKey() {
         return objectKey;
     }
 
-    Regions getRegion() {
+    Region getRegion() {
         return region;
     }
 }
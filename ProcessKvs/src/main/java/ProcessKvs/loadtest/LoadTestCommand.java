@@ -0,0 +1,272 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.loadtest;
+
+import ProcessKvs.ProcessKvsLambda;
+import ProcessKvs.audio.AudioStreamService;
+import ProcessKvs.audio.FrameBufferArena;
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.TokenBucket;
+import ProcessKvs.connect.ContactAttributesWriter;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.manifest.RecordingManifestWriter;
+import ProcessKvs.retry.InMemoryRetryQueue;
+import ProcessKvs.retry.RecordingRetrier;
+import ProcessKvs.retry.RetryMetrics;
+import ProcessKvs.synthetic.StubConnectAsyncClient;
+import ProcessKvs.synthetic.StubS3AsyncClient;
+import ProcessKvs.synthetic.SyntheticCall;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs synthetic contacts through the Lambda handler against in-process stand-ins of KVS, S3 and Connect, and
+ * reports throughput, latency, memory, /tmp and GC figures for each concurrency.
+ *
+ * <pre>
+ * LoadTestCommand [--contacts N] [--concurrency N,N,...] [--batch N] [--min-seconds N] [--max-seconds N]
+ *                 [--arrival-rate N] [--gap-rate P] [--media-kbps N] [--s3-latency-ms N] [--connect-latency-ms N]
+ *                 [--recording-auth N] [--seed N]
+ * </pre>
+ *
+ * Call lengths follow a log-normal distribution between min and max seconds, as most calls are short and a few
+ * are long. Without an arrival rate the contacts are handed to the handler as fast as the concurrency allows and the
+ * latency is the time of one handler invocation. With an arrival rate, batches arrive at exponentially distributed
+ * intervals and the latency also includes the time a batch waited for a free invocation.
+ *
+ * REGION has to be set as for the function; nothing is sent to AWS.
+ */
+public final class LoadTestCommand {
+
+    private static final String BUCKET = "load-test";
+    private static final int FRAME_SAMPLES = 512;
+    // KVS fragments of a Connect stream are about two seconds long
+    private static final int FRAMES_PER_FRAGMENT = 31;
+
+    private LoadTestCommand() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int contacts = 50;
+        int[] concurrencies = {1, 2, 4, 8};
+        int batch = 1;
+        int minSeconds = 60;
+        int maxSeconds = 600;
+        double arrivalRate = 0;
+        double gapRate = 0.002;
+        int mediaKbps = 0;
+        long s3LatencyMillis = 20;
+        long connectLatencyMillis = 30;
+        int recordingAuth = 3;
+        long seed = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--contacts":
+                    contacts = Integer.parseInt(args[++i]);
+                    break;
+                case "--concurrency":
+                    String[] values = args[++i].split(",");
+                    concurrencies = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        concurrencies[j] = Integer.parseInt(values[j].trim());
+                    }
+                    break;
+                case "--batch":
+                    batch = Integer.parseInt(args[++i]);
+                    break;
+                case "--min-seconds":
+                    minSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-seconds":
+                    maxSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--arrival-rate":
+                    arrivalRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--gap-rate":
+                    gapRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--media-kbps":
+                    mediaKbps = Integer.parseInt(args[++i]);
+                    break;
+                case "--s3-latency-ms":
+                    s3LatencyMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--connect-latency-ms":
+                    connectLatencyMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--recording-auth":
+                    recordingAuth = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    usage();
+                    break;
+            }
+        }
+        if (contacts < 1 || batch < 1 || minSeconds < 1 || maxSeconds < minSeconds || System.getenv("REGION") == null) {
+            usage();
+        }
+        for (int concurrency : concurrencies) {
+            if (concurrency < 1) {
+                usage();
+            }
+        }
+
+        List<SyntheticCall> calls = calls(contacts, minSeconds, maxSeconds, gapRate, seed);
+        long audioMillis = calls.stream().mapToLong(SyntheticCall::getDurationMillis).sum();
+        System.out.println(String.format("%d contacts, %.1f minutes of audio, batches of %d", contacts, audioMillis / 60000.0, batch));
+        System.out.println(LoadTestResult.header());
+
+        long failed = 0;
+        for (int concurrency : concurrencies) {
+            LoadTestResult result = run(calls, concurrency, batch, arrivalRate, mediaKbps, s3LatencyMillis, connectLatencyMillis,
+                    recordingAuth, new Random(seed));
+            System.out.println(result.row());
+            failed += result.getFailed();
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadTestCommand [--contacts N] [--concurrency N,N,...] [--batch N] [--min-seconds N] [--max-seconds N] "
+                + "[--arrival-rate N] [--gap-rate P] [--media-kbps N] [--s3-latency-ms N] [--connect-latency-ms N] "
+                + "[--recording-auth N] [--seed N], with REGION set");
+        System.exit(2);
+    }
+
+    /**
+     * Builds the calls of a run, the same for every configuration
+     */
+    static List<SyntheticCall> calls(int contacts, int minSeconds, int maxSeconds, double gapRate, long seed) {
+        Random random = new Random(seed);
+        // median at the geometric mean of the bounds, about two thirds of the calls within a factor of 1.8 of it
+        double median = Math.log(Math.sqrt((double) minSeconds * maxSeconds));
+        List<SyntheticCall> calls = new ArrayList<>(contacts);
+        for (int i = 0; i < contacts; i++) {
+            double seconds = Math.min(maxSeconds, Math.max(minSeconds, Math.exp(median + 0.6 * random.nextGaussian())));
+            String contactId = new UUID(random.nextLong(), random.nextLong()).toString();
+            calls.add(new SyntheticCall(contactId, "load-test-" + i, (long) (seconds * 1000), FRAME_SAMPLES, FRAMES_PER_FRAGMENT,
+                    gapRate, random.nextLong()));
+        }
+        return calls;
+    }
+
+    private static LoadTestResult run(List<SyntheticCall> calls, int concurrency, int batch, double arrivalRate, int mediaKbps,
+                                      long s3LatencyMillis, long connectLatencyMillis, int recordingAuth, Random arrivals)
+            throws Exception {
+        Map<String, SyntheticCall> streams = new HashMap<>();
+        for (SyntheticCall call : calls) {
+            streams.put(call.getStreamArn().split("/")[1], call);
+        }
+
+        StubS3AsyncClient s3 = new StubS3AsyncClient(s3LatencyMillis);
+        AudioStreamService streamingService = new AudioStreamService(FrameBufferArena.shared(),
+                (streamName, startFragmentNum, startSelectorType) -> {
+                    InputStream media = streams.get(streamName).openMedia();
+                    return mediaKbps > 0 ? new ThrottledInputStream(media, mediaKbps * 1000L / 8) : media;
+                },
+                (recording, fileName, body, contentType, metadata) -> s3.putObject(
+                        builder -> builder.bucket(BUCKET).key(fileName).contentType(contentType).metadata(metadata), body)
+                        .thenApply(response -> new S3UploadInfo(BUCKET, fileName, AwsClients.region())));
+
+        AtomicLong failed = new AtomicLong();
+        RetryMetrics metrics = new RetryMetrics(line -> {
+            JSONObject counts = new JSONObject(line);
+            failed.addAndGet(counts.optLong("RecordsRetried") + counts.optLong("RecordsDeadLettered") + counts.optLong("RecordsLost"));
+        });
+        ProcessKvsLambda handler = new ProcessKvsLambda(streamingService,
+                new ContactAttributesWriter(new StubConnectAsyncClient(connectLatencyMillis), new TokenBucket(1000, 1000), 0),
+                new RecordingManifestWriter(s3, BUCKET, "manifest/", 100),
+                new RecordingRetrier(new InMemoryRetryQueue(), null, 1, 0, metrics));
+
+        List<KinesisEvent> events = new ArrayList<>();
+        for (int i = 0; i < calls.size(); i += batch) {
+            List<String> ctrs = new ArrayList<>();
+            for (SyntheticCall call : calls.subList(i, Math.min(calls.size(), i + batch))) {
+                ctrs.add(call.ctr(recordingAuth).toString());
+            }
+            events.add(kinesisEvent(ctrs));
+        }
+
+        System.gc();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long[] latencyNanos = new long[events.size()];
+        AtomicInteger next = new AtomicInteger();
+        List<Future<?>> invocations = new ArrayList<>();
+        ResourceSampler resources = new ResourceSampler();
+        long start = System.nanoTime();
+        long elapsed;
+        try (resources) {
+            long arrival = start;
+            for (KinesisEvent event : events) {
+                if (arrivalRate > 0) {
+                    arrival += (long) (-Math.log(1 - arrivals.nextDouble()) / arrivalRate * 1e9);
+                    long wait = arrival - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                long submitted = System.nanoTime();
+                invocations.add(workers.submit(() -> {
+                    long started = System.nanoTime();
+                    handler.handleRequest(event, null);
+                    latencyNanos[next.getAndIncrement()] = System.nanoTime() - (arrivalRate > 0 ? submitted : started);
+                }));
+            }
+            for (Future<?> invocation : invocations) {
+                invocation.get();
+            }
+            elapsed = System.nanoTime() - start;
+        } finally {
+            workers.shutdown();
+        }
+        return new LoadTestResult(concurrency, calls.size(), calls.stream().mapToLong(SyntheticCall::getDurationMillis).sum(),
+                elapsed, latencyNanos, failed.get(), resources);
+    }
+
+    static KinesisEvent kinesisEvent(List<String> ctrs) {
+        List<KinesisEvent.KinesisEventRecord> records = new ArrayList<>();
+        for (int i = 0; i < ctrs.size(); i++) {
+            KinesisEvent.Record kinesis = new KinesisEvent.Record();
+            kinesis.setData(ByteBuffer.wrap(ctrs.get(i).getBytes(StandardCharsets.UTF_8)));
+            kinesis.setSequenceNumber(Integer.toString(i));
+            KinesisEvent.KinesisEventRecord record = new KinesisEvent.KinesisEventRecord();
+            record.setKinesis(kinesis);
+            records.add(record);
+        }
+        KinesisEvent event = new KinesisEvent();
+        event.setRecords(records);
+        return event;
+    }
+}
@@ -0,0 +1,100 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Results of one configuration of a load test run
+ */
+final class LoadTestResult {
+
+    private final int concurrency;
+    private final int contacts;
+    private final long audioMillis;
+    private final long elapsedNanos;
+    private final long[] latencyNanos;
+    private final long failed;
+    private final ResourceSampler resources;
+
+    /**
+     * @param concurrency parallel handler invocations
+     * @param contacts processed contacts
+     * @param audioMillis length of the processed calls
+     * @param elapsedNanos wall time of the run
+     * @param latencyNanos time of each handler invocation
+     * @param failed records the handler gave to the retry queue or could not process
+     * @param resources sampler closed at the end of the run
+     */
+    LoadTestResult(int concurrency, int contacts, long audioMillis, long elapsedNanos, long[] latencyNanos, long failed,
+                   ResourceSampler resources) {
+        this.concurrency = concurrency;
+        this.contacts = contacts;
+        this.audioMillis = audioMillis;
+        this.elapsedNanos = elapsedNanos;
+        this.latencyNanos = latencyNanos.clone();
+        Arrays.sort(this.latencyNanos);
+        this.failed = failed;
+        this.resources = resources;
+    }
+
+    long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Nearest-rank percentile
+     *
+     * @param sorted values in ascending order
+     * @param percent percentile between 0 and 100
+     * @return smallest value that at least percent of the values are less than or equal to, 0 if there are none
+     */
+    static long percentile(long[] sorted, double percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+    }
+
+    static String header() {
+        return String.format("%11s %10s %9s %9s %9s %9s %9s %9s %9s %9s %7s %8s",
+                "concurrency", "contacts/s", "realtime", "p50 ms", "p95 ms", "p99 ms",
+                "heap MB", "direct MB", "arena MB", "tmp MB", "gc ms", "failed");
+    }
+
+    /**
+     * @return one line of the results table, aligned with header()
+     */
+    String row() {
+        double seconds = elapsedNanos / 1e9;
+        return String.format("%11d %10.2f %8.1fx %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %7d %8d",
+                concurrency,
+                contacts / seconds,
+                audioMillis / 1000.0 / seconds,
+                percentile(latencyNanos, 50) / 1e6,
+                percentile(latencyNanos, 95) / 1e6,
+                percentile(latencyNanos, 99) / 1e6,
+                megabytes(resources.getPeakHeap()),
+                megabytes(resources.getPeakOffHeap()),
+                megabytes(resources.getPeakArena()),
+                megabytes(resources.getPeakTmp()),
+                resources.getGcMillis(),
+                failed);
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
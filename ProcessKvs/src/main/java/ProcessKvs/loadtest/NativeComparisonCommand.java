@@ -0,0 +1,234 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs WavDigestCommand in new JVMs, started with the options of the java17 function, and in new processes of the
+ * native image, checks that both upload the same bytes, and compares their startup time and peak resident memory.
+ *
+ * <pre>
+ * NativeComparisonCommand --binary PATH [--runs N] [--contacts N] [--seconds N]
+ * </pre>
+ *
+ * Every run is a new process, so the figures are those of a cold start. Exits with 1 if an object differs.
+ */
+public final class NativeComparisonCommand {
+
+    // JAVA_TOOL_OPTIONS of template.yaml
+    private static final List<String> JVM_OPTIONS = Arrays.asList("-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1");
+
+    private NativeComparisonCommand() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String binary = null;
+        int runs = 3;
+        List<String> digestArgs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--binary":
+                    binary = args[++i];
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--contacts":
+                case "--seconds":
+                    digestArgs.add(args[i]);
+                    digestArgs.add(args[++i]);
+                    break;
+                default:
+                    usage();
+                    break;
+            }
+        }
+        if (binary == null || runs < 1 || System.getenv("REGION") == null) {
+            usage();
+        }
+        if (!Files.isExecutable(Paths.get(binary))) {
+            System.err.println("Native image not found: " + binary + ", build it with ./gradlew nativeCompile");
+            System.exit(2);
+        }
+
+        List<String> jvm = new ArrayList<>();
+        jvm.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        jvm.addAll(JVM_OPTIONS);
+        jvm.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), WavDigestCommand.class.getName()));
+        jvm.addAll(digestArgs);
+
+        List<String> nativeImage = new ArrayList<>();
+        nativeImage.add(binary);
+        nativeImage.add(WavDigestCommand.NAME);
+        nativeImage.addAll(digestArgs);
+
+        List<Run> jvmRuns = new ArrayList<>();
+        List<Run> nativeRuns = new ArrayList<>();
+        // alternate, so both see the same page cache and machine load
+        for (int i = 0; i < runs; i++) {
+            jvmRuns.add(run(jvm));
+            nativeRuns.add(run(nativeImage));
+        }
+
+        System.out.println(String.format("%-8s %11s %17s %9s %12s", "runtime", "startup-ms", "first-contact-ms", "total-ms", "peak-rss-mb"));
+        System.out.println(summary("jvm", jvmRuns));
+        System.out.println(summary("native", nativeRuns));
+
+        Run expected = jvmRuns.get(0);
+        Set<String> differences = new TreeSet<>();
+        for (Run actual : jvmRuns) {
+            differences.addAll(differences(expected, actual));
+        }
+        for (Run actual : nativeRuns) {
+            differences.addAll(differences(expected, actual));
+        }
+        if (expected.getObjects().isEmpty() || !differences.isEmpty()) {
+            System.out.println(String.format("Outputs differ: %s", expected.getObjects().isEmpty() ? "no objects written" : differences));
+            System.exit(1);
+        }
+        System.out.println(String.format("%d objects identical in %d JVM and %d native runs", expected.getObjects().size(), runs, runs));
+    }
+
+    private static void usage() {
+        System.err.println("Usage: NativeComparisonCommand --binary PATH [--runs N] [--contacts N] [--seconds N], with REGION set");
+        System.exit(2);
+    }
+
+    private static Run run(List<String> command) throws IOException, InterruptedException {
+        // the log of the pipeline goes to stderr, only the digest lines are read
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException(String.format("%s exited with %d, run it alone to see its log", String.join(" ", command), exitCode));
+        }
+        return Run.parse(lines);
+    }
+
+    private static String summary(String runtime, List<Run> runs) {
+        return String.format("%-8s %11d %17d %9d %12.1f", runtime,
+                median(runs, Run::getStartupMillis),
+                median(runs, Run::getFirstContactMillis),
+                median(runs, Run::getTotalMillis),
+                median(runs, Run::getPeakRssKb) / 1024.0);
+    }
+
+    private static long median(List<Run> runs, ToLongFunction<Run> figure) {
+        return LoadTestResult.percentile(runs.stream().mapToLong(figure).sorted().toArray(), 50);
+    }
+
+    /**
+     * @return names of the objects that are missing in one of the runs or whose content differs
+     */
+    static Set<String> differences(Run expected, Run actual) {
+        Set<String> differences = new TreeSet<>();
+        Set<String> names = new TreeSet<>(expected.getObjects().keySet());
+        names.addAll(actual.getObjects().keySet());
+        for (String name : names) {
+            if (!String.valueOf(expected.getObjects().get(name)).equals(String.valueOf(actual.getObjects().get(name)))) {
+                differences.add(name);
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * Output of one WavDigestCommand process
+     */
+    static final class Run {
+        private final Map<String, String> objects = new TreeMap<>();
+        private long startupMillis;
+        private long firstContactMillis;
+        private long totalMillis;
+        private long peakRssKb;
+
+        /**
+         * @param lines standard output of the process, other lines than those of WavDigestCommand are skipped
+         */
+        static Run parse(List<String> lines) {
+            Run run = new Run();
+            for (String line : lines) {
+                String[] fields = line.split(" ");
+                switch (fields[0]) {
+                    case WavDigestCommand.OBJECT:
+                        if (fields.length == 4) {
+                            // digest and length, by object name
+                            run.objects.put(fields[3], fields[1] + " " + fields[2]);
+                        }
+                        break;
+                    case WavDigestCommand.STARTUP_MS:
+                        run.startupMillis = value(fields);
+                        break;
+                    case WavDigestCommand.FIRST_CONTACT_MS:
+                        run.firstContactMillis = value(fields);
+                        break;
+                    case WavDigestCommand.TOTAL_MS:
+                        run.totalMillis = value(fields);
+                        break;
+                    case WavDigestCommand.PEAK_RSS_KB:
+                        run.peakRssKb = value(fields);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return run;
+        }
+
+        private static long value(String[] fields) {
+            return fields.length == 2 ? Long.parseLong(fields[1]) : -1;
+        }
+
+        Map<String, String> getObjects() {
+            return objects;
+        }
+
+        long getStartupMillis() {
+            return startupMillis;
+        }
+
+        long getFirstContactMillis() {
+            return firstContactMillis;
+        }
+
+        long getTotalMillis() {
+            return totalMillis;
+        }
+
+        long getPeakRssKb() {
+            return peakRssKb;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.loadtest;
+
+import ProcessKvs.audio.FrameBufferArena;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Samples the memory and /tmp usage of the process while a load test runs, and the time spent in garbage collection
+ */
+class ResourceSampler implements AutoCloseable {
+
+    private static final long INTERVAL_MS = 50;
+    private static final Path TMP = Paths.get("/tmp");
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "load-test-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long tmpBaseline;
+    private final long gcTimeBaseline;
+    private final long gcCountBaseline;
+
+    // written by the sampler thread
+    private volatile long peakHeap;
+    private volatile long peakOffHeap;
+    private volatile long peakArena;
+    private volatile long peakTmp;
+
+    ResourceSampler() {
+        tmpBaseline = tmpUsage();
+        gcTimeBaseline = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        gcCountBaseline = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        scheduler.scheduleAtFixedRate(this::sample, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sample() {
+        peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+        peakOffHeap = Math.max(peakOffHeap, bufferPools.stream().mapToLong(BufferPoolMXBean::getMemoryUsed).sum());
+        peakArena = Math.max(peakArena, FrameBufferArena.shared().getInUse());
+        peakTmp = Math.max(peakTmp, tmpUsage() - tmpBaseline);
+    }
+
+    /**
+     * @return highest sampled heap usage
+     */
+    long getPeakHeap() {
+        return peakHeap;
+    }
+
+    /**
+     * @return highest sampled usage of the direct and mapped buffer pools
+     */
+    long getPeakOffHeap() {
+        return peakOffHeap;
+    }
+
+    /**
+     * @return highest sampled number of bytes taken from FrameBufferArena
+     */
+    long getPeakArena() {
+        return peakArena;
+    }
+
+    /**
+     * @return highest sampled size of the files in /tmp, above the size when the sampler started
+     */
+    long getPeakTmp() {
+        return peakTmp;
+    }
+
+    long getGcMillis() {
+        return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum() - gcTimeBaseline;
+    }
+
+    long getGcCount() {
+        return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum() - gcCountBaseline;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        sample();
+    }
+
+    // the scratch files of the spilled tracks, the only files the function writes
+    private static long tmpUsage() {
+        try (Stream<Path> files = Files.list(TMP)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    // deleted while listed
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.loadtest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the read rate of a stream, to stand for the download rate of a GetMedia response
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+    private final double bytesPerNano;
+    private final long startNanos = System.nanoTime();
+    private long bytesRead;
+
+    /**
+     * @param in stream to read
+     * @param bytesPerSecond read rate
+     */
+    ThrottledInputStream(InputStream in, long bytesPerSecond) {
+        super(in);
+        this.bytesPerNano = bytesPerSecond / 1e9;
+    }
+
+    @Override
+    public int read() throws IOException {
+        pace(1);
+        int b = super.read();
+        if (b >= 0) {
+            bytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // small reads, so the data arrives spread over time as from a socket
+        int count = Math.min(len, 8192);
+        pace(count);
+        int read = super.read(b, off, count);
+        if (read > 0) {
+            bytesRead += read;
+        }
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    /**
+     * Waits until the next bytes are due
+     */
+    private void pace(int bytes) throws IOException {
+        long dueNanos = startNanos + (long) ((bytesRead + bytes) / bytesPerNano);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.loadtest;
+
+import ProcessKvs.ProcessKvsLambda;
+import ProcessKvs.audio.AudioStreamService;
+import ProcessKvs.audio.FrameBufferArena;
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.TokenBucket;
+import ProcessKvs.connect.ContactAttributesWriter;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.manifest.RecordingManifestWriter;
+import ProcessKvs.retry.InMemoryRetryQueue;
+import ProcessKvs.retry.RecordingRetrier;
+import ProcessKvs.retry.RetryMetrics;
+import ProcessKvs.synthetic.StubConnectAsyncClient;
+import ProcessKvs.synthetic.StubS3AsyncClient;
+import ProcessKvs.synthetic.SyntheticCall;
+import org.json.JSONObject;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes fixed synthetic contacts through the Lambda handler against in-process stand-ins, and prints the SHA-256
+ * digest of every object the pipeline uploads, followed by its startup time and peak resident memory.
+ *
+ * <pre>
+ * WavDigestCommand [--contacts N] [--seconds N]
+ * </pre>
+ *
+ * The output is the same for every run of a build. NativeComparisonCommand runs it on the JVM and in the native
+ * image and compares the two.
+ *
+ * REGION has to be set as for the function; nothing is sent to AWS.
+ */
+public final class WavDigestCommand {
+
+    // first argument of the native image to run this command instead of the Lambda runtime client
+    public static final String NAME = "wav-digest";
+
+    static final String OBJECT = "object";
+    static final String STARTUP_MS = "startup-ms";
+    static final String FIRST_CONTACT_MS = "first-contact-ms";
+    static final String TOTAL_MS = "total-ms";
+    static final String PEAK_RSS_KB = "peak-rss-kb";
+    static final String FAILED = "failed";
+
+    private static final String BUCKET = "wav-digest";
+    private static final int FRAME_SAMPLES = 512;
+    private static final int FRAMES_PER_FRAGMENT = 31;
+
+    private WavDigestCommand() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int contacts = 3;
+        int seconds = 60;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--contacts":
+                    contacts = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    usage();
+                    break;
+            }
+        }
+        if (contacts < 1 || seconds < 1 || System.getenv("REGION") == null) {
+            usage();
+        }
+
+        Map<String, SyntheticCall> streams = new HashMap<>();
+        List<SyntheticCall> calls = new ArrayList<>();
+        for (int i = 0; i < contacts; i++) {
+            // different lengths, so the tracks end in different places of a segment and of a fragment
+            SyntheticCall call = new SyntheticCall(new UUID(0, i + 1).toString(), "wav-digest-" + i,
+                    seconds * 1000L * (i + 1) / contacts + 137L * i, FRAME_SAMPLES, FRAMES_PER_FRAGMENT, 0.002, i);
+            streams.put(call.getStreamArn().split("/")[1], call);
+            calls.add(call);
+        }
+
+        Map<String, String> objects = new ConcurrentSkipListMap<>();
+        AudioStreamService streamingService = new AudioStreamService(FrameBufferArena.shared(),
+                (streamName, startFragmentNum, startSelectorType) -> streams.get(streamName).openMedia(),
+                (recording, fileName, body, contentType, metadata) -> digest(body)
+                        .thenApply(digest -> {
+                            objects.put(fileName, digest);
+                            return new S3UploadInfo(BUCKET, fileName, AwsClients.region());
+                        }));
+
+        AtomicLong failed = new AtomicLong();
+        RetryMetrics metrics = new RetryMetrics(line -> {
+            JSONObject counts = new JSONObject(line);
+            failed.addAndGet(counts.optLong("RecordsRetried") + counts.optLong("RecordsDeadLettered") + counts.optLong("RecordsLost"));
+        });
+        ProcessKvsLambda handler = new ProcessKvsLambda(streamingService,
+                new ContactAttributesWriter(new StubConnectAsyncClient(), new TokenBucket(1000, 1000), 0),
+                new RecordingManifestWriter(new StubS3AsyncClient(), BUCKET, "manifest/", 100),
+                new RecordingRetrier(new InMemoryRetryQueue(), null, 1, 0, metrics));
+        long startupMillis = sinceProcessStart();
+
+        long start = System.nanoTime();
+        long firstContactMillis = 0;
+        for (SyntheticCall call : calls) {
+            handler.handleRequest(LoadTestCommand.kinesisEvent(Collections.singletonList(call.ctr(3).toString())), null);
+            if (firstContactMillis == 0) {
+                firstContactMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        objects.forEach((fileName, digest) -> System.out.println(OBJECT + " " + digest + " " + fileName));
+        System.out.println(STARTUP_MS + " " + startupMillis);
+        System.out.println(FIRST_CONTACT_MS + " " + firstContactMillis);
+        System.out.println(TOTAL_MS + " " + totalMillis);
+        System.out.println(PEAK_RSS_KB + " " + peakRssKb());
+        System.out.println(FAILED + " " + failed.get());
+        System.exit(failed.get() > 0 ? 1 : 0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: WavDigestCommand [--contacts N] [--seconds N], with REGION set");
+        System.exit(2);
+    }
+
+    /**
+     * Reads a request body the way the SDK does
+     *
+     * @return future completed with the hex SHA-256 digest and the length of the body
+     */
+    private static CompletableFuture<String> digest(AsyncRequestBody body) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<String> digested = new CompletableFuture<>();
+        body.subscribe(new Subscriber<ByteBuffer>() {
+            private long bytes;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+                bytes += buffer.remaining();
+                sha256.update(buffer);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                digested.completeExceptionally(e);
+            }
+
+            @Override
+            public void onComplete() {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : sha256.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                digested.complete(hex + " " + bytes);
+            }
+        });
+        return digested;
+    }
+
+    private static long sinceProcessStart() {
+        return ProcessHandle.current().info().startInstant()
+                .map(started -> System.currentTimeMillis() - started.toEpochMilli())
+                .orElse(-1L);
+    }
+
+    // VmHWM of /proc/self/status, the peak resident set, -1 where it is not available
+    private static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,194 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.manifest;
+
+import ProcessKvs.model.RecordedObject;
+import ProcessKvs.model.RecordingData;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Writes an index of the uploaded recordings as JSON Lines files, one record per recording, partitioned by the day
+ * the recordings are filed under.
+ *
+ * Records are batched in memory and written as new objects under MANIFEST_KEY_PREFIX/dt=yyyy-MM-dd/, so a day is
+ * looked up by reading its manifest files instead of listing the recordings prefix, and the folder can be queried
+ * with Athena as a date partitioned JSON table. Files are never rewritten. A batch is written once it reaches
+ * MANIFEST_BATCH_RECORDS records, and flush writes the rest before the handler returns.
+ */
+public class RecordingManifestWriter {
+
+    private static final String RECORDINGS_BUCKET_NAME = System.getenv("RECORDINGS_BUCKET_NAME");
+    private static final String MANIFEST_KEY_PREFIX = System.getenv("MANIFEST_KEY_PREFIX") != null
+            ? System.getenv("MANIFEST_KEY_PREFIX") : System.getenv("RECORDINGS_KEY_PREFIX") + "manifest/";
+    private static final int MANIFEST_BATCH_RECORDS = NumberUtils.toInt(System.getenv("MANIFEST_BATCH_RECORDS"), 500);
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'").withZone(ZoneOffset.UTC);
+    private static final Logger logger = LoggerFactory.getLogger(RecordingManifestWriter.class);
+
+    private final S3AsyncClient s3;
+    private final String bucketName;
+    private final String keyPrefix;
+    private final int batchRecords;
+
+    // guarded by this
+    private final Map<LocalDate, List<String>> pending = new TreeMap<>();
+    private final List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+
+    public RecordingManifestWriter(S3AsyncClient s3) {
+        this(s3, RECORDINGS_BUCKET_NAME, MANIFEST_KEY_PREFIX, MANIFEST_BATCH_RECORDS);
+    }
+
+    public RecordingManifestWriter(S3AsyncClient s3, String bucketName, String keyPrefix, int batchRecords) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.keyPrefix = keyPrefix;
+        this.batchRecords = batchRecords;
+    }
+
+    /**
+     * Adds the manifest record of a processed recording. Recordings without uploaded objects are not indexed.
+     *
+     * @param recording recording with its uploaded objects
+     */
+    public synchronized void add(RecordingData recording) {
+        if (recording.getObjects() == null || recording.getObjects().isEmpty()) {
+            return;
+        }
+
+        LocalDate day = partitionDay(recording.getInitiationTimestamp());
+        List<String> lines = pending.computeIfAbsent(day, d -> new ArrayList<>());
+        lines.add(toJson(recording).toString());
+        if (lines.size() >= batchRecords) {
+            pending.remove(day);
+            inFlight.add(write(day, lines));
+        }
+    }
+
+    /**
+     * Writes every batched record and waits for all manifest files of this invocation. Batches that could not be
+     * written are kept and retried by the next flush of this instance.
+     *
+     * @return number of manifest files that failed
+     */
+    public int flush() {
+        List<CompletableFuture<Void>> waiting;
+        synchronized (this) {
+            // a write that fails right away puts its records back into pending
+            Map<LocalDate, List<String>> batches = new TreeMap<>(pending);
+            pending.clear();
+            batches.forEach((day, lines) -> inFlight.add(write(day, lines)));
+            waiting = new ArrayList<>(inFlight);
+        }
+
+        int failed = 0;
+        for (CompletableFuture<Void> file : waiting) {
+            try {
+                file.join();
+            } catch (CompletionException e) {
+                failed++;
+            }
+        }
+
+        synchronized (this) {
+            inFlight.removeAll(waiting);
+        }
+
+        if (failed > 0) {
+            logger.error(String.format("%d of %d manifest files failed, their records are retried on the next flush", failed, waiting.size()));
+        }
+        return failed;
+    }
+
+    private CompletableFuture<Void> write(LocalDate day, List<String> lines) {
+        String objectKey = keyPrefix + "dt=" + day + "/" + FILE_TIMESTAMP.format(ZonedDateTime.now()) + "-" + UUID.randomUUID() + ".jsonl";
+        byte[] content = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .contentType("application/x-ndjson")
+                .build();
+
+        CompletableFuture<Void> upload;
+        try {
+            upload = s3.putObject(request, AsyncRequestBody.fromBytes(content)).thenApply(response -> null);
+        } catch (RuntimeException e) {
+            upload = CompletableFuture.failedFuture(e);
+        }
+
+        return upload.whenComplete((result, e) -> {
+            if (e == null) {
+                logger.info(String.format("Manifest %s written with %d records", objectKey, lines.size()));
+                return;
+            }
+            logger.error(String.format("Writing manifest %s failed", objectKey), e);
+            synchronized (this) {
+                pending.computeIfAbsent(day, d -> new ArrayList<>()).addAll(0, lines);
+            }
+        });
+    }
+
+    /**
+     * Recordings are filed under the date of the contact initiation timestamp, see AudioUtils
+     */
+    static LocalDate partitionDay(String initiationTimestamp) {
+        return ZonedDateTime.parse(initiationTimestamp, DateTimeFormatter.ISO_DATE_TIME).toLocalDate();
+    }
+
+    static JSONObject toJson(RecordingData recording) {
+        JSONArray objects = new JSONArray();
+        for (RecordedObject object : recording.getObjects()) {
+            objects.put(new JSONObject()
+                    .put("track", object.getTrack())
+                    .put("bucket", object.getBucketName())
+                    .put("key", object.getObjectKey())
+                    .put("bytes", object.getBytes())
+                    .put("channels", object.getChannels())
+                    .put("sampleRate", object.getSampleRate()));
+        }
+
+        // null values are left out of the record
+        return new JSONObject()
+                .put("contactId", recording.getContactId())
+                .put("initialContactId", recording.getInitialContactId())
+                .put("instanceArn", recording.getInstanceARN())
+                .put("queue", recording.getQueueName())
+                .put("agent", recording.getAgentName())
+                .put("initiationTimestamp", recording.getInitiationTimestamp())
+                .put("startTimestamp", recording.getStartTimestamp())
+                .put("stopTimestamp", recording.getStopTimestamp())
+                .put("durationMillis", recording.getDurationMillis())
+                .put("objects", objects);
+    }
+}
@@ -0,0 +1,79 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Audio quality and conversation metrics of a recording, computed while its tracks are read
+ */
+@Data
+@AllArgsConstructor
+public class CallAnalytics {
+
+    // null if the track was not recorded
+    private TrackAnalytics customer;
+    private TrackAnalytics agent;
+
+    // time both parties talked at once, 0 unless both tracks were recorded
+    private long crossTalkMillis;
+    // share of the recording in which nobody talked
+    private double silenceRatio;
+
+    /**
+     * @return metrics as S3 user metadata, for example customer-talk-seconds
+     */
+    public Map<String, String> toMetadata() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        toAttributes().forEach((name, value) -> metadata.put(name.replaceAll("([A-Z])", "-$1").toLowerCase(Locale.ROOT), value));
+        return metadata;
+    }
+
+    /**
+     * @return metrics as contact attributes, for example customerTalkSeconds
+     */
+    public Map<String, String> toAttributes() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        putTrack(attributes, "customer", customer);
+        putTrack(attributes, "agent", agent);
+        if (customer != null && agent != null) {
+            attributes.put("crossTalkSeconds", seconds(crossTalkMillis));
+        }
+        attributes.put("silenceRatio", format(silenceRatio));
+        return attributes;
+    }
+
+    private static void putTrack(Map<String, String> attributes, String party, TrackAnalytics track) {
+        if (track == null) {
+            return;
+        }
+        attributes.put(party + "TalkSeconds", seconds(track.getTalkMillis()));
+        attributes.put(party + "RmsDbfs", String.format(Locale.ROOT, "%.1f", track.getRmsDbfs()));
+        attributes.put(party + "PeakDbfs", String.format(Locale.ROOT, "%.1f", track.getPeakDbfs()));
+        attributes.put(party + "ClippingRatio", format(track.getClippingRatio()));
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.1f", millis / 1000.0);
+    }
+
+    private static String format(double ratio) {
+        return String.format(Locale.ROOT, "%.4f", ratio);
+    }
+}
@@ -13,4 +13,11 @@ public class ConnectAttributesData {
     private String audioFromCustomer;
     private String audioToCustomer;
     private String audioMixed;
+    private String audioFromCustomerPlaylist;
+    private String audioToCustomerPlaylist;
+    private String audioMixedPlaylist;
+    // urls of the recordings of a consolidated track
+    private String audioFromCustomerRecordings;
+    private String audioToCustomerRecordings;
+    private String audioMixedRecordings;
 }
@@ -28,6 +28,8 @@ public class ContactTraceRecord {
     private final String channel;
     private final String initialContactId;
     private final String initiationTimestamp;
+    private final String queueName;
+    private final String agentUsername;
     private final CustomerEndpoint customerEndpoint;
     private final ContactFlowAttributes attributes;
     private final List<KVStreamRecordingData> recordings = new ArrayList<>();
@@ -38,6 +40,10 @@ public class ContactTraceRecord {
         this.channel = jsonObject.getString("Channel");
         this.initialContactId = jsonObject.isNull("InitialContactId") ? null : jsonObject.getString("InitialContactId");
         this.initiationTimestamp = jsonObject.getString("InitiationTimestamp");
+        JSONObject queue = jsonObject.optJSONObject("Queue");
+        this.queueName = queue == null || queue.isNull("Name") ? null : queue.getString("Name");
+        JSONObject agent = jsonObject.optJSONObject("Agent");
+        this.agentUsername = agent == null || agent.isNull("Username") ? null : agent.getString("Username");
         this.customerEndpoint = new CustomerEndpoint(jsonObject.getJSONObject("CustomerEndpoint"));
         this.attributes = new ContactFlowAttributes(jsonObject.getJSONObject("Attributes"));
         JSONArray recordings = jsonObject.isNull("Recordings") ? null : jsonObject.getJSONArray("Recordings");
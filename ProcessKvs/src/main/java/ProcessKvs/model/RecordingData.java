@@ -6,6 +6,11 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.joda.time.DateTime;
 
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
 @Data
 @Builder(setterPrefix = "with")
 @NoArgsConstructor
@@ -22,16 +27,48 @@ public class RecordingData {
     private String customerNumber;
     private String languageCode;
     private String agentName;
+    private String queueName;
 
     private String streamARN;
     private String startFragmentNum;
     private String startTimestamp;
     private String stopFragmentNumber;
     private String stopTimestamp;
+    // 1, 2, ... if the contact has several recordings, 0 if it has one
+    private int recordingNumber;
 
     private String audioFromCustomer;
     private String audioToCustomer;
     private String audioMixed;
+    private String audioFromCustomerPlaylist;
+    private String audioToCustomerPlaylist;
+    private String audioMixedPlaylist;
+
+    // filled in once the recording has been uploaded
+    private long durationMillis;
+    private List<RecordedObject> objects;
+    // uploads that failed, by track, such as AUDIO_MIXED or AUDIO_FROM_CUSTOMER_PLAYLIST
+    private List<String> failedObjects;
+    private CallAnalytics analytics;
 
     private DateTime dateTime;
+
+    /**
+     * @param timestamp ISO timestamp of a CTR recording, or epoch milliseconds of a contact flow media stream
+     * @return epoch milliseconds, or -1 if the timestamp is missing or not valid
+     */
+    public static long toEpochMillis(String timestamp) {
+        if (timestamp == null || timestamp.isEmpty()) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(timestamp, DateTimeFormatter.ISO_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            try {
+                return Long.parseLong(timestamp);
+            } catch (NumberFormatException ignored) {
+                return -1;
+            }
+        }
+    }
 }
@@ -0,0 +1,33 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Audio quality of one track of a recording
+ */
+@Data
+@AllArgsConstructor
+public class TrackAnalytics {
+
+    private long durationMillis;
+    // time in 20 ms windows above the speech threshold
+    private long talkMillis;
+    private double rmsDbfs;
+    private double peakDbfs;
+    // share of the samples at full scale
+    private double clippingRatio;
+}
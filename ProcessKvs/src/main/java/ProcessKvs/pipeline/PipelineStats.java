@@ -0,0 +1,132 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utilisation of the stages of a pipeline, computed from the waiting times recorded by the queues between them.
+ *
+ * A stage is idle while it waits for its input queue or for room in its output queue, and busy for the rest of the
+ * run, which includes its own blocking I/O. The stage closest to 100% bounds the throughput of the pipeline, and the
+ * queue in front of it is the one that fills up.
+ */
+public final class PipelineStats {
+
+    private final List<StageStats> stages;
+
+    private PipelineStats(List<StageStats> stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * @param elapsedNanos duration of the run
+     * @param names names of the stages in order, one more than queues
+     * @param queues queues between the stages, queues[i] connects stage i and stage i + 1
+     */
+    public static PipelineStats of(long elapsedNanos, String[] names, StageQueue<?>... queues) {
+        if (names.length != queues.length + 1) {
+            throw new IllegalArgumentException("Expected " + (queues.length + 1) + " stage names");
+        }
+        List<StageStats> stages = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            StageQueue<?> input = i > 0 ? queues[i - 1] : null;
+            StageQueue<?> output = i < queues.length ? queues[i] : null;
+            long idleNanos = (input != null ? input.getConsumerWaitNanos() : 0) + (output != null ? output.getProducerBlockedNanos() : 0);
+            double utilisation = elapsedNanos <= 0 ? 0 : Math.max(0, 1 - (double) idleNanos / elapsedNanos);
+            stages.add(new StageStats(names[i], utilisation, input));
+        }
+        return new PipelineStats(stages);
+    }
+
+    public List<StageStats> getStages() {
+        return stages;
+    }
+
+    /**
+     * @return the busiest stage
+     */
+    public StageStats getBottleneck() {
+        StageStats bottleneck = stages.get(0);
+        for (StageStats stage : stages) {
+            if (stage.getUtilisation() > bottleneck.getUtilisation()) {
+                bottleneck = stage;
+            }
+        }
+        return bottleneck;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (StageStats stage : stages) {
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(stage);
+        }
+        return summary.append(", bottleneck: ").append(getBottleneck().getName()).toString();
+    }
+
+    public static final class StageStats {
+        private final String name;
+        private final double utilisation;
+        private final int queueCapacity;
+        private final double averageQueueDepth;
+        private final long maxQueueDepth;
+
+        StageStats(String name, double utilisation, StageQueue<?> input) {
+            this.name = name;
+            this.utilisation = utilisation;
+            this.queueCapacity = input != null ? input.getCapacity() : 0;
+            this.averageQueueDepth = input != null ? input.getAverageDepth() : 0;
+            this.maxQueueDepth = input != null ? input.getMaxDepth() : 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return share of the run the stage was busy, between 0 and 1
+         */
+        public double getUtilisation() {
+            return utilisation;
+        }
+
+        /**
+         * @return capacity of the input queue, 0 for the first stage
+         */
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public double getAverageQueueDepth() {
+            return averageQueueDepth;
+        }
+
+        public long getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        @Override
+        public String toString() {
+            String stage = String.format("%s %d%%", name, Math.round(utilisation * 100));
+            return queueCapacity == 0 ? stage
+                    : String.format("%s (queue avg %.1f, max %d of %d)", stage, averageQueueDepth, maxQueueDepth, queueCapacity);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+/**
+ * Input stream that reads its source ahead on another thread, so the network download continues while the consumer
+ * parses what was already received.
+ *
+ * The source is read into fixed size chunks that are passed through a StageQueue, so at most depth chunks are read
+ * ahead. Consumed chunks are reused for the next reads.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private final InputStream source;
+    private final StageQueue<Chunk> chunks;
+    private final ArrayBlockingQueue<byte[]> free;
+    private final int chunkSize;
+
+    private Chunk current;
+    private boolean closed;
+
+    /**
+     * Starts reading the source
+     *
+     * @param source stream to read ahead, closed with this stream
+     * @param chunkSize bytes per chunk
+     * @param depth chunks read ahead of the consumer
+     * @param executor runs the reading task
+     */
+    public ReadAheadInputStream(InputStream source, int chunkSize, int depth, Executor executor) {
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.chunks = new StageQueue<>("read-ahead", depth);
+        // the queued chunks, the one being read and the one being filled
+        this.free = new ArrayBlockingQueue<>(depth + 2);
+        executor.execute(this::fill);
+    }
+
+    /**
+     * @return queue between the reading task and the consumer, for its statistics
+     */
+    public StageQueue<?> getQueue() {
+        return chunks;
+    }
+
+    private void fill() {
+        try {
+            while (!chunks.isCancelled()) {
+                byte[] buffer = free.poll();
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+                int read = source.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    chunks.close();
+                    return;
+                }
+                // fill the chunk with what has already arrived, without waiting for more
+                int length = read;
+                while (length < buffer.length && source.available() > 0 && (read = source.read(buffer, length, buffer.length - length)) > 0) {
+                    length += read;
+                }
+                if (length > 0) {
+                    chunks.put(new Chunk(buffer, length));
+                }
+            }
+        } catch (CancellationException e) {
+            // closed by the consumer
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            chunks.fail(e);
+        } catch (IOException | RuntimeException e) {
+            chunks.fail(e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current.buffer[current.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - current.position);
+        System.arraycopy(current.buffer, current.position, b, off, count);
+        current.position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - current.position;
+    }
+
+    /**
+     * Stops the reading task and closes the source
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunks.cancel();
+        source.close();
+    }
+
+    /**
+     * @return false at the end of the source
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && current.position < current.length) {
+            return true;
+        }
+        if (current != null) {
+            free.offer(current.buffer);
+            current = null;
+        }
+        try {
+            current = chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead", e);
+        }
+        return current != null;
+    }
+
+    private static final class Chunk {
+        private final byte[] buffer;
+        private final int length;
+        private int position;
+
+        private Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.pipeline;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue between two stages of the recording pipeline, each stage running on its own thread.
+ *
+ * A full queue blocks the producing stage, so a slow stage holds back the stages before it instead of letting data
+ * pile up in memory. The producer ends the stream with close, or with fail to hand an error to the consumer. The
+ * consumer cancels the queue when it stops early, which releases a blocked producer.
+ *
+ * The queue records how long each side waited for the other and how full it was, see PipelineStats.
+ */
+public final class StageQueue<T> {
+
+    private static final Object END = new Object();
+    private static final long POLL_MS = 100;
+
+    private final String name;
+    private final int capacity;
+    private final ArrayBlockingQueue<Object> queue;
+
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+    private boolean ended;
+
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong depthSum = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+    private final AtomicLong producerBlockedNanos = new AtomicLong();
+    private final AtomicLong consumerWaitNanos = new AtomicLong();
+
+    /**
+     * @param name stage fed by this queue, used in the statistics
+     * @param capacity number of items held before the producer blocks
+     */
+    public StageQueue(String name, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Adds an item, waiting while the queue is full
+     *
+     * @throws CancellationException if the consumer cancelled the queue
+     */
+    public void put(T item) throws InterruptedException {
+        offer(item);
+        long depth = queue.size();
+        puts.incrementAndGet();
+        depthSum.addAndGet(depth);
+        maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Ends the stream after the items already added
+     */
+    public void close() throws InterruptedException {
+        offer(END);
+    }
+
+    /**
+     * Ends the stream with an error, thrown to the consumer once it has taken the items already added
+     */
+    public void fail(Throwable error) {
+        failure = error;
+        try {
+            offer(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException ignored) {
+            // the consumer is gone, nobody is left to report the error to
+        }
+    }
+
+    /**
+     * Takes the next item, waiting while the queue is empty
+     *
+     * @return next item, or null at the end of the stream
+     * @throws IOException if the producer failed
+     */
+    @SuppressWarnings("unchecked")
+    public T take() throws InterruptedException, IOException {
+        if (ended) {
+            return null;
+        }
+        Object item = queue.poll();
+        if (item == null) {
+            long start = System.nanoTime();
+            item = queue.take();
+            consumerWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+        if (item == END) {
+            ended = true;
+            if (failure != null) {
+                throw failure instanceof IOException ? (IOException) failure : new IOException("Stage before " + name + " failed", failure);
+            }
+            return null;
+        }
+        return (T) item;
+    }
+
+    /**
+     * Called by the consumer when it stops taking items, drops the queued items and releases a blocked producer
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return average number of queued items, sampled at every put
+     */
+    public double getAverageDepth() {
+        long count = puts.get();
+        return count == 0 ? 0 : (double) depthSum.get() / count;
+    }
+
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return time the producer waited because the queue was full
+     */
+    public long getProducerBlockedNanos() {
+        return producerBlockedNanos.get();
+    }
+
+    /**
+     * @return time the consumer waited because the queue was empty
+     */
+    public long getConsumerWaitNanos() {
+        return consumerWaitNanos.get();
+    }
+
+    private void offer(Object item) throws InterruptedException {
+        if (cancelled) {
+            throw new CancellationException(name + " stage stopped");
+        }
+        if (!queue.offer(item)) {
+            long start = System.nanoTime();
+            try {
+                while (!queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        throw new CancellationException(name + " stage stopped");
+                    }
+                }
+            } finally {
+                producerBlockedNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        // cancelled while waiting, the item went into the emptied queue
+        if (cancelled) {
+            queue.clear();
+            throw new CancellationException(name + " stage stopped");
+        }
+    }
+}
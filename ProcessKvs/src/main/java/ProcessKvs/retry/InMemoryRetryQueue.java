@@ -0,0 +1,98 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.retry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+
+/**
+ * Retry queue held in memory, for local runs and tests. Messages are lost when the process ends.
+ */
+public class InMemoryRetryQueue implements RetryQueue {
+
+    private static final long VISIBILITY_TIMEOUT_MS = 30_000;
+
+    private final LongSupplier clock;
+    private final long visibilityTimeoutMillis;
+
+    // guarded by this
+    private final List<Entry> entries = new ArrayList<>();
+
+    public InMemoryRetryQueue() {
+        this(System::currentTimeMillis, VISIBILITY_TIMEOUT_MS);
+    }
+
+    /**
+     * @param clock current time in milliseconds
+     * @param visibilityTimeoutMillis how long a received message stays hidden unless it is deleted
+     */
+    public InMemoryRetryQueue(LongSupplier clock, long visibilityTimeoutMillis) {
+        this.clock = clock;
+        this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> send(String body, int delaySeconds) {
+        entries.add(new Entry(UUID.randomUUID().toString(), body, clock.getAsLong() + delaySeconds * 1000L));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<List<Message>> receive(int maxMessages) {
+        long now = clock.getAsLong();
+        entries.sort(Comparator.comparingLong(entry -> entry.visibleAt));
+
+        List<Message> messages = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (messages.size() == maxMessages || entry.visibleAt > now) {
+                break;
+            }
+            entry.visibleAt = now + visibilityTimeoutMillis;
+            entry.receiptHandle = UUID.randomUUID().toString();
+            messages.add(new Message(entry.messageId, entry.receiptHandle, entry.body));
+        }
+        return CompletableFuture.completedFuture(messages);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> delete(String receiptHandle) {
+        entries.removeIf(entry -> receiptHandle.equals(entry.receiptHandle));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return number of messages in the queue, visible or not
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        private final String messageId;
+        private final String body;
+        private long visibleAt;
+        private String receiptHandle;
+
+        private Entry(String messageId, String body, long visibleAt) {
+            this.messageId = messageId;
+            this.body = body;
+            this.visibleAt = visibleAt;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.retry;
+
+import ProcessKvs.aws.AwsClients;
+import ProcessKvs.aws.Jitter;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Hands contact trace records whose recordings failed to a retry queue, so a bad contact does not hold back the
+ * records after it in the Kinesis shard.
+ *
+ * A failed record is sent again with an exponential, jittered delay. After RETRY_MAX_ATTEMPTS attempts it goes to the
+ * dead-letter queue instead, or is only logged if there is none. Messages carry the attempt number and the original
+ * CTR, so any consumer of the queue can process them with ProcessKvsLambda.processCTR.
+ */
+public class RecordingRetrier {
+
+    private static final int RETRY_MAX_ATTEMPTS = NumberUtils.toInt(System.getenv("RETRY_MAX_ATTEMPTS"), 5);
+    private static final int RETRY_BASE_DELAY_SECONDS = NumberUtils.toInt(System.getenv("RETRY_BASE_DELAY_SECONDS"), 30);
+    // SQS does not accept longer message delays
+    private static final int MAX_DELAY_SECONDS = 900;
+    private static final int RECEIVE_BATCH = 10;
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingRetrier.class);
+
+    private final RetryQueue queue;
+    private final RetryQueue deadLetterQueue;
+    private final int maxAttempts;
+    private final int baseDelaySeconds;
+    private final RetryMetrics metrics;
+
+    /**
+     * @param queue queue of records waiting for another attempt
+     * @param deadLetterQueue queue of records that failed every attempt, or null to only log them
+     * @param maxAttempts attempts of a record, including the first one
+     * @param baseDelaySeconds delay before the second attempt, doubled for each further attempt
+     * @param metrics
+     */
+    public RecordingRetrier(RetryQueue queue, RetryQueue deadLetterQueue, int maxAttempts, int baseDelaySeconds, RetryMetrics metrics) {
+        this.queue = queue;
+        this.deadLetterQueue = deadLetterQueue;
+        this.maxAttempts = maxAttempts;
+        this.baseDelaySeconds = baseDelaySeconds;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Uses the SQS queues RETRY_QUEUE_URL and RETRY_DEAD_LETTER_QUEUE_URL. Without RETRY_QUEUE_URL, failed records are
+     * kept in memory and retried by later invocations of the same environment.
+     */
+    public static RecordingRetrier fromEnvironment() {
+        String queueUrl = System.getenv("RETRY_QUEUE_URL");
+        String deadLetterQueueUrl = System.getenv("RETRY_DEAD_LETTER_QUEUE_URL");
+        RetryQueue queue = queueUrl == null || queueUrl.isEmpty()
+                ? new InMemoryRetryQueue() : new SqsRetryQueue(AwsClients.sqs(), queueUrl);
+        RetryQueue deadLetterQueue = deadLetterQueueUrl == null || deadLetterQueueUrl.isEmpty()
+                ? null : new SqsRetryQueue(AwsClients.sqs(), deadLetterQueueUrl);
+        return new RecordingRetrier(queue, deadLetterQueue, RETRY_MAX_ATTEMPTS, RETRY_BASE_DELAY_SECONDS, new RetryMetrics());
+    }
+
+    public interface Processor {
+        /**
+         * @return true if the record was processed, false if it should be retried
+         */
+        boolean process(JSONObject ctr) throws Exception;
+    }
+
+    /**
+     * @return true if the retry queue lives in this process and has to be polled with processDue
+     */
+    public boolean isLocal() {
+        return queue instanceof InMemoryRetryQueue;
+    }
+
+    public RetryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Counts a record that was processed successfully
+     */
+    public void succeeded() {
+        metrics.succeeded();
+    }
+
+    /**
+     * Queues a record for another attempt, or dead-letters it once it has used all its attempts
+     *
+     * @param ctr contact trace record
+     * @param attempt number of the attempt that failed, 1 for the first processing
+     * @return false if the record could not be queued and is lost
+     */
+    public boolean failed(JSONObject ctr, int attempt) {
+        String contactId = ctr.optString("ContactId");
+        String body = new JSONObject().put("attempt", attempt + 1).put("ctr", ctr).toString();
+        try {
+            if (attempt >= maxAttempts) {
+                if (deadLetterQueue != null) {
+                    deadLetterQueue.send(body, 0).join();
+                }
+                metrics.deadLettered();
+                logger.error(String.format("Contact %s failed %d attempts, dead-lettered", contactId, attempt));
+                return true;
+            }
+
+            int delaySeconds = retryDelaySeconds(attempt);
+            queue.send(body, delaySeconds).join();
+            metrics.retried();
+            logger.warn(String.format("Contact %s failed attempt %d, retrying in %d s", contactId, attempt, delaySeconds));
+            return true;
+        } catch (RuntimeException e) {
+            metrics.lost();
+            logger.error(String.format("Contact %s failed attempt %d and could not be queued for retry", contactId, attempt), e);
+            return false;
+        }
+    }
+
+    /**
+     * Processes one message of the retry queue
+     *
+     * @param body message body written by failed
+     * @param processor
+     * @return false if the message has to stay in the queue, because its record failed and could not be queued again
+     */
+    public boolean process(String body, Processor processor) {
+        JSONObject ctr;
+        int attempt;
+        try {
+            JSONObject message = new JSONObject(body);
+            ctr = message.getJSONObject("ctr");
+            attempt = message.optInt("attempt", 2);
+        } catch (JSONException e) {
+            // delivering it again would not help
+            metrics.lost();
+            logger.error("Dropped malformed retry message: " + body, e);
+            return true;
+        }
+
+        boolean processed;
+        try {
+            processed = processor.process(ctr);
+        } catch (Exception e) {
+            logger.error(String.format("Attempt %d of contact %s failed", attempt, ctr.optString("ContactId")), e);
+            processed = false;
+        }
+
+        if (processed) {
+            succeeded();
+            return true;
+        }
+        return failed(ctr, attempt);
+    }
+
+    /**
+     * Processes the messages of the retry queue whose delay has passed
+     *
+     * @param processor
+     * @return number of messages processed
+     */
+    public int processDue(Processor processor) {
+        int count = 0;
+        List<RetryQueue.Message> messages = queue.receive(RECEIVE_BATCH).join();
+        while (!messages.isEmpty()) {
+            for (RetryQueue.Message message : messages) {
+                if (process(message.getBody(), processor)) {
+                    queue.delete(message.getReceiptHandle()).join();
+                }
+                count++;
+            }
+            messages = queue.receive(RECEIVE_BATCH).join();
+        }
+        return count;
+    }
+
+    /**
+     * @param attempt number of the attempt that failed
+     * @return delay before the next attempt, between half and all of the exponential backoff
+     */
+    int retryDelaySeconds(int attempt) {
+        long backoff = Math.min(MAX_DELAY_SECONDS, (long) baseDelaySeconds << Math.min(attempt - 1, 30));
+        return (int) (backoff / 2 + Jitter.nextLong(backoff / 2 + 1));
+    }
+}
@@ -0,0 +1,123 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.retry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Outcome counts of processed records, published as CloudWatch embedded metric format log lines so alarms can be set
+ * on dead-lettered or lost records without calling PutMetricData.
+ */
+public class RetryMetrics {
+
+    private static final String NAMESPACE = System.getenv().getOrDefault("METRICS_NAMESPACE", "ProcessKvs");
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final Consumer<String> sink;
+
+    public RetryMetrics() {
+        this(System.out::println);
+    }
+
+    /**
+     * @param sink receives one log line per publish
+     */
+    public RetryMetrics(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    void succeeded() {
+        succeeded.increment();
+    }
+
+    void retried() {
+        retried.increment();
+    }
+
+    void deadLettered() {
+        deadLettered.increment();
+    }
+
+    void lost() {
+        lost.increment();
+    }
+
+    /**
+     * @return records processed successfully since the last publish
+     */
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    /**
+     * @return failed records queued for another attempt since the last publish
+     */
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    /**
+     * @return records that failed their last attempt since the last publish
+     */
+    public long getDeadLettered() {
+        return deadLettered.sum();
+    }
+
+    /**
+     * @return failed records that could not be queued since the last publish
+     */
+    public long getLost() {
+        return lost.sum();
+    }
+
+    /**
+     * Writes the counts since the last publish and resets them. Nothing is written if all counts are zero.
+     */
+    public void publish() {
+        long succeededCount = succeeded.sumThenReset();
+        long retriedCount = retried.sumThenReset();
+        long deadLetteredCount = deadLettered.sumThenReset();
+        long lostCount = lost.sumThenReset();
+        if (succeededCount + retriedCount + deadLetteredCount + lostCount == 0) {
+            return;
+        }
+
+        JSONArray metrics = new JSONArray();
+        for (String name : new String[]{"RecordsSucceeded", "RecordsRetried", "RecordsDeadLettered", "RecordsLost"}) {
+            metrics.put(new JSONObject().put("Name", name).put("Unit", "Count"));
+        }
+        JSONObject directive = new JSONObject()
+                .put("Namespace", NAMESPACE)
+                .put("Dimensions", new JSONArray().put(new JSONArray()))
+                .put("Metrics", metrics);
+
+        sink.accept(new JSONObject()
+                .put("_aws", new JSONObject()
+                        .put("Timestamp", System.currentTimeMillis())
+                        .put("CloudWatchMetrics", new JSONArray().put(directive)))
+                .put("RecordsSucceeded", succeededCount)
+                .put("RecordsRetried", retriedCount)
+                .put("RecordsDeadLettered", deadLetteredCount)
+                .put("RecordsLost", lostCount)
+                .toString());
+    }
+}
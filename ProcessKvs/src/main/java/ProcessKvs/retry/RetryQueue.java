@@ -0,0 +1,69 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.retry;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Queue of records waiting for another processing attempt, with the message semantics of SQS: a sent message becomes
+ * visible after its delay, a received message is hidden for a visibility timeout and is delivered again unless it is
+ * deleted with its receipt handle before the timeout.
+ */
+public interface RetryQueue {
+
+    /**
+     * @param body message body
+     * @param delaySeconds seconds before the message can be received, at most 900
+     * @return future completed once the message is stored
+     */
+    CompletableFuture<Void> send(String body, int delaySeconds);
+
+    /**
+     * @param maxMessages at most 10
+     * @return future completed with the visible messages, empty if there are none
+     */
+    CompletableFuture<List<Message>> receive(int maxMessages);
+
+    /**
+     * @param receiptHandle receipt handle of a received message
+     * @return future completed once the message is deleted
+     */
+    CompletableFuture<Void> delete(String receiptHandle);
+
+    final class Message {
+        private final String messageId;
+        private final String receiptHandle;
+        private final String body;
+
+        public Message(String messageId, String receiptHandle, String body) {
+            this.messageId = messageId;
+            this.receiptHandle = receiptHandle;
+            this.body = body;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getReceiptHandle() {
+            return receiptHandle;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+
+package ProcessKvs.retry;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Retry queue backed by an SQS standard queue
+ */
+public class SqsRetryQueue implements RetryQueue {
+
+    private final SqsAsyncClient sqs;
+    private final String queueUrl;
+
+    public SqsRetryQueue(SqsAsyncClient sqs, String queueUrl) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+    }
+
+    @Override
+    public CompletableFuture<Void> send(String body, int delaySeconds) {
+        return sqs.sendMessage(SendMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .messageBody(body)
+                        .delaySeconds(delaySeconds)
+                        .build())
+                .thenApply(response -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> receive(int maxMessages) {
+        return sqs.receiveMessage(ReceiveMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .maxNumberOfMessages(maxMessages)
+                        .waitTimeSeconds(0)
+                        .build())
+                .thenApply(response -> response.messages().stream()
+                        .map(message -> new Message(message.messageId(), message.receiptHandle(), message.body()))
+                        .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String receiptHandle) {
+        return sqs.deleteMessage(DeleteMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .receiptHandle(receiptHandle)
+                        .build())
+                .thenApply(response -> null);
+    }
+}
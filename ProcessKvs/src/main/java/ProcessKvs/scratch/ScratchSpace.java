@@ -0,0 +1,196 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.scratch;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The ephemeral storage of the function environment, handed out as one Workspace directory per recording, so
+ * recordings of the same contact and recordings processed concurrently never share a file.
+ *
+ * The bytes of all workspaces are bounded by SCRATCH_BUDGET_MB. A workspace that needs more waits up to
+ * SCRATCH_WAIT_SECONDS for other workspaces to release theirs, and fails with an IOException afterwards, or at
+ * once if it would not fit on its own. The default budget leaves 128 MB of the default 512 MB of /tmp, 64 MB for
+ * the repository of a continuous flight recording of JFR_MAX_SIZE_MB and 64 MB for the runtime. A budget raised
+ * with SCRATCH_BUDGET_MB has to leave room for JFR_MAX_SIZE_MB when JFR_CONTINUOUS is set.
+ *
+ * A workspace deletes its directory when it is closed. Directories left by an invocation that timed out or ran
+ * out of memory are deleted by reclaim, which the handlers call at the start of every invocation.
+ */
+public final class ScratchSpace {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScratchSpace.class);
+
+    private static final ScratchSpace shared = new ScratchSpace(
+            Paths.get(System.getenv().getOrDefault("SCRATCH_DIR", "/tmp/processkvs")),
+            NumberUtils.toLong(System.getenv("SCRATCH_BUDGET_MB"), 384) * 1024 * 1024,
+            TimeUnit.SECONDS.toNanos(NumberUtils.toLong(System.getenv("SCRATCH_WAIT_SECONDS"), 30)));
+
+    private final Path root;
+    private final long budget;
+    private final long waitNanos;
+
+    // guarded by this
+    private final Set<Workspace> open = new HashSet<>();
+    private long used;
+
+    /**
+     * @param root directory of the workspaces, created on first use
+     * @param budget bytes the workspaces may hold together
+     * @param waitNanos time a workspace waits for bytes held by others
+     */
+    public ScratchSpace(Path root, long budget, long waitNanos) {
+        this.root = root;
+        this.budget = budget;
+        this.waitNanos = waitNanos;
+    }
+
+    public static ScratchSpace shared() {
+        return shared;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized int getOpenWorkspaces() {
+        return open.size();
+    }
+
+    /**
+     * Creates a workspace with a directory of its own
+     *
+     * @param name prefix of the directory name, a unique suffix is added
+     * @return workspace, to be closed once its files are no longer used
+     * @throws IOException if the directory cannot be created
+     */
+    public Workspace open(String name) throws IOException {
+        Files.createDirectories(root);
+        Workspace workspace = new Workspace(this, Files.createTempDirectory(root, name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-"));
+        synchronized (this) {
+            open.add(workspace);
+        }
+        return workspace;
+    }
+
+    /**
+     * Deletes the directories under the root that belong to no open workspace, left by invocations that did not
+     * finish
+     *
+     * @return number of bytes deleted
+     */
+    public long reclaim() {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        Set<Path> inUse;
+        synchronized (this) {
+            inUse = open.stream().map(Workspace::getDirectory).collect(Collectors.toSet());
+        }
+        long reclaimed = 0;
+        int directories = 0;
+        try (Stream<Path> children = Files.list(root)) {
+            for (Path child : children.collect(Collectors.toList())) {
+                if (!inUse.contains(child)) {
+                    reclaimed += delete(child);
+                    directories++;
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Scratch space could not be reclaimed: " + e);
+        }
+        if (directories > 0) {
+            logger.warn(String.format("Reclaimed %d bytes of %d scratch workspaces left in %s", reclaimed, directories, root));
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Reserves bytes for a workspace, waiting for other workspaces to release theirs if the budget is exhausted
+     *
+     * @throws IOException if the bytes do not fit into the budget in time
+     */
+    synchronized void reserve(Workspace workspace, long bytes) throws IOException {
+        if (workspace.getReserved() + bytes > budget) {
+            throw new IOException(String.format("Scratch workspace %s needs more than the budget of %d bytes", workspace, budget));
+        }
+        long deadline = System.nanoTime() + waitNanos;
+        while (used + bytes > budget) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new IOException(String.format("Scratch space budget of %d bytes exhausted, %d bytes held by %d workspaces",
+                        budget, used, open.size()));
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for scratch space");
+            }
+        }
+        used += bytes;
+        workspace.addReserved(bytes);
+    }
+
+    synchronized void release(Workspace workspace, long bytes) {
+        used -= bytes;
+        workspace.addReserved(-bytes);
+        notifyAll();
+    }
+
+    synchronized void closed(Workspace workspace) {
+        open.remove(workspace);
+    }
+
+    /**
+     * @return number of bytes of the files deleted
+     */
+    static long delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long bytes = 0;
+        try (Stream<Path> paths = Files.walk(path)) {
+            // children before their directory
+            List<Path> deepestFirst = paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            for (Path file : deepestFirst) {
+                if (Files.isRegularFile(file)) {
+                    bytes += Files.size(file);
+                }
+                Files.deleteIfExists(file);
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.scratch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Directory of the scratch files of one recording, see ScratchSpace. The bytes a file grows by are reserved
+ * before they are written and released when the file is deleted; closing the workspace releases the rest and
+ * deletes the directory.
+ *
+ * Bytes of a file mapped into memory are reserved with reserveMapped and stay reserved after the workspace is
+ * closed, as a deleted file keeps its blocks while a mapping of it is alive, until releaseMapped is called once
+ * the mapping is gone.
+ */
+public final class Workspace implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Workspace.class);
+
+    private final ScratchSpace space;
+    private final Path directory;
+
+    // guarded by space
+    private long reserved;
+    // part of reserved
+    private long mapped;
+    private boolean closed;
+
+    Workspace(ScratchSpace space, Path directory) {
+        this.space = space;
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param name file name
+     * @return path of a file in the workspace, the file is not created
+     */
+    public Path file(String name) {
+        return directory.resolve(name);
+    }
+
+    /**
+     * Reserves bytes before a file of the workspace grows by them
+     *
+     * @throws IOException if the scratch space budget does not allow them in time
+     */
+    public void reserve(long bytes) throws IOException {
+        synchronized (space) {
+            if (closed) {
+                throw new IOException("Scratch workspace " + this + " is closed");
+            }
+            space.reserve(this, bytes);
+        }
+    }
+
+    /**
+     * Reserves bytes before a file of the workspace is mapped by them
+     *
+     * @throws IOException if the scratch space budget does not allow them in time
+     */
+    public void reserveMapped(long bytes) throws IOException {
+        synchronized (space) {
+            reserve(bytes);
+            mapped += bytes;
+        }
+    }
+
+    /**
+     * Releases bytes after a file of the workspace was deleted or truncated and is no longer mapped
+     */
+    public void release(long bytes) {
+        synchronized (space) {
+            if (!closed) {
+                space.release(this, Math.min(bytes, reserved - mapped));
+            }
+        }
+    }
+
+    /**
+     * Releases bytes reserved with reserveMapped once their mapping is gone, also after the workspace was closed
+     */
+    public void releaseMapped(long bytes) {
+        synchronized (space) {
+            long released = Math.min(bytes, mapped);
+            mapped -= released;
+            space.release(this, released);
+        }
+    }
+
+    public long getReserved() {
+        synchronized (space) {
+            return reserved;
+        }
+    }
+
+    void addReserved(long bytes) {
+        reserved += bytes;
+    }
+
+    /**
+     * Deletes the directory and releases the bytes still reserved, except the bytes of mappings still alive
+     */
+    @Override
+    public void close() {
+        long held;
+        long stillMapped;
+        synchronized (space) {
+            if (closed) {
+                return;
+            }
+            held = reserved;
+            stillMapped = mapped;
+            space.release(this, reserved - mapped);
+            closed = true;
+        }
+        try {
+            ScratchSpace.delete(directory);
+        } catch (IOException e) {
+            // left for ScratchSpace.reclaim
+            logger.error("Failed to delete scratch workspace " + directory, e);
+        }
+        space.closed(this);
+        logger.info(String.format("Scratch workspace %s closed with %d bytes, %d of them still mapped, scratch space in use: %d of %d bytes, %d workspaces open",
+                directory.getFileName(), held, stillMapped, space.getUsed(), space.getBudget(), space.getOpenWorkspaces()));
+    }
+
+    @Override
+    public String toString() {
+        return directory.getFileName().toString();
+    }
+}
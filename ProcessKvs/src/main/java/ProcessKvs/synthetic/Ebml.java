@@ -0,0 +1,105 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.synthetic;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal EBML writer for synthetic KVS media
+ */
+final class Ebml {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    interface Content {
+        void write(Ebml element);
+    }
+
+    Ebml master(int id, Content content) {
+        Ebml children = new Ebml();
+        content.write(children);
+        return element(id, children.toByteArray());
+    }
+
+    Ebml unknownSizeMaster(int id, Ebml children) {
+        id(id);
+        out.writeBytes(new byte[]{0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        out.writeBytes(children.toByteArray());
+        return this;
+    }
+
+    Ebml uint(int id, long value) {
+        int length = 1;
+        while (length < 8 && (value >>> (8 * length)) != 0) {
+            length++;
+        }
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (value >>> (8 * (length - 1 - i)));
+        }
+        return element(id, data);
+    }
+
+    Ebml float64(int id, double value) {
+        return element(id, ByteBuffer.allocate(8).putDouble(value).array());
+    }
+
+    Ebml string(int id, String value) {
+        return element(id, value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    Ebml simpleBlock(int trackNumber, int relativeTimecode, byte[] frame) {
+        ByteBuffer block = ByteBuffer.allocate(4 + frame.length)
+                .put((byte) (0x80 | trackNumber))
+                .putShort((short) relativeTimecode)
+                .put((byte) 0x80) // key frame
+                .put(frame);
+        return element(0xA3, block.array());
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private Ebml element(int id, byte[] data) {
+        id(id);
+        size(data.length);
+        out.writeBytes(data);
+        return this;
+    }
+
+    // ids keep their length marker, so they are written as is without leading zero bytes
+    private void id(int id) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                out.write(id >>> shift);
+            }
+        }
+    }
+
+    private void size(long size) {
+        int length = 1;
+        while (length < 8 && size >= (1L << (7 * length)) - 1) {
+            length++;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            long b = (size >>> (8 * i)) & 0xFF;
+            if (i == length - 1) {
+                b |= 0x80 >>> (length - 1);
+            }
+            out.write((int) b);
+        }
+    }
+}
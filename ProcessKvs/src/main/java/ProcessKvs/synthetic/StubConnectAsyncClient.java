@@ -0,0 +1,65 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.synthetic;
+
+import software.amazon.awssdk.services.connect.ConnectAsyncClient;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesRequest;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesResponse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for UpdateContactAttributes, answering after an optional latency
+ */
+public class StubConnectAsyncClient implements ConnectAsyncClient {
+
+    private final long latencyMillis;
+    private final AtomicLong updates = new AtomicLong();
+
+    public StubConnectAsyncClient() {
+        this(0);
+    }
+
+    public StubConnectAsyncClient(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public CompletableFuture<UpdateContactAttributesResponse> updateContactAttributes(UpdateContactAttributesRequest request) {
+        updates.incrementAndGet();
+        UpdateContactAttributesResponse response = UpdateContactAttributesResponse.builder().build();
+        if (latencyMillis <= 0) {
+            return CompletableFuture.completedFuture(response);
+        }
+        return CompletableFuture.supplyAsync(() -> response, CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @return updates received so far
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
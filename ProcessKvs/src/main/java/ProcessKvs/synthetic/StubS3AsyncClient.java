@@ -0,0 +1,113 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.synthetic;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for PutObject. The request body is read the way the SDK reads it and then dropped, after an
+ * optional latency that stands for the round trip to S3.
+ */
+public class StubS3AsyncClient implements S3AsyncClient {
+
+    private final long latencyMillis;
+    private final AtomicLong objects = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public StubS3AsyncClient() {
+        this(0);
+    }
+
+    public StubS3AsyncClient(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody body) {
+        Executor delayed = latencyMillis > 0 ? CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS) : Runnable::run;
+        return drain(body).thenApplyAsync(size -> {
+            objects.incrementAndGet();
+            bytes.addAndGet(size);
+            return PutObjectResponse.builder().eTag("synthetic").build();
+        }, delayed);
+    }
+
+    /**
+     * @return objects stored so far
+     */
+    public long getObjects() {
+        return objects.get();
+    }
+
+    /**
+     * @return bytes of the objects stored so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Reads a request body the way the SDK does
+     *
+     * @return future completed with the number of bytes read
+     */
+    public static CompletableFuture<Long> drain(AsyncRequestBody body) {
+        CompletableFuture<Long> drained = new CompletableFuture<>();
+        body.subscribe(new Subscriber<ByteBuffer>() {
+            private long bytes;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+                bytes += buffer.remaining();
+                buffer.position(buffer.limit());
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                drained.completeExceptionally(e);
+            }
+
+            @Override
+            public void onComplete() {
+                drained.complete(bytes);
+            }
+        });
+        return drained;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
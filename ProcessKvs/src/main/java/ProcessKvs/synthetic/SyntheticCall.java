@@ -0,0 +1,231 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.synthetic;
+
+import ProcessKvs.kvstream.KVSUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A synthetic Connect call: its contact trace record and the media KVS returns for it.
+ *
+ * The media is shaped like a Connect recording: one MKV segment per fragment, with two PCM tracks named
+ * AUDIO_TO_CUSTOMER and AUDIO_FROM_CUSTOMER, and the fragment number, timestamp and ContactId tags. Each track can
+ * have gaps, runs of frames that were never sent, as happens when a party is on hold or packets are lost.
+ * Fragments are built while the media is read, so a long call does not have to be held in memory.
+ */
+public final class SyntheticCall {
+
+    private static final long START_EPOCH_MILLIS = 1_704_067_200_000L;
+    private static final int MAX_GAP_FRAMES = 50;
+
+    private final String contactId;
+    private final String streamName;
+    private final int frames;
+    private final int frameSamples;
+    private final int framesPerFragment;
+    private final double gapRate;
+    private final long seed;
+
+    /**
+     * @param contactId
+     * @param streamName KVS stream name, part of the stream ARN of the CTR
+     * @param durationMillis length of the call
+     * @param frameSamples samples per MKV frame and track
+     * @param framesPerFragment frames per KVS fragment and track
+     * @param gapRate probability that a gap starts at a frame of a track, 0 for none
+     * @param seed seed of the gap positions
+     */
+    public SyntheticCall(String contactId, String streamName, long durationMillis, int frameSamples, int framesPerFragment,
+                         double gapRate, long seed) {
+        this.contactId = contactId;
+        this.streamName = streamName;
+        this.frameSamples = frameSamples;
+        this.framesPerFragment = framesPerFragment;
+        this.frames = (int) Math.max(1, (durationMillis * 8 + frameSamples - 1) / frameSamples);
+        this.gapRate = gapRate;
+        this.seed = seed;
+    }
+
+    public String getContactId() {
+        return contactId;
+    }
+
+    public String getStreamArn() {
+        return "arn:aws:kinesisvideo:us-east-1:000000000000:stream/" + streamName + "/0";
+    }
+
+    public long getDurationMillis() {
+        return (long) frames * frameSamples / 8;
+    }
+
+    public int getFragments() {
+        return (frames + framesPerFragment - 1) / framesPerFragment;
+    }
+
+    /**
+     * @param recordingAuth recordingAuth contact attribute
+     * @return contact trace record of the call with one KVS recording
+     */
+    public JSONObject ctr(int recordingAuth) {
+        JSONObject recording = new JSONObject()
+                .put("StorageType", "KINESIS_VIDEO_STREAM")
+                .put("Location", getStreamArn())
+                .put("FragmentStartNumber", fragmentNumber(0))
+                .put("FragmentStopNumber", fragmentNumber(getFragments() - 1))
+                .put("StartTimestamp", Instant.ofEpochMilli(START_EPOCH_MILLIS).toString())
+                .put("StopTimestamp", Instant.ofEpochMilli(START_EPOCH_MILLIS + getDurationMillis()).toString());
+
+        return new JSONObject()
+                .put("InstanceARN", "arn:aws:connect:us-east-1:000000000000:instance/00000000-0000-0000-0000-000000000000")
+                .put("ContactId", contactId)
+                .put("InitialContactId", contactId)
+                .put("Channel", "VOICE")
+                .put("InitiationTimestamp", Instant.ofEpochMilli(START_EPOCH_MILLIS).toString())
+                .put("Queue", new JSONObject().put("Name", "synthetic"))
+                .put("Agent", new JSONObject().put("Username", "synthetic"))
+                .put("CustomerEndpoint", new JSONObject().put("Address", "+10000000000").put("Type", "TELEPHONE_NUMBER"))
+                .put("Attributes", new JSONObject().put("recordingAuth", String.valueOf(recordingAuth)))
+                .put("Recordings", new JSONArray().put(recording));
+    }
+
+    /**
+     * @return GetMedia payload of the call, built one fragment at a time while it is read
+     */
+    public InputStream openMedia() {
+        Random random = new Random(seed);
+        int[] gapFrames = new int[3];
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int fragment;
+
+            @Override
+            public boolean hasMoreElements() {
+                return fragment < getFragments();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                return new ByteArrayInputStream(fragment(fragment++, random, gapFrames));
+            }
+        });
+    }
+
+    /**
+     * @return the whole GetMedia payload of the call
+     */
+    public byte[] media() {
+        try (InputStream media = openMedia()) {
+            return media.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fragmentNumber(int fragment) {
+        return "9134385233318148191028363407583616496097785" + (8000 + fragment);
+    }
+
+    /**
+     * @param gapFrames remaining frames of the current gap of each track, by track number
+     */
+    private byte[] fragment(int fragment, Random random, int[] gapFrames) {
+        Ebml mkv = new Ebml();
+        mkv.master(0x1A45DFA3, header -> header
+                .uint(0x4286, 1)
+                .uint(0x42F7, 1)
+                .uint(0x42F2, 4)
+                .uint(0x42F3, 8)
+                .string(0x4282, "matroska")
+                .uint(0x4287, 2)
+                .uint(0x4285, 2));
+
+        Ebml segment = new Ebml()
+                .master(0x1549A966, info -> info
+                        .uint(0x2AD7B1, 1_000_000)
+                        .string(0x4D80, "ProcessKvs")
+                        .string(0x5741, "ProcessKvs"))
+                .master(0x1654AE6B, tracks -> tracks
+                        .master(0xAE, track -> audioTrack(track, 1, KVSUtils.AUDIO_TO_CUSTOMER))
+                        .master(0xAE, track -> audioTrack(track, 2, KVSUtils.AUDIO_FROM_CUSTOMER)));
+        long timecode = (long) fragment * framesPerFragment * frameSamples / 8;
+        String fragmentNumber = fragmentNumber(fragment);
+        String serverTimestamp = String.format("%d.%03d", (START_EPOCH_MILLIS + timecode) / 1000, timecode % 1000);
+        segment.master(0x1254C367, tags -> tags
+                .master(0x7373, tag -> tag
+                        .master(0x67C8, simpleTag -> simpleTag.string(0x45A3, "AWS_KINESISVIDEO_FRAGMENT_NUMBER").string(0x4487, fragmentNumber))
+                        .master(0x67C8, simpleTag -> simpleTag.string(0x45A3, "AWS_KINESISVIDEO_SERVER_TIMESTAMP").string(0x4487, serverTimestamp))
+                        .master(0x67C8, simpleTag -> simpleTag.string(0x45A3, "AWS_KINESISVIDEO_PRODUCER_TIMESTAMP").string(0x4487, serverTimestamp))));
+
+        segment.master(0x1F43B675, cluster -> {
+            cluster.uint(0xE7, timecode);
+            int first = fragment * framesPerFragment;
+            for (int frame = first; frame < Math.min(frames, first + framesPerFragment); frame++) {
+                int offset = (frame - first) * frameSamples / 8;
+                long firstSample = (long) frame * frameSamples;
+                for (int track = 1; track <= 2; track++) {
+                    if (gapFrames[track] == 0 && gapRate > 0 && random.nextDouble() < gapRate) {
+                        gapFrames[track] = 1 + random.nextInt(MAX_GAP_FRAMES);
+                    }
+                    if (gapFrames[track] > 0) {
+                        gapFrames[track]--;
+                        continue;
+                    }
+                    cluster.simpleBlock(track, offset, tone(firstSample, track == 1 ? 440 : 660));
+                }
+            }
+        });
+        segment.master(0x1254C367, tags -> tags
+                .master(0x7373, tag -> tag
+                        .master(0x67C8, simpleTag -> simpleTag.string(0x45A3, "ContactId").string(0x4487, contactId))));
+
+        // KVS streams segments of unknown size
+        mkv.unknownSizeMaster(0x18538067, segment);
+        return mkv.toByteArray();
+    }
+
+    private static void audioTrack(Ebml track, int number, String name) {
+        track.uint(0xD7, number)
+                .uint(0x73C5, number)
+                .uint(0x83, 2)
+                .string(0x536E, name)
+                .string(0x86, "A_PCM/INT/LIT")
+                .master(0xE1, audio -> audio
+                        .float64(0xB5, 8000)
+                        .uint(0x9F, 1)
+                        .uint(0x6264, 16));
+    }
+
+    private byte[] tone(long firstSample, double frequency) {
+        ByteBuffer frame = ByteBuffer.allocate(2 * frameSamples).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frameSamples; i++) {
+            // StrictMath, so a call has the same samples on every runtime
+            frame.putShort((short) (8000 * StrictMath.sin(2 * Math.PI * frequency * (firstSample + i) / 8000)));
+        }
+        return frame.array();
+    }
+}
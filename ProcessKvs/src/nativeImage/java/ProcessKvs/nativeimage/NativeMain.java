@@ -0,0 +1,40 @@
+/******************************************************************************
+ *  Copyright 2020 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *  Licensed under the Apache License Version 2.0 (the 'License'). You may not
+ *  use this file except in compliance with the License. A copy of the License
+ *  is located at
+ *
+ *      http://www.apache.org/licenses/
+ *  or in the 'license' file accompanying this file. This file is distributed on
+ *  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, express or
+ *  implied. See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package ProcessKvs.nativeimage;
+
+import ProcessKvs.loadtest.WavDigestCommand;
+import com.amazonaws.services.lambda.runtime.api.client.AWSLambda;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of the native image. The bootstrap of the provided.al2023 runtime passes the handler of the function,
+ * which the Lambda runtime interface client loads and invokes as the java17 runtime does.
+ *
+ * With wav-digest as first argument it runs WavDigestCommand instead, so NativeComparisonCommand checks the binary
+ * that is deployed.
+ */
+public final class NativeMain {
+
+    private NativeMain() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        if (args.length > 0 && args[0].equals(WavDigestCommand.NAME)) {
+            WavDigestCommand.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        AWSLambda.main(args);
+    }
+}
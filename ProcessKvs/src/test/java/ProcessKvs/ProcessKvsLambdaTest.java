@@ -1,8 +1,49 @@
 package ProcessKvs;
 
+import ProcessKvs.audio.AudioStreamService;
+import ProcessKvs.audio.AudioUtils;
+import ProcessKvs.audio.FrameBufferArena;
+import ProcessKvs.aws.TokenBucket;
+import ProcessKvs.connect.ContactAttributesWriter;
+import ProcessKvs.consolidation.RecordingConsolidator;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.manifest.RecordingManifestWriter;
+import ProcessKvs.model.RecordingData;
+import ProcessKvs.retry.InMemoryRetryQueue;
+import ProcessKvs.retry.RecordingRetrier;
+import ProcessKvs.retry.RetryMetrics;
+import ProcessKvs.retry.RetryQueue;
+import ProcessKvs.synthetic.StubConnectAsyncClient;
+import ProcessKvs.synthetic.StubS3AsyncClient;
+import ProcessKvs.synthetic.SyntheticCall;
+import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Test;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.connect.ConnectAsyncClient;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesRequest;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesResponse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class ProcessKvsLambdaTest {
+
+  private static final SyntheticCall CALL = new SyntheticCall("contact-1", "stream-1", 2000, 512, 32, 0, 1);
+
   @Test
   public void successfulResponse() {
     /*
@@ -12,4 +53,135 @@ public class ProcessKvsLambdaTest {
 
      */
   }
+
+  @Test
+  public void failedUploadQueuesCtrForRetry() {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    InMemoryRetryQueue queue = new InMemoryRetryQueue(clock::get, 30_000);
+    StubS3AsyncClient manifests = new StubS3AsyncClient();
+    ProcessKvsLambda handler = handler(manifests, queue);
+
+    StreamsEventResponse response = handler.handleRequest(kinesisEvent(CALL.ctr(AudioUtils.AUTH_AUDIO_MIXED)), null);
+
+    assertTrue(response.getBatchItemFailures().isEmpty());
+    assertEquals(1, queue.size());
+    clock.addAndGet(30_000);
+    JSONObject message = new JSONObject(queue.receive(1).join().get(0).getBody());
+    assertEquals(2, message.getInt("attempt"));
+    assertEquals("contact-1", message.getJSONObject("ctr").getString("ContactId"));
+    // a recording with a failed upload is not indexed
+    assertEquals(0, manifests.getObjects());
+  }
+
+  @Test
+  public void reportsCtrThatCannotBeQueued() {
+    RetryQueue unavailable = new RetryQueue() {
+      @Override
+      public CompletableFuture<Void> send(String body, int delaySeconds) {
+        return CompletableFuture.failedFuture(new IllegalStateException("SQS unavailable"));
+      }
+
+      @Override
+      public CompletableFuture<List<RetryQueue.Message>> receive(int maxMessages) {
+        return CompletableFuture.completedFuture(Collections.emptyList());
+      }
+
+      @Override
+      public CompletableFuture<Void> delete(String receiptHandle) {
+        return CompletableFuture.completedFuture(null);
+      }
+    };
+    ProcessKvsLambda handler = handler(new StubS3AsyncClient(), unavailable);
+
+    StreamsEventResponse response = handler.handleRequest(kinesisEvent(CALL.ctr(AudioUtils.AUTH_AUDIO_MIXED)), null);
+
+    assertEquals(1, response.getBatchItemFailures().size());
+    assertEquals("1", response.getBatchItemFailures().get(0).getItemIdentifier());
+  }
+
+  @Test
+  public void keepsUrlsOfConsolidatedRecordings() {
+    byte[] media = CALL.media();
+    AudioStreamService streamingService = new AudioStreamService(FrameBufferArena.shared(),
+        (streamName, startFragmentNum, startSelectorType) -> new ByteArrayInputStream(media),
+        (recording, fileName, body, contentType, metadata) -> StubS3AsyncClient.drain(body)
+            .thenApply(bytes -> new S3UploadInfo("bucket", fileName, Region.US_EAST_1)));
+    List<UpdateContactAttributesRequest> updates = Collections.synchronizedList(new ArrayList<>());
+    ConnectAsyncClient connect = new ConnectAsyncClient() {
+      @Override
+      public CompletableFuture<UpdateContactAttributesResponse> updateContactAttributes(UpdateContactAttributesRequest request) {
+        updates.add(request);
+        return CompletableFuture.completedFuture(UpdateContactAttributesResponse.builder().build());
+      }
+
+      @Override
+      public String serviceName() {
+        return SERVICE_NAME;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    // joins only the mixed track
+    RecordingConsolidator consolidator = new RecordingConsolidator(new StubS3AsyncClient()) {
+      @Override
+      public CompletableFuture<Map<String, S3UploadInfo>> consolidate(String contactId, List<RecordingData> recordings) {
+        return CompletableFuture.completedFuture(Collections.singletonMap("AUDIO_MIXED",
+            new S3UploadInfo("bucket", contactId + "_audio_mixed.wav", Region.US_EAST_1)));
+      }
+    };
+    ContactAttributesWriter attributesWriter = new ContactAttributesWriter(connect, new TokenBucket(1000, 1000), 0);
+    ProcessKvsLambda handler = new ProcessKvsLambda(streamingService, attributesWriter,
+        new RecordingManifestWriter(new StubS3AsyncClient(), "bucket", "manifest/", 1),
+        new RecordingRetrier(new InMemoryRetryQueue(System::currentTimeMillis, 30_000), null, 3, 30, new RetryMetrics(line -> { })),
+        consolidator);
+    JSONObject ctr = CALL.ctr(AudioUtils.AUTH_AUDIO_MIXED);
+    JSONArray recordings = ctr.getJSONArray("Recordings");
+    recordings.put(new JSONObject(recordings.getJSONObject(0).toString()));
+
+    assertTrue(handler.processCTR(ctr));
+    assertEquals(0, attributesWriter.flush());
+
+    assertEquals(1, updates.size());
+    Map<String, String> attributes = updates.get(0).attributes();
+    assertTrue(attributes.get("audioMixed").endsWith("/contact-1_audio_mixed.wav"));
+    String[] mixedRecordings = attributes.get("audioMixedRecordings").split(", ");
+    assertEquals(2, mixedRecordings.length);
+    assertTrue(mixedRecordings[0].endsWith("/contact-1_1_audio_mixed.wav"));
+    assertTrue(mixedRecordings[1].endsWith("/contact-1_2_audio_mixed.wav"));
+    // a track that was not joined keeps the urls of its recordings
+    assertEquals(2, attributes.get("audioFromCustomer").split(", ").length);
+    assertFalse(attributes.containsKey("audioFromCustomerRecordings"));
+  }
+
+  /**
+   * @return handler whose uploads of the to customer track fail
+   */
+  private static ProcessKvsLambda handler(StubS3AsyncClient manifests, RetryQueue queue) {
+    byte[] media = CALL.media();
+    AudioStreamService streamingService = new AudioStreamService(FrameBufferArena.shared(),
+        (streamName, startFragmentNum, startSelectorType) -> new ByteArrayInputStream(media),
+        (recording, fileName, body, contentType, metadata) -> StubS3AsyncClient.drain(body).thenApply(bytes -> {
+          if (fileName.contains("to_customer")) {
+            throw new IllegalStateException("S3 unavailable");
+          }
+          return new S3UploadInfo("bucket", fileName, Region.US_EAST_1);
+        }));
+    return new ProcessKvsLambda(streamingService,
+        new ContactAttributesWriter(new StubConnectAsyncClient(), new TokenBucket(1000, 1000), 0),
+        new RecordingManifestWriter(manifests, "bucket", "manifest/", 1),
+        new RecordingRetrier(queue, null, 3, 30, new RetryMetrics(line -> { })));
+  }
+
+  private static KinesisEvent kinesisEvent(JSONObject ctr) {
+    KinesisEvent.Record kinesis = new KinesisEvent.Record();
+    kinesis.setSequenceNumber("1");
+    kinesis.setData(ByteBuffer.wrap(ctr.toString().getBytes(StandardCharsets.UTF_8)));
+    KinesisEvent.KinesisEventRecord record = new KinesisEvent.KinesisEventRecord();
+    record.setKinesis(kinesis);
+    KinesisEvent event = new KinesisEvent();
+    event.setRecords(Collections.singletonList(record));
+    return event;
+  }
 }
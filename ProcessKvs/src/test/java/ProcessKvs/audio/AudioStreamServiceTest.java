@@ -0,0 +1,90 @@
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.KVSUtils;
+import ProcessKvs.kvstream.S3UploadInfo;
+import ProcessKvs.model.RecordedObject;
+import ProcessKvs.model.RecordingData;
+import ProcessKvs.synthetic.StubS3AsyncClient;
+import ProcessKvs.synthetic.SyntheticCall;
+import org.json.JSONObject;
+import org.junit.Test;
+import software.amazon.awssdk.regions.Region;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AudioStreamServiceTest {
+
+  private static final SyntheticCall CALL = new SyntheticCall("contact-1", "stream-1", 3000, 512, 32, 0, 1);
+
+  @Test
+  public void keepsUploadedObjectsWhenOneUploadFails() throws Exception {
+    FrameBufferArena arena = new FrameBufferArena(64L * FrameBufferArena.CHUNK_SIZE);
+    byte[] media = CALL.media();
+    Map<String, Long> uploaded = new ConcurrentHashMap<>();
+    // the first upload completes last, the mix first, the to customer track fails in between
+    AudioStreamService service = new AudioStreamService(arena, (streamName, startFragmentNum, startSelectorType) -> new ByteArrayInputStream(media),
+        (recording, fileName, body, contentType, metadata) -> StubS3AsyncClient.drain(body).thenApplyAsync(bytes -> {
+          if (fileName.contains("to_customer")) {
+            throw new IllegalStateException("S3 unavailable");
+          }
+          uploaded.put(fileName, bytes);
+          return new S3UploadInfo("bucket", fileName, Region.US_EAST_1);
+        }, CompletableFuture.delayedExecutor(delayMillis(fileName), TimeUnit.MILLISECONDS)));
+
+    RecordingData recording = recording();
+    try {
+      service.processAudioStream(recording);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains(KVSUtils.AUDIO_TO_CUSTOMER));
+    }
+
+    assertEquals(Collections.singletonList(KVSUtils.AUDIO_TO_CUSTOMER), recording.getFailedObjects());
+    Map<String, Long> objects = recording.getObjects().stream()
+        .collect(Collectors.toMap(RecordedObject::getTrack, RecordedObject::getBytes));
+    assertEquals(2, objects.size());
+    long trackBytes = AudioUtils.WAV_HEADER_SIZE + 2 * CALL.getDurationMillis() * AudioUtils.SAMPLE_RATE / 1000;
+    assertEquals(trackBytes, (long) objects.get(KVSUtils.AUDIO_FROM_CUSTOMER));
+    assertEquals(uploaded.get("contact-1_audio_from_customer.wav"), objects.get(KVSUtils.AUDIO_FROM_CUSTOMER));
+    assertEquals(uploaded.get("contact-1_audio_mixed.wav"), objects.get("AUDIO_MIXED"));
+    assertTrue(recording.getAudioFromCustomer().endsWith("contact-1_audio_from_customer.wav"));
+    assertTrue(recording.getAudioMixed().endsWith("contact-1_audio_mixed.wav"));
+    assertNull(recording.getAudioToCustomer());
+    // the track buffers are released once every upload completed
+    assertEquals(0, arena.getInUse());
+  }
+
+  private static long delayMillis(String fileName) {
+    if (fileName.contains("from_customer")) {
+      return 300;
+    }
+    return fileName.contains("to_customer") ? 100 : 0;
+  }
+
+  private static RecordingData recording() {
+    JSONObject ctr = CALL.ctr(AudioUtils.AUTH_AUDIO_MIXED);
+    JSONObject kvs = ctr.getJSONArray("Recordings").getJSONObject(0);
+    return RecordingData.builder()
+        .withRecordingAuth(AudioUtils.AUTH_AUDIO_MIXED)
+        .withContactId(CALL.getContactId())
+        .withInitiationTimestamp(ctr.getString("InitiationTimestamp"))
+        .withStreamARN(kvs.getString("Location"))
+        .withStartFragmentNum(kvs.getString("FragmentStartNumber"))
+        .withStopFragmentNumber(kvs.getString("FragmentStopNumber"))
+        .withStartTimestamp(kvs.getString("StartTimestamp"))
+        .withStopTimestamp(kvs.getString("StopTimestamp"))
+        .build();
+  }
+}
@@ -0,0 +1,128 @@
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.KVSUtils;
+import ProcessKvs.model.CallAnalytics;
+import ProcessKvs.model.TrackAnalytics;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationAnalyzerTest {
+
+  private static final Set<String> BOTH = new LinkedHashSet<>(Arrays.asList(KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER));
+
+  @Test
+  public void measuresTalkCrossTalkAndSilence() {
+    ConversationAnalyzer analyzer = new ConversationAnalyzer(BOTH, -40);
+
+    // customer talks in the first two seconds, the agent from the second to the third, one second of silence
+    for (int second = 0; second < 4; second++) {
+      // frames of 20 ms plus a few samples, so windows span frames
+      for (int offset = 0; offset < 8000; offset += 170) {
+        int count = Math.min(170, 8000 - offset);
+        analyzer.accept(KVSUtils.AUDIO_FROM_CUSTOMER, tone(count, second < 2 ? 8000 : 0));
+        analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(count, second == 1 || second == 2 ? 8000 : 0));
+      }
+    }
+    CallAnalytics analytics = analyzer.finish();
+
+    assertEquals(4000, analytics.getCustomer().getDurationMillis());
+    assertEquals(2000, analytics.getCustomer().getTalkMillis(), 20);
+    assertEquals(2000, analytics.getAgent().getTalkMillis(), 20);
+    assertEquals(1000, analytics.getCrossTalkMillis(), 20);
+    assertEquals(0.25, analytics.getSilenceRatio(), 0.01);
+    // 8000 peak on half the track
+    assertEquals(20 * Math.log10(8000 / 32768.0), analytics.getCustomer().getPeakDbfs(), 0.01);
+    assertEquals(20 * Math.log10(8000 / 32768.0 / Math.sqrt(2)), analytics.getCustomer().getRmsDbfs(), 0.01);
+    assertEquals(0.0, analytics.getCustomer().getClippingRatio(), 0);
+  }
+
+  @Test
+  public void matchesTracksThatRunAheadOfEachOther() {
+    ConversationAnalyzer analyzer = new ConversationAnalyzer(BOTH, -40);
+
+    // the customer track arrives a minute ahead of the agent track, then the agent track is longer
+    analyzer.accept(KVSUtils.AUDIO_FROM_CUSTOMER, tone(60 * 8000, 8000));
+    analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(30 * 8000, 0));
+    analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(30 * 8000, 8000));
+    analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(60 * 8000, 0));
+    CallAnalytics analytics = analyzer.finish();
+
+    assertEquals(60000, analytics.getCustomer().getTalkMillis());
+    assertEquals(30000, analytics.getAgent().getTalkMillis());
+    assertEquals(30000, analytics.getCrossTalkMillis());
+    assertEquals(0.5, analytics.getSilenceRatio(), 1e-9);
+  }
+
+  @Test
+  public void countsClippedSamples() {
+    ConversationAnalyzer analyzer = new ConversationAnalyzer(BOTH, -40);
+
+    analyzer.accept(KVSUtils.AUDIO_FROM_CUSTOMER, tone(8000, 32767));
+    analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(8000, 1000));
+    CallAnalytics analytics = analyzer.finish();
+
+    assertEquals(1.0, analytics.getCustomer().getClippingRatio(), 0);
+    assertEquals(0.0, analytics.getCustomer().getPeakDbfs(), 0.01);
+    assertEquals(0.0, analytics.getAgent().getClippingRatio(), 0);
+  }
+
+  @Test
+  public void analyzesSingleTrack() {
+    ConversationAnalyzer analyzer = new ConversationAnalyzer(Collections.singleton(KVSUtils.AUDIO_TO_CUSTOMER), -40);
+
+    analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(8000, 8000));
+    analyzer.accept(KVSUtils.AUDIO_TO_CUSTOMER, tone(24000, 0));
+    // frames of a track that is not analyzed are ignored
+    analyzer.accept(KVSUtils.AUDIO_FROM_CUSTOMER, tone(8000, 8000));
+    CallAnalytics analytics = analyzer.finish();
+
+    assertNull(analytics.getCustomer());
+    TrackAnalytics agent = analytics.getAgent();
+    assertEquals(4000, agent.getDurationMillis());
+    assertEquals(1000, agent.getTalkMillis());
+    assertEquals(0.75, analytics.getSilenceRatio(), 1e-9);
+
+    Map<String, String> attributes = analytics.toAttributes();
+    assertEquals("1.0", attributes.get("agentTalkSeconds"));
+    assertEquals("0.7500", attributes.get("silenceRatio"));
+    assertFalse(attributes.containsKey("crossTalkSeconds"));
+    assertFalse(attributes.containsKey("customerTalkSeconds"));
+    assertEquals("1.0", analytics.toMetadata().get("agent-talk-seconds"));
+    assertTrue(analytics.toMetadata().containsKey("agent-rms-dbfs"));
+  }
+
+  @Test
+  public void doesNotMoveFramePosition() {
+    ConversationAnalyzer analyzer = new ConversationAnalyzer(BOTH, -40);
+    ByteBuffer frame = tone(160, 8000);
+    frame.position(2);
+
+    analyzer.accept(KVSUtils.AUDIO_FROM_CUSTOMER, frame);
+
+    assertEquals(2, frame.position());
+    assertEquals(320, frame.limit());
+    assertEquals(159 * 1000 / 8000, analyzer.finish().getCustomer().getDurationMillis());
+  }
+
+  // square wave of the given amplitude, silence if 0
+  private static ByteBuffer tone(int samples, int amplitude) {
+    ByteBuffer pcm = ByteBuffer.allocate(2 * samples).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < samples; i++) {
+      pcm.putShort((short) ((i / 10) % 2 == 0 ? amplitude : -amplitude));
+    }
+    pcm.flip();
+    return pcm.order(ByteOrder.BIG_ENDIAN);
+  }
+}
@@ -0,0 +1,138 @@
+package ProcessKvs.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DspKernelsTest {
+
+  // not a multiple of any vector length, so the scalar tail is exercised too
+  private static final int SAMPLES = 1027;
+
+  private final DspKernels scalar = new ScalarDspKernels();
+  private final DspKernels selected = DspKernels.get();
+
+  @Test
+  public void interleavesAndDeinterleaves() {
+    ByteBuffer left = samples(1), right = samples(2);
+
+    ByteBuffer stereo = run(k -> {
+      ByteBuffer out = ByteBuffer.allocate(4 * SAMPLES);
+      k.interleave(left.duplicate(), right.duplicate(), out, SAMPLES);
+      return out;
+    });
+    assertEquals(left.getShort(2), stereo.order(ByteOrder.LITTLE_ENDIAN).getShort(4));
+    assertEquals(right.getShort(2), stereo.getShort(6));
+
+    for (DspKernels kernels : new DspKernels[]{scalar, selected}) {
+      ByteBuffer l = ByteBuffer.allocate(2 * SAMPLES), r = ByteBuffer.allocateDirect(2 * SAMPLES);
+      ByteBuffer in = stereo.duplicate();
+      kernels.deinterleave(in, l, r, SAMPLES);
+      assertEquals(0, in.remaining());
+      assertEquals(left, l.flip());
+      assertEquals(right, r.flip());
+    }
+  }
+
+  @Test
+  public void swapsBytes() {
+    ByteBuffer src = samples(3);
+    ByteBuffer swapped = run(k -> {
+      ByteBuffer out = ByteBuffer.allocate(2 * SAMPLES);
+      k.byteSwap(src.duplicate(), out, SAMPLES);
+      return out;
+    });
+    assertEquals(src.getShort(10), swapped.order(ByteOrder.BIG_ENDIAN).getShort(10));
+  }
+
+  @Test
+  public void sumsToMonoWithSaturation() {
+    ByteBuffer left = samples(4), right = samples(5);
+    left.putShort(0, Short.MAX_VALUE);
+    right.putShort(0, (short) 1);
+    left.putShort(2, Short.MIN_VALUE);
+    right.putShort(2, (short) -1);
+
+    ByteBuffer mono = run(k -> {
+      ByteBuffer out = ByteBuffer.allocate(2 * SAMPLES);
+      k.sumToMono(left.duplicate(), right.duplicate(), out, SAMPLES);
+      return out;
+    }).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(Short.MAX_VALUE, mono.getShort(0));
+    assertEquals(Short.MIN_VALUE, mono.getShort(2));
+  }
+
+  @Test
+  public void appliesGainWithClipping() {
+    ByteBuffer src = samples(6);
+    src.putShort(0, (short) 20000);
+    src.putShort(2, (short) -20000);
+    src.putShort(4, (short) 1001);
+
+    ByteBuffer amplified = run(k -> {
+      ByteBuffer out = ByteBuffer.allocate(2 * SAMPLES);
+      k.gain(src.duplicate(), out, SAMPLES, 2.5f);
+      return out;
+    }).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(Short.MAX_VALUE, amplified.getShort(0));
+    assertEquals(Short.MIN_VALUE, amplified.getShort(2));
+    assertEquals(2502, amplified.getShort(4));
+  }
+
+  @Test
+  public void companding() {
+    ByteBuffer pcm = samples(7);
+    pcm.putShort(0, (short) 0);
+    pcm.putShort(2, Short.MAX_VALUE);
+    pcm.putShort(4, Short.MIN_VALUE);
+
+    ByteBuffer ulaw = run(k -> {
+      ByteBuffer out = ByteBuffer.allocate(SAMPLES);
+      k.ulawEncode(pcm.duplicate(), out, SAMPLES);
+      return out;
+    });
+    assertEquals((byte) 0xFF, ulaw.get(0));
+    assertEquals((byte) 0x80, ulaw.get(1));
+    assertEquals((byte) 0x00, ulaw.get(2));
+
+    ByteBuffer decoded = run(k -> {
+      ByteBuffer out = ByteBuffer.allocate(2 * SAMPLES);
+      k.ulawDecode(ulaw.duplicate(), out, SAMPLES);
+      return out;
+    }).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(0, decoded.getShort(0));
+    assertEquals(32124, decoded.getShort(2));
+    assertEquals(-32124, decoded.getShort(4));
+  }
+
+  @Test
+  public void ulawRoundTripsEveryCode() {
+    for (int code = 0; code < 256; code++) {
+      short sample = ScalarDspKernels.ulawDecode((byte) code);
+      // 0x7F and 0xFF both decode to 0
+      assertEquals(code == 0x7F ? (byte) 0xFF : (byte) code, ScalarDspKernels.ulawEncode(sample));
+    }
+  }
+
+  /**
+   * Runs the kernel on the scalar and the selected kernels, checks that both produce the same bytes and returns them
+   */
+  private ByteBuffer run(java.util.function.Function<DspKernels, ByteBuffer> kernel) {
+    ByteBuffer expected = kernel.apply(scalar);
+    ByteBuffer actual = kernel.apply(selected);
+    assertEquals(0, expected.remaining());
+    assertArrayEquals(selected.name(), expected.array(), actual.array());
+    return expected.flip();
+  }
+
+  private static ByteBuffer samples(long seed) {
+    byte[] bytes = new byte[2 * SAMPLES];
+    new Random(seed).nextBytes(bytes);
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -0,0 +1,48 @@
+package ProcessKvs.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class HlsPlaylistTest {
+
+  @Test
+  public void rendersEventPlaylistWhileTrackGrows() {
+    String playlist = HlsPlaylist.render(Arrays.asList("segment_00000.wav", "segment_00001.wav"), Arrays.asList(10.0, 10.0), false);
+
+    assertEquals("#EXTM3U\n"
+        + "#EXT-X-VERSION:3\n"
+        + "#EXT-X-TARGETDURATION:10\n"
+        + "#EXT-X-MEDIA-SEQUENCE:0\n"
+        + "#EXT-X-PLAYLIST-TYPE:EVENT\n"
+        + "#EXTINF:10.000,\n"
+        + "segment_00000.wav\n"
+        + "#EXTINF:10.000,\n"
+        + "segment_00001.wav\n", playlist);
+  }
+
+  @Test
+  public void endsCompletePlaylist() {
+    String playlist = HlsPlaylist.render(Arrays.asList("segment_00000.wav", "segment_00001.wav"), Arrays.asList(6.0, 2.5), true);
+
+    assertEquals("#EXTM3U\n"
+        + "#EXT-X-VERSION:3\n"
+        + "#EXT-X-TARGETDURATION:6\n"
+        + "#EXT-X-MEDIA-SEQUENCE:0\n"
+        + "#EXT-X-PLAYLIST-TYPE:VOD\n"
+        + "#EXTINF:6.000,\n"
+        + "segment_00000.wav\n"
+        + "#EXTINF:2.500,\n"
+        + "segment_00001.wav\n"
+        + "#EXT-X-ENDLIST\n", playlist);
+  }
+
+  @Test
+  public void roundsTargetDurationUp() {
+    String playlist = HlsPlaylist.render(Collections.singletonList("segment_00000.wav"), Collections.singletonList(4.2), true);
+    assertEquals("#EXT-X-TARGETDURATION:5", playlist.split("\n")[2]);
+  }
+}
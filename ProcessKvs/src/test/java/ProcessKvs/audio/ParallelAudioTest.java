@@ -0,0 +1,112 @@
+package ProcessKvs.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelAudioTest {
+
+  private final FrameBufferArena arena = new FrameBufferArena(64L * FrameBufferArena.CHUNK_SIZE);
+
+  @Test
+  public void mixMatchesSequentialMix() throws Exception {
+    // the right track runs over three output chunks past the end of the left one
+    TrackBuffer left = track(noise(FrameBufferArena.CHUNK_SIZE / 2 + 1234, 1));
+    TrackBuffer right = track(noise(FrameBufferArena.CHUNK_SIZE + 777, 2));
+
+    TrackBuffer sequential = arena.newTrack(scratch(), false);
+    new StereoMixer(left, right, sequential).mixTo(right.size() / 2);
+    TrackBuffer parallel = arena.newTrack(scratch(), false);
+    new ParallelAudio(4, 0).mix(left, right, parallel);
+
+    assertEquals(4 * (right.size() / 2), parallel.size());
+    assertSameBytes(sequential, parallel);
+  }
+
+  @Test
+  public void resampleMatchesSequentialResampler() throws Exception {
+    int[][] ratios = {{8000, 16000}, {8000, 44100}, {8000, 8000}};
+    // the last lengths leave a last block shorter than the filter delay
+    for (int samples : new int[]{0, 5, FrameBufferArena.CHUNK_SIZE / 2 + 3, FrameBufferArena.CHUNK_SIZE / 4 + 10}) {
+      TrackBuffer pcm = track(noise(samples, samples));
+      for (int[] ratio : ratios) {
+        TrackBuffer parallel = arena.newTrack(scratch(), false);
+        new ParallelAudio(3, 0).resample(pcm, ratio[0], ratio[1], parallel);
+
+        assertEquals(ratio[0] + " -> " + ratio[1], 2 * new PolyphaseResampler(ratio[0], ratio[1]).outputLength(samples), parallel.size());
+        assertSameBytes(sequential(pcm, ratio[0], ratio[1]), parallel);
+        parallel.close();
+      }
+      pcm.close();
+    }
+  }
+
+  @Test
+  public void shortTracksStayOnCallingThread() {
+    assertFalse(new ParallelAudio(4, 8000).isParallel(7999));
+    assertTrue(new ParallelAudio(4, 8000).isParallel(8000));
+    assertFalse(new ParallelAudio(1, 0).isParallel(1_000_000));
+  }
+
+  private static ByteBuffer sequential(TrackBuffer pcm, int inputRate, int outputRate) {
+    PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate);
+    ByteBuffer out = ByteBuffer.allocate((int) (2 * resampler.outputLength(pcm.size() / 2)));
+    for (ByteBuffer in : pcm.slices()) {
+      resampler.process(in, out);
+    }
+    while (resampler.flush(out) > 0) {
+      // until the output is complete
+    }
+    return out.flip();
+  }
+
+  private static void assertSameBytes(TrackBuffer expected, TrackBuffer actual) {
+    assertEquals(expected.size(), actual.size());
+    assertSameBytes(concat(expected), actual);
+  }
+
+  private static void assertSameBytes(ByteBuffer expected, TrackBuffer actual) {
+    ByteBuffer bytes = concat(actual);
+    assertEquals(expected.remaining(), bytes.remaining());
+    for (int i = 0; i < bytes.remaining(); i++) {
+      assertEquals("byte " + i, expected.get(i), bytes.get(i));
+    }
+  }
+
+  private static ByteBuffer concat(TrackBuffer track) {
+    ByteBuffer bytes = ByteBuffer.allocate((int) track.size());
+    for (ByteBuffer slice : track.slices()) {
+      bytes.put(slice);
+    }
+    return bytes.flip();
+  }
+
+  private TrackBuffer track(ByteBuffer pcm) throws Exception {
+    TrackBuffer track = arena.newTrack(scratch(), false);
+    track.write(pcm);
+    return track;
+  }
+
+  private static ByteBuffer noise(int samples, long seed) {
+    Random random = new Random(seed);
+    ByteBuffer buffer = ByteBuffer.allocate(2 * samples).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < samples; i++) {
+      buffer.putShort((short) random.nextInt(1 << 16));
+    }
+    return buffer.flip();
+  }
+
+  private static Path scratch() throws Exception {
+    Path scratch = Files.createTempFile("track", ".pcm");
+    Files.delete(scratch);
+    return scratch;
+  }
+}
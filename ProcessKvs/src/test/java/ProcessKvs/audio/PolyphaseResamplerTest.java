@@ -0,0 +1,149 @@
+package ProcessKvs.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PolyphaseResamplerTest {
+
+  private static final double AMPLITUDE = 16000;
+
+  @Test
+  public void convertsToExactOutputLength() {
+    int[][] ratios = {{8000, 16000}, {16000, 8000}, {8000, 44100}, {48000, 44100}, {8000, 8000}};
+    for (int[] ratio : ratios) {
+      for (int samples : new int[]{0, 1, 7, 1000, 8001}) {
+        PolyphaseResampler resampler = new PolyphaseResampler(ratio[0], ratio[1]);
+        short[] out = convert(resampler, new short[samples], samples + 3);
+        assertEquals(ratio[0] + " -> " + ratio[1], (long) Math.ceil((double) samples * ratio[1] / ratio[0]), out.length);
+      }
+    }
+  }
+
+  @Test
+  public void streamingMatchesSingleBuffer() {
+    short[] input = noise(5000);
+    short[] whole = convert(new PolyphaseResampler(8000, 16000), input, input.length);
+    short[] pieces = convert(new PolyphaseResampler(8000, 16000), input, 37);
+    assertEquals(whole.length, pieces.length);
+    for (int i = 0; i < whole.length; i++) {
+      assertEquals(whole[i], pieces[i]);
+    }
+  }
+
+  @Test
+  public void keepsPassbandTonesAligned() {
+    // 8 kHz to 16 kHz, tones across the telephony band come out at unity gain and without delay
+    for (double frequency : new double[]{300, 1000, 3000}) {
+      short[] out = convert(new PolyphaseResampler(8000, 16000), tone(frequency, 8000, 8000), 4096);
+      double error = 0, signal = 0;
+      for (int i = 1000; i < out.length - 1000; i++) {
+        double expected = AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / 16000);
+        error += (out[i] - expected) * (out[i] - expected);
+        signal += expected * expected;
+      }
+      double snr = 10 * Math.log10(signal / error);
+      assertTrue(frequency + " Hz SNR " + snr, snr > 70);
+    }
+  }
+
+  @Test
+  public void suppressesImagesWhenUpsampling() {
+    // upsampling a 3 kHz tone must not leave its image at 8 - 3 = 5 kHz
+    short[] out = convert(new PolyphaseResampler(8000, 16000), tone(3000, 8000, 8000), 4096);
+    double tone = power(out, 3000, 16000);
+    double image = power(out, 5000, 16000);
+    assertTrue("image " + decibels(image / tone) + " dB", decibels(image / tone) < -70);
+  }
+
+  @Test
+  public void suppressesAliasesWhenDownsampling() {
+    // a 6 kHz tone is above the 4 kHz Nyquist frequency of 8 kHz output and would alias to 2 kHz
+    short[] in = tone(6000, 16000, 16000);
+    short[] out = convert(new PolyphaseResampler(16000, 8000), in, 4096);
+    double alias = power(out, 2000, 8000);
+    double reference = power(convert(new PolyphaseResampler(16000, 8000), tone(2000, 16000, 16000), 4096), 2000, 8000);
+    assertTrue("alias " + decibels(alias / reference) + " dB", decibels(alias / reference) < -70);
+  }
+
+  @Test
+  public void resetStartsNewTrack() {
+    short[] input = noise(1000);
+    PolyphaseResampler resampler = new PolyphaseResampler(8000, 11025);
+    short[] first = convert(resampler, input, 100);
+    resampler.reset();
+    short[] second = convert(resampler, input, 100);
+    assertEquals(first.length, second.length);
+    for (int i = 0; i < first.length; i++) {
+      assertEquals(first[i], second[i]);
+    }
+  }
+
+  /**
+   * Feeds the input in pieces of the given number of samples through output buffers of an unrelated size
+   */
+  static short[] convert(PolyphaseResampler resampler, short[] input, int piece) {
+    ByteBuffer in = ByteBuffer.allocate(2 * input.length).order(ByteOrder.LITTLE_ENDIAN);
+    for (short sample : input) {
+      in.putShort(sample);
+    }
+    in.flip();
+
+    ByteBuffer out = ByteBuffer.allocate((int) (2 * resampler.outputLength(input.length))).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer window = ByteBuffer.allocate(2 * 53);
+    while (in.hasRemaining()) {
+      ByteBuffer part = in.duplicate();
+      part.limit(Math.min(in.limit(), in.position() + 2 * piece));
+      while (part.hasRemaining()) {
+        resampler.process(part, window.clear());
+        out.put(window.flip());
+      }
+      in.position(part.position());
+    }
+    while (resampler.flush(window.clear()) > 0) {
+      out.put(window.flip());
+    }
+
+    short[] samples = new short[out.position() / 2];
+    out.flip().asShortBuffer().get(samples);
+    return samples;
+  }
+
+  private static short[] tone(double frequency, int rate, int samples) {
+    short[] out = new short[samples];
+    for (int i = 0; i < samples; i++) {
+      out[i] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / rate));
+    }
+    return out;
+  }
+
+  private static short[] noise(int samples) {
+    Random random = new Random(7);
+    short[] out = new short[samples];
+    for (int i = 0; i < samples; i++) {
+      out[i] = (short) random.nextInt();
+    }
+    return out;
+  }
+
+  // Goertzel power of one frequency, skipping the edges
+  private static double power(short[] samples, double frequency, int rate) {
+    double coefficient = 2 * Math.cos(2 * Math.PI * frequency / rate);
+    double s1 = 0, s2 = 0;
+    for (int i = 500; i < samples.length - 500; i++) {
+      double s = samples[i] + coefficient * s1 - s2;
+      s2 = s1;
+      s1 = s;
+    }
+    return s1 * s1 + s2 * s2 - coefficient * s1 * s2;
+  }
+
+  private static double decibels(double ratio) {
+    return 10 * Math.log10(ratio);
+  }
+}
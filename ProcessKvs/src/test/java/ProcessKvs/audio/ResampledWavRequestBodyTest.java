@@ -0,0 +1,90 @@
+package ProcessKvs.audio;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResampledWavRequestBodyTest {
+
+  @Test
+  public void publishesHeaderAndResampledTrack() {
+    short[] samples = new short[3 * ResampledWavRequestBody.OUTPUT_CHUNK_SIZE / 4 + 11];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = (short) (i * 31);
+    }
+    ByteBuffer pcm = ByteBuffer.allocate(2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+    for (short sample : samples) {
+      pcm.putShort(sample);
+    }
+    pcm.flip();
+    // split like a track buffer, at an even offset
+    ByteBuffer first = pcm.duplicate().limit(40000);
+    ByteBuffer second = pcm.duplicate().position(40000);
+
+    ResampledWavRequestBody body = new ResampledWavRequestBody(Arrays.asList(first, second), 8000, 16000);
+    byte[] published = publish(body);
+
+    assertEquals(body.contentLength().get().longValue(), published.length);
+    ByteBuffer wav = ByteBuffer.wrap(published).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(16000, wav.getInt(24));
+    assertEquals(published.length - AudioUtils.WAV_HEADER_SIZE, wav.getInt(40));
+
+    short[] expected = PolyphaseResamplerTest.convert(new PolyphaseResampler(8000, 16000), samples, 1000);
+    short[] actual = new short[expected.length];
+    wav.position(AudioUtils.WAV_HEADER_SIZE);
+    wav.asShortBuffer().get(actual);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void restartsOnEverySubscription() {
+    ByteBuffer pcm = ByteBuffer.allocate(2000);
+    ResampledWavRequestBody body = new ResampledWavRequestBody(List.of(pcm), 8000, 16000);
+    byte[] first = publish(body);
+    byte[] second = publish(body);
+    assertTrue(first.length > AudioUtils.WAV_HEADER_SIZE);
+    assertArrayEquals(first, second);
+  }
+
+  private static byte[] publish(ResampledWavRequestBody body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    boolean[] completed = new boolean[1];
+    body.subscribe(new Subscriber<ByteBuffer>() {
+      @Override
+      public void onSubscribe(Subscription subscription) {
+        // one buffer at a time, as a slow connection would ask for them
+        while (!completed[0]) {
+          subscription.request(1);
+        }
+      }
+
+      @Override
+      public void onNext(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.write(bytes, 0, bytes.length);
+      }
+
+      @Override
+      public void onError(Throwable e) {
+        throw new AssertionError(e);
+      }
+
+      @Override
+      public void onComplete() {
+        completed[0] = true;
+      }
+    });
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,73 @@
+package ProcessKvs.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class StereoMixerTest {
+
+  @Test
+  public void mixesIncrementallyAndPadsShorterTrack() throws Exception {
+    FrameBufferArena arena = new FrameBufferArena(16L * FrameBufferArena.CHUNK_SIZE);
+    TrackBuffer left = arena.newTrack(scratch(), false);
+    TrackBuffer right = arena.newTrack(scratch(), false);
+    TrackBuffer output = arena.newTrack(scratch(), false);
+    StereoMixer mixer = new StereoMixer(left, right, output);
+
+    // the left track ends first, the right one runs into a second chunk
+    int leftSamples = FrameBufferArena.CHUNK_SIZE / 2 - 100;
+    int rightSamples = FrameBufferArena.CHUNK_SIZE / 2 + 3000;
+    int written = 0;
+    while (written < rightSamples) {
+      int count = Math.min(1600, rightSamples - written);
+      if (written < leftSamples) {
+        left.write(samples(written, Math.min(count, leftSamples - written), 1));
+      }
+      right.write(samples(written, count, -1));
+      written += count;
+      // advance the mix in whole steps of 8000 samples, as the segments do
+      long ready = Math.min(left.size(), right.size()) / 2;
+      mixer.mixTo(ready - ready % 8000);
+    }
+    assertEquals(leftSamples - leftSamples % 8000, mixer.getMixedSamples());
+
+    mixer.mixTo(rightSamples);
+    assertEquals(rightSamples, mixer.getMixedSamples());
+    assertEquals(4L * rightSamples, output.size());
+
+    long frame = 0;
+    for (ByteBuffer slice : output.slices()) {
+      slice.order(ByteOrder.LITTLE_ENDIAN);
+      while (slice.hasRemaining()) {
+        assertEquals(frame < leftSamples ? (short) frame : 0, slice.getShort());
+        assertEquals((short) -frame, slice.getShort());
+        frame++;
+      }
+    }
+    assertEquals(rightSamples, frame);
+
+    left.close();
+    right.close();
+    output.close();
+  }
+
+  private static Path scratch() throws Exception {
+    Path scratch = Files.createTempFile("track", ".pcm");
+    Files.delete(scratch);
+    return scratch;
+  }
+
+  private static ByteBuffer samples(int start, int count, int sign) {
+    ByteBuffer buffer = ByteBuffer.allocate(2 * count).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < count; i++) {
+      buffer.putShort((short) (sign * (start + i)));
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,102 @@
+package ProcessKvs.audio;
+
+import ProcessKvs.scratch.ScratchSpace;
+import ProcessKvs.scratch.Workspace;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackBufferTest {
+
+  @Test
+  public void keepsTrackInMemoryWithinBudget() throws Exception {
+    FrameBufferArena arena = new FrameBufferArena(4L * FrameBufferArena.CHUNK_SIZE);
+    Path scratch = Files.createTempFile("track", ".pcm");
+    Files.delete(scratch);
+
+    TrackBuffer track = arena.newTrack(scratch, false);
+    track.write(sequence(0, FrameBufferArena.CHUNK_SIZE + 10));
+
+    assertEquals(FrameBufferArena.CHUNK_SIZE + 10, track.size());
+    assertEquals(2, track.chunkCount());
+    assertFalse(track.isSpilled());
+    assertFalse(Files.exists(scratch));
+    assertEquals(2L * FrameBufferArena.CHUNK_SIZE, arena.getInUse());
+
+    track.close();
+    assertEquals(0, arena.getInUse());
+  }
+
+  @Test
+  public void spillsToScratchFileWhenBudgetIsExhausted() throws Exception {
+    FrameBufferArena arena = new FrameBufferArena(FrameBufferArena.CHUNK_SIZE);
+    Path scratch = Files.createTempFile("track", ".pcm");
+
+    TrackBuffer track = arena.newTrack(scratch, false);
+    int length = 3 * FrameBufferArena.CHUNK_SIZE + 7;
+    track.write(sequence(0, length));
+
+    assertTrue(track.isSpilled());
+    assertEquals(length, track.size());
+    assertEquals(4, track.chunkCount());
+
+    int expected = 0;
+    for (ByteBuffer slice : track.slices()) {
+      while (slice.hasRemaining()) {
+        assertEquals((byte) expected++, slice.get());
+      }
+    }
+    assertEquals(length, expected);
+
+    track.close();
+    assertEquals(0, arena.getInUse());
+    assertFalse(Files.exists(scratch));
+  }
+
+  @Test
+  public void reservesScratchChunksInWorkspace() throws Exception {
+    FrameBufferArena arena = new FrameBufferArena(FrameBufferArena.CHUNK_SIZE);
+    ScratchSpace space = new ScratchSpace(Files.createTempDirectory("scratch"), 2L * FrameBufferArena.CHUNK_SIZE, 0);
+    Workspace workspace = space.open("contact");
+
+    TrackBuffer track = arena.newTrack(workspace, "AUDIO_FROM_CUSTOMER", false);
+    track.write(sequence(0, 3 * FrameBufferArena.CHUNK_SIZE));
+    assertTrue(Files.exists(workspace.file("audio_from_customer.pcm")));
+    assertEquals(2L * FrameBufferArena.CHUNK_SIZE, space.getUsed());
+
+    // a fourth chunk is past the scratch space budget
+    try {
+      track.write(sequence(0, 1));
+      throw new AssertionError("write past the scratch space budget did not fail");
+    } catch (IOException expected) {
+      assertEquals(3, track.chunkCount());
+    }
+
+    // closed in the order of AudioStreamService, while a chunk is still mapped
+    ByteBuffer view = track.chunk(2);
+    track.close();
+    workspace.close();
+    assertFalse(Files.exists(workspace.getDirectory()));
+    // the deleted file keeps the blocks of the mapped chunk
+    assertTrue(space.getUsed() >= FrameBufferArena.CHUNK_SIZE);
+    assertEquals(FrameBufferArena.CHUNK_SIZE, view.remaining());
+    Reference.reachabilityFence(view);
+  }
+
+  private static ByteBuffer sequence(int start, int length) {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (int i = 0; i < length; i++) {
+      buffer.put((byte) (start + i));
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,263 @@
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.S3UploadInfo;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.regions.Region;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrackSegmenterTest {
+
+  // one second of mono audio
+  private static final int SEGMENT_BYTES = AudioUtils.SAMPLE_RATE * 2;
+
+  @Test
+  public void uploadsSegmentsAndFinalPlaylist() throws Exception {
+    FakeUploader uploader = new FakeUploader(true);
+    TrackBuffer track = newTrack();
+    TrackSegmenter segmenter = new TrackSegmenter("contact_audio_from_customer", track, AudioUtils.CHANNEL_MONO, 1, uploader);
+
+    track.write(sequence(0, 2 * SEGMENT_BYTES + SEGMENT_BYTES / 2));
+    segmenter.onData();
+    assertEquals(Arrays.asList("contact_audio_from_customer/segment_00000.wav", "contact_audio_from_customer/segment_00001.wav"),
+        uploader.segmentNames());
+
+    S3UploadInfo playlist = segmenter.finish().join();
+
+    assertEquals("contact_audio_from_customer/" + TrackSegmenter.PLAYLIST_NAME, playlist.getObjectKey());
+    assertEquals(3, uploader.segmentNames().size());
+    String text = uploader.lastPlaylist();
+    assertTrue(text.contains("#EXT-X-PLAYLIST-TYPE:VOD\n"));
+    assertTrue(text.endsWith("#EXTINF:1.000,\nsegment_00000.wav\n#EXTINF:1.000,\nsegment_00001.wav\n"
+        + "#EXTINF:0.500,\nsegment_00002.wav\n#EXT-X-ENDLIST\n"));
+
+    // the last segment is a wav file holding the rest of the track
+    byte[] last = uploader.uploads.get(uploader.indexOf("contact_audio_from_customer/segment_00002.wav")).content;
+    ByteBuffer expected = ByteBuffer.allocate(AudioUtils.WAV_HEADER_SIZE + SEGMENT_BYTES / 2);
+    expected.put(AudioUtils.wavHeader(SEGMENT_BYTES / 2, AudioUtils.CHANNEL_MONO)).put(sequence(2 * SEGMENT_BYTES, SEGMENT_BYTES / 2));
+    assertArrayEquals(expected.array(), last);
+
+    track.close();
+  }
+
+  @Test
+  public void listsOnlySegmentsUploadedInOrder() throws Exception {
+    FakeUploader uploader = new FakeUploader(false);
+    TrackBuffer track = newTrack();
+    TrackSegmenter segmenter = new TrackSegmenter("mixed", track, AudioUtils.CHANNEL_MONO, 1, uploader);
+
+    track.write(sequence(0, 2 * SEGMENT_BYTES));
+    segmenter.onData();
+
+    // the second segment completes first, it is not listed before the first one
+    uploader.complete("mixed/segment_00001.wav");
+    assertFalse(uploader.lastPlaylist().contains("segment_"));
+
+    uploader.complete("mixed/segment_00000.wav");
+    // one playlist write at a time
+    assertEquals(1, uploader.playlistCount());
+    uploader.complete("mixed/" + TrackSegmenter.PLAYLIST_NAME);
+    assertEquals(2, uploader.playlistCount());
+    String text = uploader.lastPlaylist();
+    assertTrue(text.contains("#EXT-X-PLAYLIST-TYPE:EVENT\n"));
+    assertTrue(text.contains("segment_00000.wav\n"));
+    assertTrue(text.contains("segment_00001.wav\n"));
+    assertFalse(text.contains("#EXT-X-ENDLIST"));
+
+    track.close();
+  }
+
+  @Test
+  public void finalPlaylistListsSegmentCompletingAfterFinish() throws Exception {
+    FakeUploader uploader = new FakeUploader(false);
+    TrackBuffer track = newTrack();
+    TrackSegmenter segmenter = new TrackSegmenter("mixed", track, AudioUtils.CHANNEL_MONO, 1, uploader);
+
+    track.write(sequence(0, SEGMENT_BYTES + SEGMENT_BYTES / 2));
+    segmenter.onData();
+    uploader.complete("mixed/segment_00000.wav");
+    uploader.complete("mixed/" + TrackSegmenter.PLAYLIST_NAME);
+
+    // the last segment is started by finish and completes after it
+    CompletableFuture<S3UploadInfo> playlist = segmenter.finish();
+    uploader.complete("mixed/segment_00001.wav");
+    while (!playlist.isDone()) {
+      uploader.complete("mixed/" + TrackSegmenter.PLAYLIST_NAME);
+    }
+
+    assertEquals("mixed/" + TrackSegmenter.PLAYLIST_NAME, playlist.join().getObjectKey());
+    assertTrue(uploader.lastPlaylist().endsWith("#EXTINF:1.000,\nsegment_00000.wav\n"
+        + "#EXTINF:0.500,\nsegment_00001.wav\n#EXT-X-ENDLIST\n"));
+
+    track.close();
+  }
+
+  @Test
+  public void abortWaitsForStartedUploads() throws Exception {
+    FakeUploader uploader = new FakeUploader(false);
+    TrackBuffer track = newTrack();
+    TrackSegmenter segmenter = new TrackSegmenter("mixed", track, AudioUtils.CHANNEL_MONO, 1, uploader);
+
+    track.write(sequence(0, SEGMENT_BYTES));
+    segmenter.onData();
+    CompletableFuture<Void> aborted = segmenter.abort();
+    assertFalse(aborted.isDone());
+
+    uploader.fail("mixed/segment_00000.wav");
+    assertTrue(aborted.isDone());
+    // no playlist is written once aborted
+    assertEquals(0, uploader.playlistCount());
+
+    track.close();
+  }
+
+  @Test
+  public void emptyTrackHasNoPlaylist() throws Exception {
+    FakeUploader uploader = new FakeUploader(true);
+    TrackBuffer track = newTrack();
+    TrackSegmenter segmenter = new TrackSegmenter("mixed", track, AudioUtils.CHANNEL_STEREO, 1, uploader);
+
+    assertNull(segmenter.finish().join());
+    assertTrue(uploader.uploads.isEmpty());
+
+    track.close();
+  }
+
+  private static TrackBuffer newTrack() throws Exception {
+    Path scratch = Files.createTempFile("track", ".pcm");
+    Files.delete(scratch);
+    return new FrameBufferArena(4L * FrameBufferArena.CHUNK_SIZE).newTrack(scratch, false);
+  }
+
+  private static ByteBuffer sequence(int start, int length) {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (int i = 0; i < length; i++) {
+      buffer.put((byte) (start + i));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static final class Upload {
+    private final String fileName;
+    private final byte[] content;
+    private final CompletableFuture<S3UploadInfo> result = new CompletableFuture<>();
+
+    private Upload(String fileName, byte[] content) {
+      this.fileName = fileName;
+      this.content = content;
+    }
+  }
+
+  private static final class FakeUploader implements TrackSegmenter.ObjectUploader {
+    private final boolean completeImmediately;
+    private final List<Upload> uploads = new ArrayList<>();
+
+    private FakeUploader(boolean completeImmediately) {
+      this.completeImmediately = completeImmediately;
+    }
+
+    @Override
+    public synchronized CompletableFuture<S3UploadInfo> upload(String fileName, AsyncRequestBody body, String contentType) {
+      Upload upload = new Upload(fileName, publish(body));
+      uploads.add(upload);
+      if (completeImmediately) {
+        upload.result.complete(new S3UploadInfo("bucket", fileName, Region.US_EAST_1));
+      }
+      return upload.result;
+    }
+
+    void complete(String fileName) {
+      pending(fileName).result.complete(new S3UploadInfo("bucket", fileName, Region.US_EAST_1));
+    }
+
+    void fail(String fileName) {
+      pending(fileName).result.completeExceptionally(new IllegalStateException("upload failed"));
+    }
+
+    synchronized int indexOf(String fileName) {
+      for (int i = 0; i < uploads.size(); i++) {
+        if (uploads.get(i).fileName.equals(fileName)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    synchronized List<String> segmentNames() {
+      List<String> names = new ArrayList<>();
+      for (Upload upload : uploads) {
+        if (!upload.fileName.endsWith(TrackSegmenter.PLAYLIST_NAME)) {
+          names.add(upload.fileName);
+        }
+      }
+      return names;
+    }
+
+    synchronized int playlistCount() {
+      return uploads.size() - segmentNames().size();
+    }
+
+    synchronized String lastPlaylist() {
+      for (int i = uploads.size() - 1; i >= 0; i--) {
+        if (uploads.get(i).fileName.endsWith(TrackSegmenter.PLAYLIST_NAME)) {
+          return new String(uploads.get(i).content, StandardCharsets.UTF_8);
+        }
+      }
+      return "";
+    }
+
+    private synchronized Upload pending(String fileName) {
+      for (Upload upload : uploads) {
+        if (upload.fileName.equals(fileName) && !upload.result.isDone()) {
+          return upload;
+        }
+      }
+      throw new AssertionError("no pending upload of " + fileName);
+    }
+  }
+
+  private static byte[] publish(AsyncRequestBody body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    body.subscribe(new Subscriber<ByteBuffer>() {
+      @Override
+      public void onSubscribe(Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.write(bytes, 0, bytes.length);
+      }
+
+      @Override
+      public void onError(Throwable e) {
+        throw new AssertionError(e);
+      }
+
+      @Override
+      public void onComplete() {
+      }
+    });
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,116 @@
+package ProcessKvs.audio;
+
+import ProcessKvs.kvstream.KVSUtils;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WaveformPeaksTest {
+
+  @Test
+  public void writesMinAndMaxPerPixel() {
+    WaveformPeaks peaks = new WaveformPeaks(Collections.singleton(KVSUtils.AUDIO_TO_CUSTOMER), 4);
+    // the frames do not end on pixel boundaries, the last pixel is partial
+    peaks.accept(KVSUtils.AUDIO_TO_CUSTOMER, samples(0, 1000, -1000));
+    peaks.accept(KVSUtils.AUDIO_TO_CUSTOMER, samples(32767, -32768, 256, 512, 7, -3));
+    peaks.accept(KVSUtils.AUDIO_FROM_CUSTOMER, samples(12345));
+
+    ByteBuffer sidecar = peaks.finish().order(ByteOrder.LITTLE_ENDIAN);
+    assertHeader(sidecar, 4, 3, 1);
+    assertEquals(-1000 >> 8, sidecar.get());
+    assertEquals(127, sidecar.get());
+    assertEquals(-128, sidecar.get());
+    assertEquals(2, sidecar.get());
+    assertEquals(-1, sidecar.get());
+    assertEquals(-1, sidecar.get());
+    assertFalse(sidecar.hasRemaining());
+  }
+
+  @Test
+  public void padsShorterTrackWithSilence() {
+    WaveformPeaks peaks = new WaveformPeaks(Set.of(KVSUtils.AUDIO_TO_CUSTOMER, KVSUtils.AUDIO_FROM_CUSTOMER), 2);
+    peaks.accept(KVSUtils.AUDIO_TO_CUSTOMER, samples(-512, -256, 1024, 2048));
+    peaks.accept(KVSUtils.AUDIO_FROM_CUSTOMER, samples(768, 1280));
+
+    ByteBuffer sidecar = peaks.finish().order(ByteOrder.LITTLE_ENDIAN);
+    assertHeader(sidecar, 2, 2, 2);
+    // the customer first, as in the stereo mix
+    byte[] pixels = new byte[8];
+    sidecar.get(pixels);
+    assertEquals(3, pixels[0]);
+    assertEquals(5, pixels[1]);
+    assertEquals(-2, pixels[2]);
+    assertEquals(-1, pixels[3]);
+    assertEquals(0, pixels[4]);
+    assertEquals(0, pixels[5]);
+    assertEquals(4, pixels[6]);
+    assertEquals(8, pixels[7]);
+  }
+
+  @Test
+  public void halvesLevelsDownToOverview() {
+    WaveformPeaks peaks = new WaveformPeaks(Collections.singleton(KVSUtils.AUDIO_FROM_CUSTOMER), 1);
+    int pixels = 4 * WaveformPeaks.OVERVIEW_PIXELS + 1;
+    short[] values = new short[pixels];
+    for (int i = 0; i < pixels; i++) {
+      values[i] = (short) ((i % 200 - 100) * 256);
+    }
+    peaks.accept(KVSUtils.AUDIO_FROM_CUSTOMER, samples(values));
+
+    ByteBuffer sidecar = peaks.finish().order(ByteOrder.LITTLE_ENDIAN);
+    int samplesPerPixel = 1;
+    int length = pixels;
+    byte[] finer = null;
+    while (true) {
+      assertHeader(sidecar, samplesPerPixel, length, 1);
+      byte[] level = new byte[2 * length];
+      sidecar.get(level);
+      if (finer != null) {
+        for (int i = 0; i < length; i++) {
+          int next = Math.min(2 * i + 1, finer.length / 2 - 1);
+          assertEquals(Math.min(finer[4 * i], finer[2 * next]), level[2 * i]);
+          assertEquals(Math.max(finer[4 * i + 1], finer[2 * next + 1]), level[2 * i + 1]);
+        }
+      }
+      if (length <= WaveformPeaks.OVERVIEW_PIXELS) {
+        break;
+      }
+      finer = level;
+      length = (length + 1) / 2;
+      samplesPerPixel *= 2;
+    }
+    assertEquals(WaveformPeaks.OVERVIEW_PIXELS / 2 + 1, length);
+    assertFalse(sidecar.hasRemaining());
+  }
+
+  private static void assertHeader(ByteBuffer sidecar, int samplesPerPixel, int length, int channels) {
+    assertEquals(2, sidecar.getInt());
+    assertEquals(1, sidecar.getInt());
+    assertEquals(AudioUtils.SAMPLE_RATE, sidecar.getInt());
+    assertEquals(samplesPerPixel, sidecar.getInt());
+    assertEquals(length, sidecar.getInt());
+    assertEquals(channels, sidecar.getInt());
+  }
+
+  private static ByteBuffer samples(int... values) {
+    ByteBuffer buffer = ByteBuffer.allocate(2 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+    for (int value : values) {
+      buffer.putShort((short) value);
+    }
+    return buffer.flip();
+  }
+
+  private static ByteBuffer samples(short... values) {
+    ByteBuffer buffer = ByteBuffer.allocate(2 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+    for (short value : values) {
+      buffer.putShort(value);
+    }
+    return buffer.flip();
+  }
+}
@@ -0,0 +1,49 @@
+package ProcessKvs.aws;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketTest {
+
+  @Test
+  public void allowsBurstThenQueuesReservations() {
+    AtomicLong now = new AtomicLong();
+    TokenBucket bucket = new TokenBucket(10, 2, now::get);
+
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(100_000_000L, bucket.reserve());
+    assertEquals(200_000_000L, bucket.reserve());
+
+    now.addAndGet(1_000_000_000L);
+    assertEquals(0, bucket.reserve());
+  }
+
+  @Test
+  public void drainDropsAccumulatedBurst() {
+    AtomicLong now = new AtomicLong();
+    TokenBucket bucket = new TokenBucket(5, 5, now::get);
+
+    bucket.drain();
+    assertEquals(200_000_000L, bucket.reserve());
+  }
+
+  @Test
+  public void resetIgnoresTimeBeforeSnapshot() {
+    AtomicLong now = new AtomicLong(5_000_000_000L);
+    TokenBucket bucket = new TokenBucket(10, 2, now::get);
+    bucket.reserve();
+    bucket.reserve();
+    bucket.reserve();
+
+    // the clock of the restored environment starts lower than the one the snapshot was taken on
+    now.set(1_000L);
+    bucket.reset();
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(100_000_000L, bucket.reserve());
+  }
+}
@@ -0,0 +1,191 @@
+package ProcessKvs.backfill;
+
+import ProcessKvs.kinesis.CtrBatch;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackfillRunnerTest {
+
+  @Test
+  public void limitsConcurrencyGloballyAndPerStream() throws Exception {
+    Path file = checkpointFile();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    Map<String, AtomicInteger> perStream = new ConcurrentHashMap<>();
+    Map<String, AtomicInteger> maxPerStream = new ConcurrentHashMap<>();
+
+    try (BackfillCheckpoint checkpoint = BackfillCheckpoint.open(file)) {
+      BackfillRunner runner = new BackfillRunner(ctr -> {
+        String stream = ctr.getString("Stream");
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        int current = perStream.computeIfAbsent(stream, s -> new AtomicInteger()).incrementAndGet();
+        maxPerStream.computeIfAbsent(stream, s -> new AtomicInteger()).accumulateAndGet(current, Math::max);
+        Thread.sleep(5);
+        perStream.get(stream).decrementAndGet();
+        running.decrementAndGet();
+        return true;
+      }, 4, 2, checkpoint);
+
+      // most records are on one stream, it must not take more than its share of the workers
+      for (int i = 0; i < 60; i++) {
+        String stream = i % 3 == 0 ? "stream-" + i : "busy";
+        runner.submit(record("contact-" + i, stream));
+      }
+      BackfillStats stats = runner.finish();
+
+      assertEquals(60, stats.getSucceeded());
+      assertEquals(0, stats.getFailed());
+      assertTrue(maxRunning.get() <= 4);
+      assertEquals(2, maxPerStream.get("busy").get());
+      assertTrue(maxRunning.get() > 2);
+    }
+  }
+
+  @Test
+  public void resumesFromCheckpoint() throws Exception {
+    Path file = checkpointFile();
+    try (BackfillCheckpoint checkpoint = BackfillCheckpoint.open(file)) {
+      BackfillRunner runner = new BackfillRunner(ctr -> {
+        if (ctr.getString("ContactId").equals("contact-1")) {
+          throw new IllegalStateException("GetMedia failed");
+        }
+        return !ctr.getString("ContactId").equals("contact-2");
+      }, 2, 1, checkpoint);
+      for (int i = 0; i < 4; i++) {
+        runner.submit(record("contact-" + i, "stream"));
+      }
+      // a second record of a contact is not processed again
+      runner.submit(record("contact-0", "stream"));
+      BackfillStats stats = runner.finish();
+
+      assertEquals(2, stats.getSucceeded());
+      assertEquals(2, stats.getFailed());
+      assertEquals(1, stats.getSkipped());
+    }
+
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    assertEquals(4, lines.size());
+    assertTrue(lines.contains("FAILED\tcontact-1\tjava.lang.IllegalStateException: GetMedia failed"));
+
+    AtomicInteger processed = new AtomicInteger();
+    try (BackfillCheckpoint checkpoint = BackfillCheckpoint.open(file)) {
+      assertEquals(2, checkpoint.getCompletedCount());
+      assertTrue(checkpoint.isCompleted("contact-3"));
+      assertFalse(checkpoint.isCompleted("contact-1"));
+
+      BackfillRunner runner = new BackfillRunner(ctr -> {
+        processed.incrementAndGet();
+        return true;
+      }, 2, 1, checkpoint);
+      for (int i = 0; i < 4; i++) {
+        runner.submit(record("contact-" + i, "stream"));
+      }
+      BackfillStats stats = runner.finish();
+
+      // only the failed contacts are processed again
+      assertEquals(2, processed.get());
+      assertEquals(2, stats.getSkipped());
+    }
+  }
+
+  @Test
+  public void processesLatestVersionOfContact() throws Exception {
+    List<String> processed = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch release = new CountDownLatch(1);
+    try (BackfillCheckpoint checkpoint = BackfillCheckpoint.open(checkpointFile())) {
+      BackfillRunner runner = new BackfillRunner(ctr -> {
+        if (processed.isEmpty()) {
+          release.await();
+        }
+        processed.add(ctr.getString("ContactId") + "@" + ctr.getString("LastUpdateTimestamp"));
+        return true;
+      }, 1, 1, checkpoint);
+
+      runner.submit(record("contact-x", "stream", "2024-02-25T08:36:00Z"));
+      runner.submit(record("contact-a", "stream", "2024-02-25T08:36:00Z"));
+      // a newer version replaces the queued one, an older one is skipped
+      runner.submit(record("contact-a", "stream", "2024-02-25T08:37:00Z"));
+      runner.submit(record("contact-a", "stream", "2024-02-25T08:35:00Z"));
+      // a newer version of a running contact waits for it
+      runner.submit(record("contact-x", "stream", "2024-02-25T08:38:00Z"));
+      release.countDown();
+      BackfillStats stats = runner.finish();
+
+      assertEquals(Arrays.asList("contact-x@2024-02-25T08:36:00Z", "contact-a@2024-02-25T08:37:00Z", "contact-x@2024-02-25T08:38:00Z"),
+          processed);
+      assertEquals(3, stats.getSucceeded());
+      assertEquals(2, stats.getSkipped());
+    }
+  }
+
+  @Test
+  public void submitsLatestVersionOfFile() throws Exception {
+    List<String> processed = Collections.synchronizedList(new ArrayList<>());
+    try (BackfillCheckpoint checkpoint = BackfillCheckpoint.open(checkpointFile())) {
+      BackfillRunner runner = new BackfillRunner(ctr -> processed.add(ctr.getString("LastUpdateTimestamp")), 2, 1, checkpoint);
+      CtrBatch batch = new CtrBatch();
+      batch.add("1", ctr("contact-1", "2024-02-25T08:37:00Z"));
+      batch.add("2", ctr("contact-1", "2024-02-25T08:36:00Z"));
+      batch.add("3", new JSONObject().put("Channel", "VOICE"));
+
+      runner.submitLatest(batch);
+      BackfillStats stats = runner.finish();
+
+      assertEquals(Collections.singletonList("2024-02-25T08:37:00Z"), processed);
+      assertEquals(2, stats.getSkipped());
+    }
+  }
+
+  @Test
+  public void reportsLatencyPercentiles() {
+    BackfillStats stats = new BackfillStats();
+    for (int i = 1; i <= 100; i++) {
+      stats.record(i * 1_000_000L, true);
+    }
+    assertEquals(50, stats.getLatencyMillis(50));
+    assertEquals(99, stats.getLatencyMillis(99));
+    assertEquals(100, stats.getLatencyMillis(100));
+    assertEquals(1, stats.getLatencyMillis(0));
+  }
+
+  private static Path checkpointFile() throws Exception {
+    Path file = Files.createTempFile("backfill", ".checkpoint");
+    Files.delete(file);
+    return file;
+  }
+
+  private static BackfillRecord record(String contactId, String stream) {
+    JSONObject ctr = new JSONObject();
+    ctr.put("ContactId", contactId);
+    ctr.put("Stream", stream);
+    return new BackfillRecord(contactId, stream, ctr);
+  }
+
+  private static BackfillRecord record(String contactId, String stream, String lastUpdate) {
+    return new BackfillRecord(contactId, stream, ctr(contactId, lastUpdate));
+  }
+
+  private static JSONObject ctr(String contactId, String lastUpdate) {
+    return new JSONObject()
+        .put("ContactId", contactId)
+        .put("LastUpdateTimestamp", lastUpdate)
+        .put("Recordings", new JSONArray());
+  }
+}
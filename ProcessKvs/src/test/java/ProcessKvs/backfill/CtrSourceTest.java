@@ -0,0 +1,57 @@
+package ProcessKvs.backfill;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class CtrSourceTest {
+
+  private static final String CTR = "{\"ContactId\":\"%s\",\"Recordings\":[{\"StorageType\":\"S3\",\"Location\":\"bucket/key.wav\"},"
+      + "{\"StorageType\":\"KINESIS_VIDEO_STREAM\",\"Location\":\"arn:aws:kinesisvideo:us-east-1:123456789012:stream/%s/1\"}]}";
+
+  @Test
+  public void readsConcatenatedAndLineSeparatedRecords() throws Exception {
+    // Firehose writes records without a separator
+    String export = String.format(CTR, "a", "s1") + String.format(CTR, "b", "s2") + "\n"
+        + String.format(CTR, "c", "s1") + "\n\n";
+    List<JSONObject> records = new ArrayList<>();
+    CtrSource.readRecords(new StringReader(export), records::add);
+
+    assertEquals(3, records.size());
+    BackfillRecord record = BackfillRecord.of(records.get(1));
+    assertEquals("b", record.getContactId());
+    assertEquals("arn:aws:kinesisvideo:us-east-1:123456789012:stream/s2/1", record.getStreamARN());
+  }
+
+  @Test
+  public void readsGzippedFilesOfDirectory() throws Exception {
+    Path directory = Files.createTempDirectory("ctr");
+    Files.write(directory.resolve("part-1.json"), String.format(CTR, "a", "s1").getBytes(StandardCharsets.UTF_8));
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(directory.resolve("part-2.json.gz")))) {
+      out.write((String.format(CTR, "b", "s1") + String.format(CTR, "c", "s1")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    List<String> contactIds = new ArrayList<>();
+    for (String file : CtrSource.expand(directory.toString())) {
+      CtrSource.read(file, ctr -> contactIds.add(ctr.getString("ContactId")));
+    }
+    assertEquals(Arrays.asList("a", "b", "c"), contactIds);
+  }
+
+  @Test
+  public void splitsS3Locations() {
+    assertEquals(Arrays.asList("bucket", "ctr/2024/"), Arrays.asList(CtrSource.splitS3Location("s3://bucket/ctr/2024/")));
+    assertEquals(Arrays.asList("bucket", ""), Arrays.asList(CtrSource.splitS3Location("s3://bucket")));
+  }
+}
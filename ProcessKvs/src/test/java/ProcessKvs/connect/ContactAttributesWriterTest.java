@@ -0,0 +1,139 @@
+package ProcessKvs.connect;
+
+import ProcessKvs.aws.TokenBucket;
+import org.junit.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.connect.ConnectAsyncClient;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesRequest;
+import software.amazon.awssdk.services.connect.model.UpdateContactAttributesResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContactAttributesWriterTest {
+
+  @Test
+  public void keepsOneAnalyticsValuePerRecording() {
+    Map<String, String> target = new HashMap<>();
+    ContactAttributesWriter.mergeAttributes(target, Collections.singletonMap("audioMixed", "d/a.wav"),
+        Collections.singletonMap("overlapSeconds", "0.0000"));
+    // a later CTR listing the first recording again, and a second recording with the same value
+    ContactAttributesWriter.mergeAttributes(target, Collections.singletonMap("audioMixed", "d/a.wav, d/b.wav"),
+        Collections.singletonMap("overlapSeconds", "0.0000"));
+    ContactAttributesWriter.mergeAttributes(target, Collections.singletonMap("audioMixed", ""),
+        Collections.singletonMap("overlapSeconds", ""));
+
+    assertEquals("d/a.wav, d/b.wav", target.get("audioMixed"));
+    assertEquals("0.0000, 0.0000", target.get("overlapSeconds"));
+  }
+
+  @Test
+  public void mergesUpdatesWithinLinger() {
+    RecordingConnect connect = new RecordingConnect(() -> CompletableFuture.completedFuture(UpdateContactAttributesResponse.builder().build()));
+    ContactAttributesWriter writer = new ContactAttributesWriter(connect, new TokenBucket(1000, 1000), 60_000);
+
+    CompletableFuture<Void> first = writer.submit("instance", "contact-1", Collections.singletonMap("audioMixed", "d/a.wav"));
+    CompletableFuture<Void> second = writer.submit("instance", "contact-1", Collections.singletonMap("audioMixed", "d/b.wav"),
+        Collections.singletonMap("talkSeconds", "1.5000"));
+    writer.submit("instance", "contact-2", Collections.singletonMap("audioMixed", "d/c.wav"));
+
+    assertEquals(0, writer.flush());
+    first.join();
+    second.join();
+    assertEquals(2, connect.requests.size());
+    UpdateContactAttributesRequest request = connect.requests.stream()
+        .filter(r -> r.initialContactId().equals("contact-1")).findFirst().get();
+    assertEquals("d/a.wav, d/b.wav", request.attributes().get("audioMixed"));
+    assertEquals("1.5000", request.attributes().get("talkSeconds"));
+  }
+
+  @Test
+  public void retriesFailedCall() {
+    List<Throwable> failures = new ArrayList<>(Collections.singletonList(SdkClientException.create("connection reset")));
+    RecordingConnect connect = new RecordingConnect(() -> failures.isEmpty()
+        ? CompletableFuture.completedFuture(UpdateContactAttributesResponse.builder().build())
+        : CompletableFuture.failedFuture(failures.remove(0)));
+    ContactAttributesWriter writer = new ContactAttributesWriter(connect, new TokenBucket(1000, 1000), 0);
+
+    writer.submit("instance", "contact-1", Collections.singletonMap("audioMixed", "d/a.wav"));
+
+    assertEquals(0, writer.flush());
+    assertEquals(2, connect.requests.size());
+    assertEquals(connect.requests.get(0).attributes(), connect.requests.get(1).attributes());
+  }
+
+  @Test
+  public void doesNotRetryRejectedCall() {
+    RecordingConnect connect = new RecordingConnect(() -> CompletableFuture.failedFuture(new IllegalArgumentException("invalid attribute")));
+    ContactAttributesWriter writer = new ContactAttributesWriter(connect, new TokenBucket(1000, 1000), 0);
+
+    CompletableFuture<Void> update = writer.submit("instance", "contact-1", Collections.singletonMap("audioMixed", "d/a.wav"));
+
+    assertEquals(1, writer.flush());
+    assertEquals(1, connect.requests.size());
+    assertTrue(update.isCompletedExceptionally());
+  }
+
+  @Test
+  public void sendsUpdateOfContactWithoutLinger() {
+    RecordingConnect connect = new RecordingConnect(() -> CompletableFuture.completedFuture(UpdateContactAttributesResponse.builder().build()));
+    ContactAttributesWriter writer = new ContactAttributesWriter(connect, new TokenBucket(1000, 1000), 60_000);
+
+    writer.submit("instance", "contact-1", Collections.singletonMap("audioMixed", "d/a.wav"));
+    writer.submit("instance", "contact-2", Collections.singletonMap("audioMixed", "d/b.wav"));
+    writer.send("instance", "contact-1").join();
+
+    assertEquals(1, connect.requests.size());
+    assertEquals("contact-1", connect.requests.get(0).initialContactId());
+    // nothing queued, the last update is already written
+    assertTrue(writer.send("instance", "contact-1").isDone());
+    assertEquals(0, writer.flush());
+    assertEquals(2, connect.requests.size());
+  }
+
+  @Test
+  public void keepsMergedAttributesOfRecentContacts() {
+    RecordingConnect connect = new RecordingConnect(() -> CompletableFuture.completedFuture(UpdateContactAttributesResponse.builder().build()));
+    ContactAttributesWriter writer = new ContactAttributesWriter(connect, new TokenBucket(1_000_000, 1_000_000), 0);
+
+    for (int i = 0; i < ContactAttributesWriter.MAX_WRITTEN_CONTACTS + 100; i++) {
+      writer.submit("instance", "contact-" + i, Collections.singletonMap("audioMixed", "d/" + i + ".wav")).join();
+    }
+
+    assertEquals(ContactAttributesWriter.MAX_WRITTEN_CONTACTS, writer.getWrittenContacts());
+    assertEquals(0, writer.flush());
+    assertEquals(0, writer.getWrittenContacts());
+  }
+
+  private static final class RecordingConnect implements ConnectAsyncClient {
+    private final Supplier<CompletableFuture<UpdateContactAttributesResponse>> responses;
+    private final List<UpdateContactAttributesRequest> requests = Collections.synchronizedList(new ArrayList<>());
+
+    private RecordingConnect(Supplier<CompletableFuture<UpdateContactAttributesResponse>> responses) {
+      this.responses = responses;
+    }
+
+    @Override
+    public CompletableFuture<UpdateContactAttributesResponse> updateContactAttributes(UpdateContactAttributesRequest request) {
+      requests.add(request);
+      return responses.get();
+    }
+
+    @Override
+    public String serviceName() {
+      return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package ProcessKvs.consolidation;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartPlannerTest {
+
+  private static final long MIN = 100;
+
+  @Test
+  public void topsUpHeaderFromNextRecording() {
+    List<PartPlanner.Part> parts = PartPlanner.plan(Arrays.asList(
+        PartPlanner.Piece.bytes(ByteBuffer.allocate(44)),
+        PartPlanner.Piece.copy("bucket", "a.wav", 44, 500),
+        PartPlanner.Piece.copy("bucket", "b.wav", 44, 300)), MIN);
+
+    assertEquals(3, parts.size());
+    assertFalse(parts.get(0).isCopy());
+    assertEquals(MIN, parts.get(0).getLength());
+    assertEquals("bytes=44-99", parts.get(0).getPieces().get(1).range());
+    assertTrue(parts.get(1).isCopy());
+    assertEquals("bytes=100-543", parts.get(1).getCopy().range());
+    assertTrue(parts.get(2).isCopy());
+    assertEquals("bytes=44-343", parts.get(2).getCopy().range());
+    assertLengths(parts, 844);
+  }
+
+  @Test
+  public void readsShortRecordingsAndSilence() {
+    List<PartPlanner.Part> parts = PartPlanner.plan(Arrays.asList(
+        PartPlanner.Piece.bytes(ByteBuffer.allocate(44)),
+        PartPlanner.Piece.copy("bucket", "a.wav", 44, 30),
+        PartPlanner.Piece.silence(20),
+        PartPlanner.Piece.copy("bucket", "b.wav", 44, 100),
+        PartPlanner.Piece.silence(10),
+        PartPlanner.Piece.copy("bucket", "c.wav", 44, 40)), MIN);
+
+    // b.wav cannot give 6 bytes and keep a copy part of the minimum size, so all of it is read
+    assertEquals(2, parts.size());
+    assertFalse(parts.get(0).isCopy());
+    assertEquals(5, parts.get(0).getPieces().size());
+    assertTrue(parts.get(1).isCopy());
+    assertEquals("bytes=44-83", parts.get(1).getCopy().range());
+    assertLengths(parts, 244);
+  }
+
+  @Test
+  public void lastRangeIsCopiedWhateverItsLength() {
+    List<PartPlanner.Part> parts = PartPlanner.plan(Arrays.asList(
+        PartPlanner.Piece.copy("bucket", "a.wav", 44, 200),
+        PartPlanner.Piece.silence(50),
+        PartPlanner.Piece.copy("bucket", "b.wav", 44, 60)), MIN);
+
+    assertEquals(3, parts.size());
+    assertTrue(parts.get(0).isCopy());
+    assertFalse(parts.get(1).isCopy());
+    assertEquals(MIN, parts.get(1).getLength());
+    assertTrue(parts.get(2).isCopy());
+    assertEquals("bytes=94-103", parts.get(2).getCopy().range());
+    assertLengths(parts, 310);
+  }
+
+  @Test
+  public void silenceIsViewsOfSharedBuffer() {
+    long length = 150 * 1024 + 3;
+    List<ByteBuffer> buffers = RecordingConsolidator.silence(length);
+    long total = 0;
+    for (ByteBuffer buffer : buffers) {
+      assertTrue(buffer.isReadOnly());
+      total += buffer.remaining();
+    }
+    assertEquals(3, buffers.size());
+    assertEquals(length, total);
+  }
+
+  private static void assertLengths(List<PartPlanner.Part> parts, long total) {
+    long length = 0;
+    for (int i = 0; i < parts.size(); i++) {
+      if (i < parts.size() - 1) {
+        assertTrue(parts.get(i).toString(), parts.get(i).getLength() >= MIN);
+      }
+      length += parts.get(i).getLength();
+    }
+    assertEquals(total, length);
+  }
+}
@@ -0,0 +1,137 @@
+package ProcessKvs.consolidation;
+
+import ProcessKvs.audio.AudioUtils;
+import ProcessKvs.model.RecordedObject;
+import ProcessKvs.model.RecordingData;
+import org.junit.Test;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CopyPartResult;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingConsolidatorTest {
+
+  @Test
+  public void fillsGapsWithSilenceOfWholeFrames() {
+    // stereo at 11025 Hz, the first recording lasts one second and the gap of 333 ms is 3671.325 frames
+    List<RecordingConsolidator.Segment> segments = Arrays.asList(
+        segment("a.wav", AudioUtils.WAV_HEADER_SIZE + 11025 * 4, 2, 11025, 0),
+        segment("b.wav", 4000, 2, 11025, 1333));
+
+    List<PartPlanner.Piece> pieces = RecordingConsolidator.pieces(segments);
+
+    assertEquals(4, pieces.size());
+    assertEquals(AudioUtils.WAV_HEADER_SIZE, pieces.get(0).getLength());
+    assertEquals("bytes=44-44143", pieces.get(1).range());
+    assertTrue(pieces.get(2).isSilence());
+    assertEquals(3671 * 4, pieces.get(2).getLength());
+    assertEquals("bytes=44-3999", pieces.get(3).range());
+    assertEquals(11025 * 4 + 3671 * 4 + 4000 - AudioUtils.WAV_HEADER_SIZE, dataLength(pieces.get(0)));
+  }
+
+  @Test
+  public void capsGapBetweenRecordings() {
+    List<RecordingConsolidator.Segment> segments = Arrays.asList(
+        segment("a.wav", 16044, 1, AudioUtils.SAMPLE_RATE, 0),
+        segment("b.wav", 16044, 1, AudioUtils.SAMPLE_RATE, 3_600_000));
+
+    List<PartPlanner.Piece> pieces = RecordingConsolidator.pieces(segments);
+
+    // five minutes of 8 kHz 16 bit mono
+    assertEquals(5 * 60 * 8000 * 2, pieces.get(2).getLength());
+    assertEquals(2 * 16000 + 5 * 60 * 8000 * 2, dataLength(pieces.get(0)));
+  }
+
+  @Test
+  public void abortsUploadWhenPartFails() {
+    List<AbortMultipartUploadRequest> aborted = Collections.synchronizedList(new ArrayList<>());
+    S3AsyncClient s3 = new S3AsyncClient() {
+      @Override
+      public CompletableFuture<CreateMultipartUploadResponse> createMultipartUpload(CreateMultipartUploadRequest request) {
+        return CompletableFuture.completedFuture(CreateMultipartUploadResponse.builder().uploadId("upload-1").build());
+      }
+
+      @Override
+      public CompletableFuture<UploadPartResponse> uploadPart(UploadPartRequest request, AsyncRequestBody body) {
+        return CompletableFuture.completedFuture(UploadPartResponse.builder().eTag("part-" + request.partNumber()).build());
+      }
+
+      @Override
+      public CompletableFuture<UploadPartCopyResponse> uploadPartCopy(UploadPartCopyRequest request) {
+        if (request.sourceKey().endsWith("_2_audio_mixed.wav")) {
+          return CompletableFuture.failedFuture(new IllegalStateException("S3 unavailable"));
+        }
+        return CompletableFuture.completedFuture(UploadPartCopyResponse.builder()
+            .copyPartResult(CopyPartResult.builder().eTag("copy-" + request.partNumber()).build()).build());
+      }
+
+      @Override
+      public CompletableFuture<CompleteMultipartUploadResponse> completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        throw new AssertionError("completed an upload with a failed part");
+      }
+
+      @Override
+      public CompletableFuture<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request) {
+        aborted.add(request);
+        return CompletableFuture.completedFuture(AbortMultipartUploadResponse.builder().build());
+      }
+
+      @Override
+      public String serviceName() {
+        return SERVICE_NAME;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    // parts of 1 byte, so the header is uploaded and every recording is copied
+    RecordingConsolidator consolidator = new RecordingConsolidator(s3, false, 1);
+
+    Map<String, ?> consolidated = consolidator.consolidate("contact-1", Arrays.asList(
+        recording("2024-02-25T08:36:00Z", "contact-1_1_audio_mixed.wav"),
+        recording("2024-02-25T08:37:00Z", "contact-1_2_audio_mixed.wav"))).join();
+
+    assertTrue(consolidated.isEmpty());
+    assertEquals(1, aborted.size());
+    assertEquals("upload-1", aborted.get(0).uploadId());
+    assertEquals("recordings/contact-1_audio_mixed.wav", aborted.get(0).key());
+  }
+
+  private static RecordingConsolidator.Segment segment(String objectKey, long bytes, int channels, int sampleRate, long startMillis) {
+    return new RecordingConsolidator.Segment(new RecordedObject("AUDIO_MIXED", "bucket", objectKey, bytes, channels, sampleRate), startMillis);
+  }
+
+  private static RecordingData recording(String startTimestamp, String fileName) {
+    return RecordingData.builder()
+        .withStartTimestamp(startTimestamp)
+        .withObjects(Collections.singletonList(new RecordedObject("AUDIO_MIXED", "bucket", "recordings/" + fileName,
+            16044, 2, AudioUtils.SAMPLE_RATE)))
+        .build();
+  }
+
+  // the data chunk length of a wav header
+  private static long dataLength(PartPlanner.Piece header) {
+    return header.getBytes().order(ByteOrder.LITTLE_ENDIAN).getInt(40) & 0xffffffffL;
+  }
+}
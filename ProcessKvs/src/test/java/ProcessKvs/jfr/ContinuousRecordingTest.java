@@ -0,0 +1,81 @@
+package ProcessKvs.jfr;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContinuousRecordingTest {
+
+  @Test
+  public void dumpsRecordingEventsOfSlowRecordings() throws Exception {
+    ContinuousRecording recording = new ContinuousRecording(true, Duration.ofMinutes(10), 16 * 1024 * 1024, Duration.ofSeconds(5));
+    recording.start();
+    assertTrue(recording.isRunning());
+
+    RecordingEvent event = new RecordingEvent();
+    event.begin();
+    event.contactId = "c1";
+    event.streamArn = "arn:aws:kinesisvideo:us-east-1:123:stream/s1";
+    event.objects = 3;
+    event.bytes = 4096;
+    event.succeeded = true;
+    event.commit();
+
+    Path dump = Files.createTempFile("continuous", ".jfr");
+    assertFalse(recording.isDumpDue(Duration.ofSeconds(4)));
+    assertFalse(recording.dumpIfSlow(Duration.ofSeconds(4), dump));
+    assertTrue(recording.isDumpDue(Duration.ofSeconds(5)));
+    assertTrue(recording.dumpIfSlow(Duration.ofSeconds(5), dump));
+    assertTrue(Files.size(dump) <= recording.getMaxSize());
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(dump).stream()
+        .filter(recorded -> recorded.getEventType().getName().equals("ProcessKvs.Recording"))
+        .collect(Collectors.toList());
+    assertEquals(1, events.size());
+    assertEquals("c1", events.get(0).getString("contactId"));
+    assertEquals(3, events.get(0).getInt("objects"));
+    assertEquals(4096, events.get(0).getLong("bytes"));
+    assertTrue(events.get(0).getBoolean("succeeded"));
+
+    // the first dump already holds everything recorded within the max age
+    assertFalse(recording.isDumpDue(Duration.ofSeconds(60)));
+    assertFalse(recording.dumpIfSlow(Duration.ofSeconds(60), dump));
+    recording.stop();
+    assertFalse(recording.isRunning());
+    Files.delete(dump);
+  }
+
+  @Test
+  public void disabledRecordingNeverDumps() throws Exception {
+    ContinuousRecording recording = new ContinuousRecording(false, Duration.ofMinutes(10), 16 * 1024 * 1024, Duration.ofSeconds(1));
+    recording.start();
+    assertFalse(recording.isRunning());
+
+    Path dump = Files.createTempFile("continuous", ".jfr");
+    Files.delete(dump);
+    assertFalse(recording.dumpIfSlow(Duration.ofMinutes(5), dump));
+    assertFalse(Files.exists(dump));
+  }
+
+  @Test
+  public void zeroThresholdNeverDumps() throws Exception {
+    ContinuousRecording recording = new ContinuousRecording(true, Duration.ofMinutes(10), 16 * 1024 * 1024, Duration.ZERO);
+    recording.start();
+
+    Path dump = Files.createTempFile("continuous", ".jfr");
+    Files.delete(dump);
+    assertFalse(recording.dumpIfSlow(Duration.ofMinutes(5), dump));
+    assertFalse(Files.exists(dump));
+    recording.stop();
+  }
+}
@@ -0,0 +1,97 @@
+package ProcessKvs.kinesis;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CtrBatchTest {
+
+  @Test
+  public void keepsLatestVersionOfEachContact() {
+    CtrBatch batch = new CtrBatch();
+    batch.add("1", ctr("a", "2024-02-25T08:36:30Z", "s1"));
+    batch.add("2", ctr("b", "2024-02-25T08:36:00Z", "s2"));
+    // older than the version before it, e.g. after a producer retry
+    batch.add("3", ctr("a", "2024-02-25T08:35:10Z", "s1"));
+    batch.add("4", ctr("b", "2024-02-25T08:37:00Z", "s2"));
+
+    List<CtrBatch.Latest> latest = batch.latest();
+    assertEquals(2, latest.size());
+    assertEquals("1", latest.get(0).getRecordId());
+    assertEquals(Collections.singletonList("3"), latest.get(0).getSupersededRecordIds());
+    assertEquals("4", latest.get(1).getRecordId());
+    assertEquals("2024-02-25T08:37:00Z", latest.get(1).getCtr().getString("LastUpdateTimestamp"));
+    assertEquals(Collections.singletonList("2"), latest.get(1).getSupersededRecordIds());
+    assertEquals(2, batch.getSuperseded());
+  }
+
+  @Test
+  public void laterRecordWinsWithoutNewerTimestamp() {
+    CtrBatch batch = new CtrBatch();
+    batch.add("1", ctr("a", "2024-02-25T08:36:30Z", "s1"));
+    batch.add("2", ctr("a", "2024-02-25T08:36:30Z", "s1"));
+    batch.add("3", ctr("b", null, "s2"));
+    batch.add("4", ctr("b", "not a timestamp", "s2"));
+    batch.add("5", ctr("b", null, "s2"));
+
+    List<CtrBatch.Latest> latest = batch.latest();
+    assertEquals("2", latest.get(0).getRecordId());
+    assertEquals("5", latest.get(1).getRecordId());
+    assertEquals(Arrays.asList("3", "4"), latest.get(1).getSupersededRecordIds());
+  }
+
+  @Test
+  public void addsRecordingsOfSupersededVersions() {
+    CtrBatch batch = new CtrBatch();
+    batch.add("1", ctr("a", "2024-02-25T08:36:00Z", "s1", "s2"));
+    JSONObject last = ctr("a", "2024-02-25T08:37:00Z", "s2", "s3");
+    batch.add("2", last);
+
+    JSONObject ctr = batch.latest().get(0).getCtr();
+    assertSame(last, ctr);
+    JSONArray recordings = ctr.getJSONArray("Recordings");
+    assertEquals(3, recordings.length());
+    assertEquals("s2", recordings.getJSONObject(0).getString("Location"));
+    // the own version of a recording listed by both
+    assertEquals("2024-02-25T08:37:00Z", recordings.getJSONObject(0).getString("StopTimestamp"));
+    assertEquals("s3", recordings.getJSONObject(1).getString("Location"));
+    assertEquals("s1", recordings.getJSONObject(2).getString("Location"));
+  }
+
+  @Test
+  public void keepsRecordsWithoutContactId() {
+    CtrBatch batch = new CtrBatch();
+    batch.add("1", new JSONObject().put("Channel", "VOICE"));
+    batch.add("2", new JSONObject().put("ContactId", JSONObject.NULL));
+    batch.add("3", ctr("a", "2024-02-25T08:36:00Z"));
+
+    List<CtrBatch.Latest> latest = batch.latest();
+    assertEquals(3, latest.size());
+    assertEquals("2", latest.get(1).getRecordId());
+    assertEquals(0, batch.getSuperseded());
+    assertEquals(0, latest.get(2).getCtr().getJSONArray("Recordings").length());
+  }
+
+  private static JSONObject ctr(String contactId, String lastUpdate, String... streams) {
+    JSONArray recordings = new JSONArray();
+    for (String stream : streams) {
+      recordings.put(new JSONObject()
+          .put("Location", stream)
+          .put("FragmentStartNumber", "9134385233318148191028363407583616496097785897" + stream.length())
+          .put("StopTimestamp", lastUpdate)
+          .put("StorageType", "KINESIS_VIDEO_STREAM"));
+    }
+    return new JSONObject()
+        .put("ContactId", contactId)
+        .put("Channel", "VOICE")
+        .put("LastUpdateTimestamp", lastUpdate == null ? JSONObject.NULL : lastUpdate)
+        .put("Recordings", recordings);
+  }
+}
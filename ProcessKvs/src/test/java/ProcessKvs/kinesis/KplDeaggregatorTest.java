@@ -0,0 +1,131 @@
+package ProcessKvs.kinesis;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class KplDeaggregatorTest {
+
+  private static final byte[] MAGIC = {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+
+  @Test
+  public void splitsAggregatedRecord() throws Exception {
+    ByteBuffer data = ByteBuffer.wrap(aggregate(false, "{\"ContactId\":\"a\"}", "{\"ContactId\":\"b\"}", ""));
+
+    List<ByteBuffer> records = KplDeaggregator.deaggregate(data);
+
+    assertEquals(3, records.size());
+    assertEquals("{\"ContactId\":\"a\"}", KplDeaggregator.decodeUtf8(records.get(0)));
+    assertEquals("{\"ContactId\":\"b\"}", KplDeaggregator.decodeUtf8(records.get(1)));
+    assertEquals("", KplDeaggregator.decodeUtf8(records.get(2)));
+    assertEquals(0, data.position());
+  }
+
+  @Test
+  public void skipsUnknownFields() throws Exception {
+    List<ByteBuffer> records = KplDeaggregator.deaggregate(ByteBuffer.wrap(aggregate(true, "first", "second")));
+
+    assertEquals(2, records.size());
+    assertEquals("second", KplDeaggregator.decodeUtf8(records.get(1)));
+  }
+
+  @Test
+  public void returnsPlainRecordUnchanged() {
+    ByteBuffer data = ByteBuffer.wrap("{\"ContactId\":\"a\"}".getBytes(StandardCharsets.UTF_8));
+
+    List<ByteBuffer> records = KplDeaggregator.deaggregate(data);
+
+    assertEquals(1, records.size());
+    assertEquals("{\"ContactId\":\"a\"}", KplDeaggregator.decodeUtf8(records.get(0)));
+  }
+
+  @Test
+  public void returnsRecordWithWrongChecksumUnchanged() throws Exception {
+    byte[] aggregated = aggregate(false, "first", "second");
+    aggregated[aggregated.length - 1] ^= 1;
+
+    List<ByteBuffer> records = KplDeaggregator.deaggregate(ByteBuffer.wrap(aggregated));
+
+    assertEquals(1, records.size());
+    assertEquals(aggregated.length, records.get(0).remaining());
+  }
+
+  @Test
+  public void rejectsTruncatedMessageWithValidChecksum() throws Exception {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write(0x1A);
+    message.write(0x7F);
+    message.write(0x01);
+
+    try {
+      KplDeaggregator.deaggregate(ByteBuffer.wrap(frame(message.toByteArray())));
+      fail("truncated record accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void decodesUtf8FromBufferPosition() {
+    byte[] bytes = "xx{\"agent\":\"Jos\u00e9 \u00c5ngstr\u00f6m\"}".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer data = ByteBuffer.wrap(bytes);
+    data.position(2);
+
+    assertEquals("{\"agent\":\"Jos\u00e9 \u00c5ngstr\u00f6m\"}", KplDeaggregator.decodeUtf8(data));
+    assertEquals(2, data.position());
+  }
+
+  /**
+   * Encodes user records the way the KPL does, optionally with explicit hash keys and tags
+   */
+  private static byte[] aggregate(boolean extraFields, String... records) throws Exception {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    writeBytes(message, 1, "partition-key".getBytes(StandardCharsets.UTF_8));
+    if (extraFields) {
+      writeBytes(message, 2, "12345".getBytes(StandardCharsets.UTF_8));
+    }
+    for (String record : records) {
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      writeVarint(encoded, 1 << 3);
+      writeVarint(encoded, 0);
+      if (extraFields) {
+        writeVarint(encoded, 2 << 3);
+        writeVarint(encoded, 0);
+      }
+      writeBytes(encoded, 3, record.getBytes(StandardCharsets.UTF_8));
+      if (extraFields) {
+        writeBytes(encoded, 4, new byte[]{0x0A, 0x01, 'k'});
+      }
+      writeBytes(message, 3, encoded.toByteArray());
+    }
+    return frame(message.toByteArray());
+  }
+
+  private static byte[] frame(byte[] message) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(MAGIC);
+    out.write(message);
+    out.write(MessageDigest.getInstance("MD5").digest(message));
+    return out.toByteArray();
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+    writeVarint(out, field << 3 | 2);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}
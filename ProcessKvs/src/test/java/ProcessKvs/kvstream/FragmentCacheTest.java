@@ -0,0 +1,106 @@
+package ProcessKvs.kvstream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FragmentCacheTest {
+
+  private static final Set<String> BOTH = Set.of(KVSUtils.AUDIO_FROM_CUSTOMER, KVSUtils.AUDIO_TO_CUSTOMER);
+
+  @Test
+  public void keepsFramesInStreamOrder() {
+    FragmentCache cache = new FragmentCache(1024);
+    FragmentCache.Fragment fragment = new FragmentCache.Fragment("stream", "1", "contact", BOTH);
+    fragment.add(KVSUtils.AUDIO_FROM_CUSTOMER, ByteBuffer.wrap(new byte[]{1, 2}));
+    fragment.add(KVSUtils.AUDIO_TO_CUSTOMER, ByteBuffer.wrap(new byte[]{3, 4, 5, 6}));
+    cache.put(fragment, "2");
+
+    FragmentCache.Fragment cached = cache.get("stream", "1", BOTH);
+    assertSame(fragment, cached);
+    assertEquals("2", cached.getNextFragmentNumber());
+    assertEquals("contact", cached.getContactId());
+    assertEquals(2, cached.getFrameCount());
+    assertEquals(KVSUtils.AUDIO_TO_CUSTOMER, cached.getTrack(1));
+    assertEquals(6, cached.getBytes());
+    assertEquals(6, cache.getBytes());
+
+    // each reader gets a buffer of its own
+    ByteBuffer data = cached.getData(1);
+    data.get();
+    assertEquals(4, cached.getData(1).remaining());
+    assertEquals(3, cached.getData(1).get());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void missesOtherStreamsAndMissingTracks() {
+    FragmentCache cache = new FragmentCache(1024);
+    cache.put(fragment("stream", "1", 10, Collections.singleton(KVSUtils.AUDIO_TO_CUSTOMER)), "2");
+
+    assertNull(cache.get("other", "1", Collections.singleton(KVSUtils.AUDIO_TO_CUSTOMER)));
+    assertNull(cache.get("stream", "2", Collections.singleton(KVSUtils.AUDIO_TO_CUSTOMER)));
+    // read without the customer track
+    assertNull(cache.get("stream", "1", BOTH));
+    assertEquals(10, cache.get("stream", "1", Collections.singleton(KVSUtils.AUDIO_TO_CUSTOMER)).getBytes());
+    assertEquals(3, cache.getMisses());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFragments() {
+    FragmentCache cache = new FragmentCache(300);
+    cache.put(fragment("stream", "1", 100, BOTH), "2");
+    cache.put(fragment("stream", "2", 100, BOTH), "3");
+    cache.put(fragment("stream", "3", 100, BOTH), "4");
+    // fragment 1 is used again, so 2 is the least recently used one
+    cache.get("stream", "1", BOTH);
+    cache.put(fragment("stream", "4", 100, BOTH), "5");
+
+    assertEquals(300, cache.getBytes());
+    assertNull(cache.get("stream", "2", BOTH));
+    assertEquals("2", cache.get("stream", "1", BOTH).getNextFragmentNumber());
+    assertEquals("4", cache.get("stream", "3", BOTH).getNextFragmentNumber());
+    assertEquals("5", cache.get("stream", "4", BOTH).getNextFragmentNumber());
+  }
+
+  @Test
+  public void replacesFragmentReadAgain() {
+    FragmentCache cache = new FragmentCache(300);
+    cache.put(fragment("stream", "1", 100, BOTH), "2");
+    cache.put(fragment("stream", "1", 120, BOTH), "2");
+
+    assertEquals(120, cache.getBytes());
+  }
+
+  @Test
+  public void skipsFragmentsLargerThanBudget() {
+    FragmentCache cache = new FragmentCache(100);
+    cache.put(fragment("stream", "1", 60, BOTH), "2");
+    cache.put(fragment("stream", "2", 101, BOTH), "3");
+
+    assertNull(cache.get("stream", "2", BOTH));
+    assertEquals(60, cache.getBytes());
+  }
+
+  @Test
+  public void cachesNothingWithoutBudget() {
+    FragmentCache cache = new FragmentCache(0);
+    cache.put(fragment("stream", "1", 10, BOTH), "2");
+
+    assertFalse(cache.isEnabled());
+    assertNull(cache.get("stream", "1", BOTH));
+  }
+
+  private static FragmentCache.Fragment fragment(String streamName, String fragmentNumber, int bytes, Set<String> tracks) {
+    FragmentCache.Fragment fragment = new FragmentCache.Fragment(streamName, fragmentNumber, null, tracks);
+    fragment.add(tracks.iterator().next(), ByteBuffer.allocate(bytes));
+    return fragment;
+  }
+}
@@ -0,0 +1,49 @@
+package ProcessKvs.kvstream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+public class GetMediaAdmissionControllerTest {
+
+  @Test
+  public void limitsSessionsPerStream() {
+    GetMediaAdmissionController controller = new GetMediaAdmissionController(2, 1000, 50, null);
+
+    GetMediaAdmissionController.Admission first = controller.acquire("stream-a");
+    controller.acquire("stream-a");
+    controller.acquire("stream-b").close();
+
+    assertRejected(controller, "stream-a");
+
+    first.close();
+    controller.acquire("stream-a");
+  }
+
+  @Test
+  public void lowersLimitWhenThrottled() {
+    GetMediaAdmissionController controller = new GetMediaAdmissionController(2, 1000, 50, null);
+
+    GetMediaAdmissionController.Admission first = controller.acquire("stream-a");
+    controller.onThrottled("stream-a");
+    assertRejected(controller, "stream-a");
+
+    controller.onSuccess("stream-a");
+    GetMediaAdmissionController.Admission second = controller.acquire("stream-a");
+
+    first.close();
+    second.close();
+    second.close();
+    controller.acquire("stream-a");
+    controller.acquire("stream-a");
+  }
+
+  private static void assertRejected(GetMediaAdmissionController controller, String streamName) {
+    try {
+      controller.acquire(streamName);
+      fail("expected admission to time out");
+    } catch (IllegalStateException expected) {
+      // session limit reached
+    }
+  }
+}
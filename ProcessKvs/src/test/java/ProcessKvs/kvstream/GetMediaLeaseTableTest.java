@@ -0,0 +1,101 @@
+package ProcessKvs.kvstream;
+
+import org.junit.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class GetMediaLeaseTableTest {
+
+  @Test
+  public void renewsLeaseUntilReleased() throws Exception {
+    RecordingDynamoDb dynamoDb = new RecordingDynamoDb(CompletableFuture.completedFuture(UpdateItemResponse.builder().build()));
+    GetMediaLeaseTable table = new GetMediaLeaseTable(dynamoDb, "leases", 1);
+
+    String lease = table.tryAcquire("stream-1", 1);
+    assertNotNull(lease);
+    assertEquals(1, table.getHeldLeases());
+
+    UpdateItemRequest renewal = dynamoDb.renewed.get(10, TimeUnit.SECONDS);
+    assertEquals("stream-1#0", renewal.key().get("LeaseKey").s());
+    assertEquals(lease.substring(lease.lastIndexOf('|') + 1), renewal.expressionAttributeValues().get(":owner").s());
+    assertEquals("#owner = :owner", renewal.conditionExpression());
+
+    table.release("stream-1", lease);
+    assertEquals(0, table.getHeldLeases());
+    // the delete has completed when release returns
+    assertEquals(1, dynamoDb.deletes.size());
+    assertTrue(dynamoDb.deletes.get(0).isDone());
+  }
+
+  @Test
+  public void stopsRenewingLeaseTakenOver() throws Exception {
+    CompletableFuture<UpdateItemResponse> update = new CompletableFuture<>();
+    RecordingDynamoDb dynamoDb = new RecordingDynamoDb(update);
+    GetMediaLeaseTable table = new GetMediaLeaseTable(dynamoDb, "leases", 1);
+
+    String lease = table.tryAcquire("stream-1", 1);
+    dynamoDb.renewed.get(10, TimeUnit.SECONDS);
+    // the renewal handles the response on completion
+    while (update.getNumberOfDependents() == 0) {
+      Thread.onSpinWait();
+    }
+    update.completeExceptionally(ConditionalCheckFailedException.builder().message("owner changed").build());
+
+    assertEquals(0, table.getHeldLeases());
+    table.release("stream-1", lease);
+  }
+
+  private static final class RecordingDynamoDb implements DynamoDbAsyncClient {
+    private final CompletableFuture<UpdateItemResponse> update;
+    private final CompletableFuture<UpdateItemRequest> renewed = new CompletableFuture<>();
+    private final List<CompletableFuture<DeleteItemResponse>> deletes = Collections.synchronizedList(new ArrayList<>());
+
+    private RecordingDynamoDb(CompletableFuture<UpdateItemResponse> update) {
+      this.update = update;
+    }
+
+    @Override
+    public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+      return CompletableFuture.completedFuture(PutItemResponse.builder().build());
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+      renewed.complete(request);
+      return update;
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+      CompletableFuture<DeleteItemResponse> delete = CompletableFuture.supplyAsync(() -> DeleteItemResponse.builder().build(),
+          CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+      deletes.add(delete);
+      return delete;
+    }
+
+    @Override
+    public String serviceName() {
+      return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package ProcessKvs.kvstream;
+
+import ProcessKvs.audio.AudioUtils;
+import ProcessKvs.synthetic.SyntheticCall;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KVSUtilsTest {
+
+  // 16 frames of 64 ms in 4 fragments
+  private static final SyntheticCall CALL = new SyntheticCall("contact-1", "stream-1", 1024, 512, 4, 0, 1);
+
+  @Test
+  public void readsOnlySelectedTrack() throws Exception {
+    FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+    FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+    StreamingMkvReader reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(CALL.openMedia()));
+    Map<String, ByteBuffer> bufferMap = new HashMap<>();
+    Set<String> fragments = new LinkedHashSet<>();
+
+    int frames = 0;
+    Map<String, ByteBuffer> frame = getFromCustomerFrame(reader, fragmentVisitor, tagProcessor, "contact-1", bufferMap);
+    while (!frame.isEmpty()) {
+      assertEquals(Collections.singleton(KVSUtils.AUDIO_FROM_CUSTOMER), frame.keySet());
+      assertEquals(1024, frame.get(KVSUtils.AUDIO_FROM_CUSTOMER).remaining());
+      fragments.add(fragmentVisitor.getCurrentFragmentMetadata().map(FragmentMetadata::getFragmentNumberString).orElse(null));
+      frames++;
+      frame = getFromCustomerFrame(reader, fragmentVisitor, tagProcessor, "contact-1", bufferMap);
+    }
+
+    assertEquals(16, frames);
+    assertEquals(CALL.getFragments(), fragments.size());
+    String startFragment = CALL.ctr(AudioUtils.AUTH_AUDIO_MIXED).getJSONArray("Recordings").getJSONObject(0)
+        .getString("FragmentStartNumber");
+    assertEquals(startFragment, fragments.iterator().next());
+    // the tags after the blocks of the last fragment
+    assertEquals("contact-1", KVSUtils.getContactIdFromStreamTag(tagProcessor));
+  }
+
+  @Test
+  public void stopsAtTagOfOtherContact() throws Exception {
+    FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+    FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+    StreamingMkvReader reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(CALL.openMedia()));
+    Map<String, ByteBuffer> bufferMap = new HashMap<>();
+
+    int frames = 0;
+    while (!getFromCustomerFrame(reader, fragmentVisitor, tagProcessor, "contact-2", bufferMap).isEmpty()) {
+      frames++;
+    }
+
+    // the ContactId tag follows the blocks, so the first fragment is read before the mismatch is found
+    assertEquals(4, frames);
+    assertEquals("contact-1", KVSUtils.getContactIdFromStreamTag(tagProcessor));
+  }
+
+  @Test
+  public void readsOneByteTrackNumber() {
+    ByteBuffer block = ByteBuffer.wrap(new byte[]{(byte) 0x82, 0x00, 0x10, (byte) 0x80, 0x01, 0x02});
+
+    assertEquals(2, KVSUtils.blockTrackNumber(block));
+    assertEquals(0, block.position());
+  }
+
+  @Test
+  public void readsLongerTrackNumbers() {
+    assertEquals(0x1234, KVSUtils.blockTrackNumber(ByteBuffer.wrap(new byte[]{0x52, 0x34, 0x00})));
+    assertEquals(0x0A0B0C, KVSUtils.blockTrackNumber(ByteBuffer.wrap(new byte[]{0x2A, 0x0B, 0x0C, 0x00})));
+  }
+
+  @Test
+  public void readsFromBufferPosition() {
+    ByteBuffer block = ByteBuffer.wrap(new byte[]{0x00, 0x00, (byte) 0x81, 0x00});
+    block.position(2);
+
+    assertEquals(1, KVSUtils.blockTrackNumber(block));
+    assertEquals(2, block.position());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void copiesFrameWithoutBlockHeader() throws Exception {
+    SyntheticCall call = new SyntheticCall("contact-1", "stream-1", 1000, 512, 8, 0, 1);
+    StreamingMkvReader reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(call.openMedia()));
+
+    int blocks = 0;
+    while (reader.mightHaveNext()) {
+      Optional<MkvElement> element = reader.nextIfAvailable();
+      if (element.isPresent() && MkvTypeInfos.SIMPLEBLOCK.equals(element.get().getElementMetaData().getTypeInfo())) {
+        MkvDataElement block = (MkvDataElement) element.get();
+        ByteBuffer copy = KVSUtils.copyBlockFrame(block);
+        Frame frame = ((MkvValue<Frame>) block.getValueCopy()).getVal();
+
+        assertEquals(frame.getFrameData(), copy);
+        assertEquals(1024, copy.remaining());
+        blocks++;
+      }
+    }
+    assertTrue(blocks > 0);
+  }
+
+  @Test
+  public void rejectsInvalidTrackNumber() {
+    try {
+      KVSUtils.blockTrackNumber(ByteBuffer.wrap(new byte[]{0x00, 0x00}));
+      fail("track number without length marker accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static Map<String, ByteBuffer> getFromCustomerFrame(StreamingMkvReader reader,
+      FragmentMetadataVisitor fragmentVisitor, FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor,
+      String contactId, Map<String, ByteBuffer> bufferMap) throws Exception {
+    return KVSUtils.getByteBufferFromStream(reader, fragmentVisitor, tagProcessor, contactId, bufferMap,
+        Collections.singleton(KVSUtils.AUDIO_FROM_CUSTOMER));
+  }
+}
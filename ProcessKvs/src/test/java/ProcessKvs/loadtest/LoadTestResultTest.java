@@ -0,0 +1,30 @@
+package ProcessKvs.loadtest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoadTestResultTest {
+
+  @Test
+  public void percentileUsesNearestRank() {
+    long[] sorted = {15, 20, 35, 40, 50};
+
+    assertEquals(15, LoadTestResult.percentile(sorted, 0));
+    assertEquals(15, LoadTestResult.percentile(sorted, 5));
+    assertEquals(20, LoadTestResult.percentile(sorted, 30));
+    assertEquals(35, LoadTestResult.percentile(sorted, 50));
+    assertEquals(50, LoadTestResult.percentile(sorted, 95));
+    assertEquals(50, LoadTestResult.percentile(sorted, 100));
+  }
+
+  @Test
+  public void percentileOfSingleValue() {
+    assertEquals(7, LoadTestResult.percentile(new long[]{7}, 99));
+  }
+
+  @Test
+  public void percentileOfNoValues() {
+    assertEquals(0, LoadTestResult.percentile(new long[0], 50));
+  }
+}
@@ -0,0 +1,57 @@
+package ProcessKvs.loadtest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NativeComparisonCommandTest {
+
+  @Test
+  public void parsesDigestOutput() {
+    NativeComparisonCommand.Run run = NativeComparisonCommand.Run.parse(Arrays.asList(
+        "Processing CTR Event",
+        "Record Data: {\"ContactId\": \"1\"}",
+        "object 5d41402abc4b2a76 1044 1_audio_from_customer.wav",
+        "object 7d793037a0760186 2044 1_audio_mixed.wav",
+        "startup-ms 412",
+        "first-contact-ms 950",
+        "total-ms 2100",
+        "peak-rss-kb 204800",
+        "failed 0"));
+
+    assertEquals(2, run.getObjects().size());
+    assertEquals("5d41402abc4b2a76 1044", run.getObjects().get("1_audio_from_customer.wav"));
+    assertEquals(412, run.getStartupMillis());
+    assertEquals(950, run.getFirstContactMillis());
+    assertEquals(2100, run.getTotalMillis());
+    assertEquals(204800, run.getPeakRssKb());
+  }
+
+  @Test
+  public void sameObjectsHaveNoDifferences() {
+    NativeComparisonCommand.Run jvm = NativeComparisonCommand.Run.parse(Arrays.asList(
+        "object aa 10 a.wav", "object bb 20 b.wav", "startup-ms 900"));
+    NativeComparisonCommand.Run nativeImage = NativeComparisonCommand.Run.parse(Arrays.asList(
+        "startup-ms 40", "object bb 20 b.wav", "object aa 10 a.wav"));
+
+    assertTrue(NativeComparisonCommand.differences(jvm, nativeImage).isEmpty());
+  }
+
+  @Test
+  public void reportsChangedAndMissingObjects() {
+    NativeComparisonCommand.Run jvm = NativeComparisonCommand.Run.parse(Arrays.asList(
+        "object aa 10 a.wav", "object bb 20 b.wav", "object cc 30 c.wav"));
+    NativeComparisonCommand.Run nativeImage = NativeComparisonCommand.Run.parse(Arrays.asList(
+        "object aa 10 a.wav", "object bd 20 b.wav", "object dd 40 d.wav"));
+
+    assertEquals(Arrays.asList("b.wav", "c.wav", "d.wav"),
+        Arrays.asList(NativeComparisonCommand.differences(jvm, nativeImage).toArray()));
+    assertEquals(Collections.singleton("c.wav"),
+        NativeComparisonCommand.differences(jvm, NativeComparisonCommand.Run.parse(Arrays.asList(
+            "object aa 10 a.wav", "object bb 20 b.wav"))));
+  }
+}
@@ -0,0 +1,155 @@
+package ProcessKvs.manifest;
+
+import ProcessKvs.model.RecordedObject;
+import ProcessKvs.model.RecordingData;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingManifestWriterTest {
+
+  @Test
+  public void partitionsByInitiationDay() {
+    assertEquals(LocalDate.of(2023, 3, 9), RecordingManifestWriter.partitionDay("2023-03-09T23:59:30Z"));
+    assertEquals(LocalDate.of(2023, 3, 10), RecordingManifestWriter.partitionDay("2023-03-10T00:00:01.123+08:00"));
+  }
+
+  @Test
+  public void writesOneFilePerDayOnFlush() {
+    FakeS3 s3 = new FakeS3();
+    RecordingManifestWriter writer = new RecordingManifestWriter(s3, "bucket", "recordings/manifest/", 100);
+
+    writer.add(recording("c1", "2023-03-09T10:00:00Z"));
+    writer.add(recording("c2", "2023-03-10T10:00:00Z"));
+    writer.add(recording("c3", "2023-03-09T11:00:00Z"));
+    writer.add(RecordingData.builder().withContactId("c4").withInitiationTimestamp("2023-03-09T11:00:00Z").build());
+    assertEquals(0, s3.objects.size());
+
+    assertEquals(0, writer.flush());
+    assertEquals(2, s3.objects.size());
+
+    List<String> keys = new ArrayList<>(s3.objects.keySet());
+    assertTrue(keys.get(0), keys.get(0).startsWith("recordings/manifest/dt=2023-03-09/"));
+    assertTrue(keys.get(1), keys.get(1).startsWith("recordings/manifest/dt=2023-03-10/"));
+
+    String[] lines = s3.objects.get(keys.get(0)).split("\n");
+    assertEquals(2, lines.length);
+    JSONObject first = new JSONObject(lines[0]);
+    assertEquals("c1", first.getString("contactId"));
+    assertEquals("queue", first.getString("queue"));
+    assertEquals(61000, first.getLong("durationMillis"));
+    assertEquals("recordings/2023/3/9/c1_audio_mixed.wav", first.getJSONArray("objects").getJSONObject(0).getString("key"));
+  }
+
+  @Test
+  public void writesFullBatchesRightAway() {
+    FakeS3 s3 = new FakeS3();
+    RecordingManifestWriter writer = new RecordingManifestWriter(s3, "bucket", "manifest/", 2);
+
+    writer.add(recording("c1", "2023-03-09T10:00:00Z"));
+    writer.add(recording("c2", "2023-03-09T10:00:00Z"));
+    assertEquals(1, s3.objects.size());
+
+    writer.add(recording("c3", "2023-03-09T10:00:00Z"));
+    assertEquals(0, writer.flush());
+    assertEquals(2, s3.objects.size());
+  }
+
+  @Test
+  public void retriesFailedFilesOnNextFlush() {
+    FakeS3 s3 = new FakeS3();
+    s3.failures = 1;
+    RecordingManifestWriter writer = new RecordingManifestWriter(s3, "bucket", "manifest/", 100);
+
+    writer.add(recording("c1", "2023-03-09T10:00:00Z"));
+    assertEquals(1, writer.flush());
+    assertEquals(0, s3.objects.size());
+
+    assertEquals(0, writer.flush());
+    assertEquals(1, s3.objects.size());
+    assertTrue(s3.objects.values().iterator().next().contains("\"c1\""));
+  }
+
+  private static RecordingData recording(String contactId, String initiationTimestamp) {
+    RecordingData recording = RecordingData.builder()
+        .withContactId(contactId)
+        .withInitialContactId(contactId)
+        .withInitiationTimestamp(initiationTimestamp)
+        .withQueueName("queue")
+        .build();
+    recording.setDurationMillis(61000);
+    List<RecordedObject> objects = new ArrayList<>();
+    objects.add(new RecordedObject("AUDIO_MIXED", "bucket", "recordings/2023/3/9/" + contactId + "_audio_mixed.wav", 1952044, 2, 8000));
+    recording.setObjects(objects);
+    return recording;
+  }
+
+  private static final class FakeS3 implements S3AsyncClient {
+    private final Map<String, String> objects = new LinkedHashMap<>();
+    private int failures;
+
+    @Override
+    public CompletableFuture<PutObjectResponse> putObject(PutObjectRequest request, AsyncRequestBody body) {
+      if (failures > 0) {
+        failures--;
+        return CompletableFuture.failedFuture(new IllegalStateException("S3 unavailable"));
+      }
+      objects.put(request.key(), read(body));
+      return CompletableFuture.completedFuture(PutObjectResponse.builder().build());
+    }
+
+    @Override
+    public String serviceName() {
+      return "s3";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static String read(AsyncRequestBody body) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      body.subscribe(new Subscriber<ByteBuffer>() {
+        @Override
+        public void onSubscribe(Subscription subscription) {
+          subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer) {
+          byte[] bytes = new byte[buffer.remaining()];
+          buffer.get(bytes);
+          out.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+          throw new AssertionError(e);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+      });
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package ProcessKvs.pipeline;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadAheadInputStreamTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Test
+  public void readsSourceInOrder() throws Exception {
+    byte[] content = new byte[100_000];
+    new Random(7).nextBytes(content);
+
+    ReadAheadInputStream stream = new ReadAheadInputStream(new TrickleInputStream(content), 4096, 4, executor);
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    read.write(stream.read());
+    byte[] buffer = new byte[1000];
+    int count;
+    while ((count = stream.read(buffer, 0, buffer.length)) >= 0) {
+      read.write(buffer, 0, count);
+    }
+    stream.close();
+
+    assertArrayEquals(content, read.toByteArray());
+  }
+
+  @Test
+  public void readsAtMostDepthChunksAhead() throws Exception {
+    CountingInputStream source = new CountingInputStream(new ByteArrayInputStream(new byte[1_000_000]));
+    ReadAheadInputStream stream = new ReadAheadInputStream(source, 1000, 4, executor);
+
+    stream.read();
+    Thread.sleep(200);
+
+    // the chunk being read, the queued chunks and the one waiting for room in the queue
+    assertTrue(source.count <= 6 * 1000);
+    stream.close();
+    assertTrue(source.closed);
+  }
+
+  @Test
+  public void throwsSourceError() throws Exception {
+    InputStream failing = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("connection reset");
+      }
+    };
+    ReadAheadInputStream stream = new ReadAheadInputStream(failing, 1000, 4, executor);
+
+    try {
+      stream.read();
+      fail("source error not thrown");
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    stream.close();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Returns at most 1000 bytes per read, like a network stream
+   */
+  private static final class TrickleInputStream extends FilterInputStream {
+    TrickleInputStream(byte[] content) {
+      super(new ByteArrayInputStream(content));
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 1000));
+    }
+
+    @Override
+    public int available() {
+      return 0;
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    private volatile long count;
+    private volatile boolean closed;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      count += Math.max(read, 0);
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      super.close();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package ProcessKvs.pipeline;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StageQueueTest {
+
+  @Test
+  public void blocksProducerWhenFull() throws Exception {
+    StageQueue<Integer> queue = new StageQueue<>("write", 2);
+    queue.put(1);
+    queue.put(2);
+
+    CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+      try {
+        queue.put(3);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(producer.isDone());
+
+    assertEquals(Integer.valueOf(1), queue.take());
+    producer.get(1, TimeUnit.SECONDS);
+    assertEquals(Integer.valueOf(2), queue.take());
+    assertEquals(Integer.valueOf(3), queue.take());
+    queue.close();
+    assertNull(queue.take());
+    assertNull(queue.take());
+
+    assertTrue(queue.getProducerBlockedNanos() > 0);
+    assertEquals(2, queue.getMaxDepth());
+  }
+
+  @Test
+  public void throwsProducerFailureAfterQueuedItems() throws Exception {
+    StageQueue<Integer> queue = new StageQueue<>("write", 4);
+    queue.put(1);
+    queue.fail(new IOException("stream closed"));
+
+    assertEquals(Integer.valueOf(1), queue.take());
+    try {
+      queue.take();
+      fail("failure not thrown");
+    } catch (IOException e) {
+      assertEquals("stream closed", e.getMessage());
+    }
+  }
+
+  @Test
+  public void cancelReleasesBlockedProducer() throws Exception {
+    StageQueue<Integer> queue = new StageQueue<>("write", 1);
+    queue.put(1);
+
+    CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+      try {
+        queue.put(2);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(50);
+    queue.cancel();
+
+    try {
+      producer.get(1, TimeUnit.SECONDS);
+      fail("producer not cancelled");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CancellationException);
+    }
+  }
+
+  @Test
+  public void reportsStageUtilisation() throws Exception {
+    StageQueue<Integer> first = new StageQueue<>("demux", 4);
+    StageQueue<Integer> second = new StageQueue<>("write", 4);
+    CompletableFuture.runAsync(() -> {
+      try {
+        Thread.sleep(200);
+        first.put(1);
+        first.close();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    long start = System.nanoTime();
+    while (first.take() != null) {
+      second.put(1);
+    }
+
+    PipelineStats stats = PipelineStats.of(System.nanoTime() - start, new String[]{"fetch", "demux", "write"}, first, second);
+
+    assertEquals("fetch", stats.getBottleneck().getName());
+    assertTrue(stats.getStages().get(1).getUtilisation() < 0.5);
+    assertEquals(4, stats.getStages().get(2).getQueueCapacity());
+  }
+}
@@ -0,0 +1,106 @@
+package ProcessKvs.retry;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingRetrierTest {
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final InMemoryRetryQueue queue = new InMemoryRetryQueue(clock::get, 30_000);
+  private final InMemoryRetryQueue deadLetterQueue = new InMemoryRetryQueue(clock::get, 30_000);
+  private final List<String> published = new ArrayList<>();
+
+  @Test
+  public void retriesFailedRecordAfterBackoff() {
+    RecordingRetrier retrier = new RecordingRetrier(queue, deadLetterQueue, 3, 10, new RetryMetrics(published::add));
+    List<String> processed = new ArrayList<>();
+
+    assertTrue(retrier.failed(ctr("contact-1"), 1));
+    assertEquals(0, retrier.processDue(ctr -> processed.add(ctr.getString("ContactId"))));
+
+    clock.addAndGet(10_000);
+    assertEquals(1, retrier.processDue(ctr -> processed.add(ctr.getString("ContactId"))));
+    assertEquals(List.of("contact-1"), processed);
+    assertEquals(0, queue.size());
+    assertEquals(1, retrier.getMetrics().getRetried());
+    assertEquals(1, retrier.getMetrics().getSucceeded());
+  }
+
+  @Test
+  public void deadLettersAfterMaxAttempts() {
+    RecordingRetrier retrier = new RecordingRetrier(queue, deadLetterQueue, 3, 0, new RetryMetrics(published::add));
+
+    retrier.failed(ctr("contact-1"), 1);
+    assertEquals(2, retrier.processDue(ctr -> false));
+
+    assertEquals(0, queue.size());
+    assertEquals(1, deadLetterQueue.size());
+    assertEquals(2, retrier.getMetrics().getRetried());
+    assertEquals(1, retrier.getMetrics().getDeadLettered());
+    assertEquals("contact-1", new JSONObject(deadLetterQueue.receive(1).join().get(0).getBody())
+        .getJSONObject("ctr").getString("ContactId"));
+  }
+
+  @Test
+  public void retriesRecordThatThrows() {
+    RecordingRetrier retrier = new RecordingRetrier(queue, deadLetterQueue, 3, 0, new RetryMetrics(published::add));
+
+    retrier.failed(ctr("contact-1"), 1);
+    retrier.processDue(ctr -> {
+      throw new IllegalStateException("stream not found");
+    });
+
+    assertEquals(1, deadLetterQueue.size());
+  }
+
+  @Test
+  public void dropsMalformedMessage() {
+    RecordingRetrier retrier = new RecordingRetrier(queue, deadLetterQueue, 3, 0, new RetryMetrics(published::add));
+
+    assertTrue(retrier.process("not json", ctr -> true));
+    assertEquals(1, retrier.getMetrics().getLost());
+  }
+
+  @Test
+  public void backoffDoublesUpToQueueDelayLimit() {
+    RecordingRetrier retrier = new RecordingRetrier(queue, deadLetterQueue, 20, 30, new RetryMetrics(published::add));
+
+    for (int i = 0; i < 100; i++) {
+      int first = retrier.retryDelaySeconds(1);
+      int third = retrier.retryDelaySeconds(3);
+      int last = retrier.retryDelaySeconds(19);
+      assertTrue(first >= 15 && first <= 30);
+      assertTrue(third >= 60 && third <= 120);
+      assertTrue(last >= 450 && last <= 900);
+    }
+  }
+
+  @Test
+  public void publishesCountsOnce() {
+    RetryMetrics metrics = new RetryMetrics(published::add);
+    RecordingRetrier retrier = new RecordingRetrier(queue, deadLetterQueue, 3, 0, metrics);
+
+    retrier.succeeded();
+    retrier.failed(ctr("contact-1"), 1);
+    metrics.publish();
+    metrics.publish();
+
+    assertEquals(1, published.size());
+    JSONObject line = new JSONObject(published.get(0));
+    assertEquals(1, line.getLong("RecordsSucceeded"));
+    assertEquals(1, line.getLong("RecordsRetried"));
+    assertEquals(0, line.getLong("RecordsDeadLettered"));
+    assertEquals(0, metrics.getRetried());
+  }
+
+  private static JSONObject ctr(String contactId) {
+    return new JSONObject().put("ContactId", contactId).put("Channel", "VOICE");
+  }
+}
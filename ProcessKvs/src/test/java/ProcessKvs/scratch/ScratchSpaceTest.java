@@ -0,0 +1,137 @@
+package ProcessKvs.scratch;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScratchSpaceTest {
+
+  @Test
+  public void givesEachRecordingItsOwnDirectory() throws Exception {
+    ScratchSpace space = new ScratchSpace(Files.createTempDirectory("scratch"), 1000, 0);
+    Workspace first = space.open("contact-1");
+    Workspace second = space.open("contact-1");
+    assertNotEquals(first.getDirectory(), second.getDirectory());
+    assertTrue(first.getDirectory().getFileName().toString().startsWith("contact-1-"));
+
+    Files.write(first.file("audio_from_customer.pcm"), new byte[100]);
+    first.reserve(100);
+    second.reserve(200);
+    assertEquals(300, space.getUsed());
+    assertEquals(2, space.getOpenWorkspaces());
+
+    first.close();
+    assertFalse(Files.exists(first.getDirectory()));
+    assertEquals(200, space.getUsed());
+    assertEquals(1, space.getOpenWorkspaces());
+    second.close();
+    assertEquals(0, space.getUsed());
+  }
+
+  @Test
+  public void failsAtOnceAboveBudget() throws Exception {
+    ScratchSpace space = new ScratchSpace(Files.createTempDirectory("scratch"), 1000, TimeUnit.MINUTES.toNanos(1));
+    try (Workspace workspace = space.open("contact")) {
+      workspace.reserve(600);
+      long start = System.nanoTime();
+      assertReserveFails(workspace, 500);
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+      assertEquals(600, space.getUsed());
+    }
+  }
+
+  @Test
+  public void waitsForOtherWorkspaces() throws Exception {
+    ScratchSpace space = new ScratchSpace(Files.createTempDirectory("scratch"), 1000, TimeUnit.MINUTES.toNanos(1));
+    Workspace holder = space.open("first");
+    Workspace waiter = space.open("second");
+    holder.reserve(800);
+
+    CompletableFuture<Void> reserved = CompletableFuture.runAsync(() -> {
+      try {
+        waiter.reserve(500);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(reserved.isDone());
+
+    holder.close();
+    reserved.get(10, TimeUnit.SECONDS);
+    assertEquals(500, space.getUsed());
+    waiter.close();
+  }
+
+  @Test
+  public void failsAfterWaiting() throws Exception {
+    ScratchSpace space = new ScratchSpace(Files.createTempDirectory("scratch"), 1000, TimeUnit.MILLISECONDS.toNanos(50));
+    Workspace holder = space.open("first");
+    Workspace waiter = space.open("second");
+    holder.reserve(800);
+
+    assertReserveFails(waiter, 500);
+    assertEquals(800, space.getUsed());
+    holder.close();
+    waiter.close();
+  }
+
+  @Test
+  public void keepsMappedBytesAfterClose() throws Exception {
+    ScratchSpace space = new ScratchSpace(Files.createTempDirectory("scratch"), 1000, 0);
+    Workspace workspace = space.open("contact");
+    workspace.reserve(100);
+    workspace.reserveMapped(200);
+    workspace.reserveMapped(300);
+    workspace.releaseMapped(300);
+    // a deleted file does not release the bytes still mapped
+    workspace.release(1000);
+    assertEquals(200, space.getUsed());
+
+    workspace.reserve(100);
+    workspace.close();
+    assertFalse(Files.exists(workspace.getDirectory()));
+    assertEquals(200, space.getUsed());
+    assertEquals(0, space.getOpenWorkspaces());
+
+    // the mapping is gone after the workspace was closed
+    workspace.releaseMapped(200);
+    assertEquals(0, space.getUsed());
+    assertEquals(0, workspace.getReserved());
+  }
+
+  @Test
+  public void reclaimsDirectoriesOfNoOpenWorkspace() throws Exception {
+    Path root = Files.createTempDirectory("scratch");
+    Path leftover = Files.createDirectory(root.resolve("contact-123"));
+    Files.write(leftover.resolve("audio_mixed.pcm"), new byte[300]);
+    ScratchSpace space = new ScratchSpace(root, 1000, 0);
+    Workspace open = space.open("contact");
+    Files.write(open.file("audio_to_customer.pcm"), new byte[50]);
+
+    assertEquals(300, space.reclaim());
+    assertFalse(Files.exists(leftover));
+    assertTrue(Files.exists(open.file("audio_to_customer.pcm")));
+
+    open.close();
+    assertEquals(0, space.reclaim());
+  }
+
+  private static void assertReserveFails(Workspace workspace, long bytes) {
+    try {
+      workspace.reserve(bytes);
+    } catch (IOException expected) {
+      return;
+    }
+    throw new AssertionError("reserve of " + bytes + " bytes did not fail");
+  }
+}